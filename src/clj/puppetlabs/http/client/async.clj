@@ -10,8 +10,11 @@
 ;; these methods.
 
 (ns puppetlabs.http.client.async
-  (:import (com.puppetlabs.http.client ClientOptions RequestOptions ResponseBodyType HttpMethod CompressType)
-           (com.puppetlabs.http.client.impl JavaClient ResponseDeliveryDelegate)
+  (:import (com.puppetlabs.http.client ClientGroup ClientOptions RequestOptions ResponseBodyType HttpMethod CompressType
+                                       RetryPolicy CircuitBreakerPolicy HedgePolicy)
+           (com.puppetlabs.http.client.impl JavaClient ResponseDeliveryDelegate RequestHandle)
+           (clojure.lang IBlockingDeref IDeref IFn IPending)
+           (java.util.concurrent Future TimeUnit TimeoutException)
            (org.apache.http.impl.nio.client CloseableHttpAsyncClient)
            (org.apache.http.client.utils URIBuilder)
            (org.apache.http.entity ContentType)
@@ -30,13 +33,71 @@
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Private utility functions
 
-(schema/defn ^:always-validate create-default-client :- CloseableHttpAsyncClient
+(schema/defn create-retry-policy :- RetryPolicy
+  [{:keys [max-retries initial-backoff-milliseconds max-backoff-milliseconds
+           retry-status-codes retry-non-idempotent?]} :- common/RetryPolicy]
+  (cond-> (RetryPolicy.)
+          (some? max-retries) (.setMaxRetries max-retries)
+          (some? initial-backoff-milliseconds)
+          (.setInitialBackoffMilliseconds initial-backoff-milliseconds)
+          (some? max-backoff-milliseconds)
+          (.setMaxBackoffMilliseconds max-backoff-milliseconds)
+          (some? retry-status-codes) (.setRetryStatusCodes (int-array retry-status-codes))
+          (some? retry-non-idempotent?) (.setRetryNonIdempotent retry-non-idempotent?)))
+
+(schema/defn create-circuit-breaker-policy :- CircuitBreakerPolicy
+  [{:keys [failure-rate-threshold sliding-window-size minimum-requests
+           open-duration-milliseconds half-open-requests]} :- common/CircuitBreakerPolicy]
+  (cond-> (CircuitBreakerPolicy.)
+          (some? failure-rate-threshold) (.setFailureRateThreshold failure-rate-threshold)
+          (some? sliding-window-size) (.setSlidingWindowSize sliding-window-size)
+          (some? minimum-requests) (.setMinimumRequests minimum-requests)
+          (some? open-duration-milliseconds)
+          (.setOpenDurationMilliseconds open-duration-milliseconds)
+          (some? half-open-requests) (.setHalfOpenRequests half-open-requests)))
+
+(schema/defn create-hedge-policy :- HedgePolicy
+  [{:keys [delay-milliseconds delay-percentile max-hedge-percent]} :- common/HedgePolicy]
+  (cond-> (HedgePolicy.)
+          (some? delay-milliseconds) (.setDelayMilliseconds delay-milliseconds)
+          (some? delay-percentile) (.setDelayPercentile (double delay-percentile))
+          (some? max-hedge-percent) (.setMaxHedgePercent max-hedge-percent)))
+
+(schema/defn ^:always-validate create-client-options :- ClientOptions
   [{:keys [ssl-context ssl-ca-cert ssl-cert ssl-key ssl-protocols cipher-suites
            follow-redirects force-redirects connect-timeout-milliseconds
            socket-timeout-milliseconds metric-registry server-id
            metric-prefix enable-url-metrics?
+           metric-url-templates
+           max-url-metrics
+           metric-reservoir
+           metric-reservoir-window-seconds
+           enable-phase-metrics?
            max-connections-total
-           max-connections-per-route]}:- common/ClientOptions]
+           max-connections-per-route
+           max-connections-by-route
+           max-requests-in-flight
+           max-queued-requests
+           max-queued-requests-per-route
+           connection-time-to-live-milliseconds
+           idle-connection-timeout-milliseconds
+           connection-eviction-interval-milliseconds
+           io-thread-count
+           io-select-interval-milliseconds
+           socket-send-buffer-size
+           socket-receive-buffer-size
+           tcp-no-delay?
+           socket-keep-alive?
+           warm-up-hosts
+           warm-up-connections
+           buffer-pool-slab-size
+           buffer-pool-max-slabs
+           callback-executor
+           retry-policy
+           circuit-breaker
+           coalesce-requests?
+           response-cache-max-bytes
+           client-group]}:- common/ClientOptions]
   (let [client-options (ClientOptions.)]
     (cond-> client-options
             (some? ssl-context) (.setSslContext ssl-context)
@@ -55,9 +116,50 @@
             (some? server-id) (.setServerId server-id)
             (some? metric-prefix) (.setMetricPrefix metric-prefix)
             (some? enable-url-metrics?) (.setEnableURLMetrics enable-url-metrics?)
+            (some? metric-url-templates) (.setMetricUrlTemplates (into-array String metric-url-templates))
+            (some? max-url-metrics) (.setMaxUrlMetrics max-url-metrics)
+            (some? metric-reservoir)
+            (.setMetricReservoir (metrics/get-java-reservoir-type metric-reservoir))
+            (some? metric-reservoir-window-seconds)
+            (.setMetricReservoirWindowSeconds metric-reservoir-window-seconds)
+            (some? enable-phase-metrics?) (.setEnablePhaseMetrics enable-phase-metrics?)
             (some? max-connections-total) (.setMaxConnectionsTotal max-connections-total)
-            (some? max-connections-per-route) (.setMaxConnectionsPerRoute max-connections-per-route))
-    (JavaClient/createClient client-options)))
+            (some? max-connections-per-route) (.setMaxConnectionsPerRoute max-connections-per-route)
+            (some? max-connections-by-route)
+            (.setMaxConnectionsByRoute (into {} (for [[host max-connections] max-connections-by-route]
+                                                  [host (int max-connections)])))
+            (some? max-requests-in-flight) (.setMaxRequestsInFlight max-requests-in-flight)
+            (some? max-queued-requests) (.setMaxQueuedRequests max-queued-requests)
+            (some? max-queued-requests-per-route) (.setMaxQueuedRequestsPerRoute max-queued-requests-per-route)
+            (some? connection-time-to-live-milliseconds)
+            (.setConnectionTimeToLiveMilliseconds connection-time-to-live-milliseconds)
+            (some? idle-connection-timeout-milliseconds)
+            (.setIdleConnectionTimeoutMilliseconds idle-connection-timeout-milliseconds)
+            (some? connection-eviction-interval-milliseconds)
+            (.setConnectionEvictionIntervalMilliseconds connection-eviction-interval-milliseconds)
+            (some? io-thread-count) (.setIoThreadCount io-thread-count)
+            (some? io-select-interval-milliseconds)
+            (.setIoSelectIntervalMilliseconds io-select-interval-milliseconds)
+            (some? socket-send-buffer-size) (.setSocketSendBufferSize socket-send-buffer-size)
+            (some? socket-receive-buffer-size) (.setSocketReceiveBufferSize socket-receive-buffer-size)
+            (some? tcp-no-delay?) (.setTcpNoDelay tcp-no-delay?)
+            (some? socket-keep-alive?) (.setSocketKeepAlive socket-keep-alive?)
+            (some? warm-up-hosts) (.setWarmUpHosts (into-array String warm-up-hosts))
+            (some? warm-up-connections) (.setWarmUpConnections warm-up-connections)
+            (some? buffer-pool-slab-size) (.setBufferPoolSlabSize buffer-pool-slab-size)
+            (some? buffer-pool-max-slabs) (.setBufferPoolMaxSlabs buffer-pool-max-slabs)
+            (some? callback-executor) (.setCallbackExecutor callback-executor)
+            (some? retry-policy) (.setRetryPolicy (create-retry-policy retry-policy))
+            (some? circuit-breaker)
+            (.setCircuitBreakerPolicy (create-circuit-breaker-policy circuit-breaker))
+            (some? coalesce-requests?) (.setCoalesceRequests coalesce-requests?)
+            (some? response-cache-max-bytes) (.setResponseCacheMaxBytes response-cache-max-bytes)
+            (some? client-group) (.setClientGroup client-group))
+    client-options))
+
+(schema/defn ^:always-validate create-default-client :- CloseableHttpAsyncClient
+  [opts :- common/ClientOptions]
+  (JavaClient/createClient (create-client-options opts)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Map the Ring request onto the Java API
@@ -151,15 +253,68 @@
     (into-array (map name metric-id))))
 
 (schema/defn clojure-options->java :- RequestOptions
-  [opts :- common/RequestOptions]
-  (-> ^URI (parse-url opts)
-      RequestOptions.
-      (.setAs (clojure-response-body-type->java opts))
-      (.setBody (:body opts))
-      (.setDecompressBody (clojure.core/get opts :decompress-body true))
-      (.setCompressRequestBody (clojure-compress-request-body-type->java opts))
-      (.setHeaders (:headers opts))
-      (.setMetricId (parse-metric-id opts))))
+  [{:keys [connect-timeout-milliseconds socket-timeout-milliseconds
+           connection-request-timeout-milliseconds deadline-milliseconds
+           retry-policy hedge-policy]
+    :as opts} :- common/RequestOptions]
+  (cond-> (-> ^URI (parse-url opts)
+              RequestOptions.
+              (.setAs (clojure-response-body-type->java opts))
+              (.setBody (:body opts))
+              (.setDecompressBody (clojure.core/get opts :decompress-body true))
+              (.setCompressRequestBody (clojure-compress-request-body-type->java opts))
+              (.setHeaders (:headers opts))
+              (.setMetricId (parse-metric-id opts)))
+          (some? connect-timeout-milliseconds)
+          (.setConnectTimeoutMilliseconds connect-timeout-milliseconds)
+          (some? socket-timeout-milliseconds)
+          (.setSocketTimeoutMilliseconds socket-timeout-milliseconds)
+          (some? connection-request-timeout-milliseconds)
+          (.setConnectionRequestTimeoutMilliseconds connection-request-timeout-milliseconds)
+          (some? deadline-milliseconds)
+          (.setDeadlineMilliseconds deadline-milliseconds)
+          (some? retry-policy)
+          (.setRetryPolicy (create-retry-policy retry-policy))
+          (some? hedge-policy)
+          (.setHedgePolicy (create-hedge-policy hedge-policy))))
+
+;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
+;;; Cancellable response promise
+
+(defn- response-promise
+  "Returns a promise, as with `clojure.core/promise`, which also implements
+   java.util.concurrent.Future so that `future-cancel` can be used to abort the
+   request it is waiting on.  `handle` is a volatile which will hold the
+   request's RequestHandle once the request has been issued."
+  [handle]
+  (let [p (promise)]
+    (reify
+      IDeref
+      (deref [_] (deref p))
+
+      IBlockingDeref
+      (deref [_ timeout-ms timeout-val] (deref p timeout-ms timeout-val))
+
+      IPending
+      (isRealized [_] (realized? p))
+
+      IFn
+      (invoke [this x] (when (p x) this))
+
+      Future
+      (get [_] (deref p))
+      (get [_ timeout unit]
+        (let [result (deref p (.toMillis ^TimeUnit unit timeout) ::timeout)]
+          (if (= ::timeout result)
+            (throw (TimeoutException.))
+            result)))
+      (isDone [_] (realized? p))
+      (isCancelled [_]
+        (boolean (some-> ^RequestHandle @handle .isCancelled)))
+      (cancel [_ _]
+        (if-let [^RequestHandle h @handle]
+          (.cancel h)
+          false)))))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
 ;;; Public
@@ -170,6 +325,9 @@
    `(callback {:opts _ :status _ :headers _ :body _})` or
    `(callback {:opts _ :error _})` will be delivered.
 
+   The promise may be passed to `future-cancel` to abort the request, in which
+   case `{:opts _ :error _}` is delivered to it.
+
    When unspecified, `callback` is the identity function.
 
    opts:
@@ -191,7 +349,27 @@
        Defaults to `:stream`.
    * :query-params - used to set the query parameters of an http request
    * :metric-id - array of strings or keywords, used to set the metrics to be
-       timed for the request."
+       timed for the request.
+   * :connect-timeout-milliseconds, :socket-timeout-milliseconds - override the
+       client's timeouts for this request.
+   * :connection-request-timeout-milliseconds - maximum number of milliseconds
+       to wait for a connection from the client's pool for this request.
+   * :deadline-milliseconds - maximum number of milliseconds the whole request
+       may take, from waiting for a pooled connection through to the end of the
+       response body. If it passes, the request is aborted and a
+       `java.util.concurrent.TimeoutException` is delivered as the `:error`.
+   * :retry-policy - overrides the client's :retry-policy for this request; a
+       policy of `{:max-retries 0}` turns retrying off.
+   * :hedge-policy - a map setting how to hedge the request: if no response
+       has arrived within a delay, the request is sent a second time, the
+       first response to arrive is used, and the other request is cancelled.
+       Only GET, HEAD and OPTIONS requests without a body are hedged. Keys:
+       * :delay-milliseconds - the delay (default 100).
+       * :delay-percentile - if set, such as 0.95, the delay is instead that
+           percentile of the durations of earlier requests with the same url
+           and method, once the client's url metrics have timed at least 20.
+       * :max-hedge-percent - the most hedges the client sends, as a
+           percentage of its requests with a hedge policy (default 10)."
   ([opts :- common/RawUserRequestOptions
     callback :- common/ResponseCallbackFn
     client :- HttpAsyncClient]
@@ -208,7 +386,8 @@
     metric-registry :- (schema/maybe MetricRegistry)
     metric-namespace :- (schema/maybe schema/Str)
     enable-url-metrics? :- schema/Bool]
-   (let [result (promise)
+   (let [handle (volatile! nil)
+         result (response-promise handle)
          defaults {:body nil
                    :decompress-body true
                    :compress-request-body :none
@@ -224,10 +403,11 @@
          java-request-options (clojure-options->java opts)
          java-method (clojure-method->java opts)
          response-delivery-delegate (get-response-delivery-delegate opts result)]
-     (JavaClient/requestWithClient java-request-options java-method callback
-                                   client response-delivery-delegate metric-registry
-                                   metric-namespace
-                                   enable-url-metrics?)
+     (vreset! handle
+              (JavaClient/requestWithClient java-request-options java-method callback
+                                            client response-delivery-delegate metric-registry
+                                            metric-namespace
+                                            enable-url-metrics?))
      result)))
 
 (schema/defn create-client :- (schema/protocol common/HTTPClient)
@@ -258,6 +438,97 @@
        set of suites supported by the underlying language runtime.
    * :metric-registry - a MetricRegistry instance used to collect metrics
        on client requests.
+   * :metric-url-templates - a list of path templates, such as
+       '/puppet/v3/catalog/{node}', onto which request urls are collapsed for
+       url metrics.
+   * :max-url-metrics - the maximum number of urls to keep url metrics for;
+       the least recently used url's metrics are removed to make room for a
+       new one. Defaults to 0, meaning no limit.
+   * :metric-reservoir - the reservoir request timers sample durations into:
+       `:exponentially-decaying` (the default), `:sliding-time-window`, or
+       `:histogram`, a bucketed histogram which never allocates as requests
+       are recorded.
+   * :metric-reservoir-window-seconds - the window covered by the
+       `:sliding-time-window` and `:histogram` reservoirs. Defaults to 60.
+   * :enable-phase-metrics? - whether to also time the phases of each request:
+       `:queue-wait`, `:connect`, `:tls-handshake` and `:time-to-first-byte`.
+       Defaults to false.
+   * :max-connections-by-route - a map of host, as "https://puppetdb:8081",
+       or "host:port" for both http and https, to the maximum number of
+       connections to it, overriding :max-connections-per-route.
+   * :max-requests-in-flight - the maximum number of requests the client has in
+       flight at once. Requests beyond it fail straight away, their `:error`
+       being a RequestRejectedException. Defaults to no limit.
+   * :max-queued-requests - the maximum number of requests left waiting for a
+       connection when all of them are in use. Requests beyond it fail
+       straight away, as above. Defaults to no limit.
+   * :max-queued-requests-per-route - the maximum number of requests to any one
+       route left waiting for a connection. Defaults to no limit.
+   * :connection-time-to-live-milliseconds - the longest a connection is kept
+       open for reuse after it was opened. Defaults to no limit.
+   * :idle-connection-timeout-milliseconds - how long a connection may sit
+       idle in the pool before it is closed; a shorter `Keep-Alive: timeout`
+       sent by the server takes precedence. Defaults to no limit.
+   * :connection-eviction-interval-milliseconds - how often the pool is swept
+       for expired and idle connections to close. Defaults to 5000.
+   * :io-thread-count - the number of I/O dispatcher threads the client runs.
+       Defaults to one per available processor.
+   * :io-select-interval-milliseconds - how long each I/O dispatcher waits for
+       I/O events before checking for timed out connections. Defaults to 1000.
+   * :socket-send-buffer-size - the SO_SNDBUF size, in bytes, of each
+       connection. Defaults to the system default.
+   * :socket-receive-buffer-size - the SO_RCVBUF size, in bytes, of each
+       connection. Defaults to the system default.
+   * :tcp-no-delay? - whether to set TCP_NODELAY on each connection. Defaults
+       to true.
+   * :socket-keep-alive? - whether to set SO_KEEPALIVE on each connection.
+       Defaults to false.
+   * :warm-up-hosts - a list of hosts, such as "https://puppet:8140", to which
+       the client opens connections, completing their TLS handshakes, as soon
+       as it is created.
+   * :warm-up-connections - the number of connections opened to each of the
+       :warm-up-hosts. Defaults to 1.
+   * :buffer-pool-slab-size - the size, in bytes, of each pooled buffer used
+       to stream `:unbuffered-stream` response bodies. Defaults to 8192.
+   * :buffer-pool-max-slabs - the maximum number of idle buffers retained for
+       reuse when streaming `:unbuffered-stream` response bodies. Defaults to
+       256.
+   * :callback-executor - a java.util.concurrent.Executor on which responses
+       are processed and callbacks are run. When not set, this happens on the
+       client's I/O thread.
+   * :retry-policy - a map setting how requests which fail in a way that is
+       safe to retry are retried: after an IOException, or a response with one
+       of the :retry-status-codes (default [429 503]). Only requests with
+       idempotent methods are retried unless :retry-non-idempotent? is true,
+       and never those with an InputStream body or an `:unbuffered-stream`
+       response. Each retry waits a random time up to
+       :initial-backoff-milliseconds (default 100), doubled for each retry
+       already made up to :max-backoff-milliseconds (default 10000), or for
+       longer if the server sends a Retry-After header. :max-retries defaults
+       to 3. Requests are not retried by default.
+   * :circuit-breaker - a map setting up a circuit breaker for each host the
+       client sends requests to. Once at least :minimum-requests (default 10)
+       of the last :sliding-window-size (default 20) requests to a host have
+       been seen, and :failure-rate-threshold percent (default 50) of them
+       failed, with an error or a 5xx response, requests to the host fail
+       straight away with a CircuitOpenException for
+       :open-duration-milliseconds (default 30000). Then :half-open-requests
+       (default 1) trial requests are let through, which close the breaker if
+       they all succeed.
+   * :coalesce-requests? - whether a GET or HEAD request without a body which
+       is identical, in its url and headers, to one already in flight waits
+       for that request's response rather than being sent itself. Defaults to
+       false.
+   * :response-cache-max-bytes - the most bytes of responses to GET requests
+       to keep in an in-memory HTTP cache, which answers requests from fresh
+       responses without sending them, as allowed by their Cache-Control and
+       Expires headers, and revalidates stale ones with If-None-Match and
+       If-Modified-Since requests. The least recently used responses are
+       removed to stay within the limit. Defaults to 0, meaning no cache.
+   * :client-group - a ClientGroup, created with `create-client-group`, whose
+       I/O threads and connection pool the client shares with the other
+       clients in the group. The ssl, connection limit and I/O options above
+       are then taken from the group, and ignored on the client.
 
    opts (ssl-specific where only one of the following combinations permitted):
 
@@ -303,3 +574,21 @@
       (close [_] (.close client))
       (get-client-metric-registry [_] metric-registry)
       (get-client-metric-namespace [_] metric-namespace))))
+
+(schema/defn create-client-group :- ClientGroup
+  "Creates a group of clients which share one set of I/O threads and one
+  connection pool, reusing connections to the same host across all of them.
+  Clients are added to the group by passing it to `create-client` as the
+  :client-group option.
+
+  Accepts the same opts as `create-client`, of which only the ssl options,
+  :max-connections-total, :max-connections-per-route,
+  :max-connections-by-route, the connection
+  lifetime options (:idle-connection-timeout-milliseconds and so on), the I/O options
+  (:io-thread-count and so on), the warm-up options and the :metric-registry, :metric-prefix and
+  :server-id under which the pool is reported are used.
+
+  Closing the group closes its connections, after which none of the clients
+  in it can make requests."
+  [opts :- common/ClientOptions]
+  (ClientGroup. (create-client-options opts)))
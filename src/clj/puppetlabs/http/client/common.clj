@@ -5,6 +5,8 @@
            (clojure.lang IBlockingDeref)
            (java.io InputStream)
            (java.nio.charset Charset)
+           (java.util.concurrent Executor)
+           (com.puppetlabs.http.client ClientGroup)
            (com.puppetlabs.http.client.metrics ClientTimer))
   (:require [schema.core :as schema])
   (:refer-clojure :exclude (get)))
@@ -48,6 +50,25 @@
 
 (def MetricId [(schema/either schema/Str schema/Keyword)])
 
+(def RetryPolicy
+  {(ok :max-retries) schema/Int
+   (ok :initial-backoff-milliseconds) schema/Int
+   (ok :max-backoff-milliseconds) schema/Int
+   (ok :retry-status-codes) [schema/Int]
+   (ok :retry-non-idempotent?) schema/Bool})
+
+(def HedgePolicy
+  {(ok :delay-milliseconds) schema/Int
+   (ok :delay-percentile) schema/Num
+   (ok :max-hedge-percent) schema/Int})
+
+(def CircuitBreakerPolicy
+  {(ok :failure-rate-threshold) schema/Int
+   (ok :sliding-window-size) schema/Int
+   (ok :minimum-requests) schema/Int
+   (ok :open-duration-milliseconds) schema/Int
+   (ok :half-open-requests) schema/Int})
+
 (def RawUserRequestClientOptions
   "The list of request and client options passed by a user into
   the request function. Allows the user to configure
@@ -71,7 +92,11 @@
    (ok :force-redirects)  schema/Bool
    (ok :follow-redirects) schema/Bool
    (ok :connect-timeout-milliseconds) schema/Int
-   (ok :socket-timeout-milliseconds) schema/Int})
+   (ok :socket-timeout-milliseconds) schema/Int
+   (ok :connection-request-timeout-milliseconds) schema/Int
+   (ok :deadline-milliseconds) schema/Int
+   (ok :retry-policy) RetryPolicy
+   (ok :hedge-policy) HedgePolicy})
 
 (def RawUserRequestOptions
   "The list of request options passed by a user into the
@@ -84,7 +109,13 @@
    (ok :compress-request-body) CompressType
    (ok :as)               BodyType
    (ok :query-params)     {schema/Str schema/Str}
-   (ok :metric-id)        MetricId})
+   (ok :metric-id)        MetricId
+   (ok :connect-timeout-milliseconds) schema/Int
+   (ok :socket-timeout-milliseconds) schema/Int
+   (ok :connection-request-timeout-milliseconds) schema/Int
+   (ok :deadline-milliseconds) schema/Int
+   (ok :retry-policy) RetryPolicy
+   (ok :hedge-policy) HedgePolicy})
 
 (def RequestOptions
   "The options from UserRequestOptions that have to do with the
@@ -99,7 +130,13 @@
    :compress-request-body CompressType
    :as                    BodyType
    (ok :query-params)     {schema/Str schema/Str}
-   (ok :metric-id)        MetricId})
+   (ok :metric-id)        MetricId
+   (ok :connect-timeout-milliseconds) schema/Int
+   (ok :socket-timeout-milliseconds) schema/Int
+   (ok :connection-request-timeout-milliseconds) schema/Int
+   (ok :deadline-milliseconds) schema/Int
+   (ok :retry-policy) RetryPolicy
+   (ok :hedge-policy) HedgePolicy})
 
 (def SslContextOptions
   {:ssl-context SSLContext})
@@ -116,6 +153,9 @@
   {(ok :ssl-protocols) [schema/Str]
    (ok :cipher-suites) [schema/Str]})
 
+(def MetricReservoir
+  (schema/enum :exponentially-decaying :sliding-time-window :histogram))
+
 (def BaseClientOptions
   {(ok :force-redirects) schema/Bool
    (ok :follow-redirects) schema/Bool
@@ -125,8 +165,36 @@
    (ok :server-id) schema/Str
    (ok :metric-prefix) schema/Str
    (ok :enable-url-metrics?) schema/Bool
+   (ok :metric-url-templates) [schema/Str]
+   (ok :max-url-metrics) schema/Int
+   (ok :metric-reservoir) MetricReservoir
+   (ok :metric-reservoir-window-seconds) schema/Int
+   (ok :enable-phase-metrics?) schema/Bool
    (ok :max-connections-total) schema/Int
-   (ok :max-connections-per-route) schema/Int})
+   (ok :max-connections-per-route) schema/Int
+   (ok :max-connections-by-route) {schema/Str schema/Int}
+   (ok :max-requests-in-flight) schema/Int
+   (ok :max-queued-requests) schema/Int
+   (ok :max-queued-requests-per-route) schema/Int
+   (ok :connection-time-to-live-milliseconds) schema/Int
+   (ok :idle-connection-timeout-milliseconds) schema/Int
+   (ok :connection-eviction-interval-milliseconds) schema/Int
+   (ok :io-thread-count) schema/Int
+   (ok :io-select-interval-milliseconds) schema/Int
+   (ok :socket-send-buffer-size) schema/Int
+   (ok :socket-receive-buffer-size) schema/Int
+   (ok :tcp-no-delay?) schema/Bool
+   (ok :socket-keep-alive?) schema/Bool
+   (ok :warm-up-hosts) [schema/Str]
+   (ok :warm-up-connections) schema/Int
+   (ok :buffer-pool-slab-size) schema/Int
+   (ok :buffer-pool-max-slabs) schema/Int
+   (ok :callback-executor) Executor
+   (ok :retry-policy) RetryPolicy
+   (ok :circuit-breaker) CircuitBreakerPolicy
+   (ok :coalesce-requests?) schema/Bool
+   (ok :response-cache-max-bytes) schema/Int
+   (ok :client-group) ClientGroup})
 
 (def UserRequestOptions
   "A cleaned-up version of RawUserRequestClientOptions, which is formed after
@@ -188,7 +256,12 @@
   {:metric-name schema/Str
    :count schema/Int
    :mean schema/Num
-   :aggregate schema/Num})
+   :aggregate schema/Num
+   :p50 schema/Num
+   :p95 schema/Num
+   :p99 schema/Num
+   :p999 schema/Num
+   :max schema/Num})
 
 (def UrlMetricData
   (assoc BaseMetricData :url schema/Str))
@@ -205,4 +278,4 @@
    :metric-id [MetricIdMetricData]})
 
 (def MetricTypes
-  (schema/enum :full-response))
+  (schema/enum :full-response :queue-wait :connect :tls-handshake :time-to-first-byte))
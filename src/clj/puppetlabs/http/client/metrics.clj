@@ -4,13 +4,18 @@
             [schema.core :as schema])
   (:import (com.codahale.metrics MetricRegistry)
            (com.puppetlabs.http.client.metrics ClientMetricData Metrics
-                                               Metrics$MetricType)))
+                                               Metrics$MetricType Metrics$ReservoirType)))
 
 (schema/defn get-base-metric-data :- common/BaseMetricData
   [data :- ClientMetricData]
   {:count (.getCount data)
    :mean (.getMean data)
    :aggregate (.getAggregate data)
+   :p50 (.getP50 data)
+   :p95 (.getP95 data)
+   :p99 (.getP99 data)
+   :p999 (.getP999 data)
+   :max (.getMax data)
    :metric-name (.getMetricName data)})
 
 (schema/defn get-url-metric-data :- common/UrlMetricData
@@ -25,10 +30,21 @@
   [data :- ClientMetricData]
   (assoc (get-base-metric-data data) :metric-id (.getMetricId data)))
 
+(defn get-java-reservoir-type
+  [reservoir-type]
+  (case reservoir-type
+    :exponentially-decaying Metrics$ReservoirType/EXPONENTIALLY_DECAYING
+    :sliding-time-window Metrics$ReservoirType/SLIDING_TIME_WINDOW
+    :histogram Metrics$ReservoirType/HISTOGRAM))
+
 (defn get-java-metric-type
   [metric-type]
   (case metric-type
-    :full-response Metrics$MetricType/FULL_RESPONSE))
+    :full-response Metrics$MetricType/FULL_RESPONSE
+    :queue-wait Metrics$MetricType/QUEUE_WAIT
+    :connect Metrics$MetricType/CONNECT
+    :tls-handshake Metrics$MetricType/TLS_HANDSHAKE
+    :time-to-first-byte Metrics$MetricType/TIME_TO_FIRST_BYTE))
 
 (defn uppercase-method
   [method]
@@ -45,85 +61,129 @@
   [url :- schema/Str]
  (Metrics/urlToMetricUrl url))
 
+;; Each of the functions below takes an optional metric type, one of
+;; common/MetricTypes, selecting which timers to return.  Without one they
+;; return the :full-response timers.
+
 (schema/defn ^:always-validate get-client-metrics
   :- (schema/maybe common/AllMetrics)
   "Returns the http client-specific metrics from the metric registry."
-  [metric-registry :- MetricRegistry]
-  (let [metrics (Metrics/getClientMetrics metric-registry)]
-    {:url (.getUrlTimers metrics)
-     :url-and-method (.getUrlAndMethodTimers metrics)
-     :metric-id (.getMetricIdTimers metrics)}))
+  ([metric-registry :- MetricRegistry]
+   (get-client-metrics metric-registry :full-response))
+  ([metric-registry :- MetricRegistry
+    metric-type :- common/MetricTypes]
+   (let [metrics (Metrics/getClientMetrics metric-registry
+                                           (get-java-metric-type metric-type))]
+     {:url (.getUrlTimers metrics)
+      :url-and-method (.getUrlAndMethodTimers metrics)
+      :metric-id (.getMetricIdTimers metrics)})))
 
 (schema/defn ^:always-validate get-client-metrics-by-url
   :- common/Metrics
   "Returns the http client-specific url metrics matching the specified url."
-  [metric-registry :- MetricRegistry
-   url :- schema/Str]
-  (Metrics/getClientMetricsByUrl
-   metric-registry
-   url))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str]
+   (get-client-metrics-by-url metric-registry url :full-response))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    metric-type :- common/MetricTypes]
+   (Metrics/getClientMetricsByUrl
+    metric-registry
+    url
+    (get-java-metric-type metric-type))))
 
 (schema/defn ^:always-validate get-client-metrics-by-url-and-method
   :- common/Metrics
   "Returns the http client-specific url metrics matching the specified url."
-  [metric-registry :- MetricRegistry
-   url :- schema/Str
-   method :- common/HTTPMethod]
-  (Metrics/getClientMetricsByUrlAndMethod
-   metric-registry
-   url
-   method))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    method :- common/HTTPMethod]
+   (get-client-metrics-by-url-and-method metric-registry url method :full-response))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    method :- common/HTTPMethod
+    metric-type :- common/MetricTypes]
+   (Metrics/getClientMetricsByUrlAndMethod
+    metric-registry
+    url
+    method
+    (get-java-metric-type metric-type))))
 
 (schema/defn ^:always-validate get-client-metrics-by-metric-id
   :- common/Metrics
   "Returns the http client-specific url metrics matching the specified url."
-  [metric-registry :- MetricRegistry
-   metric-id :- common/MetricId]
-  (Metrics/getClientMetricsByMetricId
-   metric-registry
-   (into-array String (map name metric-id))))
+  ([metric-registry :- MetricRegistry
+    metric-id :- common/MetricId]
+   (get-client-metrics-by-metric-id metric-registry metric-id :full-response))
+  ([metric-registry :- MetricRegistry
+    metric-id :- common/MetricId
+    metric-type :- common/MetricTypes]
+   (Metrics/getClientMetricsByMetricId
+    metric-registry
+    (into-array String (map name metric-id))
+    (get-java-metric-type metric-type))))
 
 (schema/defn ^:always-validate get-client-metrics-data
   :- common/AllMetricsData
   "Returns a summary of the metric data for all http client timers, organized
   in a map by category."
-  [metric-registry :- MetricRegistry]
-  (let [data (Metrics/getClientMetricsData metric-registry)]
-    {:url (map get-url-metric-data (.getUrlData data))
-     :url-and-method (map get-url-and-method-metric-data (.getUrlAndMethodData data))
-     :metric-id (map get-metric-id-metric-data (.getMetricIdData data))}))
+  ([metric-registry :- MetricRegistry]
+   (get-client-metrics-data metric-registry :full-response))
+  ([metric-registry :- MetricRegistry
+    metric-type :- common/MetricTypes]
+   (let [data (Metrics/getClientMetricsData metric-registry
+                                            (get-java-metric-type metric-type))]
+     {:url (map get-url-metric-data (.getUrlData data))
+      :url-and-method (map get-url-and-method-metric-data (.getUrlAndMethodData data))
+      :metric-id (map get-metric-id-metric-data (.getMetricIdData data))})))
 
 (schema/defn ^:always-validate get-client-metrics-data-by-url
   :- [common/UrlMetricData]
   "Returns a summary of the metric data for all http client timers filtered by
   url."
-  [metric-registry :- MetricRegistry
-   url :- schema/Str]
-  (let [data (Metrics/getClientMetricsDataByUrl
-              metric-registry
-              url)]
-    (map get-url-metric-data data)))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str]
+   (get-client-metrics-data-by-url metric-registry url :full-response))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    metric-type :- common/MetricTypes]
+   (let [data (Metrics/getClientMetricsDataByUrl
+               metric-registry
+               url
+               (get-java-metric-type metric-type))]
+     (map get-url-metric-data data))))
 
 (schema/defn ^:always-validate get-client-metrics-data-by-url-and-method
   :- [common/UrlAndMethodMetricData]
   "Returns a summary of the metric data for all http client timers filtered by
   url and method."
-  [metric-registry :- MetricRegistry
-   url :- schema/Str
-   method :- common/HTTPMethod]
-  (let [data (Metrics/getClientMetricsDataByUrlAndMethod
-              metric-registry
-              url
-              (uppercase-method method))]
-    (map get-url-and-method-metric-data data)))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    method :- common/HTTPMethod]
+   (get-client-metrics-data-by-url-and-method metric-registry url method :full-response))
+  ([metric-registry :- MetricRegistry
+    url :- schema/Str
+    method :- common/HTTPMethod
+    metric-type :- common/MetricTypes]
+   (let [data (Metrics/getClientMetricsDataByUrlAndMethod
+               metric-registry
+               url
+               (uppercase-method method)
+               (get-java-metric-type metric-type))]
+     (map get-url-and-method-metric-data data))))
 
 (schema/defn ^:always-validate get-client-metrics-data-by-metric-id
   :- [common/MetricIdMetricData]
   "Returns a summary of the metric data for all http client timers filtered by
   metric-id."
-  [metric-registry :- MetricRegistry
-   metric-id :- common/MetricId]
-  (let [data (Metrics/getClientMetricsDataByMetricId
-              metric-registry
-              (into-array String (map name metric-id)))]
-    (map get-metric-id-metric-data data)))
+  ([metric-registry :- MetricRegistry
+    metric-id :- common/MetricId]
+   (get-client-metrics-data-by-metric-id metric-registry metric-id :full-response))
+  ([metric-registry :- MetricRegistry
+    metric-id :- common/MetricId
+    metric-type :- common/MetricTypes]
+   (let [data (Metrics/getClientMetricsDataByMetricId
+               metric-registry
+               (into-array String (map name metric-id))
+               (get-java-metric-type metric-type))]
+     (map get-metric-id-metric-data data))))
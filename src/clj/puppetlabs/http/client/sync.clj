@@ -6,6 +6,7 @@
             [schema.core :as schema]
             [puppetlabs.http.client.common :as common]
             [puppetlabs.http.client.metrics :as metrics])
+  (:import (com.puppetlabs.http.client.impl SharedClients))
   (:refer-clojure :exclude (get)))
 
 ;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;;
@@ -25,7 +26,11 @@
   [opts :- common/RawUserRequestClientOptions]
   (select-keys opts [:url :method :headers :body
                      :decompress-body :compress-request-body
-                     :as :query-params]))
+                     :as :query-params
+                     :connection-request-timeout-milliseconds
+                     :deadline-milliseconds
+                     :retry-policy
+                     :hedge-policy]))
 
 (defn request-with-client
   ([req client]
@@ -43,8 +48,11 @@
 
 (defn request
   [req]
-  (with-open [client (async/create-default-client (extract-client-opts req))]
-    (request-with-client (extract-request-opts req) client)))
+  ;; One-shot requests borrow a cached client for their options, rather than
+  ;; paying for a new reactor, SSL context and connection every time.
+  (with-open [lease (.acquire (SharedClients/getInstance)
+                              (async/create-client-options (extract-client-opts req)))]
+    (request-with-client (extract-request-opts req) (.getClient lease))))
 
 (schema/defn create-client :- (schema/protocol common/HTTPClient)
   [opts :- common/ClientOptions]
@@ -1,16 +1,32 @@
 package com.puppetlabs.http.client;
 
 import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.impl.CompletableResponse;
 import com.puppetlabs.http.client.impl.Promise;
 
 import java.io.Closeable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * This interface represents an asynchronous HTTP client with which
  * requests can be made. An object implementing this interface is returned by
  * {@link com.puppetlabs.http.client.Async#createClient(ClientOptions)}.
+ *
+ * Each request method comes in two flavors: one returning a {@link Promise},
+ * and one (suffixed with <code>Async</code>) returning a
+ * {@link CompletionStage}, which is completed directly by the client when the
+ * response arrives and so can be composed without blocking a thread.  Unlike
+ * the Promise, which is delivered a Response whose
+ * {@link Response#getError()} is set, a failed request completes the stage
+ * exceptionally with the cause.
+ *
+ * The <code>Async</code> methods and {@link #warmUp()} have default
+ * implementations, so that implementations of this interface written before
+ * they were added keep working: the <code>Async</code> methods adapt the
+ * corresponding Promise-returning method, and warmUp does nothing.
  */
 public interface AsyncHttpClient extends Closeable{
 
@@ -24,6 +40,20 @@ public interface AsyncHttpClient extends Closeable{
      */
     public String getMetricNamespace();
 
+    /**
+     * Opens connections to the hosts set with
+     * {@link ClientOptions#setWarmUpHosts(String[])}, until the client's
+     * connection pool holds the configured number of connections to each.
+     * This is done when the client is created, and can be repeated, for
+     * instance after a failover, to replace connections which have closed.
+     *
+     * @return a CompletionStage completed once the connections are ready,
+     * which by default is straight away
+     */
+    public default CompletionStage<Void> warmUp() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Performs a GET request
      * @param url the URL against which to make the GET request
@@ -199,4 +229,228 @@ public interface AsyncHttpClient extends Closeable{
      * @return a Promise with the contents of the response
      */
     public Promise<Response> patch(RequestOptions requestOptions);
+
+    /**
+     * Performs a GET request
+     * @param url the URL against which to make the GET request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> getAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(get(url));
+    }
+
+    /**
+     * Performs a GET request
+     * @param uri the URI against which to make the GET request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> getAsync(URI uri) {
+        return CompletableResponse.of(get(uri));
+    }
+
+    /**
+     * Performs a GET request
+     * @param requestOptions options to configure the GET request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> getAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(get(requestOptions));
+    }
+
+    /**
+     * Performs a HEAD request
+     * @param url the URL against which to make the HEAD request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> headAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(head(url));
+    }
+
+    /**
+     * Performs a HEAD request
+     * @param uri the URI against which to make the HEAD request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> headAsync(URI uri) {
+        return CompletableResponse.of(head(uri));
+    }
+
+    /**
+     * Performs a HEAD request
+     * @param requestOptions options to configure the HEAD request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> headAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(head(requestOptions));
+    }
+
+    /**
+     * Performs a POST request
+     * @param url the URL against which to make the POST request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> postAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(post(url));
+    }
+
+    /**
+     * Performs a POST request
+     * @param uri the URI against which to make the POST request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> postAsync(URI uri) {
+        return CompletableResponse.of(post(uri));
+    }
+
+    /**
+     * Performs a POST request
+     * @param requestOptions options to configure the POST request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> postAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(post(requestOptions));
+    }
+
+    /**
+     * Performs a PUT request
+     * @param url the URL against which to make the PUT request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> putAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(put(url));
+    }
+
+    /**
+     * Performs a PUT request
+     * @param uri the URI against which to make the PUT request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> putAsync(URI uri) {
+        return CompletableResponse.of(put(uri));
+    }
+
+    /**
+     * Performs a PUT request
+     * @param requestOptions options to configure the PUT request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> putAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(put(requestOptions));
+    }
+
+    /**
+     * Performs a DELETE request
+     * @param url the URL against which to make the DELETE request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> deleteAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(delete(url));
+    }
+
+    /**
+     * Performs a DELETE request
+     * @param uri the URI against which to make the DELETE request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> deleteAsync(URI uri) {
+        return CompletableResponse.of(delete(uri));
+    }
+
+    /**
+     * Performs a DELETE request
+     * @param requestOptions options to configure the DELETE request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> deleteAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(delete(requestOptions));
+    }
+
+    /**
+     * Performs a TRACE request
+     * @param url the URL against which to make the TRACE request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> traceAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(trace(url));
+    }
+
+    /**
+     * Performs a TRACE request
+     * @param uri the URI against which to make the TRACE request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> traceAsync(URI uri) {
+        return CompletableResponse.of(trace(uri));
+    }
+
+    /**
+     * Performs a TRACE request
+     * @param requestOptions options to configure the TRACE request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> traceAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(trace(requestOptions));
+    }
+
+    /**
+     * Performs an OPTIONS request
+     * @param url the URL against which to make the OPTIONS request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> optionsAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(options(url));
+    }
+
+    /**
+     * Performs an OPTIONS request
+     * @param uri the URI against which to make the OPTIONS request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> optionsAsync(URI uri) {
+        return CompletableResponse.of(options(uri));
+    }
+
+    /**
+     * Performs an OPTIONS request
+     * @param requestOptions options to configure the OPTIONS request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> optionsAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(options(requestOptions));
+    }
+
+    /**
+     * Performs a PATCH request
+     * @param url the URL against which to make the PATCH request
+     * @return a CompletionStage with the contents of the response
+     * @throws URISyntaxException
+     */
+    public default CompletionStage<Response> patchAsync(String url) throws URISyntaxException {
+        return CompletableResponse.of(patch(url));
+    }
+
+    /**
+     * Performs a PATCH request
+     * @param uri the URI against which to make the PATCH request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> patchAsync(URI uri) {
+        return CompletableResponse.of(patch(uri));
+    }
+
+    /**
+     * Performs a PATCH request
+     * @param requestOptions options to configure the PATCH request
+     * @return a CompletionStage with the contents of the response
+     */
+    public default CompletionStage<Response> patchAsync(RequestOptions requestOptions) {
+        return CompletableResponse.of(patch(requestOptions));
+    }
 }
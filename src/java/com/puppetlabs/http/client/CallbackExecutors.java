@@ -0,0 +1,52 @@
+package com.puppetlabs.http.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Factory methods for Executors suitable for use with
+ * {@link ClientOptions#setCallbackExecutor(java.util.concurrent.Executor)}.
+ */
+public class CallbackExecutors {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CallbackExecutors.class);
+
+    /**
+     * @return an ExecutorService which starts a new virtual thread for each
+     * response.  On JVMs without virtual threads (before Java 21), a cached
+     * pool of daemon platform threads is returned instead.
+     */
+    public static ExecutorService virtualThreadPerTask() {
+        try {
+            Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) factory.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            LOGGER.info("Virtual threads are not available on this JVM; " +
+                    "using a cached thread pool for response callbacks");
+            return cachedThreadPool();
+        }
+    }
+
+    /**
+     * @return an ExecutorService which runs responses on a cached pool of
+     * daemon threads, growing as needed.
+     */
+    public static ExecutorService cachedThreadPool() {
+        return Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable,
+                        "http-client-callback-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
@@ -0,0 +1,90 @@
+package com.puppetlabs.http.client;
+
+/**
+ * Settings for the circuit breakers a client keeps for each host it sends
+ * requests to, for use with
+ * {@link ClientOptions#setCircuitBreakerPolicy(CircuitBreakerPolicy)}.
+ *
+ * A breaker starts closed, letting requests through, and tracks whether each
+ * of the most recent requests to its host failed: with an exception, by
+ * running past its deadline, or with a 5xx response.  Once enough requests
+ * have been seen, and the share of them which failed reaches the threshold,
+ * the breaker opens, and requests to the host fail straight away with a
+ * {@link CircuitOpenException} rather than leasing a connection and waiting
+ * to time out.  After the open duration the breaker is half-open: a few
+ * trial requests are let through, and if they all succeed the breaker closes
+ * again, while a single failure opens it for another open duration.
+ */
+public class CircuitBreakerPolicy {
+    private int failureRateThreshold = 50;
+    private int slidingWindowSize = 20;
+    private int minimumRequests = 10;
+    private long openDurationMilliseconds = 30000;
+    private int halfOpenRequests = 1;
+
+    public int getFailureRateThreshold() { return failureRateThreshold; }
+
+    /**
+     * @param failureRateThreshold The percentage of recent requests which
+     *                             must have failed for the breaker to open.
+     *                             Defaults to 50.
+     * @return this CircuitBreakerPolicy instance
+     */
+    public CircuitBreakerPolicy setFailureRateThreshold(int failureRateThreshold) {
+        this.failureRateThreshold = failureRateThreshold;
+        return this;
+    }
+
+    public int getSlidingWindowSize() { return slidingWindowSize; }
+
+    /**
+     * @param slidingWindowSize The number of most recent requests over which
+     *                          the failure rate is measured.  Defaults to 20.
+     * @return this CircuitBreakerPolicy instance
+     */
+    public CircuitBreakerPolicy setSlidingWindowSize(int slidingWindowSize) {
+        this.slidingWindowSize = slidingWindowSize;
+        return this;
+    }
+
+    public int getMinimumRequests() { return minimumRequests; }
+
+    /**
+     * @param minimumRequests The number of requests which must have been
+     *                        seen before the breaker can open, so that a
+     *                        few early failures don't open it.  Defaults to
+     *                        10, and is capped at the sliding window size.
+     * @return this CircuitBreakerPolicy instance
+     */
+    public CircuitBreakerPolicy setMinimumRequests(int minimumRequests) {
+        this.minimumRequests = minimumRequests;
+        return this;
+    }
+
+    public long getOpenDurationMilliseconds() { return openDurationMilliseconds; }
+
+    /**
+     * @param openDurationMilliseconds How long, in milliseconds, an open
+     *                                 breaker rejects requests before letting
+     *                                 trial requests through.  Defaults to
+     *                                 30000.
+     * @return this CircuitBreakerPolicy instance
+     */
+    public CircuitBreakerPolicy setOpenDurationMilliseconds(long openDurationMilliseconds) {
+        this.openDurationMilliseconds = openDurationMilliseconds;
+        return this;
+    }
+
+    public int getHalfOpenRequests() { return halfOpenRequests; }
+
+    /**
+     * @param halfOpenRequests The number of trial requests a half-open
+     *                         breaker lets through, all of which must succeed
+     *                         for it to close.  Defaults to 1.
+     * @return this CircuitBreakerPolicy instance
+     */
+    public CircuitBreakerPolicy setHalfOpenRequests(int halfOpenRequests) {
+        this.halfOpenRequests = halfOpenRequests;
+        return this;
+    }
+}
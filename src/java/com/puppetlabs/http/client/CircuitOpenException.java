@@ -0,0 +1,12 @@
+package com.puppetlabs.http.client;
+
+/**
+ * This class represents the failure of a request which the client refused
+ * to send because the circuit breaker for its host was open, after too many
+ * recent requests to it had failed.
+ */
+public class CircuitOpenException extends RequestRejectedException {
+    public CircuitOpenException(String msg) {
+        super(msg);
+    }
+}
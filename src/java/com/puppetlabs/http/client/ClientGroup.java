@@ -0,0 +1,109 @@
+package com.puppetlabs.http.client;
+
+import com.puppetlabs.http.client.impl.JavaClient;
+import com.puppetlabs.http.client.impl.PoolWarmer;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * A group of clients which share one I/O reactor and connection pool.
+ *
+ * Clients are added to the group by passing it to
+ * {@link ClientOptions#setClientGroup(ClientGroup)} when creating them with
+ * {@link Async#createClient(ClientOptions)} or
+ * {@link Sync#createClient(ClientOptions)}.  Each keeps its own metrics,
+ * redirect and timeout settings, while connections to the same host are
+ * pooled, and reused, across all of them.
+ *
+ * The group is configured with a ClientOptions of its own, from which only
+ * the SSL, connection limit and lifetime, I/O reactor and warm-up settings are
+ * used, along with the metric registry, prefix and server id under which its
+ * connection pool is reported.  Those settings are ignored on the clients in the group.
+ *
+ * Closing a client in the group does not affect the others; closing the group
+ * closes its connections, after which none of its clients can make requests.
+ */
+public class ClientGroup implements Closeable {
+    private final PoolingNHttpClientConnectionManager connectionPool;
+    private final NHttpClientConnectionManager connectionManager;
+    private final CloseableHttpAsyncClient reactorClient;
+    private final PoolWarmer poolWarmer;
+    private final long idleConnectionTimeoutMilliseconds;
+
+    /**
+     * @param clientOptions the options with which to configure the group's
+     *                      connection pool
+     */
+    public ClientGroup(ClientOptions clientOptions) {
+        this.connectionPool = JavaClient.createSharedConnectionPool(clientOptions);
+        this.connectionManager = JavaClient.manageSharedConnectionPool(connectionPool, clientOptions);
+        this.idleConnectionTimeoutMilliseconds = clientOptions.getIdleConnectionTimeoutMilliseconds();
+        // Clients which share a connection manager don't run its I/O
+        // reactor, so the group runs it with a client of its own.
+        this.reactorClient = HttpAsyncClients.createMinimal(connectionManager);
+        this.reactorClient.start();
+        String[] warmUpHosts = clientOptions.getWarmUpHosts();
+        if (warmUpHosts != null && warmUpHosts.length > 0) {
+            this.poolWarmer = new PoolWarmer(connectionManager, warmUpHosts,
+                    clientOptions.getWarmUpConnections(),
+                    clientOptions.getConnectTimeoutMilliseconds(),
+                    clientOptions.getMetricRegistry(),
+                    Metrics.buildMetricNamespace(clientOptions.getMetricPrefix(),
+                            clientOptions.getServerId()));
+            this.poolWarmer.warmUp();
+        } else {
+            this.poolWarmer = null;
+        }
+    }
+
+    /**
+     * @return the connection manager shared by the clients in the group
+     */
+    public NHttpClientConnectionManager getConnectionManager() {
+        return connectionManager;
+    }
+
+    /**
+     * @return the pool shared by the clients in the group, through which
+     * its limits and state can be read
+     */
+    public ConnPoolControl<HttpRoute> getConnectionPool() {
+        return connectionPool;
+    }
+
+    /**
+     * @return how long connections may sit idle in the group's pool, which
+     * caps the keep-alive of its clients' connections
+     */
+    public long getIdleConnectionTimeoutMilliseconds() {
+        return idleConnectionTimeoutMilliseconds;
+    }
+
+    /**
+     * Opens connections to the group's warm-up hosts, as when the group was
+     * created.
+     *
+     * @return a CompletionStage completed once the connections are ready
+     * @see AsyncHttpClient#warmUp()
+     */
+    public CompletionStage<Void> warmUp() {
+        if (poolWarmer == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return poolWarmer.warmUp();
+    }
+
+    public void close() throws IOException {
+        reactorClient.close();
+    }
+}
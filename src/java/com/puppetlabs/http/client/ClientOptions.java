@@ -1,6 +1,9 @@
 package com.puppetlabs.http.client;
 
 import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.impl.BufferPool;
+import com.puppetlabs.http.client.impl.metrics.Reservoirs;
+import com.puppetlabs.http.client.metrics.Metrics;
 import com.puppetlabs.ssl_utils.SSLUtils;
 
 import javax.net.ssl.SSLContext;
@@ -8,6 +11,8 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.Provider;
 import java.security.Security;
+import java.util.Map;
+import java.util.concurrent.Executor;
 
 /**
  * This class is a wrapper around a number of options for use
@@ -35,10 +40,44 @@ public class ClientOptions {
     private String metricPrefix;
     private String serverId;
     private boolean enableURLMetrics = true;
+    private String[] metricUrlTemplates;
+    private int maxUrlMetrics = 0;
+    private Metrics.ReservoirType metricReservoir = Metrics.ReservoirType.EXPONENTIALLY_DECAYING;
+    private int metricReservoirWindowSeconds = Reservoirs.DEFAULT_WINDOW_SECONDS;
+    private boolean enablePhaseMetrics = false;
 
     // defaults from apache connection manager
     private int maxConnectionsTotal = 20;
     private int maxConnectionsPerRoute = 2;
+    private Map<String, Integer> maxConnectionsByRoute;
+
+    private int maxRequestsInFlight = 0;
+    private int maxQueuedRequests = 0;
+    private int maxQueuedRequestsPerRoute = 0;
+
+    private long connectionTimeToLiveMilliseconds = 0;
+    private long idleConnectionTimeoutMilliseconds = 0;
+    private long connectionEvictionIntervalMilliseconds = 5000;
+
+    // defaults from apache I/O reactor config
+    private int ioThreadCount = 0;
+    private int ioSelectIntervalMilliseconds = 1000;
+    private int socketSendBufferSize = 0;
+    private int socketReceiveBufferSize = 0;
+    private boolean tcpNoDelay = true;
+    private boolean socketKeepAlive = false;
+
+    private String[] warmUpHosts;
+    private int warmUpConnections = 1;
+
+    private int bufferPoolSlabSize = BufferPool.DEFAULT_SLAB_SIZE;
+    private int bufferPoolMaxSlabs = BufferPool.DEFAULT_MAX_POOLED_SLABS;
+    private Executor callbackExecutor;
+    private RetryPolicy retryPolicy;
+    private CircuitBreakerPolicy circuitBreakerPolicy;
+    private boolean coalesceRequests = false;
+    private long responseCacheMaxBytes = 0;
+    private ClientGroup clientGroup;
 
     /**
      * Constructor for the ClientOptions class. When this constructor is called,
@@ -232,6 +271,83 @@ public class ClientOptions {
         return this;
     }
 
+    public String[] getMetricUrlTemplates() { return metricUrlTemplates; }
+
+    /**
+     * @param metricUrlTemplates Path templates, such as
+     *                           <code>/puppet/v3/catalog/{node}</code>, onto
+     *                           which request URLs are collapsed for URL
+     *                           metrics.  A <code>{...}</code> segment matches
+     *                           any single path segment; the first matching
+     *                           template is used, and URLs matching none are
+     *                           timed as they are.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMetricUrlTemplates(String[] metricUrlTemplates) {
+        this.metricUrlTemplates = metricUrlTemplates;
+        return this;
+    }
+
+    public int getMaxUrlMetrics() { return maxUrlMetrics; }
+
+    /**
+     * @param maxUrlMetrics The maximum number of URLs the client keeps URL
+     *                      metrics for.  Once reached, the timers of the least
+     *                      recently requested URL are removed from the
+     *                      registry to make room for a new one.  Defaults to
+     *                      0, meaning no limit.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMaxUrlMetrics(int maxUrlMetrics) {
+        this.maxUrlMetrics = maxUrlMetrics;
+        return this;
+    }
+
+    public Metrics.ReservoirType getMetricReservoir() { return metricReservoir; }
+
+    /**
+     * @param metricReservoir The Reservoir the client's request timers
+     *                        sample durations into, which determines how
+     *                        their percentiles are computed.  Defaults to
+     *                        <code>EXPONENTIALLY_DECAYING</code>.
+     * @return this ClientOptions instance
+     * @see Metrics.ReservoirType
+     */
+    public ClientOptions setMetricReservoir(Metrics.ReservoirType metricReservoir) {
+        this.metricReservoir = metricReservoir;
+        return this;
+    }
+
+    public int getMetricReservoirWindowSeconds() { return metricReservoirWindowSeconds; }
+
+    /**
+     * @param metricReservoirWindowSeconds The window, in seconds, covered by
+     *                                     the <code>SLIDING_TIME_WINDOW</code>
+     *                                     and <code>HISTOGRAM</code>
+     *                                     reservoirs.  Defaults to 60.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMetricReservoirWindowSeconds(int metricReservoirWindowSeconds) {
+        this.metricReservoirWindowSeconds = metricReservoirWindowSeconds;
+        return this;
+    }
+
+    public boolean isEnablePhaseMetrics() { return enablePhaseMetrics; }
+
+    /**
+     * @param enablePhaseMetrics Whether to also time the phases of each
+     *                           request: waiting for a connection, connecting,
+     *                           the TLS handshake, and the time to first
+     *                           byte.  These are recorded alongside the full
+     *                           response timers for the request's URL and
+     *                           metric-id.  Defaults to false.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setEnablePhaseMetrics(boolean enablePhaseMetrics) {
+        this.enablePhaseMetrics = enablePhaseMetrics;
+        return this;
+    }
+
     public int getMaxConnectionsTotal() {return this.maxConnectionsTotal; }
     public ClientOptions setMaxConnectionsTotal(int maxConnectionsTotal) {
         this.maxConnectionsTotal = maxConnectionsTotal;
@@ -244,4 +360,350 @@ public class ClientOptions {
         return this;
     }
 
+    public Map<String, Integer> getMaxConnectionsByRoute() { return maxConnectionsByRoute; }
+
+    /**
+     * @param maxConnectionsByRoute The maximum number of concurrent
+     *                              connections to particular hosts, overriding
+     *                              the maximum per route.  Hosts are given as
+     *                              <code>https://puppetdb:8081</code>, or as
+     *                              <code>host[:port]</code> to cover both
+     *                              http and https.  Routes to other hosts
+     *                              are limited by the maximum per route.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMaxConnectionsByRoute(Map<String, Integer> maxConnectionsByRoute) {
+        this.maxConnectionsByRoute = maxConnectionsByRoute;
+        return this;
+    }
+
+    public int getMaxRequestsInFlight() { return maxRequestsInFlight; }
+
+    /**
+     * @param maxRequestsInFlight The maximum number of requests the client
+     *                            has in flight at once, beyond which requests
+     *                            fail straight away with a
+     *                            {@link RequestRejectedException}.  Defaults
+     *                            to 0, meaning no limit.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMaxRequestsInFlight(int maxRequestsInFlight) {
+        this.maxRequestsInFlight = maxRequestsInFlight;
+        return this;
+    }
+
+    public int getMaxQueuedRequests() { return maxQueuedRequests; }
+
+    /**
+     * @param maxQueuedRequests The maximum number of requests left waiting
+     *                          for a connection when all of them are in use,
+     *                          beyond which requests fail straight away with
+     *                          a {@link RequestRejectedException}.  Defaults
+     *                          to 0, meaning no limit.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMaxQueuedRequests(int maxQueuedRequests) {
+        this.maxQueuedRequests = maxQueuedRequests;
+        return this;
+    }
+
+    public int getMaxQueuedRequestsPerRoute() { return maxQueuedRequestsPerRoute; }
+
+    /**
+     * @param maxQueuedRequestsPerRoute The maximum number of requests to any
+     *                                  one route left waiting for a
+     *                                  connection.  Defaults to 0, meaning no
+     *                                  limit.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setMaxQueuedRequestsPerRoute(int maxQueuedRequestsPerRoute) {
+        this.maxQueuedRequestsPerRoute = maxQueuedRequestsPerRoute;
+        return this;
+    }
+
+    public long getConnectionTimeToLiveMilliseconds() { return connectionTimeToLiveMilliseconds; }
+
+    /**
+     * @param connectionTimeToLiveMilliseconds The longest, in milliseconds,
+     *                                         a connection is kept open for
+     *                                         reuse after it was opened,
+     *                                         however busy it is.  Defaults
+     *                                         to 0, meaning no limit.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setConnectionTimeToLiveMilliseconds(long connectionTimeToLiveMilliseconds) {
+        this.connectionTimeToLiveMilliseconds = connectionTimeToLiveMilliseconds;
+        return this;
+    }
+
+    public long getIdleConnectionTimeoutMilliseconds() { return idleConnectionTimeoutMilliseconds; }
+
+    /**
+     * @param idleConnectionTimeoutMilliseconds How long, in milliseconds, a
+     *                                          connection may sit idle in the
+     *                                          pool before it is closed.  A
+     *                                          shorter timeout sent by the
+     *                                          server in a
+     *                                          <code>Keep-Alive</code> header
+     *                                          takes precedence.  Defaults to
+     *                                          0, meaning idle connections
+     *                                          are kept for as long as the
+     *                                          server allows.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setIdleConnectionTimeoutMilliseconds(long idleConnectionTimeoutMilliseconds) {
+        this.idleConnectionTimeoutMilliseconds = idleConnectionTimeoutMilliseconds;
+        return this;
+    }
+
+    public long getConnectionEvictionIntervalMilliseconds() { return connectionEvictionIntervalMilliseconds; }
+
+    /**
+     * @param connectionEvictionIntervalMilliseconds How often, in
+     *                                               milliseconds, the pool is
+     *                                               swept for expired and
+     *                                               idle connections to
+     *                                               close.  Defaults to 5000.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setConnectionEvictionIntervalMilliseconds(long connectionEvictionIntervalMilliseconds) {
+        this.connectionEvictionIntervalMilliseconds = connectionEvictionIntervalMilliseconds;
+        return this;
+    }
+
+    public int getIoThreadCount() { return ioThreadCount; }
+
+    /**
+     * @param ioThreadCount The number of I/O dispatcher threads the client
+     *                      runs to service its connections.  Defaults to 0,
+     *                      meaning one per available processor.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setIoThreadCount(int ioThreadCount) {
+        this.ioThreadCount = ioThreadCount;
+        return this;
+    }
+
+    public int getIoSelectIntervalMilliseconds() { return ioSelectIntervalMilliseconds; }
+
+    /**
+     * @param ioSelectIntervalMilliseconds How long, in milliseconds, each I/O
+     *                                     dispatcher blocks waiting for I/O
+     *                                     events before checking for timed
+     *                                     out connections.  This bounds the
+     *                                     accuracy of socket timeouts.
+     *                                     Defaults to 1000.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setIoSelectIntervalMilliseconds(int ioSelectIntervalMilliseconds) {
+        this.ioSelectIntervalMilliseconds = ioSelectIntervalMilliseconds;
+        return this;
+    }
+
+    public int getSocketSendBufferSize() { return socketSendBufferSize; }
+
+    /**
+     * @param socketSendBufferSize The size, in bytes, of the send buffer of
+     *                             each connection, <code>SO_SNDBUF</code> in
+     *                             socket terms.  Defaults to 0, meaning the
+     *                             system default.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setSocketSendBufferSize(int socketSendBufferSize) {
+        this.socketSendBufferSize = socketSendBufferSize;
+        return this;
+    }
+
+    public int getSocketReceiveBufferSize() { return socketReceiveBufferSize; }
+
+    /**
+     * @param socketReceiveBufferSize The size, in bytes, of the receive
+     *                                buffer of each connection,
+     *                                <code>SO_RCVBUF</code> in socket terms.
+     *                                Defaults to 0, meaning the system
+     *                                default.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setSocketReceiveBufferSize(int socketReceiveBufferSize) {
+        this.socketReceiveBufferSize = socketReceiveBufferSize;
+        return this;
+    }
+
+    public boolean isTcpNoDelay() { return tcpNoDelay; }
+
+    /**
+     * @param tcpNoDelay Whether to disable Nagle's algorithm on the client's
+     *                   connections, <code>TCP_NODELAY</code> in socket
+     *                   terms.  Defaults to true.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setTcpNoDelay(boolean tcpNoDelay) {
+        this.tcpNoDelay = tcpNoDelay;
+        return this;
+    }
+
+    public boolean isSocketKeepAlive() { return socketKeepAlive; }
+
+    /**
+     * @param socketKeepAlive Whether to send TCP keepalive probes on idle
+     *                        connections, <code>SO_KEEPALIVE</code> in socket
+     *                        terms.  Defaults to false.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setSocketKeepAlive(boolean socketKeepAlive) {
+        this.socketKeepAlive = socketKeepAlive;
+        return this;
+    }
+
+    public String[] getWarmUpHosts() { return warmUpHosts; }
+
+    /**
+     * @param warmUpHosts Hosts, such as <code>https://puppet:8140</code>, to
+     *                    which the client opens connections, completing
+     *                    their TLS handshakes, as soon as it is created, so
+     *                    that its first requests don't wait for them.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setWarmUpHosts(String[] warmUpHosts) {
+        this.warmUpHosts = warmUpHosts;
+        return this;
+    }
+
+    public int getWarmUpConnections() { return warmUpConnections; }
+
+    /**
+     * @param warmUpConnections The number of connections opened to each of
+     *                          the warm-up hosts.  Defaults to 1, and is
+     *                          bounded by the maximum connections per route.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setWarmUpConnections(int warmUpConnections) {
+        this.warmUpConnections = warmUpConnections;
+        return this;
+    }
+
+    public int getBufferPoolSlabSize() { return bufferPoolSlabSize; }
+
+    /**
+     * @param bufferPoolSlabSize The size, in bytes, of each of the pooled
+     *                           buffers used to stream
+     *                           <code>UNBUFFERED_STREAM</code> response bodies.
+     *                           Defaults to 8192.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setBufferPoolSlabSize(int bufferPoolSlabSize) {
+        this.bufferPoolSlabSize = bufferPoolSlabSize;
+        return this;
+    }
+
+    public int getBufferPoolMaxSlabs() { return bufferPoolMaxSlabs; }
+
+    /**
+     * @param bufferPoolMaxSlabs The maximum number of idle buffers the client
+     *                           will retain for reuse when streaming
+     *                           <code>UNBUFFERED_STREAM</code> response bodies.
+     *                           Defaults to 256.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setBufferPoolMaxSlabs(int bufferPoolMaxSlabs) {
+        this.bufferPoolMaxSlabs = bufferPoolMaxSlabs;
+        return this;
+    }
+
+    public Executor getCallbackExecutor() { return callbackExecutor; }
+
+    /**
+     * @param callbackExecutor An Executor on which responses are processed
+     *                         and delivered, including any response callback.
+     *                         When not set, this work is done on the client's
+     *                         I/O reactor thread, where a slow callback holds
+     *                         up network I/O for every other request.  The
+     *                         caller remains responsible for shutting the
+     *                         executor down.
+     * @return this ClientOptions instance
+     * @see CallbackExecutors
+     */
+    public ClientOptions setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() { return retryPolicy; }
+
+    /**
+     * @param retryPolicy How requests which fail in a way that is safe to
+     *                    retry are retried, unless the request has a policy
+     *                    of its own.  Defaults to null, meaning requests are
+     *                    not retried.
+     * @return this ClientOptions instance
+     * @see RequestOptions#setRetryPolicy(RetryPolicy)
+     */
+    public ClientOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public CircuitBreakerPolicy getCircuitBreakerPolicy() { return circuitBreakerPolicy; }
+
+    /**
+     * @param circuitBreakerPolicy Settings for circuit breakers kept for each
+     *                             host the client sends requests to, which
+     *                             reject requests with a
+     *                             CircuitOpenException while too many recent
+     *                             requests to the host have failed.
+     *                             Defaults to null, meaning no circuit
+     *                             breakers.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setCircuitBreakerPolicy(CircuitBreakerPolicy circuitBreakerPolicy) {
+        this.circuitBreakerPolicy = circuitBreakerPolicy;
+        return this;
+    }
+
+    public boolean isCoalesceRequests() { return coalesceRequests; }
+
+    /**
+     * @param coalesceRequests Whether a GET or HEAD request without a body
+     *                         which is identical, in its URI and headers, to
+     *                         one already in flight should wait for that
+     *                         request's response rather than sending its own.
+     *                         The response body is buffered once and handed
+     *                         to each request.  Defaults to false.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setCoalesceRequests(boolean coalesceRequests) {
+        this.coalesceRequests = coalesceRequests;
+        return this;
+    }
+
+    public long getResponseCacheMaxBytes() { return responseCacheMaxBytes; }
+
+    /**
+     * @param responseCacheMaxBytes The most bytes of responses to GET
+     *                              requests to keep in an in-memory HTTP
+     *                              cache, from which fresh responses are
+     *                              served without sending the request, and
+     *                              stale ones revalidated with conditional
+     *                              requests.  Defaults to 0, meaning
+     *                              responses are not cached.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setResponseCacheMaxBytes(long responseCacheMaxBytes) {
+        this.responseCacheMaxBytes = responseCacheMaxBytes;
+        return this;
+    }
+
+    public ClientGroup getClientGroup() { return clientGroup; }
+
+    /**
+     * @param clientGroup A ClientGroup whose I/O reactor and connection pool
+     *                    the client uses in place of its own.  The SSL,
+     *                    connection limit and I/O reactor settings of the
+     *                    client are ignored, as those of the group apply.
+     * @return this ClientOptions instance
+     */
+    public ClientOptions setClientGroup(ClientGroup clientGroup) {
+        this.clientGroup = clientGroup;
+        return this;
+    }
 }
@@ -0,0 +1,71 @@
+package com.puppetlabs.http.client;
+
+/**
+ * Settings for hedging a request, for use with
+ * {@link RequestOptions#setHedgePolicy(HedgePolicy)}: if no response has
+ * arrived within a delay, a second, identical request is sent, the first
+ * response to arrive is used, and the other request is cancelled, releasing
+ * its connection.
+ *
+ * The delay is either fixed or, with a delay percentile set, the given
+ * percentile of the durations of earlier requests to the same url with the
+ * same method, as recorded by the client's url metrics.  Until enough of
+ * those have been recorded, or if the client has no metric registry, the
+ * fixed delay is used.
+ *
+ * Hedges are limited to a percentage of the client's hedgeable requests, so
+ * that a slow backend isn't sent twice the traffic.  Each hedgeable request
+ * earns its share of a hedge, and a hedge is only sent once a whole one has
+ * been earned, so a new client can't hedge straight away: with the default
+ * of 10%, its first nine hedgeable requests are never hedged.  At most ten
+ * hedges can be saved up for a burst.  Only GET, HEAD and
+ * OPTIONS requests without a body are hedged, and requests whose response is
+ * an unbuffered stream never are.
+ */
+public class HedgePolicy {
+    private long delayMilliseconds = 100;
+    private double delayPercentile = 0;
+    private int maxHedgePercent = 10;
+
+    public long getDelayMilliseconds() { return delayMilliseconds; }
+
+    /**
+     * @param delayMilliseconds How long, in milliseconds, to wait for a
+     *                          response before sending the hedge.  Defaults
+     *                          to 100.
+     * @return this HedgePolicy instance
+     */
+    public HedgePolicy setDelayMilliseconds(long delayMilliseconds) {
+        this.delayMilliseconds = delayMilliseconds;
+        return this;
+    }
+
+    public double getDelayPercentile() { return delayPercentile; }
+
+    /**
+     * @param delayPercentile The percentile, between 0 and 1, of earlier
+     *                        requests' durations to wait before sending the
+     *                        hedge, such as 0.95 to hedge the slowest 5% of
+     *                        requests.  Defaults to 0, meaning the fixed
+     *                        delay is always used.
+     * @return this HedgePolicy instance
+     */
+    public HedgePolicy setDelayPercentile(double delayPercentile) {
+        this.delayPercentile = delayPercentile;
+        return this;
+    }
+
+    public int getMaxHedgePercent() { return maxHedgePercent; }
+
+    /**
+     * @param maxHedgePercent The most hedges the client sends, as a
+     *                        percentage of the requests it has made with a
+     *                        hedge policy.  Defaults to 10.  See the class
+     *                        comment for how the limit is applied.
+     * @return this HedgePolicy instance
+     */
+    public HedgePolicy setMaxHedgePercent(int maxHedgePercent) {
+        this.maxHedgePercent = maxHedgePercent;
+        return this;
+    }
+}
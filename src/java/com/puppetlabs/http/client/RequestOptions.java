@@ -16,6 +16,12 @@ public class RequestOptions {
     private boolean decompressBody = true;
     private ResponseBodyType as = ResponseBodyType.STREAM;
     private String[] metricId;
+    private int connectTimeoutMilliseconds = -1;
+    private int socketTimeoutMilliseconds = -1;
+    private int connectionRequestTimeoutMilliseconds = -1;
+    private int deadlineMilliseconds = -1;
+    private RetryPolicy retryPolicy;
+    private HedgePolicy hedgePolicy;
 
     /**
      * Constructor for the RequestOptions class. When this constructor is called,
@@ -110,4 +116,116 @@ public class RequestOptions {
         this.metricId = metricId;
         return this;
     }
+
+    public int getConnectTimeoutMilliseconds() {
+        return connectTimeoutMilliseconds;
+    }
+
+    /**
+     * @param connectTimeoutMilliseconds Maximum number of milliseconds to wait
+     *                                   for a connection to be established for
+     *                                   this request, overriding the client's
+     *                                   setting.  A value of zero is
+     *                                   interpreted as infinite.  A negative
+     *                                   value (the default) means the client's
+     *                                   setting is used.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setConnectTimeoutMilliseconds(int connectTimeoutMilliseconds) {
+        this.connectTimeoutMilliseconds = connectTimeoutMilliseconds;
+        return this;
+    }
+
+    public int getSocketTimeoutMilliseconds() {
+        return socketTimeoutMilliseconds;
+    }
+
+    /**
+     * @param socketTimeoutMilliseconds Maximum number of milliseconds to allow
+     *                                  for no data to be available on the
+     *                                  socket for this request, overriding the
+     *                                  client's setting.  A value of zero is
+     *                                  interpreted as infinite.  A negative
+     *                                  value (the default) means the client's
+     *                                  setting is used.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setSocketTimeoutMilliseconds(int socketTimeoutMilliseconds) {
+        this.socketTimeoutMilliseconds = socketTimeoutMilliseconds;
+        return this;
+    }
+
+    public int getConnectionRequestTimeoutMilliseconds() {
+        return connectionRequestTimeoutMilliseconds;
+    }
+
+    /**
+     * @param connectionRequestTimeoutMilliseconds Maximum number of
+     *                                             milliseconds to wait for a
+     *                                             connection to become
+     *                                             available in the client's
+     *                                             pool for this request.  A
+     *                                             value of zero is interpreted
+     *                                             as infinite.  A negative
+     *                                             value (the default) means
+     *                                             the client's setting is used.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setConnectionRequestTimeoutMilliseconds(int connectionRequestTimeoutMilliseconds) {
+        this.connectionRequestTimeoutMilliseconds = connectionRequestTimeoutMilliseconds;
+        return this;
+    }
+
+    public int getDeadlineMilliseconds() {
+        return deadlineMilliseconds;
+    }
+
+    /**
+     * @param deadlineMilliseconds Maximum number of milliseconds the whole
+     *                             request may take, covering waiting for a
+     *                             pooled connection, connecting, the TLS
+     *                             handshake and transferring the response
+     *                             body.  If the deadline passes, the request is
+     *                             aborted and fails with a TimeoutException.
+     *                             A value of zero or less (the default) means
+     *                             no deadline.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setDeadlineMilliseconds(int deadlineMilliseconds) {
+        this.deadlineMilliseconds = deadlineMilliseconds;
+        return this;
+    }
+
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    /**
+     * @param retryPolicy How this request is retried if it fails in a way
+     *                    that is safe to retry, in place of the client's
+     *                    policy.  A policy with no retries turns retrying
+     *                    off for the request.  Any deadline covers all of
+     *                    the attempts and the waits between them.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    public HedgePolicy getHedgePolicy() {
+        return hedgePolicy;
+    }
+
+    /**
+     * @param hedgePolicy How to hedge this request: send it a second time
+     *                    if no response has arrived within a delay, and use
+     *                    whichever response arrives first.  Defaults to
+     *                    null, meaning the request is not hedged.
+     * @return this RequestOptions instance
+     */
+    public RequestOptions setHedgePolicy(HedgePolicy hedgePolicy) {
+        this.hedgePolicy = hedgePolicy;
+        return this;
+    }
 }
@@ -0,0 +1,12 @@
+package com.puppetlabs.http.client;
+
+/**
+ * This class represents the failure of a request which the client refused
+ * to send, without waiting, because it was already as busy as it has been
+ * configured to get.
+ */
+public class RequestRejectedException extends HttpClientException {
+    public RequestRejectedException(String msg) {
+        super(msg);
+    }
+}
@@ -0,0 +1,121 @@
+package com.puppetlabs.http.client;
+
+/**
+ * Settings for retrying requests which fail in a way that is safe to retry,
+ * for use with {@link ClientOptions#setRetryPolicy(RetryPolicy)} or, for a
+ * single request, {@link RequestOptions#setRetryPolicy(RetryPolicy)}.
+ *
+ * A request is retried if it fails with an IOException, such as a
+ * NoHttpResponseException from a pooled connection the server had already
+ * closed, or if the response has one of the retryable status codes (by
+ * default 429 and 503).  Only requests with idempotent methods (GET, HEAD,
+ * PUT, DELETE, OPTIONS and TRACE) are retried unless retrying other methods
+ * is allowed, and requests whose body is an InputStream, or whose response
+ * is an unbuffered stream, are never retried, as neither can be replayed.
+ *
+ * Retries are scheduled on a shared timer rather than by sleeping, after an
+ * exponentially growing backoff with full jitter: each wait is chosen at
+ * random between zero and the initial backoff doubled for every retry
+ * already made, up to the maximum backoff.  A Retry-After header on a
+ * retryable response sets the least time to wait; if it asks for longer than
+ * the maximum backoff, the response is returned instead.
+ */
+public class RetryPolicy {
+    public static final int[] DEFAULT_RETRY_STATUS_CODES = {429, 503};
+
+    private int maxRetries = 3;
+    private long initialBackoffMilliseconds = 100;
+    private long maxBackoffMilliseconds = 10000;
+    private int[] retryStatusCodes = DEFAULT_RETRY_STATUS_CODES.clone();
+    private boolean retryNonIdempotent = false;
+
+    public int getMaxRetries() { return maxRetries; }
+
+    /**
+     * @param maxRetries The most times a request is retried after its first
+     *                   attempt.  Defaults to 3; 0 disables retries.
+     * @return this RetryPolicy instance
+     */
+    public RetryPolicy setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+
+    public long getInitialBackoffMilliseconds() { return initialBackoffMilliseconds; }
+
+    /**
+     * @param initialBackoffMilliseconds The longest, in milliseconds, to wait
+     *                                   before the first retry.  Defaults to
+     *                                   100.
+     * @return this RetryPolicy instance
+     */
+    public RetryPolicy setInitialBackoffMilliseconds(long initialBackoffMilliseconds) {
+        this.initialBackoffMilliseconds = initialBackoffMilliseconds;
+        return this;
+    }
+
+    public long getMaxBackoffMilliseconds() { return maxBackoffMilliseconds; }
+
+    /**
+     * @param maxBackoffMilliseconds The longest, in milliseconds, to wait
+     *                               before any retry.  Defaults to 10000.
+     * @return this RetryPolicy instance
+     */
+    public RetryPolicy setMaxBackoffMilliseconds(long maxBackoffMilliseconds) {
+        this.maxBackoffMilliseconds = maxBackoffMilliseconds;
+        return this;
+    }
+
+    public int[] getRetryStatusCodes() { return retryStatusCodes; }
+
+    /**
+     * @param retryStatusCodes The response status codes on which to retry.
+     *                         Defaults to 429 and 503.
+     * @return this RetryPolicy instance
+     */
+    public RetryPolicy setRetryStatusCodes(int[] retryStatusCodes) {
+        this.retryStatusCodes = retryStatusCodes;
+        return this;
+    }
+
+    public boolean getRetryNonIdempotent() { return retryNonIdempotent; }
+
+    /**
+     * @param retryNonIdempotent Whether requests with methods which are not
+     *                           idempotent, POST and PATCH, may be retried.
+     *                           Defaults to false, since the server may have
+     *                           acted on a request before it failed.
+     * @return this RetryPolicy instance
+     */
+    public RetryPolicy setRetryNonIdempotent(boolean retryNonIdempotent) {
+        this.retryNonIdempotent = retryNonIdempotent;
+        return this;
+    }
+
+    /**
+     * @return true if a response with the given status code may be retried
+     */
+    public boolean isRetryStatusCode(int statusCode) {
+        if (retryStatusCodes != null) {
+            for (int retryStatusCode : retryStatusCodes) {
+                if (retryStatusCode == statusCode) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return true if requests with the given method may be retried
+     */
+    public boolean allowsMethod(HttpMethod method) {
+        switch (method) {
+            case POST:
+            case PATCH:
+                return retryNonIdempotent;
+            default:
+                return true;
+        }
+    }
+}
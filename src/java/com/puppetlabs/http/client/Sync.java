@@ -2,12 +2,10 @@ package com.puppetlabs.http.client;
 
 import com.puppetlabs.http.client.impl.JavaClient;
 import com.puppetlabs.http.client.impl.PersistentSyncHttpClient;
+import com.puppetlabs.http.client.impl.SharedClients;
 import com.puppetlabs.http.client.metrics.Metrics;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 
 import javax.net.ssl.SSLContext;
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.Map;
@@ -17,8 +15,6 @@ import java.util.Map;
  * for sending synchronous HTTP requests without a persistent HTTP client.
  */
 public class Sync {
-    private static final Logger LOGGER = LoggerFactory.getLogger(Sync.class);
-
     private static RequestOptions extractRequestOptions(SimpleRequestOptions simpleOptions) {
         URI uri = simpleOptions.getUri();
         Map<String, String> headers = simpleOptions.getHeaders();
@@ -52,9 +48,10 @@ public class Sync {
                 sslProtocols, sslCipherSuites, insecure,
                 forceRedirects, followRedirects, connectTimeoutMilliseconds,
                 socketTimeoutMilliseconds,
-                // this option set is only used for one-shot requests, so at the point of being explicit,
-                // only allow at most one connection at a time.
-                1, 1);
+                // this option set is only used for one-shot requests, whose clients are cached and shared
+                // between callers (see SharedClients), so leave the connection limits at their defaults
+                // rather than making concurrent callers wait on a single connection.
+                0, 0);
     }
 
     private static Response request(SimpleRequestOptions simpleRequestOptions,
@@ -62,23 +59,12 @@ public class Sync {
         // TODO: if we end up implementing an async version of the java API,
         // we should refactor this implementation so that it is based on the
         // async one, as Patrick has done in the clojure API.
-        final Response response;
-        final SyncHttpClient client = createClient(
-                extractClientOptions(simpleRequestOptions));
-        try {
-            response = client.request(
+        try (SharedClients.Lease lease = SharedClients.getInstance().acquire(
+                extractClientOptions(simpleRequestOptions))) {
+            return new PersistentSyncHttpClient(lease.getClient(), null, null, true).request(
                     extractRequestOptions(simpleRequestOptions),
                     method);
         }
-        finally {
-            try {
-                client.close();
-            }
-            catch (IOException e) {
-                LOGGER.error("Error closing client", e);
-            }
-        }
-        return response;
     }
 
     /**
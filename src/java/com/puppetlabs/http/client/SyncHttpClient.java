@@ -5,6 +5,8 @@ import com.codahale.metrics.MetricRegistry;
 import java.io.Closeable;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
 
 /**
  * This interface represents a synchronous HTTP client with which
@@ -23,6 +25,21 @@ public interface SyncHttpClient extends Closeable {
      */
     public String getMetricNamespace();
 
+    /**
+     * Opens connections to the hosts set with
+     * {@link ClientOptions#setWarmUpHosts(String[])}, until the client's
+     * connection pool holds the configured number of connections to each.
+     * This is done when the client is created, and can be repeated, for
+     * instance after a failover, to replace connections which have closed.
+     *
+     * @return a CompletionStage completed once the connections are ready,
+     * which by default, for implementations written before this method was
+     * added, is straight away
+     */
+    public default CompletionStage<Void> warmUp() {
+        return CompletableFuture.completedFuture(null);
+    }
+
     /**
      * Makes a configurable HTTP request
      * @param requestOptions the options to configure the request
@@ -0,0 +1,204 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.RequestRejectedException;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.pool.PoolStats;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Bounds how much work a client takes on, so that when its backends slow
+ * down requests fail fast rather than piling up in memory.
+ *
+ * A request is in flight from when it is made until its exchange finishes,
+ * and queued while it waits for a connection to be leased to it beyond those
+ * the pool has, or can open, for it: requests waiting only for a new
+ * connection to be opened aren't counted.  Requests which would take the
+ * client past its limits on either are rejected with a
+ * {@link RequestRejectedException} before being sent.  A request only
+ * checks the queues it joins, those for its route and for the pool as a
+ * whole, so the client-wide queue limit applies to the longer of the two
+ * rather than to the sum of every route's queue.  The counts are
+ * reported by the <code>&lt;namespace&gt;.requests.in-flight</code> and
+ * <code>.queued</code> gauges, and rejections by the
+ * <code>&lt;namespace&gt;.requests.rejected</code> meter.
+ */
+public class AdmissionControl {
+    public static final String IN_FLIGHT = "in-flight";
+    public static final String QUEUED = "queued";
+    public static final String REJECTED = "rejected";
+
+    private static final BiFunction<Integer, Integer, Integer> SUM =
+            new BiFunction<Integer, Integer, Integer>() {
+                @Override
+                public Integer apply(Integer a, Integer b) {
+                    return a + b;
+                }
+            };
+
+    // Removes the route's count once it reaches zero.
+    private static final BiFunction<HttpRoute, Integer, Integer> DECREMENT =
+            new BiFunction<HttpRoute, Integer, Integer>() {
+                @Override
+                public Integer apply(HttpRoute route, Integer count) {
+                    return count > 1 ? count - 1 : null;
+                }
+            };
+
+    private final int maxInFlight;
+    private final int maxQueued;
+    private final int maxQueuedPerRoute;
+    private final AtomicInteger inFlight = new AtomicInteger(0);
+    private final ConnPoolControl<HttpRoute> pool;
+    private final AtomicInteger requested = new AtomicInteger(0);
+    // Only routes with requests waiting on them have an entry.
+    private final ConcurrentHashMap<HttpRoute, Integer> requestedByRoute = new ConcurrentHashMap<>();
+    private final MetricRegistry metricRegistry;
+    private final Meter rejected;
+    private final Map<String, Metric> registered = new HashMap<>();
+
+    public AdmissionControl(int maxInFlight,
+                            int maxQueued,
+                            int maxQueuedPerRoute,
+                            ConnPoolControl<HttpRoute> pool,
+                            MetricRegistry metricRegistry,
+                            String metricNamespace) {
+        this.maxInFlight = maxInFlight;
+        this.maxQueued = maxQueued;
+        this.maxQueuedPerRoute = maxQueuedPerRoute;
+        this.pool = pool;
+        this.metricRegistry = metricRegistry;
+        if (metricRegistry != null) {
+            this.rejected = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, REJECTED));
+            register(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_REQUESTS, IN_FLIGHT),
+                    new Gauge<Integer>() {
+                        @Override
+                        public Integer getValue() {
+                            return inFlight.get();
+                        }
+                    });
+            register(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_REQUESTS, QUEUED),
+                    new Gauge<Integer>() {
+                        @Override
+                        public Integer getValue() {
+                            return getQueued();
+                        }
+                    });
+        } else {
+            this.rejected = null;
+        }
+    }
+
+    private void register(String name, Metric metric) {
+        try {
+            metricRegistry.register(name, metric);
+            registered.put(name, metric);
+        } catch (IllegalArgumentException e) {
+            // Already registered by another client sharing this registry and
+            // namespace, whose gauge is left in place.
+        }
+    }
+
+    /**
+     * Counts a request as in flight.
+     *
+     * @throws RequestRejectedException if the client already has its maximum
+     * number of requests in flight
+     */
+    public void admit() {
+        if (inFlight.incrementAndGet() > maxInFlight && maxInFlight > 0) {
+            inFlight.decrementAndGet();
+            throw reject("Request rejected: " + maxInFlight + " requests already in flight");
+        }
+    }
+
+    /**
+     * Counts a request admitted with {@link #admit()} as finished.
+     */
+    public void finish() {
+        inFlight.decrementAndGet();
+    }
+
+    /**
+     * @return the number of requests waiting for a connection beyond those
+     * the pool has capacity for
+     */
+    public int getQueued() {
+        // Requests queue both for a route's connections and for the pool's.
+        int queuedForRoutes = 0;
+        for (Map.Entry<HttpRoute, Integer> entry : requestedByRoute.entrySet()) {
+            queuedForRoutes += excess(entry.getValue(), pool.getStats(entry.getKey()));
+        }
+        return Math.max(queuedForRoutes, excess(requested.get(), pool.getTotalStats()));
+    }
+
+    private static int excess(int requests, PoolStats stats) {
+        return Math.max(0, requests - (stats.getMax() - stats.getLeased()));
+    }
+
+    /**
+     * Counts a request as waiting for a connection on the given route.
+     *
+     * @throws RequestRejectedException if the client, or the route, already
+     * has its maximum number of requests queued
+     */
+    public void enqueue(HttpRoute route) {
+        final int total = requested.incrementAndGet();
+        final int forRoute = requestedByRoute.merge(route, 1, SUM);
+        String rejection = null;
+        if (maxQueued > 0 || maxQueuedPerRoute > 0) {
+            final int queuedForRoute = excess(forRoute, pool.getStats(route));
+            if (maxQueued > 0 &&
+                    Math.max(queuedForRoute, excess(total, pool.getTotalStats())) > maxQueued) {
+                rejection = "Request rejected: " + maxQueued + " requests already waiting for a connection";
+            } else if (maxQueuedPerRoute > 0 && queuedForRoute > maxQueuedPerRoute) {
+                rejection = "Request rejected: " + maxQueuedPerRoute +
+                        " requests already waiting for a connection to " + route.getTargetHost();
+            }
+        }
+        if (rejection != null) {
+            dequeue(route);
+            throw reject(rejection);
+        }
+    }
+
+    /**
+     * Counts a request queued with {@link #enqueue(HttpRoute)} as no longer
+     * waiting, whether or not it was leased a connection.
+     */
+    public void dequeue(HttpRoute route) {
+        requested.decrementAndGet();
+        requestedByRoute.computeIfPresent(route, DECREMENT);
+    }
+
+    private RequestRejectedException reject(String message) {
+        if (rejected != null) {
+            rejected.mark();
+        }
+        return new RequestRejectedException(message);
+    }
+
+    /**
+     * Removes the client's gauges from its registry.
+     */
+    public synchronized void close() {
+        for (Map.Entry<String, Metric> entry : registered.entrySet()) {
+            // Only remove the gauge if it is still ours.
+            if (metricRegistry.getMetrics().get(entry.getKey()) == entry.getValue()) {
+                metricRegistry.remove(entry.getKey());
+            }
+        }
+        registered.clear();
+    }
+}
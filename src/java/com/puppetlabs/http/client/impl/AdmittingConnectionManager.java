@@ -0,0 +1,86 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.RequestRejectedException;
+import com.puppetlabs.http.client.impl.metrics.ForwardingConnectionManager;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection manager which bounds the queue of requests waiting for a
+ * connection, using the client's {@link AdmissionControl}.  Requests which
+ * would overflow it fail straight away with a
+ * {@link RequestRejectedException}, rather than waiting in the pool's
+ * otherwise unbounded queue.
+ */
+public class AdmittingConnectionManager extends ForwardingConnectionManager {
+    private final AdmissionControl admissionControl;
+
+    public AdmittingConnectionManager(NHttpClientConnectionManager connectionManager,
+                                      AdmissionControl admissionControl) {
+        super(connectionManager);
+        this.admissionControl = admissionControl;
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(final HttpRoute route,
+                                                           Object state,
+                                                           long connectTimeout,
+                                                           long connectionRequestTimeout,
+                                                           TimeUnit timeUnit,
+                                                           final FutureCallback<NHttpClientConnection> callback) {
+        try {
+            admissionControl.enqueue(route);
+        } catch (RequestRejectedException e) {
+            BasicFuture<NHttpClientConnection> future = new BasicFuture<>(callback);
+            future.failed(e);
+            return future;
+        }
+        try {
+            return requestQueuedConnection(route, state, connectTimeout, connectionRequestTimeout,
+                    timeUnit, callback);
+        } catch (RuntimeException e) {
+            admissionControl.dequeue(route);
+            throw e;
+        }
+    }
+
+    private Future<NHttpClientConnection> requestQueuedConnection(final HttpRoute route,
+                                                                  Object state,
+                                                                  long connectTimeout,
+                                                                  long connectionRequestTimeout,
+                                                                  TimeUnit timeUnit,
+                                                                  final FutureCallback<NHttpClientConnection> callback) {
+        return connectionManager.requestConnection(route, state, connectTimeout, connectionRequestTimeout,
+                timeUnit, new FutureCallback<NHttpClientConnection>() {
+                    @Override
+                    public void completed(NHttpClientConnection conn) {
+                        admissionControl.dequeue(route);
+                        if (callback != null) {
+                            callback.completed(conn);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        admissionControl.dequeue(route);
+                        if (callback != null) {
+                            callback.failed(e);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        admissionControl.dequeue(route);
+                        if (callback != null) {
+                            callback.cancelled();
+                        }
+                    }
+                });
+    }
+}
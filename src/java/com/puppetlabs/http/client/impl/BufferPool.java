@@ -0,0 +1,87 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.metrics.Metrics;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * A bounded pool of fixed-size heap buffers ("slabs") used to carry response
+ * bodies through the unbuffered stream pipeline.
+ *
+ * Slabs are handed out by {@link #acquire()} and handed back by
+ * {@link #release(ByteBuffer)}.  At most <code>maxPooledSlabs</code> idle
+ * slabs are retained; anything beyond that is left to the garbage collector.
+ */
+public class BufferPool {
+    public static final int DEFAULT_SLAB_SIZE = 8 * 1024;
+    public static final int DEFAULT_MAX_POOLED_SLABS = 256;
+
+    private static final BufferPool DEFAULT_POOL =
+            new BufferPool(DEFAULT_SLAB_SIZE, DEFAULT_MAX_POOLED_SLABS, null, null);
+
+    private final int slabSize;
+    private final int maxPooledSlabs;
+    private final ArrayBlockingQueue<ByteBuffer> slabs;
+    private final Meter hits;
+    private final Meter misses;
+
+    public BufferPool(int slabSize,
+                      int maxPooledSlabs,
+                      MetricRegistry metricRegistry,
+                      String metricNamespace) {
+        if (slabSize <= 0) {
+            throw new IllegalArgumentException("Buffer pool slab size must be positive");
+        }
+        this.slabSize = slabSize;
+        this.maxPooledSlabs = maxPooledSlabs;
+        // ArrayBlockingQueue needs a capacity of at least one; a pool which
+        // has been configured to retain nothing simply never has anything
+        // offered to it.
+        this.slabs = new ArrayBlockingQueue<>(Math.max(maxPooledSlabs, 1));
+        if (metricRegistry != null) {
+            this.hits = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_BUFFER_POOL, "hits"));
+            this.misses = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_BUFFER_POOL, "misses"));
+        } else {
+            this.hits = null;
+            this.misses = null;
+        }
+    }
+
+    /**
+     * @return a pool shared by clients which were not created via
+     * {@link JavaClient#createClient}, and so have no pool of their own.
+     */
+    public static BufferPool getDefault() {
+        return DEFAULT_POOL;
+    }
+
+    public int getSlabSize() {
+        return slabSize;
+    }
+
+    public ByteBuffer acquire() {
+        ByteBuffer slab = slabs.poll();
+        if (slab != null) {
+            if (hits != null) {
+                hits.mark();
+            }
+            slab.clear();
+            return slab;
+        }
+        if (misses != null) {
+            misses.mark();
+        }
+        return ByteBuffer.allocate(slabSize);
+    }
+
+    public void release(ByteBuffer slab) {
+        if (maxPooledSlabs > 0 && slab.capacity() == slabSize) {
+            slabs.offer(slab);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Counter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Hands response processing off from the I/O reactor to the Executor
+ * configured via ClientOptions, tracking how many tasks are waiting to run
+ * and how long they take once they do.
+ *
+ * If the Executor rejects a task (for example because it has been shut
+ * down), the task is run on the calling thread rather than dropped, so that
+ * the response is still delivered.
+ */
+public class CallbackExecutor {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CallbackExecutor.class);
+
+    private final Executor executor;
+    private final Counter queueDepth;
+    private final Timer execution;
+
+    public CallbackExecutor(Executor executor,
+                            MetricRegistry metricRegistry,
+                            String metricNamespace) {
+        this.executor = executor;
+        if (metricRegistry != null) {
+            this.queueDepth = metricRegistry.counter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_CALLBACK_EXECUTOR, "queue-depth"));
+            this.execution = metricRegistry.timer(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_CALLBACK_EXECUTOR, "execution"));
+        } else {
+            this.queueDepth = null;
+            this.execution = null;
+        }
+    }
+
+    /**
+     * @return the Executor configured via ClientOptions
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    public void execute(final Runnable task) {
+        if (queueDepth != null) {
+            queueDepth.inc();
+        }
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    if (queueDepth == null) {
+                        task.run();
+                        return;
+                    }
+                    queueDepth.dec();
+                    Timer.Context context = execution.time();
+                    try {
+                        task.run();
+                    } finally {
+                        context.stop();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            if (queueDepth != null) {
+                queueDepth.dec();
+            }
+            LOGGER.warn("Callback executor rejected response processing; running it on the I/O thread", e);
+            task.run();
+        }
+    }
+}
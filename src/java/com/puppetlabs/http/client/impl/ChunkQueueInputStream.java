@@ -0,0 +1,244 @@
+package com.puppetlabs.http.client.impl;
+
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.IOControl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * An InputStream which is fed a response body by the I/O reactor.
+ *
+ * The body is decoded directly into slabs borrowed from a {@link BufferPool},
+ * and slabs are returned to the pool as soon as the reader has consumed them,
+ * so streaming a response does not allocate in proportion to its size.
+ *
+ * Filling never blocks the reactor thread.  Instead, once the number of
+ * queued bytes reaches the high watermark, input on the underlying connection
+ * is suspended via {@link IOControl#suspendInput()}.  Input is requested
+ * again once the reader has drained the queue down to the low watermark.
+ *
+ * When the end of the stream is reached, or the stream is closed, the final
+ * result of the request is checked and any IOException which occurred while
+ * processing the response is rethrown to the reader.
+ */
+public class ChunkQueueInputStream extends InputStream {
+
+    private final Promise<IOException> ioExceptionPromise;
+    private final BufferPool bufferPool;
+    private final int slabSize;
+    private final int highWatermark;
+    private final int lowWatermark;
+
+    // Every slab but the last is full.  The last slab ("tail") holds
+    // tailCommitted bytes and may still be appended to by the reactor.
+    private final Deque<ByteBuffer> slabs = new ArrayDeque<>();
+    private int headOffset = 0;
+    private int tailCommitted = 0;
+    private int queuedBytes = 0;
+    private boolean filling = false;
+    private boolean endOfStream = false;
+    private boolean closed = false;
+    private IOControl suspendedIOControl = null;
+    private final byte[] singleByte = new byte[1];
+
+    public ChunkQueueInputStream(Promise<IOException> ioExceptionPromise,
+                                 BufferPool bufferPool,
+                                 int highWatermark) {
+        this.ioExceptionPromise = ioExceptionPromise;
+        this.bufferPool = bufferPool;
+        this.slabSize = bufferPool.getSlabSize();
+        this.highWatermark = highWatermark;
+        this.lowWatermark = highWatermark / 2;
+    }
+
+    /**
+     * Decodes as much content as is currently available into the queue.
+     * Called from the I/O reactor thread; never blocks.
+     */
+    public void fill(ContentDecoder decoder, IOControl ioControl) throws IOException {
+        while (true) {
+            final ByteBuffer tail;
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Response stream closed by reader");
+                }
+                if (slabs.isEmpty() || tailCommitted == slabSize) {
+                    tail = bufferPool.acquire();
+                    slabs.addLast(tail);
+                    tailCommitted = 0;
+                } else {
+                    tail = slabs.peekLast();
+                }
+                tail.limit(slabSize);
+                tail.position(tailCommitted);
+                filling = true;
+            }
+            // The reader only ever looks at bytes below tailCommitted, so the
+            // decoder can write past it without holding the lock.
+            int read = 0;
+            try {
+                read = decoder.read(tail);
+            } finally {
+                synchronized (this) {
+                    filling = false;
+                    if (closed) {
+                        bufferPool.release(tail);
+                    } else if (read > 0) {
+                        tailCommitted += read;
+                        queuedBytes += read;
+                        notifyAll();
+                    }
+                }
+            }
+            synchronized (this) {
+                if (closed) {
+                    throw new IOException("Response stream closed by reader");
+                }
+                if (queuedBytes >= highWatermark && suspendedIOControl == null) {
+                    suspendedIOControl = ioControl;
+                    ioControl.suspendInput();
+                }
+                if (read <= 0 || suspendedIOControl != null) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Signals that no further data will be written to the stream.
+     */
+    public synchronized void endOfStream() {
+        endOfStream = true;
+        notifyAll();
+    }
+
+    private void releaseSlabs() {
+        // Must be called while holding the lock, and never while the reactor
+        // is filling the tail slab.
+        for (ByteBuffer slab : slabs) {
+            bufferPool.release(slab);
+        }
+        slabs.clear();
+        headOffset = 0;
+        tailCommitted = 0;
+    }
+
+    private void checkFinalResult() throws IOException {
+        try {
+            IOException ioException = ioExceptionPromise.deref();
+            if (ioException != null) {
+                throw ioException;
+            }
+        } catch (InterruptedException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void resume(IOControl ioControl) {
+        // Called outside of the monitor for this stream so that the reader
+        // never holds our lock while calling into the I/O session.
+        if (ioControl != null) {
+            ioControl.requestInput();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        int read = read(singleByte, 0, 1);
+        if (read == -1) {
+            return -1;
+        }
+        return singleByte[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        int read = 0;
+        IOControl toResume = null;
+        synchronized (this) {
+            while (queuedBytes == 0 && !endOfStream && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+            if (closed) {
+                throw new IOException("Stream closed");
+            }
+            while (read < len && queuedBytes > 0) {
+                ByteBuffer head = slabs.peekFirst();
+                boolean isTail = slabs.size() == 1;
+                int end = isTail ? tailCommitted : slabSize;
+                int count = Math.min(len - read, end - headOffset);
+                System.arraycopy(head.array(), headOffset, b, off + read, count);
+                read += count;
+                queuedBytes -= count;
+                headOffset += count;
+                if (headOffset == end) {
+                    if (!isTail) {
+                        slabs.removeFirst();
+                        bufferPool.release(head);
+                        headOffset = 0;
+                    } else if (!filling) {
+                        // Everything written so far has been read; start
+                        // over at the beginning of the same slab.
+                        headOffset = 0;
+                        tailCommitted = 0;
+                    }
+                }
+            }
+            if (queuedBytes == 0 && endOfStream && !filling) {
+                releaseSlabs();
+            }
+            if (suspendedIOControl != null && queuedBytes <= lowWatermark) {
+                toResume = suspendedIOControl;
+                suspendedIOControl = null;
+            }
+        }
+        resume(toResume);
+        if (read == 0) {
+            checkFinalResult();
+            return -1;
+        }
+        return read;
+    }
+
+    @Override
+    public synchronized int available() {
+        return queuedBytes;
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOControl toResume;
+        synchronized (this) {
+            if (filling) {
+                // The reactor is decoding into the tail slab right now; it
+                // will hand that slab back to the pool itself.
+                slabs.pollLast();
+            }
+            closed = true;
+            releaseSlabs();
+            queuedBytes = 0;
+            toResume = suspendedIOControl;
+            suspendedIOControl = null;
+            notifyAll();
+        }
+        // If the connection was suspended, let the reactor pick it back up so
+        // that the exchange can be aborted rather than left hanging until the
+        // socket timeout fires.
+        resume(toResume);
+        checkFinalResult();
+    }
+}
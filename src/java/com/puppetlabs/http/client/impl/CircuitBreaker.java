@@ -0,0 +1,182 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.CircuitBreakerPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The circuit breaker for one host, moving between closed, open and
+ * half-open as described by {@link CircuitBreakerPolicy}.
+ *
+ * The failure rate is measured over a ring of the most recent outcomes.
+ * Checking an open breaker reads two volatile fields and takes no lock, so
+ * requests to a host which is down are rejected almost for free.
+ */
+public class CircuitBreaker {
+    public enum State {
+        CLOSED(0), HALF_OPEN(1), OPEN(2);
+
+        private final int value;
+
+        State(int value) {
+            this.value = value;
+        }
+
+        /**
+         * @return the state as reported by the breaker's gauge
+         */
+        public int getValue() {
+            return value;
+        }
+    }
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    private final String host;
+    private final int failureRateThreshold;
+    private final int minimumRequests;
+    private final long openDurationNanos;
+    private final int halfOpenRequests;
+    private final Permit permit = new Permit(false);
+    private final Permit trialPermit = new Permit(true);
+
+    private volatile State state = State.CLOSED;
+    private volatile long openUntil;
+    private final boolean[] window;
+    private int windowNext = 0;
+    private int windowCount = 0;
+    private int windowFailures = 0;
+    private int trialsInFlight = 0;
+    private int trialSuccesses = 0;
+
+    public CircuitBreaker(String host, CircuitBreakerPolicy policy) {
+        this.host = host;
+        this.failureRateThreshold = policy.getFailureRateThreshold();
+        this.window = new boolean[Math.max(1, policy.getSlidingWindowSize())];
+        this.minimumRequests = Math.max(1, Math.min(policy.getMinimumRequests(), window.length));
+        this.openDurationNanos = TimeUnit.MILLISECONDS.toNanos(policy.getOpenDurationMilliseconds());
+        this.halfOpenRequests = Math.max(1, policy.getHalfOpenRequests());
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return a permit for a request to the host, whose outcome must be
+     * reported through it, or null if the breaker is rejecting requests
+     */
+    public Permit tryAcquire() {
+        final State current = state;
+        if (current == State.CLOSED) {
+            return permit;
+        }
+        if (current == State.OPEN && System.nanoTime() - openUntil < 0) {
+            return null;
+        }
+        synchronized (this) {
+            if (state == State.OPEN) {
+                if (System.nanoTime() - openUntil < 0) {
+                    return null;
+                }
+                state = State.HALF_OPEN;
+                trialsInFlight = 0;
+                trialSuccesses = 0;
+                LOGGER.info("Circuit breaker for {} is half-open; letting trial requests through", host);
+            }
+            if (state == State.HALF_OPEN) {
+                if (trialsInFlight >= halfOpenRequests) {
+                    return null;
+                }
+                trialsInFlight++;
+                return trialPermit;
+            }
+            return permit;
+        }
+    }
+
+    private synchronized void record(boolean trial, boolean success) {
+        if (state == State.HALF_OPEN) {
+            // Only trial requests decide whether a half-open breaker closes.
+            if (!trial) {
+                return;
+            }
+            if (trialsInFlight > 0) {
+                trialsInFlight--;
+            }
+            if (!success) {
+                open("a trial request failed");
+            } else if (++trialSuccesses >= halfOpenRequests) {
+                resetWindow();
+                state = State.CLOSED;
+                LOGGER.info("Circuit breaker for {} closed", host);
+            }
+        } else if (state == State.CLOSED) {
+            if (windowCount == window.length) {
+                if (window[windowNext]) {
+                    windowFailures--;
+                }
+            } else {
+                windowCount++;
+            }
+            window[windowNext] = !success;
+            if (!success) {
+                windowFailures++;
+            }
+            windowNext = (windowNext + 1) % window.length;
+            if (windowCount >= minimumRequests &&
+                    windowFailures * 100 >= failureRateThreshold * windowCount) {
+                open(windowFailures + " of the last " + windowCount + " requests failed");
+            }
+        }
+    }
+
+    private synchronized void release(boolean trial) {
+        if (trial && state == State.HALF_OPEN && trialsInFlight > 0) {
+            trialsInFlight--;
+        }
+    }
+
+    private void open(String reason) {
+        resetWindow();
+        openUntil = System.nanoTime() + openDurationNanos;
+        state = State.OPEN;
+        LOGGER.warn("Circuit breaker for {} opened, as {}; rejecting requests for {} milliseconds",
+                host, reason, TimeUnit.NANOSECONDS.toMillis(openDurationNanos));
+    }
+
+    private void resetWindow() {
+        windowNext = 0;
+        windowCount = 0;
+        windowFailures = 0;
+    }
+
+    /**
+     * Leave to send one request, through which its outcome is reported.
+     */
+    public final class Permit {
+        private final boolean trial;
+
+        private Permit(boolean trial) {
+            this.trial = trial;
+        }
+
+        public void succeeded() {
+            record(trial, true);
+        }
+
+        public void failed() {
+            record(trial, false);
+        }
+
+        /**
+         * Reports that the request ended without an outcome which says
+         * anything about the host, such as by being cancelled.
+         */
+        public void released() {
+            release(trial);
+        }
+    }
+}
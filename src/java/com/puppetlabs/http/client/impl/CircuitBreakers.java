@@ -0,0 +1,190 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.CircuitBreakerPolicy;
+import com.puppetlabs.http.client.CircuitOpenException;
+import com.puppetlabs.http.client.RequestRejectedException;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.net.URI;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * A client's circuit breakers, one for each host it sends requests to,
+ * created as they are first needed.
+ *
+ * Each breaker's state is reported by the
+ * <code>&lt;namespace&gt;.circuit-breaker.with-route.&lt;route&gt;.state</code>
+ * gauge, as 0 when closed, 1 when half-open and 2 when open, and requests
+ * rejected by open breakers mark the
+ * <code>&lt;namespace&gt;.circuit-breaker.rejected</code> meter.
+ */
+public class CircuitBreakers {
+    public static final String STATE = "state";
+    public static final String REJECTED = "rejected";
+
+    private final CircuitBreakerPolicy policy;
+    private final ConcurrentMap<String, CircuitBreaker> breakers = new ConcurrentHashMap<>();
+    private final MetricRegistry metricRegistry;
+    private final String metricNamespace;
+    private final Meter rejected;
+    private final Map<String, Metric> registered = new HashMap<>();
+
+    public CircuitBreakers(CircuitBreakerPolicy policy,
+                           MetricRegistry metricRegistry,
+                           String metricNamespace) {
+        this.policy = policy;
+        this.metricRegistry = metricRegistry;
+        this.metricNamespace = metricNamespace;
+        this.rejected = metricRegistry == null ? null :
+                metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                        Metrics.NAMESPACE_CIRCUIT_BREAKER, REJECTED));
+    }
+
+    /**
+     * @return the name of the host a request to the URI is sent to, as a
+     * URI with its port, such as <code>https://localhost:8140</code>, or null
+     * if it has none
+     */
+    static String hostName(URI uri) {
+        final HttpHost host = URIUtils.extractHost(uri);
+        if (host == null) {
+            return null;
+        }
+        int port = host.getPort();
+        if (port < 0) {
+            port = "https".equalsIgnoreCase(host.getSchemeName()) ? 443 : 80;
+        }
+        return new HttpHost(host.getHostName(), port, host.getSchemeName()).toURI();
+    }
+
+    /**
+     * @return the breaker for the given host, creating it if need be
+     */
+    public CircuitBreaker forHost(String host) {
+        CircuitBreaker breaker = breakers.get(host);
+        if (breaker == null) {
+            final CircuitBreaker newBreaker = new CircuitBreaker(host, policy);
+            breaker = breakers.putIfAbsent(host, newBreaker);
+            if (breaker == null) {
+                breaker = newBreaker;
+                if (metricRegistry != null) {
+                    register(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_CIRCUIT_BREAKER,
+                            Metrics.NAMESPACE_ROUTE, host, STATE),
+                            new Gauge<Integer>() {
+                                @Override
+                                public Integer getValue() {
+                                    return newBreaker.getState().getValue();
+                                }
+                            });
+                }
+            }
+        }
+        return breaker;
+    }
+
+    /**
+     * @return a permit to send a request to the URI's host, or null if the
+     * URI has no host for a breaker to guard
+     * @throws CircuitOpenException if the host's breaker is open
+     */
+    public CircuitBreaker.Permit acquire(URI uri) {
+        final String host = hostName(uri);
+        if (host == null) {
+            return null;
+        }
+        final CircuitBreaker breaker = forHost(host);
+        final CircuitBreaker.Permit permit = breaker.tryAcquire();
+        if (permit == null) {
+            if (rejected != null) {
+                rejected.mark();
+            }
+            throw new CircuitOpenException("Request rejected: the circuit breaker for " + host + " is " +
+                    (breaker.getState() == CircuitBreaker.State.HALF_OPEN ? "half-open" : "open"));
+        }
+        return permit;
+    }
+
+    /**
+     * Wraps the callback for one exchange so that its outcome is reported
+     * through the permit, once: the exchange failed if it raised an
+     * exception, ran past its deadline or got a 5xx response.
+     */
+    public static FutureCallback<HttpResponse> record(final CircuitBreaker.Permit permit,
+                                                      final RequestHandle handle,
+                                                      final FutureCallback<HttpResponse> delegate) {
+        final AtomicBoolean recorded = new AtomicBoolean(false);
+        return new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                if (recorded.compareAndSet(false, true)) {
+                    if (response.getStatusLine().getStatusCode() >= 500) {
+                        permit.failed();
+                    } else {
+                        permit.succeeded();
+                    }
+                }
+                delegate.completed(response);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                if (recorded.compareAndSet(false, true)) {
+                    // The client's own rejections say nothing of the host.
+                    if (e instanceof RequestRejectedException) {
+                        permit.released();
+                    } else {
+                        permit.failed();
+                    }
+                }
+                delegate.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                if (recorded.compareAndSet(false, true)) {
+                    if (handle.isDeadlineExceeded()) {
+                        permit.failed();
+                    } else {
+                        permit.released();
+                    }
+                }
+                delegate.cancelled();
+            }
+        };
+    }
+
+    private synchronized void register(String name, Metric metric) {
+        try {
+            metricRegistry.register(name, metric);
+            registered.put(name, metric);
+        } catch (IllegalArgumentException e) {
+            // Already registered by another client sharing this registry and
+            // namespace, whose gauge is left in place.
+        }
+    }
+
+    /**
+     * Removes the client's gauges from its registry.
+     */
+    public synchronized void close() {
+        for (Map.Entry<String, Metric> entry : registered.entrySet()) {
+            // Only remove the gauge if it is still ours.
+            if (metricRegistry.getMetrics().get(entry.getKey()) == entry.getValue()) {
+                metricRegistry.remove(entry.getKey());
+            }
+        }
+        registered.clear();
+    }
+}
@@ -0,0 +1,187 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.RetryPolicy;
+import com.puppetlabs.http.client.impl.metrics.ClientTimerIndex;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+
+/**
+ * The per-client resources used when making requests with a client built by
+ * {@link JavaClient#createClient}, which its {@link ManagedHttpAsyncClient}
+ * carries.
+ *
+ * Clients are passed around as plain CloseableHttpAsyncClients (including
+ * through the Clojure API), so requests look up their client's resources
+ * with {@link #of}.  A client built elsewhere has none of its own, and is
+ * given the shared buffer pool and hedge budget, Apache's default request
+ * config, and nothing else.
+ *
+ * The resources are set while the client is built, and aren't changed once
+ * it has been.
+ */
+public final class ClientResources {
+    private static final ClientResources DEFAULTS = new ClientResources();
+
+    private BufferPool bufferPool = BufferPool.getDefault();
+    private CallbackExecutor callbackExecutor;
+    private RequestConfig defaultRequestConfig = RequestConfig.DEFAULT;
+    private ClientTimerIndex timerIndex;
+    private PoolWarmer poolWarmer;
+    private AdmissionControl admissionControl;
+    private RetryPolicy retryPolicy;
+    private CircuitBreakers circuitBreakers;
+    private RequestCoalescer requestCoalescer;
+    private ResponseCache responseCache;
+    private HedgeBudget hedgeBudget = HedgeBudget.getDefault();
+
+    ClientResources() {
+    }
+
+    /**
+     * @return the resources of the client, or the defaults if it wasn't
+     * built by {@link JavaClient#createClient}
+     */
+    public static ClientResources of(CloseableHttpAsyncClient client) {
+        if (client instanceof ManagedHttpAsyncClient) {
+            return ((ManagedHttpAsyncClient) client).getResources();
+        }
+        return DEFAULTS;
+    }
+
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    ClientResources setBufferPool(BufferPool bufferPool) {
+        this.bufferPool = bufferPool;
+        return this;
+    }
+
+    /**
+     * @return the executor on which responses should be processed, or null
+     * if they should be processed on the I/O reactor thread.
+     */
+    public CallbackExecutor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    ClientResources setCallbackExecutor(CallbackExecutor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return this;
+    }
+
+    /**
+     * @return the RequestConfig the client was built with, which per-request
+     * settings are layered on top of.
+     */
+    public RequestConfig getDefaultRequestConfig() {
+        return defaultRequestConfig;
+    }
+
+    ClientResources setDefaultRequestConfig(RequestConfig defaultRequestConfig) {
+        this.defaultRequestConfig = defaultRequestConfig;
+        return this;
+    }
+
+    /**
+     * @return the index of timers for the client's metric registry, or null
+     * if the client was not created with one.
+     */
+    public ClientTimerIndex getTimerIndex() {
+        return timerIndex;
+    }
+
+    ClientResources setTimerIndex(ClientTimerIndex timerIndex) {
+        this.timerIndex = timerIndex;
+        return this;
+    }
+
+    /**
+     * @return the warmer of the client's connection pool, or null if it has
+     * no warm-up hosts.
+     */
+    public PoolWarmer getPoolWarmer() {
+        return poolWarmer;
+    }
+
+    ClientResources setPoolWarmer(PoolWarmer poolWarmer) {
+        this.poolWarmer = poolWarmer;
+        return this;
+    }
+
+    /**
+     * @return the client's admission control, or null if it has no limits
+     * on in-flight or queued requests.
+     */
+    public AdmissionControl getAdmissionControl() {
+        return admissionControl;
+    }
+
+    ClientResources setAdmissionControl(AdmissionControl admissionControl) {
+        this.admissionControl = admissionControl;
+        return this;
+    }
+
+    /**
+     * @return the policy with which requests are retried, unless they have
+     * one of their own, or null if they are not retried.
+     */
+    public RetryPolicy getRetryPolicy() {
+        return retryPolicy;
+    }
+
+    ClientResources setRetryPolicy(RetryPolicy retryPolicy) {
+        this.retryPolicy = retryPolicy;
+        return this;
+    }
+
+    /**
+     * @return the client's circuit breakers, or null if it has none.
+     */
+    public CircuitBreakers getCircuitBreakers() {
+        return circuitBreakers;
+    }
+
+    ClientResources setCircuitBreakers(CircuitBreakers circuitBreakers) {
+        this.circuitBreakers = circuitBreakers;
+        return this;
+    }
+
+    /**
+     * @return the client's request coalescer, or null if it doesn't
+     * coalesce requests.
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    ClientResources setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+        return this;
+    }
+
+    /**
+     * @return the client's response cache, or null if it doesn't cache
+     * responses.
+     */
+    public ResponseCache getResponseCache() {
+        return responseCache;
+    }
+
+    ClientResources setResponseCache(ResponseCache responseCache) {
+        this.responseCache = responseCache;
+        return this;
+    }
+
+    /**
+     * @return the budget which caps the client's hedged requests.
+     */
+    public HedgeBudget getHedgeBudget() {
+        return hedgeBudget;
+    }
+
+    ClientResources setHedgeBudget(HedgeBudget hedgeBudget) {
+        this.hedgeBudget = hedgeBudget;
+        return this;
+    }
+}
@@ -0,0 +1,48 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.Response;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
+
+/**
+ * Completes a CompletableFuture with the Response delivered to it, or, if
+ * the Response has an error, exceptionally with the error, as the
+ * <code>Async</code> methods of {@link com.puppetlabs.http.client.AsyncHttpClient}
+ * do.
+ */
+public class CompletableResponse implements Deliverable<Response> {
+    private final CompletableFuture<Response> future;
+
+    public CompletableResponse(CompletableFuture<Response> future) {
+        this.future = future;
+    }
+
+    @Override
+    public void deliver(Response response) {
+        if (response.getError() != null) {
+            future.completeExceptionally(response.getError());
+        } else {
+            future.complete(response);
+        }
+    }
+
+    /**
+     * @return a CompletionStage completed once the promise is delivered,
+     * which cancels the promise's request when it is cancelled
+     */
+    public static CompletionStage<Response> of(final Promise<Response> promise) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        promise.whenDelivered(new CompletableResponse(future));
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable throwable) {
+                if (future.isCancelled()) {
+                    promise.cancel();
+                }
+            }
+        });
+        return future;
+    }
+}
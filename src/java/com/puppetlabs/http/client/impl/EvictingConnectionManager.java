@@ -0,0 +1,91 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.impl.metrics.ForwardingConnectionManager;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.pool.ConnPoolControl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A connection manager which periodically closes the connections in its pool
+ * which have outlived their time to live or keep-alive, or which have sat
+ * idle for longer than the idle timeout, so that requests aren't sent over
+ * sockets a load balancer or server has long since given up on.
+ *
+ * The pool only checks a connection's expiry when leasing it, so without a
+ * sweep an idle connection stays open until the next request to its host.
+ * The sweep runs on the {@link SharedTimer} until the connection manager is
+ * shut down, and the number of connections it closes is marked on the
+ * <code>&lt;namespace&gt;.connection-pool.evicted</code> meter.
+ */
+public class EvictingConnectionManager extends ForwardingConnectionManager {
+    public static final String EVICTED = "evicted";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(EvictingConnectionManager.class);
+
+    private final ConnPoolControl<HttpRoute> pool;
+    private final long idleTimeoutMilliseconds;
+    private final Meter evicted;
+    private final ScheduledFuture<?> sweep;
+
+    public EvictingConnectionManager(NHttpClientConnectionManager connectionManager,
+                                     ConnPoolControl<HttpRoute> pool,
+                                     long idleTimeoutMilliseconds,
+                                     long evictionIntervalMilliseconds,
+                                     MetricRegistry metricRegistry,
+                                     String metricNamespace) {
+        super(connectionManager);
+        this.pool = pool;
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        this.evicted = metricRegistry == null ? null :
+                metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                        Metrics.NAMESPACE_CONNECTION_POOL, EVICTED));
+        this.sweep = SharedTimer.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                evict();
+            }
+        }, evictionIntervalMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Closes the pool's expired and idle connections.
+     *
+     * @return the number of connections closed
+     */
+    public int evict() {
+        try {
+            // Closed connections are dropped from the pool as they're
+            // closed, so the drop in available connections is the number
+            // evicted, give or take any leased or released meanwhile.
+            final int before = pool.getTotalStats().getAvailable();
+            connectionManager.closeExpiredConnections();
+            if (idleTimeoutMilliseconds > 0) {
+                connectionManager.closeIdleConnections(idleTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+            }
+            final int count = Math.max(0, before - pool.getTotalStats().getAvailable());
+            if (evicted != null && count > 0) {
+                evicted.mark(count);
+            }
+            return count;
+        } catch (RuntimeException e) {
+            // Letting the exception escape would cancel the sweep for good.
+            LOGGER.warn("Error evicting idle connections", e);
+            return 0;
+        }
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        sweep.cancel(false);
+        connectionManager.shutdown();
+    }
+}
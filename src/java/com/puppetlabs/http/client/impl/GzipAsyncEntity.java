@@ -0,0 +1,227 @@
+package com.puppetlabs.http.client.impl;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.http.entity.AbstractHttpEntity;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.entity.HttpAsyncContentProducer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A request entity which gzip-compresses its source on demand.
+ *
+ * Rather than compressing the whole body up front on the thread which makes
+ * the request, the I/O reactor pulls compressed bytes from this entity as the
+ * connection becomes writable, and only as much of the source is deflated as
+ * is needed to fill the output buffer.  Deflaters are borrowed from a shared
+ * pool for the duration of the request.
+ *
+ * A byte array source may be produced any number of times; an InputStream
+ * source may be produced only once and is closed when this entity is.
+ */
+public class GzipAsyncEntity extends AbstractHttpEntity implements HttpAsyncContentProducer {
+
+    // Buffer size to use for reading the source and holding compressed
+    // output.  This is somewhat arbitrary but went with the same value as the
+    // Apache HTTP async client uses for chunking input streams for requests:
+    // https://github.com/apache/httpcore/blob/4.4.5/httpcore-nio/src/main/java/org/apache/http/nio/entity/EntityAsyncContentProducer.java#L58
+    private static final int BUFFER_SIZE = 4096;
+
+    private static final int MAX_POOLED_DEFLATERS = 64;
+    private static final ArrayBlockingQueue<Deflater> DEFLATERS =
+            new ArrayBlockingQueue<>(MAX_POOLED_DEFLATERS);
+
+    // Fixed header with no optional fields, matching what GZIPOutputStream
+    // writes.  See RFC 1952, section 2.3.
+    private static final byte[] GZIP_HEADER = {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0};
+    private static final int GZIP_TRAILER_SIZE = 8;
+
+    private final byte[] sourceBytes;
+    private final InputStream sourceStream;
+
+    private final CRC32 crc = new CRC32();
+    private Deflater deflater;
+    private byte[] input;
+    // Compressed bytes not yet handed to the encoder, in read mode.
+    private ByteBuffer output;
+    private boolean inputExhausted;
+    private boolean trailerWritten;
+
+    public GzipAsyncEntity(byte[] sourceBytes) {
+        this.sourceBytes = sourceBytes;
+        this.sourceStream = null;
+        setChunked(true);
+    }
+
+    public GzipAsyncEntity(InputStream sourceStream) {
+        this.sourceBytes = null;
+        this.sourceStream = sourceStream;
+        setChunked(true);
+    }
+
+    private static Deflater acquireDeflater() {
+        Deflater deflater = DEFLATERS.poll();
+        if (deflater == null) {
+            deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        }
+        return deflater;
+    }
+
+    private static void releaseDeflater(Deflater deflater) {
+        deflater.reset();
+        if (!DEFLATERS.offer(deflater)) {
+            deflater.end();
+        }
+    }
+
+    private void start() {
+        deflater = acquireDeflater();
+        crc.reset();
+        inputExhausted = false;
+        trailerWritten = false;
+        output = ByteBuffer.allocate(BUFFER_SIZE);
+        output.put(GZIP_HEADER);
+        if (sourceStream != null) {
+            input = new byte[BUFFER_SIZE];
+        }
+    }
+
+    private void supplyInput() throws IOException {
+        if (sourceBytes != null) {
+            deflater.setInput(sourceBytes);
+            crc.update(sourceBytes, 0, sourceBytes.length);
+            deflater.finish();
+            inputExhausted = true;
+            return;
+        }
+        int read = sourceStream.read(input);
+        if (read < 0) {
+            deflater.finish();
+            inputExhausted = true;
+            sourceStream.close();
+        } else if (read > 0) {
+            deflater.setInput(input, 0, read);
+            crc.update(input, 0, read);
+        }
+    }
+
+    private void writeTrailer() {
+        int crcValue = (int) crc.getValue();
+        int size = (int) deflater.getBytesRead();
+        output.put((byte) crcValue);
+        output.put((byte) (crcValue >> 8));
+        output.put((byte) (crcValue >> 16));
+        output.put((byte) (crcValue >> 24));
+        output.put((byte) size);
+        output.put((byte) (size >> 8));
+        output.put((byte) (size >> 16));
+        output.put((byte) (size >> 24));
+        trailerWritten = true;
+    }
+
+    // Fills the output buffer, which must be in write mode, with as much
+    // compressed data as will fit.
+    private void deflate() throws IOException {
+        byte[] buffer = output.array();
+        while (output.hasRemaining() && !trailerWritten) {
+            if (deflater.finished()) {
+                if (output.remaining() < GZIP_TRAILER_SIZE) {
+                    return;
+                }
+                writeTrailer();
+            } else if (deflater.needsInput() && !inputExhausted) {
+                supplyInput();
+            } else {
+                int deflated = deflater.deflate(buffer, output.position(), output.remaining());
+                output.position(output.position() + deflated);
+            }
+        }
+    }
+
+    @Override
+    public synchronized void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+        if (deflater == null) {
+            start();
+            deflate();
+            output.flip();
+        }
+        while (true) {
+            if (output.hasRemaining()) {
+                encoder.write(output);
+                if (output.hasRemaining()) {
+                    // The channel is full; the reactor will call back in once
+                    // the connection is writable again.
+                    return;
+                }
+            }
+            if (trailerWritten) {
+                encoder.complete();
+                return;
+            }
+            output.clear();
+            deflate();
+            output.flip();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (deflater != null) {
+            releaseDeflater(deflater);
+            deflater = null;
+        }
+        output = null;
+        input = null;
+        if (sourceStream != null) {
+            sourceStream.close();
+        }
+    }
+
+    @Override
+    public boolean isRepeatable() {
+        return sourceBytes != null;
+    }
+
+    @Override
+    public long getContentLength() {
+        return -1;
+    }
+
+    @Override
+    public boolean isStreaming() {
+        return sourceStream != null;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        writeTo(compressed);
+        return new ByteArrayInputStream(compressed.toByteArray());
+    }
+
+    @Override
+    public void writeTo(OutputStream outputStream) throws IOException {
+        GZIPOutputStream gzipOutputStream = new GZIPOutputStream(outputStream, BUFFER_SIZE);
+        if (sourceBytes != null) {
+            gzipOutputStream.write(sourceBytes);
+        } else {
+            try {
+                IOUtils.copyLarge(sourceStream, gzipOutputStream, new byte[BUFFER_SIZE]);
+            } finally {
+                sourceStream.close();
+            }
+        }
+        gzipOutputStream.finish();
+    }
+}
@@ -0,0 +1,64 @@
+package com.puppetlabs.http.client.impl;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps a client's hedges at a percentage of its hedgeable requests.
+ *
+ * Each hedgeable request deposits its policy's percentage into the budget,
+ * and each hedge withdraws a hundred, so that over time no more hedges are
+ * sent than the percentage allows.  The balance starts empty, so no hedge
+ * can be sent until enough requests have paid for one; there is deliberately
+ * no initial allowance, which every newly created client would get to spend
+ * on an already slow backend.  The balance is also capped at ten hedges, so
+ * that a long run of fast responses can't save up for a burst of hedges
+ * large enough to double the load on a backend which has just slowed down.
+ */
+public class HedgeBudget {
+    private static final long HEDGE_COST = 100;
+    private static final long MAX_BALANCE = 10 * HEDGE_COST;
+
+    private static final HedgeBudget DEFAULT_BUDGET = new HedgeBudget();
+
+    private final AtomicLong balance = new AtomicLong(0);
+
+    /**
+     * @return a budget shared by clients which were not created via
+     * {@link JavaClient#createClient}, and so have no budget of their own.
+     */
+    public static HedgeBudget getDefault() {
+        return DEFAULT_BUDGET;
+    }
+
+    /**
+     * Records a request which may be hedged.
+     *
+     * @param percent the percentage of such requests which may be hedged
+     */
+    public void deposit(int percent) {
+        if (percent <= 0) {
+            return;
+        }
+        long current;
+        do {
+            current = balance.get();
+            if (current >= MAX_BALANCE) {
+                return;
+            }
+        } while (!balance.compareAndSet(current, Math.min(MAX_BALANCE, current + percent)));
+    }
+
+    /**
+     * @return true if a hedge may be sent, in which case it has been paid for
+     */
+    public boolean tryWithdraw() {
+        long current;
+        do {
+            current = balance.get();
+            if (current < HEDGE_COST) {
+                return false;
+            }
+        } while (!balance.compareAndSet(current, current - HEDGE_COST));
+        return true;
+    }
+}
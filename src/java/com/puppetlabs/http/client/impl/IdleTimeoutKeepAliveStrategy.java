@@ -0,0 +1,31 @@
+package com.puppetlabs.http.client.impl;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * Keeps a connection alive for as long as the server says it will, in the
+ * <code>timeout</code> parameter of a <code>Keep-Alive</code> response
+ * header, but never for longer than the client's idle connection timeout.
+ * Connections past their keep-alive are closed rather than reused when next
+ * leased, and by the {@link EvictingConnectionManager}.
+ */
+public class IdleTimeoutKeepAliveStrategy implements ConnectionKeepAliveStrategy {
+    private final long idleTimeoutMilliseconds;
+
+    public IdleTimeoutKeepAliveStrategy(long idleTimeoutMilliseconds) {
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+    }
+
+    @Override
+    public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+        final long keepAlive = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+        if (idleTimeoutMilliseconds <= 0) {
+            return keepAlive;
+        }
+        // A non-positive duration means the server didn't say.
+        return keepAlive > 0 ? Math.min(keepAlive, idleTimeoutMilliseconds) : idleTimeoutMilliseconds;
+    }
+}
@@ -1,13 +1,29 @@
 package com.puppetlabs.http.client.impl;
 
 import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.CircuitOpenException;
+import com.puppetlabs.http.client.ClientGroup;
 import com.puppetlabs.http.client.ClientOptions;
 import com.puppetlabs.http.client.CompressType;
+import com.puppetlabs.http.client.HedgePolicy;
 import com.puppetlabs.http.client.HttpClientException;
 import com.puppetlabs.http.client.HttpMethod;
 import com.puppetlabs.http.client.RequestOptions;
+import com.puppetlabs.http.client.RequestRejectedException;
 import com.puppetlabs.http.client.ResponseBodyType;
+import com.puppetlabs.http.client.RetryPolicy;
+import com.puppetlabs.http.client.impl.metrics.ClientTimerIndex;
+import com.puppetlabs.http.client.impl.metrics.MeteredConnectionManager;
+import com.puppetlabs.http.client.impl.metrics.PhaseTimers;
+import com.puppetlabs.http.client.impl.metrics.Reservoirs;
 import com.puppetlabs.http.client.impl.metrics.TimerUtils;
+import com.puppetlabs.http.client.impl.metrics.TimingConnectingIOReactor;
+import com.puppetlabs.http.client.impl.metrics.TimingConnectionManager;
+import com.puppetlabs.http.client.impl.metrics.TimingSSLIOSessionStrategy;
+import com.puppetlabs.http.client.impl.metrics.UrlTemplates;
+import com.puppetlabs.http.client.metrics.ClientTimer;
+import com.puppetlabs.http.client.metrics.Metrics;
 import com.puppetlabs.http.client.impl.SafeDefaultRedirectStrategy;
 import com.puppetlabs.http.client.impl.SafeLaxRedirectStrategy;
 
@@ -37,29 +53,43 @@ import org.apache.http.client.methods.HttpTrace;
 import org.apache.http.client.methods.HttpUriRequest;
 import org.apache.http.client.protocol.HttpClientContext;
 import org.apache.http.client.protocol.ResponseContentEncoding;
+import org.apache.http.concurrent.BasicFuture;
 import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.routing.HttpRoute;
 import org.apache.http.conn.ssl.DefaultHostnameVerifier;
+import org.apache.http.conn.util.PublicSuffixMatcherLoader;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.InputStreamEntity;
 import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import org.apache.http.impl.nio.client.HttpAsyncClientBuilder;
 import org.apache.http.impl.nio.client.HttpAsyncClients;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.impl.nio.reactor.DefaultConnectingIOReactor;
+import org.apache.http.impl.nio.reactor.IOReactorConfig;
 import org.apache.http.message.BasicHeader;
 import org.apache.http.nio.client.methods.HttpAsyncMethods;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.nio.conn.NoopIOSessionStrategy;
+import org.apache.http.nio.conn.SchemeIOSessionStrategy;
 import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
 import org.apache.http.nio.entity.NStringEntity;
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOReactorException;
+import org.apache.http.pool.ConnPoolControl;
+import org.apache.http.ssl.SSLContexts;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.net.ssl.HostnameVerifier;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
+import java.io.InterruptedIOException;
 import java.io.UnsupportedEncodingException;
 import java.net.URI;
 import java.nio.charset.UnsupportedCharsetException;
@@ -68,9 +98,16 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class JavaClient {
 
@@ -78,12 +115,6 @@ public class JavaClient {
 
     private static final Logger LOGGER = LoggerFactory.getLogger(JavaClient.class);
 
-    // Buffer size to use in streams for request gzip compression.  This is
-    // somewhat arbitrary but went with the same value as the Apache HTTP
-    // async client uses for chunking input streams for requests:
-    // https://github.com/apache/httpcore/blob/4.4.5/httpcore-nio/src/main/java/org/apache/http/nio/entity/EntityAsyncContentProducer.java#L58
-    private static int GZIP_BUFFER_SIZE = 4096;
-
     private static Header[] prepareHeaders(RequestOptions options,
                                            ContentType contentType) {
         Map<String, Header> result = new HashMap<String, Header>();
@@ -162,35 +193,20 @@ public class JavaClient {
         Header[] headers = prepareHeaders(options, contentType);
 
         HttpEntity body = null;
-        GZIPOutputStream gzipOutputStream = null;
         Object bodyFromOptions = options.getBody();
-        byte[] bytesToGzip = null;
 
         if ((bodyFromOptions instanceof String) ||
                 (bodyFromOptions instanceof InputStream)) {
-            // See comments in the requestWithClient() method about why the
-            // request body is routed through a GZIPOutputStream,
-            // PipedOutputStream, and PipedInputStream in order to achieve
-            // gzip compression.
             if (options.getCompressRequestBody() == CompressType.GZIP) {
-                PipedInputStream pis = new PipedInputStream(GZIP_BUFFER_SIZE);
-                PipedOutputStream pos = new PipedOutputStream();
-                try {
-                    pos.connect(pis);
-                    gzipOutputStream = new GZIPOutputStream(pos,
-                            GZIP_BUFFER_SIZE);
-                    body = new InputStreamEntity(pis);
-                } catch (IOException ioe) {
-                    throw new HttpClientException(
-                            "Error setting up gzip stream for request", ioe);
-                }
                 if (bodyFromOptions instanceof String) {
                     String bodyAsString = (String) bodyFromOptions;
                     if (contentType != null) {
-                        bytesToGzip = bodyAsString.getBytes(contentType.getCharset());
+                        body = new GzipAsyncEntity(bodyAsString.getBytes(contentType.getCharset()));
                     } else {
-                        bytesToGzip = bodyAsString.getBytes();
+                        body = new GzipAsyncEntity(bodyAsString.getBytes());
                     }
+                } else {
+                    body = new GzipAsyncEntity((InputStream) bodyFromOptions);
                 }
             } else if (bodyFromOptions instanceof String) {
                 String originalBody = (String) bodyFromOptions;
@@ -213,8 +229,7 @@ public class JavaClient {
             throwUnsupportedBodyException(bodyFromOptions);
         }
 
-        return new CoercedRequestOptions(uri,
-                method, headers, body, gzipOutputStream, bytesToGzip);
+        return new CoercedRequestOptions(uri, method, headers, body);
     }
 
     public static CoercedClientOptions coerceClientOptions(ClientOptions options) {
@@ -349,9 +364,11 @@ public class JavaClient {
         }
     }
 
-    private static void executeWithConsumer(final CloseableHttpAsyncClient client,
+    private static Future<HttpResponse> executeWithConsumer(final CloseableHttpAsyncClient client,
                                             final FutureCallback<HttpResponse> futureCallback,
                                             final HttpRequestBase request,
+                                            final RequestHandle handle,
+                                            final ClientResources resources,
                                             final MetricRegistry metricRegistry,
                                             final String[] metricId,
                                             final String metricNamespace,
@@ -367,7 +384,7 @@ public class JavaClient {
             public void deliver(HttpResponse httpResponse) {
                 futureCallback.completed(httpResponse);
             }
-        });
+        }, resources.getBufferPool());
 
         /*
          * Normally the consumer returns the response as soon as it is available using the deliver() callback (above)
@@ -400,62 +417,103 @@ public class JavaClient {
 
                     @Override
                     public void cancelled() {
-                        consumer.setFinalResult(null);
+                        // The reader may already hold the body stream; make
+                        // sure it sees an error rather than a truncated body.
+                        if (handle.isDeadlineExceeded()) {
+                            consumer.setFinalResult(new InterruptedIOException("Request deadline exceeded"));
+                        } else {
+                            consumer.setFinalResult(new IOException("Request cancelled"));
+                        }
                         futureCallback.cancelled();
                     }
                 };
 
         TimedFutureCallback<HttpResponse> timedStreamingCompleteCallback =
                 new TimedFutureCallback<>(streamingCompleteCallback,
-                        TimerUtils.startFullResponseTimers(metricRegistry, request, metricId, metricNamespace, enableURLMetrics));
-        client.execute(HttpAsyncMethods.create(request), consumer, timedStreamingCompleteCallback);
+                        startFullResponseTimers(resources.getTimerIndex(), metricRegistry, request, metricId,
+                                metricNamespace, enableURLMetrics));
+        PhaseTimers phaseTimers = startPhaseTimers(resources.getTimerIndex(), metricRegistry, request, metricId,
+                metricNamespace, enableURLMetrics);
+        if (phaseTimers != null) {
+            return client.execute(phaseTimers.timeRequest(HttpAsyncMethods.create(request)),
+                    phaseTimers.timeResponse(consumer), handle.track(timedStreamingCompleteCallback));
+        }
+        return client.execute(HttpAsyncMethods.create(request), consumer, handle.track(timedStreamingCompleteCallback));
     }
 
-    private static void gzipRequestPayload(
-            GZIPOutputStream gzipOutputStream,
-            byte[] bytesToGzip,
-            Object requestBody) {
-        try {
-            if (bytesToGzip != null) {
-                gzipOutputStream.write(bytesToGzip);
-            } else {
-                if (requestBody instanceof InputStream) {
-                    InputStream requestInputStream = (InputStream) requestBody;
-                    byte[] byteBuffer = new byte[GZIP_BUFFER_SIZE];
-                    try {
-                        IOUtils.copyLarge(requestInputStream,
-                                gzipOutputStream, byteBuffer);
-                    } finally {
-                        requestInputStream.close();
-                    }
-                } else {
-                    throwUnsupportedBodyException(requestBody);
-                }
-            }
-        // IOExceptions may be thrown either during the IOUtils.copyLarge()
-        // call above or during the close() call to the GZIPOutputStream below.
-        // The GZIPOutputStream object is backed by a PipedOutputStream object
-        // which is connected to a PipedInputStream object.  Most likely, any
-        // IOExceptions thrown up to this level would be due to the underlying
-        // PipedInputStream being closed prematurely.  In those cases, the
-        // Apache HTTP Async library should detect the failure while processing
-        // the request and deliver an appropriate "failure" callback as the
-        // result for the request.  The IOExceptions are caught and not rethrown
-        // here so that the client can still receive the "failure" callback from
-        // the Apache HTTP Async library later on.  The exceptions are still
-        // logged here at a debug level for troubleshooting purposes.
-        } catch (IOException ioe) {
-            LOGGER.debug("Error writing gzip request body", ioe);
-        } finally {
-            try {
-                gzipOutputStream.close();
-            } catch (IOException ioe) {
-                LOGGER.debug("Error closing gzip request stream", ioe);
-            }
+    private static ArrayList<Timer.Context> startFullResponseTimers(ClientTimerIndex timerIndex,
+                                                                    MetricRegistry registry,
+                                                                    HttpRequest request,
+                                                                    String[] metricId,
+                                                                    String metricNamespace,
+                                                                    boolean enableURLMetrics) {
+        if (registry != null && timerIndex != null && timerIndex.isFor(registry, metricNamespace)) {
+            return timerIndex.startFullResponseTimers(request, metricId, enableURLMetrics);
+        }
+        return TimerUtils.startFullResponseTimers(registry, request, metricId, metricNamespace, enableURLMetrics);
+    }
+
+    private static PhaseTimers startPhaseTimers(ClientTimerIndex timerIndex,
+                                                MetricRegistry registry,
+                                                HttpRequest request,
+                                                String[] metricId,
+                                                String metricNamespace,
+                                                boolean enableURLMetrics) {
+        if (registry != null && timerIndex != null && timerIndex.isFor(registry, metricNamespace)) {
+            return timerIndex.startPhaseTimers(request, metricId, enableURLMetrics);
+        }
+        return null;
+    }
+
+    private static RequestConfig getRequestConfig(ClientResources resources,
+                                                  RequestOptions requestOptions) {
+        int connectTimeoutMilliseconds = requestOptions.getConnectTimeoutMilliseconds();
+        int socketTimeoutMilliseconds = requestOptions.getSocketTimeoutMilliseconds();
+        int connectionRequestTimeoutMilliseconds = requestOptions.getConnectionRequestTimeoutMilliseconds();
+
+        if (connectTimeoutMilliseconds < 0 && socketTimeoutMilliseconds < 0 &&
+                connectionRequestTimeoutMilliseconds < 0) {
+            return null;
+        }
+
+        // A RequestConfig set on a request replaces the client's default
+        // entirely rather than being merged with it, so start from a copy of
+        // the client's.
+        Builder requestConfigBuilder = RequestConfig.copy(resources.getDefaultRequestConfig());
+        if (connectTimeoutMilliseconds >= 0) {
+            requestConfigBuilder.setConnectTimeout(connectTimeoutMilliseconds);
+        }
+        if (socketTimeoutMilliseconds >= 0) {
+            requestConfigBuilder.setSocketTimeout(socketTimeoutMilliseconds);
+        }
+        if (connectionRequestTimeoutMilliseconds >= 0) {
+            requestConfigBuilder.setConnectionRequestTimeout(connectionRequestTimeoutMilliseconds);
+        }
+        return requestConfigBuilder.build();
+    }
+
+    /**
+     * @return true if the request may share the response of an identical
+     * request: it reads, rather than changes, state on the server, and its
+     * response is buffered rather than handed over as it arrives
+     */
+    private static boolean isCoalescable(RequestOptions requestOptions,
+                                         CoercedRequestOptions coercedRequestOptions) {
+        HttpMethod method = coercedRequestOptions.getMethod();
+        return (method == HttpMethod.GET || method == HttpMethod.HEAD) &&
+                coercedRequestOptions.getBody() == null &&
+                requestOptions.getAs() != ResponseBodyType.UNBUFFERED_STREAM;
+    }
+
+    private static void dispatch(CallbackExecutor callbackExecutor, Runnable task) {
+        if (callbackExecutor != null) {
+            callbackExecutor.execute(task);
+        } else {
+            task.run();
         }
     }
 
-    public static void requestWithClient(final RequestOptions requestOptions,
+    public static RequestHandle requestWithClient(final RequestOptions requestOptions,
                                          final HttpMethod method,
                                          final IResponseCallback callback,
                                          final CloseableHttpAsyncClient client,
@@ -465,92 +523,377 @@ public class JavaClient {
                                          final boolean enableURLMetrics) {
 
         final CoercedRequestOptions coercedRequestOptions = coerceRequestOptions(requestOptions, method);
+        final ClientResources resources = ClientResources.of(client);
 
-        final HttpRequestBase request = constructRequest(coercedRequestOptions.getMethod(),
-                coercedRequestOptions.getUri(), coercedRequestOptions.getBody());
-        request.setHeaders(coercedRequestOptions.getHeaders());
+        final HttpRequestBase request = buildRequest(resources, requestOptions, coercedRequestOptions);
 
         final HttpContext httpContext = HttpClientContext.create();
+        final RequestHandle handle = new RequestHandle(registry, metricNamespace);
+
+        final CallbackExecutor callbackExecutor = resources.getCallbackExecutor();
+        // For unbuffered streams, completed() is called once when the
+        // response head arrives and again (or failed()) once the body has been
+        // consumed.  Only the first outcome is delivered, so that responses
+        // handed to a multi-threaded executor are never processed twice.
+        final AtomicBoolean outcomeDispatched = new AtomicBoolean(false);
 
-        final FutureCallback<HttpResponse> futureCallback = new FutureCallback<HttpResponse>() {
+        final FutureCallback<HttpResponse> deliveryCallback = new FutureCallback<HttpResponse>() {
             @Override
-            public void completed(HttpResponse httpResponse) {
-                completeResponse(responseDeliveryDelegate, requestOptions, callback, httpResponse, httpContext);
+            public void completed(final HttpResponse httpResponse) {
+                if (outcomeDispatched.compareAndSet(false, true)) {
+                    dispatch(callbackExecutor, new Runnable() {
+                        @Override
+                        public void run() {
+                            completeResponse(responseDeliveryDelegate, requestOptions, callback, httpResponse, httpContext);
+                        }
+                    });
+                }
             }
 
             @Override
-            public void failed(Exception e) {
-                LOGGER.error("{} request to '{}' failed.", method.toString(), requestOptions.getUri().toString());
-                responseDeliveryDelegate.deliverResponse(requestOptions, e, callback);
+            public void failed(final Exception e) {
+                if (e instanceof RequestRejectedException) {
+                    // Rejections come in floods when a host is down or the
+                    // client is overloaded, and are counted in metrics.
+                    LOGGER.debug("{} request to '{}' rejected: {}", method.toString(),
+                            requestOptions.getUri().toString(), e.getMessage());
+                } else {
+                    LOGGER.error("{} request to '{}' failed.", method.toString(), requestOptions.getUri().toString());
+                }
+                if (outcomeDispatched.compareAndSet(false, true)) {
+                    dispatch(callbackExecutor, new Runnable() {
+                        @Override
+                        public void run() {
+                            responseDeliveryDelegate.deliverResponse(requestOptions, e, callback);
+                        }
+                    });
+                }
             }
 
             @Override
             public void cancelled() {
-                LOGGER.error("{} request to '{}' cancelled.", method.toString(), requestOptions.getUri().toString());
-                responseDeliveryDelegate.deliverResponse(requestOptions,
-                        new HttpClientException("Request cancelled"),
-                        callback);
+                final Exception e;
+                if (handle.isDeadlineExceeded()) {
+                    LOGGER.error("{} request to '{}' did not complete within {} milliseconds.", method.toString(),
+                            requestOptions.getUri().toString(), requestOptions.getDeadlineMilliseconds());
+                    e = new TimeoutException("Request did not complete within " +
+                            requestOptions.getDeadlineMilliseconds() + " milliseconds");
+                } else {
+                    LOGGER.error("{} request to '{}' cancelled.", method.toString(), requestOptions.getUri().toString());
+                    e = new HttpClientException("Request cancelled");
+                }
+                if (outcomeDispatched.compareAndSet(false, true)) {
+                    dispatch(callbackExecutor, new Runnable() {
+                        @Override
+                        public void run() {
+                            responseDeliveryDelegate.deliverResponse(requestOptions, e, callback);
+                        }
+                    });
+                }
             }
         };
 
+        FutureCallback<HttpResponse> responseCallback = deliveryCallback;
+        final ResponseCache responseCache = resources.getResponseCache();
+        if (responseCache != null) {
+            boolean buffered = requestOptions.getAs() != ResponseBodyType.UNBUFFERED_STREAM;
+            if (buffered) {
+                HttpResponse cached = responseCache.getFresh(request);
+                if (cached != null) {
+                    return respond(handle, deliveryCallback, cached);
+                }
+            }
+            responseCallback = responseCache.intercept(request, buffered, deliveryCallback);
+        }
+
+        // Work started from the shared timer (deadlines, retries and hedges)
+        // is handed off to the client's callback executor, if it has one.
+        final Executor timerWorkExecutor = callbackExecutor == null ? null : callbackExecutor.getExecutor();
+
+        // A coalesced request waits on its flight, which sends the exchange
+        // under a handle of its own and has no deadline of its own.
+        final FutureCallback<HttpResponse> futureCallback;
+        final RequestHandle exchangeHandle;
+        final RequestCoalescer requestCoalescer = resources.getRequestCoalescer();
+        if (requestCoalescer != null && isCoalescable(requestOptions, coercedRequestOptions)) {
+            RequestCoalescer.Flight flight = requestCoalescer.join(RequestCoalescer.key(request), handle,
+                    responseCallback, requestOptions.getDeadlineMilliseconds(), timerWorkExecutor);
+            if (flight == null) {
+                // Joined an identical request already in flight.
+                return handle;
+            }
+            futureCallback = flight;
+            exchangeHandle = flight.getHandle();
+        } else {
+            futureCallback = responseCallback;
+            exchangeHandle = handle;
+        }
+
+        final CircuitBreakers circuitBreakers = resources.getCircuitBreakers();
+        CircuitBreaker.Permit permit = null;
+        if (circuitBreakers != null) {
+            try {
+                permit = circuitBreakers.acquire(coercedRequestOptions.getUri());
+            } catch (CircuitOpenException e) {
+                reject(exchangeHandle, futureCallback, e);
+                return handle;
+            }
+        }
+
+        final AdmissionControl admissionControl = resources.getAdmissionControl();
+        if (admissionControl != null) {
+            try {
+                exchangeHandle.admit(admissionControl);
+            } catch (RequestRejectedException e) {
+                if (permit != null) {
+                    permit.released();
+                }
+                reject(exchangeHandle, futureCallback, e);
+                return handle;
+            }
+        }
+
         final String[] metricId = requestOptions.getMetricId();
+        if (exchangeHandle == handle && requestOptions.getDeadlineMilliseconds() > 0) {
+            handle.startDeadline(requestOptions.getDeadlineMilliseconds(), timerWorkExecutor);
+        }
+        final RetryPolicy retryPolicy = getRetryPolicy(resources, requestOptions, coercedRequestOptions);
+        final HedgePolicy hedgePolicy = getHedgePolicy(requestOptions, coercedRequestOptions);
+        try {
+            if (retryPolicy != null || hedgePolicy != null) {
+                final CircuitBreaker.Permit firstPermit = permit;
+                RequestRetrier.Attempt attempt = new RequestRetrier.Attempt() {
+                    private final AtomicBoolean first = new AtomicBoolean(true);
+
+                    @Override
+                    public Future<HttpResponse> start(FutureCallback<HttpResponse> callback) {
+                        // Each retry or hedge is sent as a new request,
+                        // replaying the same body, and must get past the
+                        // circuit breaker again.
+                        HttpRequestBase attemptRequest = request;
+                        CircuitBreaker.Permit attemptPermit = firstPermit;
+                        if (!first.compareAndSet(true, false)) {
+                            attemptRequest = buildRequest(resources, requestOptions, coercedRequestOptions);
+                            if (responseCache != null) {
+                                ResponseCache.copyConditions(request, attemptRequest);
+                            }
+                            attemptPermit = circuitBreakers == null ? null :
+                                    circuitBreakers.acquire(coercedRequestOptions.getUri());
+                        }
+                        if (attemptPermit != null) {
+                            callback = CircuitBreakers.record(attemptPermit, exchangeHandle, callback);
+                        }
+                        try {
+                            return executeBuffered(client, resources, attemptRequest, callback,
+                                    registry, metricId, metricNamespace, enableURLMetrics);
+                        } catch (RuntimeException e) {
+                            if (attemptPermit != null) {
+                                attemptPermit.released();
+                            }
+                            throw e;
+                        }
+                    }
+                };
+                final String description = method + " request to '" + requestOptions.getUri() + "'";
+                if (hedgePolicy != null) {
+                    HedgeBudget hedgeBudget = resources.getHedgeBudget();
+                    hedgeBudget.deposit(hedgePolicy.getMaxHedgePercent());
+                    attempt = new RequestHedger(attempt,
+                            RequestHedger.getDelayMilliseconds(hedgePolicy,
+                                    findFullResponseTimer(resources.getTimerIndex(), request)),
+                            hedgeBudget, description, timerWorkExecutor, registry, metricNamespace);
+                }
+                if (retryPolicy != null) {
+                    new RequestRetrier(retryPolicy, exchangeHandle, attempt, exchangeHandle.track(futureCallback),
+                            description, timerWorkExecutor, registry, metricNamespace).start();
+                } else {
+                    exchangeHandle.setFuture(attempt.start(exchangeHandle.track(futureCallback)));
+                }
+            } else {
+                try {
+                    execute(client, resources, request, requestOptions,
+                            permit == null ? futureCallback :
+                                    CircuitBreakers.record(permit, exchangeHandle, futureCallback),
+                            exchangeHandle, registry, metricId, metricNamespace, enableURLMetrics);
+                } catch (RuntimeException e) {
+                    if (permit != null) {
+                        permit.released();
+                    }
+                    throw e;
+                }
+            }
+        } catch (RuntimeException e) {
+            exchangeHandle.finished();
+            if (exchangeHandle != handle) {
+                // Every request in the flight, the leader included, learns
+                // of the failure through it, rather than waiting forever.
+                futureCallback.failed(e);
+                return handle;
+            }
+            throw e;
+        }
+        return handle;
+    }
+
+    /**
+     * Fails the request straight away, without sending it.
+     */
+    private static RequestHandle reject(RequestHandle handle,
+                                        FutureCallback<HttpResponse> futureCallback,
+                                        RequestRejectedException e) {
+        BasicFuture<HttpResponse> rejected = new BasicFuture<>(futureCallback);
+        handle.setFuture(rejected);
+        rejected.failed(e);
+        return handle;
+    }
+
+    /**
+     * Completes the request straight away with a response it wasn't sent
+     * for, such as one from the client's cache.
+     */
+    private static RequestHandle respond(RequestHandle handle,
+                                         FutureCallback<HttpResponse> futureCallback,
+                                         HttpResponse response) {
+        BasicFuture<HttpResponse> responded = new BasicFuture<>(futureCallback);
+        handle.setFuture(responded);
+        responded.completed(response);
+        return handle;
+    }
+
+    private static void execute(CloseableHttpAsyncClient client,
+                                ClientResources resources,
+                                HttpRequestBase request,
+                                RequestOptions requestOptions,
+                                FutureCallback<HttpResponse> futureCallback,
+                                RequestHandle handle,
+                                MetricRegistry registry,
+                                String[] metricId,
+                                String metricNamespace,
+                                boolean enableURLMetrics) {
         if (requestOptions.getAs() == ResponseBodyType.UNBUFFERED_STREAM) {
-            executeWithConsumer(client, futureCallback, request, registry, metricId, metricNamespace, enableURLMetrics);
+            handle.setFuture(executeWithConsumer(client, futureCallback, request, handle, resources,
+                    registry, metricId, metricNamespace, enableURLMetrics));
         } else {
-            TimedFutureCallback<HttpResponse> timedFutureCallback =
-                    new TimedFutureCallback<>(futureCallback,
-                            TimerUtils.startFullResponseTimers(registry, request, metricId, metricNamespace, enableURLMetrics));
-            client.execute(request, timedFutureCallback);
-        }
-
-        // The approach used for gzip-compressing the request payload is far from
-        // ideal here.  The approach involves reading the bytes from the supplied
-        // request body, redirecting those through a JDK GZIPOutputStream object
-        // to compress them, and then piping those back into in InputStream that
-        // the Apache Async HTTP layer reads from in order to get the bytes
-        // to transmit in the HTTP request.  The JDK apparently has no built-in
-        // functionality for gzip-compressing a source byte array or InputStream
-        // back into a separate InputStream that the Apache Async HTTP layer
-        // could use.
-        //
-        // A better approach would probably be to do something like one of the
-        // approaches discussed in http://stackoverflow.com/questions/11036280/compress-an-inputstream-with-gzip.
-        // For example, the InputStream given to the Apache Async HTTP layer
-        // could be wrapped with a FilterInputStream which gzip-compresses
-        // bytes on the fly as the Apache Async HTTP layer asks for them.  The
-        // approaches on that thread are pretty involved, though, and appear to
-        // have liberally copied content from the JDK source.  A clean-room
-        // implementation would probably be better but would also likely
-        // require a fair bit of testing to ensure that it produces good gzip
-        // content under varying read scenarios.
-        //
-        // The approach being used for now requires writing through the
-        // GZIPOutputStream and underlying PipedOutputStream from the thread on
-        // which the HTTP request is made.  The connected PipedInputStream is
-        // then read from a separate thread, one of the Apache HTTP Async IO
-        // worker threads -- hopefully avoiding the possibility of a deadlock
-        // in the process.
-        //
-        // For requests that provide an InputStream as a source argument, it
-        // would also probably be more performant to do the GZIPOutputStream
-        // writing from a separate thread and would give an AsyncHttpClient
-        // requestor the ability to do other work while the source InputStream
-        // is being read and compressed.  As a simplification for now, this
-        // implementation doesn't spin up a separate thread (or thread pool)
-        // for performing gzip compression.
-        GZIPOutputStream gzipOutputStream = coercedRequestOptions.getGzipOutputStream();
-        if (gzipOutputStream != null) {
-            gzipRequestPayload(gzipOutputStream,
-                    coercedRequestOptions.getBytesToGzip(),
-                    requestOptions.getBody());
+            handle.setFuture(executeBuffered(client, resources, request, handle.track(futureCallback),
+                    registry, metricId, metricNamespace, enableURLMetrics));
         }
     }
 
+    private static Future<HttpResponse> executeBuffered(CloseableHttpAsyncClient client,
+                                                        ClientResources resources,
+                                                        HttpRequestBase request,
+                                                        FutureCallback<HttpResponse> futureCallback,
+                                                        MetricRegistry registry,
+                                                        String[] metricId,
+                                                        String metricNamespace,
+                                                        boolean enableURLMetrics) {
+        TimedFutureCallback<HttpResponse> timedFutureCallback =
+                new TimedFutureCallback<>(futureCallback,
+                        startFullResponseTimers(resources.getTimerIndex(), registry, request, metricId,
+                                metricNamespace, enableURLMetrics));
+        PhaseTimers phaseTimers = startPhaseTimers(resources.getTimerIndex(), registry, request, metricId,
+                metricNamespace, enableURLMetrics);
+        if (phaseTimers != null) {
+            return client.execute(phaseTimers.timeRequest(HttpAsyncMethods.create(request)),
+                    phaseTimers.timeResponse(HttpAsyncMethods.createConsumer()),
+                    timedFutureCallback);
+        }
+        return client.execute(request, timedFutureCallback);
+    }
+
+    private static HttpRequestBase buildRequest(ClientResources resources,
+                                                RequestOptions requestOptions,
+                                                CoercedRequestOptions coercedRequestOptions) {
+        HttpRequestBase request = constructRequest(coercedRequestOptions.getMethod(),
+                coercedRequestOptions.getUri(), coercedRequestOptions.getBody());
+        request.setHeaders(coercedRequestOptions.getHeaders());
+        RequestConfig requestConfig = getRequestConfig(resources, requestOptions);
+        if (requestConfig != null) {
+            request.setConfig(requestConfig);
+        }
+        return request;
+    }
+
+    /**
+     * @return the policy with which to retry the request, or null if it
+     * mustn't be retried
+     */
+    private static RetryPolicy getRetryPolicy(ClientResources resources,
+                                              RequestOptions requestOptions,
+                                              CoercedRequestOptions coercedRequestOptions) {
+        RetryPolicy retryPolicy = requestOptions.getRetryPolicy();
+        if (retryPolicy == null) {
+            retryPolicy = resources.getRetryPolicy();
+        }
+        if (retryPolicy == null || retryPolicy.getMaxRetries() <= 0) {
+            return null;
+        }
+        // An unbuffered response is handed over as it arrives, and a stream
+        // body can only be sent once, so neither can be retried.
+        if (requestOptions.getAs() == ResponseBodyType.UNBUFFERED_STREAM) {
+            return null;
+        }
+        HttpEntity body = coercedRequestOptions.getBody();
+        if (body != null && !body.isRepeatable()) {
+            return null;
+        }
+        if (!retryPolicy.allowsMethod(coercedRequestOptions.getMethod())) {
+            return null;
+        }
+        return retryPolicy;
+    }
+
+    /**
+     * @return the policy with which to hedge the request, or null if it
+     * mustn't be hedged
+     */
+    private static HedgePolicy getHedgePolicy(RequestOptions requestOptions,
+                                              CoercedRequestOptions coercedRequestOptions) {
+        HedgePolicy hedgePolicy = requestOptions.getHedgePolicy();
+        if (hedgePolicy == null || hedgePolicy.getMaxHedgePercent() <= 0) {
+            return null;
+        }
+        // As with retries, only a request whose response is only handed over
+        // once complete can be hedged.
+        if (requestOptions.getAs() == ResponseBodyType.UNBUFFERED_STREAM) {
+            return null;
+        }
+        // Unlike retries, a hedge is sent while the first exchange may still
+        // be sending the body, and the two would share its entity, so only
+        // requests without one are hedged.
+        if (coercedRequestOptions.getBody() != null) {
+            return null;
+        }
+        switch (coercedRequestOptions.getMethod()) {
+            case GET:
+            case HEAD:
+            case OPTIONS:
+                return hedgePolicy;
+            default:
+                return null;
+        }
+    }
+
+    private static ClientTimer findFullResponseTimer(ClientTimerIndex timerIndex, HttpRequest request) {
+        return timerIndex == null ? null : timerIndex.findFullResponseTimer(request);
+    }
+
     public static CloseableHttpAsyncClient createClient(ClientOptions clientOptions) {
-        CoercedClientOptions coercedOptions = coerceClientOptions(SslUtils.configureSsl(clientOptions));
+        return createClient(clientOptions, null);
+    }
+
+    /**
+     * Creates a client whose I/O threads are made by the given ThreadFactory,
+     * or by Apache's defaults if it is null.
+     */
+    public static CloseableHttpAsyncClient createClient(ClientOptions clientOptions,
+                                                        ThreadFactory threadFactory) {
+        // Clients in a group use the group's connections, and with them its
+        // SSL configuration, so there's no need to load their own.
+        final ClientGroup clientGroup = clientOptions.getClientGroup();
+        CoercedClientOptions coercedOptions = coerceClientOptions(clientGroup != null ?
+                clientOptions : SslUtils.configureSsl(clientOptions));
         HttpAsyncClientBuilder clientBuilder = HttpAsyncClients.custom();
-        clientBuilder.setMaxConnPerRoute(clientOptions.getMaxConnectionsPerRoute());
-        clientBuilder.setMaxConnTotal(clientOptions.getMaxConnectionsTotal());
         // Typically, the HttpClient library tracks the "user token" for a
         // connection, which in our case is the SSL certificate name, and
         // refuses to reuse a connection if the SSL certificate is different
@@ -560,17 +903,55 @@ public class JavaClient {
         // it's impossible for it to change from request to request, so we can
         // simply disable that tracking altogether.
         clientBuilder.disableConnectionState();
+        if (threadFactory != null) {
+            clientBuilder.setThreadFactory(threadFactory);
+        }
 
-        SSLContext context = coercedOptions.getSslContext();
-        if (context != null) {
-            // this requires an initialized SSLContext
-
-            clientBuilder.setSSLStrategy(
-                    new SSLIOSessionStrategy(context,
-                            coercedOptions.getSslProtocols(),
-                            coercedOptions.getSslCipherSuites(),
-                            new DefaultHostnameVerifier()));
+        final String metricNamespace = Metrics.buildMetricNamespace(clientOptions.getMetricPrefix(),
+                clientOptions.getServerId());
+        final boolean enablePhaseMetrics = clientOptions.isEnablePhaseMetrics() &&
+                clientOptions.getMetricRegistry() != null;
+        final String[] warmUpHosts = clientGroup != null ? null : clientOptions.getWarmUpHosts();
+        final boolean enableWarmUp = warmUpHosts != null && warmUpHosts.length > 0;
+        NHttpClientConnectionManager connectionManager;
+        ConnPoolControl<HttpRoute> connectionPool;
+        if (clientGroup != null) {
+            connectionPool = clientGroup.getConnectionPool();
+            connectionManager = clientGroup.getConnectionManager();
+            // The group, rather than the client, shuts the pool down.
+            clientBuilder.setConnectionManagerShared(true);
+        } else {
+            PoolingNHttpClientConnectionManager pool = createConnectionManager(clientOptions, coercedOptions,
+                    enablePhaseMetrics || enableWarmUp, threadFactory);
+            connectionPool = pool;
+            connectionManager = manageConnectionPool(pool, clientOptions, metricNamespace);
+        }
+        final long idleConnectionTimeout = clientGroup != null ?
+                clientGroup.getIdleConnectionTimeoutMilliseconds() :
+                clientOptions.getIdleConnectionTimeoutMilliseconds();
+        if (idleConnectionTimeout > 0) {
+            clientBuilder.setKeepAliveStrategy(new IdleTimeoutKeepAliveStrategy(idleConnectionTimeout));
         }
+        if (enablePhaseMetrics) {
+            connectionManager = new TimingConnectionManager(connectionManager);
+        }
+        AdmissionControl admissionControl = null;
+        if (clientOptions.getMaxRequestsInFlight() > 0 ||
+                clientOptions.getMaxQueuedRequests() > 0 ||
+                clientOptions.getMaxQueuedRequestsPerRoute() > 0) {
+            admissionControl = new AdmissionControl(clientOptions.getMaxRequestsInFlight(),
+                    clientOptions.getMaxQueuedRequests(),
+                    clientOptions.getMaxQueuedRequestsPerRoute(),
+                    connectionPool, clientOptions.getMetricRegistry(), metricNamespace);
+            connectionManager = new AdmittingConnectionManager(connectionManager, admissionControl);
+        }
+        clientBuilder.setConnectionManager(connectionManager);
+        CircuitBreakers circuitBreakers = null;
+        if (clientOptions.getCircuitBreakerPolicy() != null) {
+            circuitBreakers = new CircuitBreakers(clientOptions.getCircuitBreakerPolicy(),
+                    clientOptions.getMetricRegistry(), metricNamespace);
+        }
+
         RedirectStrategy redirectStrategy;
         if (!coercedOptions.getFollowRedirects()) {
             redirectStrategy = new RedirectStrategy() {
@@ -599,11 +980,221 @@ public class JavaClient {
             clientBuilder.setDefaultRequestConfig(requestConfig);
         }
 
-        CloseableHttpAsyncClient client = clientBuilder.build();
+        BufferPool bufferPool = new BufferPool(clientOptions.getBufferPoolSlabSize(),
+                clientOptions.getBufferPoolMaxSlabs(),
+                clientOptions.getMetricRegistry(),
+                metricNamespace);
+        CallbackExecutor callbackExecutor = null;
+        if (clientOptions.getCallbackExecutor() != null) {
+            callbackExecutor = new CallbackExecutor(clientOptions.getCallbackExecutor(),
+                    clientOptions.getMetricRegistry(),
+                    metricNamespace);
+        }
+
+        ClientTimerIndex timerIndex = null;
+        if (clientOptions.getMetricRegistry() != null) {
+            String[] metricUrlTemplates = clientOptions.getMetricUrlTemplates();
+            timerIndex = new ClientTimerIndex(clientOptions.getMetricRegistry(), metricNamespace,
+                    metricUrlTemplates != null && metricUrlTemplates.length > 0 ?
+                            new UrlTemplates(metricUrlTemplates) : null,
+                    clientOptions.getMaxUrlMetrics(),
+                    new Reservoirs(clientOptions.getMetricReservoir(),
+                            clientOptions.getMetricReservoirWindowSeconds()),
+                    enablePhaseMetrics);
+        }
+
+        PoolWarmer poolWarmer = null;
+        if (enableWarmUp) {
+            poolWarmer = new PoolWarmer(connectionManager, warmUpHosts,
+                    clientOptions.getWarmUpConnections(),
+                    coercedOptions.getConnectTimeoutMilliseconds(),
+                    clientOptions.getMetricRegistry(), metricNamespace);
+        }
+
+        ClientResources resources = new ClientResources()
+                .setBufferPool(bufferPool)
+                .setCallbackExecutor(callbackExecutor)
+                .setTimerIndex(timerIndex)
+                .setPoolWarmer(poolWarmer)
+                .setAdmissionControl(admissionControl)
+                .setRetryPolicy(clientOptions.getRetryPolicy())
+                .setCircuitBreakers(circuitBreakers)
+                .setHedgeBudget(new HedgeBudget());
+        if (requestConfig != null) {
+            resources.setDefaultRequestConfig(requestConfig);
+        }
+        if (clientOptions.isCoalesceRequests()) {
+            resources.setRequestCoalescer(new RequestCoalescer(clientOptions.getMetricRegistry(), metricNamespace));
+        }
+        if (clientOptions.getResponseCacheMaxBytes() > 0) {
+            resources.setResponseCache(new ResponseCache(clientOptions.getResponseCacheMaxBytes(),
+                    clientOptions.getMetricRegistry(), metricNamespace));
+        }
+        ManagedHttpAsyncClient client = new ManagedHttpAsyncClient(clientBuilder.build(), resources);
         client.start();
+        client.warmUp();
         return client;
     }
 
+    /**
+     * Opens connections to the client's warm-up hosts.
+     *
+     * @return a future completed once the connections are ready, or right
+     * away if the client has no warm-up hosts
+     */
+    public static CompletableFuture<Void> warmUp(CloseableHttpAsyncClient client) {
+        if (client instanceof ManagedHttpAsyncClient) {
+            return ((ManagedHttpAsyncClient) client).warmUp();
+        }
+        return CompletableFuture.completedFuture(null);
+    }
+
+    private static SSLIOSessionStrategy createSSLStrategy(SSLContext context,
+                                                          String[] sslProtocols,
+                                                          String[] sslCipherSuites,
+                                                          HostnameVerifier hostnameVerifier,
+                                                          boolean enablePhaseMetrics) {
+        if (enablePhaseMetrics) {
+            return new TimingSSLIOSessionStrategy(context, sslProtocols, sslCipherSuites, hostnameVerifier);
+        }
+        return new SSLIOSessionStrategy(context, sslProtocols, sslCipherSuites, hostnameVerifier);
+    }
+
+    private static IOReactorConfig createIOReactorConfig(ClientOptions clientOptions) {
+        IOReactorConfig.Builder builder = IOReactorConfig.custom()
+                .setSelectInterval(clientOptions.getIoSelectIntervalMilliseconds())
+                .setSndBufSize(clientOptions.getSocketSendBufferSize())
+                .setRcvBufSize(clientOptions.getSocketReceiveBufferSize())
+                .setTcpNoDelay(clientOptions.isTcpNoDelay())
+                .setSoKeepAlive(clientOptions.isSocketKeepAlive());
+        if (clientOptions.getIoThreadCount() > 0) {
+            builder.setIoThreadCount(clientOptions.getIoThreadCount());
+        }
+        return builder.build();
+    }
+
+    /**
+     * Creates the connection pool for a {@link ClientGroup}, which is shared
+     * by every client created with the group.  Its I/O reactor and SSL
+     * strategy always record connection timings, so that any client in the
+     * group can enable phase metrics.
+     */
+    public static PoolingNHttpClientConnectionManager createSharedConnectionPool(ClientOptions clientOptions) {
+        CoercedClientOptions coercedOptions = coerceClientOptions(SslUtils.configureSsl(clientOptions));
+        return createConnectionManager(clientOptions, coercedOptions, true, null);
+    }
+
+    /**
+     * @return the connection manager through which a {@link ClientGroup}'s
+     * clients use its pool, which reports the pool's state and evicts its
+     * idle connections as the group's options ask.
+     */
+    public static NHttpClientConnectionManager manageSharedConnectionPool(PoolingNHttpClientConnectionManager pool,
+                                                                          ClientOptions clientOptions) {
+        return manageConnectionPool(pool, clientOptions,
+                Metrics.buildMetricNamespace(clientOptions.getMetricPrefix(), clientOptions.getServerId()));
+    }
+
+    /**
+     * Wraps the pool to report its state, and to sweep it for expired and
+     * idle connections if the client has a connection time to live or idle
+     * timeout.
+     */
+    private static NHttpClientConnectionManager manageConnectionPool(PoolingNHttpClientConnectionManager pool,
+                                                                     ClientOptions clientOptions,
+                                                                     String metricNamespace) {
+        NHttpClientConnectionManager connectionManager = meterConnectionManager(pool,
+                clientOptions.getMetricRegistry(), metricNamespace);
+        if ((clientOptions.getConnectionTimeToLiveMilliseconds() > 0 ||
+                clientOptions.getIdleConnectionTimeoutMilliseconds() > 0) &&
+                clientOptions.getConnectionEvictionIntervalMilliseconds() > 0) {
+            connectionManager = new EvictingConnectionManager(connectionManager, pool,
+                    clientOptions.getIdleConnectionTimeoutMilliseconds(),
+                    clientOptions.getConnectionEvictionIntervalMilliseconds(),
+                    clientOptions.getMetricRegistry(), metricNamespace);
+        }
+        return connectionManager;
+    }
+
+    private static NHttpClientConnectionManager meterConnectionManager(PoolingNHttpClientConnectionManager pool,
+                                                                       MetricRegistry metricRegistry,
+                                                                       String metricNamespace) {
+        if (metricRegistry == null) {
+            return pool;
+        }
+        return new MeteredConnectionManager(pool, metricRegistry, metricNamespace);
+    }
+
+    /**
+     * Builds the connection pool HttpAsyncClientBuilder would otherwise build
+     * for the client, so that its state can be reported.  With phase metrics
+     * enabled, the I/O reactor and SSL strategy record how long each
+     * connection took to open.
+     */
+    private static PoolingNHttpClientConnectionManager createConnectionManager(ClientOptions clientOptions,
+                                                                               CoercedClientOptions coercedOptions,
+                                                                               boolean enablePhaseMetrics,
+                                                                               ThreadFactory threadFactory) {
+        // Parsed first, so that a bad host is reported before any I/O
+        // reactor is created.
+        final Map<HttpRoute, Integer> maxConnectionsByRoute = new HashMap<>();
+        if (clientOptions.getMaxConnectionsByRoute() != null) {
+            for (Map.Entry<String, Integer> entry : clientOptions.getMaxConnectionsByRoute().entrySet()) {
+                for (HttpRoute route : Routes.toRoutes(entry.getKey())) {
+                    maxConnectionsByRoute.put(route, entry.getValue());
+                }
+            }
+        }
+        final SSLIOSessionStrategy sslStrategy;
+        SSLContext context = coercedOptions.getSslContext();
+        if (context != null) {
+            // this requires an initialized SSLContext
+            sslStrategy = createSSLStrategy(context,
+                    coercedOptions.getSslProtocols(),
+                    coercedOptions.getSslCipherSuites(),
+                    new DefaultHostnameVerifier(),
+                    enablePhaseMetrics);
+        } else {
+            sslStrategy = createSSLStrategy(SSLContexts.createDefault(), null, null,
+                    new DefaultHostnameVerifier(PublicSuffixMatcherLoader.getDefault()),
+                    enablePhaseMetrics);
+        }
+        ConnectingIOReactor ioReactor;
+        try {
+            ioReactor = new DefaultConnectingIOReactor(createIOReactorConfig(clientOptions), threadFactory);
+        } catch (IOReactorException e) {
+            throw new HttpClientException("Unable to create I/O reactor", e);
+        }
+        if (enablePhaseMetrics) {
+            ioReactor = new TimingConnectingIOReactor(ioReactor);
+        }
+        // The pool reuses the most recently released connection first, so
+        // under light load requests keep to a few hot connections and the
+        // rest sit idle until the idle timeout closes them.
+        final long timeToLive = clientOptions.getConnectionTimeToLiveMilliseconds();
+        final PoolingNHttpClientConnectionManager connectionManager = new PoolingNHttpClientConnectionManager(
+                ioReactor,
+                null,
+                RegistryBuilder.<SchemeIOSessionStrategy>create()
+                        .register("http", NoopIOSessionStrategy.INSTANCE)
+                        .register("https", sslStrategy)
+                        .build(),
+                null,
+                null,
+                timeToLive > 0 ? timeToLive : -1,
+                TimeUnit.MILLISECONDS);
+        if (clientOptions.getMaxConnectionsTotal() > 0) {
+            connectionManager.setMaxTotal(clientOptions.getMaxConnectionsTotal());
+        }
+        if (clientOptions.getMaxConnectionsPerRoute() > 0) {
+            connectionManager.setDefaultMaxPerRoute(clientOptions.getMaxConnectionsPerRoute());
+        }
+        for (Map.Entry<HttpRoute, Integer> entry : maxConnectionsByRoute.entrySet()) {
+            connectionManager.setMaxPerRoute(entry.getKey(), entry.getValue());
+        }
+        return connectionManager;
+    }
+
     private static RequestConfig getRequestConfig
             (CoercedClientOptions options) {
         RequestConfig config = null;
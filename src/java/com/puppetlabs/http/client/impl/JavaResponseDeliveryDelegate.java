@@ -8,9 +8,9 @@ import java.util.Map;
 
 public final class JavaResponseDeliveryDelegate implements ResponseDeliveryDelegate {
 
-    private final Promise<Response> promise;
+    private final Deliverable<Response> promise;
 
-    public JavaResponseDeliveryDelegate(Promise<Response> promise) {
+    public JavaResponseDeliveryDelegate(Deliverable<Response> promise) {
         this.promise = promise;
     }
 
@@ -0,0 +1,77 @@
+package com.puppetlabs.http.client.impl;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Future;
+
+/**
+ * A CloseableHttpAsyncClient which wraps the Apache client built by
+ * {@link JavaClient#createClient} and carries the additional per-client
+ * resources used when making requests with it, see {@link ClientResources}.
+ */
+public class ManagedHttpAsyncClient extends CloseableHttpAsyncClient {
+
+    private final CloseableHttpAsyncClient client;
+    private final ClientResources resources;
+
+    public ManagedHttpAsyncClient(CloseableHttpAsyncClient client, ClientResources resources) {
+        this.client = client;
+        this.resources = resources;
+    }
+
+    public ClientResources getResources() {
+        return resources;
+    }
+
+    /**
+     * Opens connections to the client's warm-up hosts, if it has any, until
+     * its pool holds the configured number of connections to each.
+     *
+     * @return a future completed once the connections are ready
+     */
+    public CompletableFuture<Void> warmUp() {
+        final PoolWarmer poolWarmer = resources.getPoolWarmer();
+        if (poolWarmer == null) {
+            return CompletableFuture.completedFuture(null);
+        }
+        return poolWarmer.warmUp();
+    }
+
+    @Override
+    public boolean isRunning() {
+        return client.isRunning();
+    }
+
+    @Override
+    public void start() {
+        client.start();
+    }
+
+    @Override
+    public <T> Future<T> execute(HttpAsyncRequestProducer requestProducer,
+                                 HttpAsyncResponseConsumer<T> responseConsumer,
+                                 HttpContext context,
+                                 FutureCallback<T> callback) {
+        return client.execute(requestProducer, responseConsumer, context, callback);
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (resources.getAdmissionControl() != null) {
+            resources.getAdmissionControl().close();
+        }
+        if (resources.getCircuitBreakers() != null) {
+            resources.getCircuitBreakers().close();
+        }
+        if (resources.getResponseCache() != null) {
+            resources.getResponseCache().close();
+        }
+        client.close();
+    }
+}
@@ -10,6 +10,9 @@ import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.BiConsumer;
 
 public class PersistentAsyncHttpClient implements AsyncHttpClient {
     private CloseableHttpAsyncClient client;
@@ -39,14 +42,36 @@ public class PersistentAsyncHttpClient implements AsyncHttpClient {
         return metricNamespace;
     }
 
+    public CompletionStage<Void> warmUp() {
+        return JavaClient.warmUp(client);
+    }
+
     private Promise<Response> request(RequestOptions requestOptions, HttpMethod method) {
         final Promise<Response> promise = new Promise<>();
         final JavaResponseDeliveryDelegate responseDelivery = new JavaResponseDeliveryDelegate(promise);
-        JavaClient.requestWithClient(requestOptions, method, null,
-                client, responseDelivery, metricRegistry, metricNamespace, enableURLMetrics);
+        promise.setCancellable(JavaClient.requestWithClient(requestOptions, method, null,
+                client, responseDelivery, metricRegistry, metricNamespace, enableURLMetrics));
         return promise;
     }
 
+    private CompletionStage<Response> requestAsync(RequestOptions requestOptions, HttpMethod method) {
+        final CompletableFuture<Response> future = new CompletableFuture<>();
+        final JavaResponseDeliveryDelegate responseDelivery = new JavaResponseDeliveryDelegate(
+                new CompletableResponse(future));
+        final RequestHandle handle = JavaClient.requestWithClient(requestOptions, method, null,
+                client, responseDelivery, metricRegistry, metricNamespace, enableURLMetrics);
+        // Cancelling the returned future aborts the request.
+        future.whenComplete(new BiConsumer<Response, Throwable>() {
+            @Override
+            public void accept(Response response, Throwable throwable) {
+                if (future.isCancelled()) {
+                    handle.cancel();
+                }
+            }
+        });
+        return future;
+    }
+
     public Promise<Response> get(String url) throws URISyntaxException {
         return get(new URI(url));
     }
@@ -126,4 +151,84 @@ public class PersistentAsyncHttpClient implements AsyncHttpClient {
     public Promise<Response> patch(RequestOptions requestOptions) {
         return request(requestOptions, HttpMethod.PATCH);
     }
+
+    public CompletionStage<Response> getAsync(String url) throws URISyntaxException {
+        return getAsync(new URI(url));
+    }
+    public CompletionStage<Response> getAsync(URI uri) {
+        return getAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> getAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.GET);
+    }
+
+    public CompletionStage<Response> headAsync(String url) throws URISyntaxException {
+        return headAsync(new URI(url));
+    }
+    public CompletionStage<Response> headAsync(URI uri) {
+        return headAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> headAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.HEAD);
+    }
+
+    public CompletionStage<Response> postAsync(String url) throws URISyntaxException {
+        return postAsync(new URI(url));
+    }
+    public CompletionStage<Response> postAsync(URI uri) {
+        return postAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> postAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.POST);
+    }
+
+    public CompletionStage<Response> putAsync(String url) throws URISyntaxException {
+        return putAsync(new URI(url));
+    }
+    public CompletionStage<Response> putAsync(URI uri) {
+        return putAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> putAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.PUT);
+    }
+
+    public CompletionStage<Response> deleteAsync(String url) throws URISyntaxException {
+        return deleteAsync(new URI(url));
+    }
+    public CompletionStage<Response> deleteAsync(URI uri) {
+        return deleteAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> deleteAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.DELETE);
+    }
+
+    public CompletionStage<Response> traceAsync(String url) throws URISyntaxException {
+        return traceAsync(new URI(url));
+    }
+    public CompletionStage<Response> traceAsync(URI uri) {
+        return traceAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> traceAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.TRACE);
+    }
+
+    public CompletionStage<Response> optionsAsync(String url) throws URISyntaxException {
+        return optionsAsync(new URI(url));
+    }
+    public CompletionStage<Response> optionsAsync(URI uri) {
+        return optionsAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> optionsAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.OPTIONS);
+    }
+
+    public CompletionStage<Response> patchAsync(String url) throws URISyntaxException {
+        return patchAsync(new URI(url));
+    }
+    public CompletionStage<Response> patchAsync(URI uri) {
+        return patchAsync(new RequestOptions(uri));
+    }
+    public CompletionStage<Response> patchAsync(RequestOptions requestOptions) {
+        return requestAsync(requestOptions, HttpMethod.PATCH);
+    }
 }
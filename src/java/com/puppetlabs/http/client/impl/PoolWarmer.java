@@ -0,0 +1,219 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.impl.metrics.ConnectionTimings;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.client.protocol.HttpClientContext;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Opens connections to a list of hosts ahead of the requests which will use
+ * them, completing the TLS handshake of https connections, and leaves them
+ * idle in the client's connection pool.
+ *
+ * Each warm-up leases the wanted number of connections to each host at once,
+ * so the pool opens them in parallel, and releases each once it is ready.
+ * Connections the pool already has open are simply handed back.  How long a
+ * warm-up took is tracked by the
+ * <code>&lt;namespace&gt;.connection-pool.warm-up</code> timer.
+ *
+ * Waiting for the TLS handshake relies on the connection manager's SSL
+ * strategy being a TimingSSLIOSessionStrategy.
+ */
+public class PoolWarmer {
+    public static final String WARM_UP = "warm-up";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PoolWarmer.class);
+    private static final int DEFAULT_TIMEOUT_MILLISECONDS = 10000;
+
+    private final NHttpClientConnectionManager connectionManager;
+    private final List<HttpRoute> routes;
+    private final int connectionsPerRoute;
+    private final int timeoutMilliseconds;
+    private final Timer warmUpTimer;
+
+    public PoolWarmer(NHttpClientConnectionManager connectionManager,
+                      String[] hosts,
+                      int connectionsPerRoute,
+                      int connectTimeoutMilliseconds,
+                      MetricRegistry metricRegistry,
+                      String metricNamespace) {
+        this.connectionManager = connectionManager;
+        this.routes = new ArrayList<>(hosts.length);
+        for (String host : hosts) {
+            routes.add(Routes.toRoute(host));
+        }
+        this.connectionsPerRoute = connectionsPerRoute;
+        this.timeoutMilliseconds = connectTimeoutMilliseconds > 0 ?
+                connectTimeoutMilliseconds : DEFAULT_TIMEOUT_MILLISECONDS;
+        this.warmUpTimer = metricRegistry == null ? null :
+                metricRegistry.timer(MetricRegistry.name(metricNamespace,
+                        Metrics.NAMESPACE_CONNECTION_POOL, WARM_UP));
+    }
+
+    /**
+     * Opens connections to each host until the pool holds the wanted number
+     * of them.  Hosts which can't be reached are logged, and don't fail the
+     * warm-up.
+     *
+     * @return a future completed once every connection is ready, or has
+     * failed
+     */
+    public CompletableFuture<Void> warmUp() {
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+        final int total = routes.size() * connectionsPerRoute;
+        if (total <= 0) {
+            future.complete(null);
+            return future;
+        }
+        final long started = System.nanoTime();
+        final AtomicInteger remaining = new AtomicInteger(total);
+        final AtomicInteger failed = new AtomicInteger(0);
+        final Completion completion = new Completion() {
+            @Override
+            public void completed(boolean ready) {
+                if (!ready) {
+                    failed.incrementAndGet();
+                }
+                if (remaining.decrementAndGet() == 0) {
+                    if (warmUpTimer != null) {
+                        warmUpTimer.update(System.nanoTime() - started, TimeUnit.NANOSECONDS);
+                    }
+                    if (failed.get() > 0) {
+                        LOGGER.warn("{} of {} connections could not be warmed up", failed.get(), total);
+                    }
+                    future.complete(null);
+                }
+            }
+        };
+        for (HttpRoute route : routes) {
+            for (int i = 0; i < connectionsPerRoute; i++) {
+                warmConnection(route, completion);
+            }
+        }
+        return future;
+    }
+
+    private void warmConnection(final HttpRoute route, final Completion completion) {
+        connectionManager.requestConnection(route, null, timeoutMilliseconds, timeoutMilliseconds,
+                TimeUnit.MILLISECONDS, new FutureCallback<NHttpClientConnection>() {
+                    @Override
+                    public void completed(NHttpClientConnection conn) {
+                        prepare(route, conn, completion);
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        LOGGER.debug("Unable to open a connection to {}", route.getTargetHost(), e);
+                        completion.completed(false);
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        completion.completed(false);
+                    }
+                });
+    }
+
+    private void prepare(HttpRoute route, NHttpClientConnection conn, Completion completion) {
+        final WarmConnection warmConnection = new WarmConnection(route, conn, completion);
+        if (connectionManager.isRouteComplete(conn)) {
+            // An idle connection the pool already had open.
+            warmConnection.release(true);
+            return;
+        }
+        final ConnectionTimings timings = ConnectionTimings.get(conn.getContext());
+        final boolean awaitHandshake = route.isSecure() && timings != null;
+        if (timings != null) {
+            timings.markRecorded();
+        }
+        if (awaitHandshake) {
+            // The handshake completes on the I/O reactor thread, part way
+            // through processing the connection's input, so the connection
+            // is released from the timer thread instead.
+            timings.setHandshakeListener(new Runnable() {
+                @Override
+                public void run() {
+                    SharedTimer.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            warmConnection.release(timings.isHandshakeCompleted());
+                        }
+                    }, 0, TimeUnit.MILLISECONDS);
+                }
+            });
+            warmConnection.deadline = SharedTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    warmConnection.release(false);
+                }
+            }, timeoutMilliseconds, TimeUnit.MILLISECONDS);
+        }
+        try {
+            final HttpClientContext context = HttpClientContext.create();
+            connectionManager.startRoute(conn, route, context);
+            connectionManager.routeComplete(conn, route, context);
+        } catch (IOException e) {
+            LOGGER.debug("Unable to open a connection to {}", route.getTargetHost(), e);
+            try {
+                conn.shutdown();
+            } catch (IOException ignored) {
+                // the connection is being discarded anyway
+            }
+            warmConnection.release(false);
+            return;
+        }
+        if (!awaitHandshake) {
+            warmConnection.release(true);
+        }
+    }
+
+    private interface Completion {
+        void completed(boolean ready);
+    }
+
+    /**
+     * A connection leased for warming up, which is released back to the pool
+     * exactly once: when it is ready, or when it runs out of time.
+     */
+    private final class WarmConnection {
+        private final HttpRoute route;
+        private final NHttpClientConnection conn;
+        private final Completion completion;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+        private volatile ScheduledFuture<?> deadline;
+
+        private WarmConnection(HttpRoute route, NHttpClientConnection conn, Completion completion) {
+            this.route = route;
+            this.conn = conn;
+            this.completion = completion;
+        }
+
+        private void release(boolean ready) {
+            if (released.compareAndSet(false, true)) {
+                ScheduledFuture<?> deadline = this.deadline;
+                if (deadline != null) {
+                    deadline.cancel(false);
+                }
+                final boolean open = conn.isOpen();
+                connectionManager.releaseConnection(conn, null, 0, TimeUnit.MILLISECONDS);
+                completion.completed(ready && open);
+            }
+        }
+    }
+}
@@ -1,21 +1,55 @@
 package com.puppetlabs.http.client.impl;
 
+import org.apache.http.concurrent.Cancellable;
+
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class Promise<T> implements Deliverable<T> {
     private final CountDownLatch latch;
     private T value = null;
+    private volatile Cancellable cancellable = null;
+    private List<Deliverable<T>> listeners = new ArrayList<>();
 
     public Promise() {
         latch = new CountDownLatch(1);
     }
 
-    public synchronized void deliver(T t) {
-        if (value != null) {
-            throw new IllegalStateException("Attempting to deliver value to a promise that has already been realized!");
+    public void deliver(T t) {
+        final List<Deliverable<T>> toNotify;
+        synchronized (this) {
+            if (value != null) {
+                throw new IllegalStateException("Attempting to deliver value to a promise that has already been realized!");
+            }
+            value = t;
+            latch.countDown();
+            toNotify = listeners;
+            listeners = null;
+        }
+        if (toNotify != null) {
+            for (Deliverable<T> listener : toNotify) {
+                listener.deliver(t);
+            }
         }
-        value = t;
-        latch.countDown();
+    }
+
+    /**
+     * Delivers this promise's value to the listener once it is delivered,
+     * on the thread delivering it, or straight away if it already has been.
+     */
+    public void whenDelivered(Deliverable<T> listener) {
+        final T delivered;
+        synchronized (this) {
+            if (listeners != null) {
+                listeners.add(listener);
+                return;
+            }
+            delivered = value;
+        }
+        listener.deliver(delivered);
     }
 
     public T deref() throws InterruptedException {
@@ -23,4 +57,29 @@ public class Promise<T> implements Deliverable<T> {
         return value;
     }
 
+    /**
+     * Waits at most the given time for the value to be delivered.
+     * @throws TimeoutException if no value was delivered in time
+     */
+    public T deref(long timeout, TimeUnit unit) throws InterruptedException, TimeoutException {
+        if (!latch.await(timeout, unit)) {
+            throw new TimeoutException("Timed out waiting for promise to be delivered");
+        }
+        return value;
+    }
+
+    public void setCancellable(Cancellable cancellable) {
+        this.cancellable = cancellable;
+    }
+
+    /**
+     * Cancels the operation which will deliver this promise, if it supports
+     * cancellation and has not already finished.
+     * @return true if the operation was cancelled
+     */
+    public boolean cancel() {
+        Cancellable toCancel = cancellable;
+        return toCancel != null && toCancel.cancel();
+    }
+
 }
@@ -0,0 +1,315 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.HttpClientException;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Coalesces identical requests made while one of them is in flight, so that
+ * a burst of them is sent as one exchange.
+ *
+ * The first request for a given method, URI and set of headers leads: it
+ * starts a {@link Flight}, which sends the request as usual and owns the
+ * exchange.  Requests identical to it which are made before it finishes join
+ * the flight instead of being sent.  Once the response arrives, its body is
+ * buffered once and each request in the flight, the leader included, is
+ * handed a copy of the response of its own, which it decodes according to
+ * its own options.  A failure of the exchange fails every request in the
+ * flight.
+ *
+ * Any request's deadline, or cancelling it, the leader's included, only
+ * stops that request waiting; the exchange carries on for the rest of the
+ * flight, and is only cancelled once every request in it has been.
+ * Requests which lead are counted by the
+ * <code>&lt;namespace&gt;.requests.coalesce-misses</code> meter, and those
+ * which join by the <code>.coalesce-hits</code> meter.
+ */
+public class RequestCoalescer {
+    public static final String HITS = "coalesce-hits";
+    public static final String MISSES = "coalesce-misses";
+
+    private static final Comparator<Header> HEADER_ORDER = new Comparator<Header>() {
+        @Override
+        public int compare(Header a, Header b) {
+            int byName = a.getName().compareToIgnoreCase(b.getName());
+            return byName != 0 ? byName : a.getValue().compareTo(b.getValue());
+        }
+    };
+
+    private final ConcurrentMap<String, Flight> flights = new ConcurrentHashMap<>();
+    private final Meter hits;
+    private final Meter misses;
+
+    public RequestCoalescer(MetricRegistry metricRegistry, String metricNamespace) {
+        if (metricRegistry != null) {
+            this.hits = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, HITS));
+            this.misses = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, MISSES));
+        } else {
+            this.hits = null;
+            this.misses = null;
+        }
+    }
+
+    /**
+     * @return the key under which identical requests are coalesced: the
+     * request's method, URI, and headers in order of name
+     */
+    public static String key(HttpRequest request) {
+        Header[] headers = request.getAllHeaders();
+        StringBuilder key = new StringBuilder(request.getRequestLine().getMethod())
+                .append(' ').append(request.getRequestLine().getUri());
+        if (headers.length > 0) {
+            headers = headers.clone();
+            Arrays.sort(headers, HEADER_ORDER);
+            for (Header header : headers) {
+                key.append('\n').append(header.getName().toLowerCase())
+                        .append(": ").append(header.getValue());
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Joins the request onto an identical one in flight, if there is one,
+     * or otherwise starts a new flight for it to lead.  Either way, the
+     * request's handle now waits on the flight's outcome, and its deadline,
+     * if any, is started.
+     *
+     * @param deadlineMilliseconds the request's deadline, or 0 for none
+     * @param executor where the request is aborted once its deadline
+     *                 passes, see {@link RequestHandle#startDeadline}
+     * @return the new flight, whose exchange the caller must then send, or
+     * null if the request joined a flight already in progress
+     */
+    public Flight join(String key,
+                       RequestHandle handle,
+                       FutureCallback<HttpResponse> callback,
+                       long deadlineMilliseconds,
+                       Executor executor) {
+        while (true) {
+            Flight flight = flights.get(key);
+            if (flight == null) {
+                Flight created = new Flight(key);
+                flight = flights.putIfAbsent(key, created);
+                if (flight == null) {
+                    if (misses != null) {
+                        misses.mark();
+                    }
+                    created.participate(handle, callback, deadlineMilliseconds, executor);
+                    return created;
+                }
+            }
+            if (flight.participate(handle, callback, deadlineMilliseconds, executor)) {
+                if (hits != null) {
+                    hits.mark();
+                }
+                return null;
+            }
+            // Every request in that flight was cancelled just now, so it has
+            // been abandoned; start over with a flight of our own.
+            flights.remove(key, flight);
+        }
+    }
+
+    private static HttpResponse copy(HttpResponse response, byte[] body) {
+        BasicHttpResponse copy = new BasicHttpResponse(response.getStatusLine());
+        copy.setHeaders(response.getAllHeaders());
+        HttpEntity entity = response.getEntity();
+        if (entity != null) {
+            ByteArrayEntity copiedEntity = new ByteArrayEntity(body);
+            copiedEntity.setContentType(entity.getContentType());
+            copiedEntity.setContentEncoding(entity.getContentEncoding());
+            copy.setEntity(copiedEntity);
+        }
+        return copy;
+    }
+
+    /**
+     * The exchange sent for a set of identical requests, and the requests
+     * waiting on it.  The flight is the callback of the exchange, which is
+     * sent under the flight's own handle rather than any one request's, so
+     * that it outlives the request which started it.  Requests which join
+     * after the outcome is in, having found the flight just before it
+     * finished, are handed the outcome straight away.
+     */
+    public final class Flight implements FutureCallback<HttpResponse> {
+        private final String key;
+        // Without a metric registry, so that abandoning the exchange isn't
+        // counted as a cancellation on top of those of its requests.
+        private final RequestHandle handle = new RequestHandle(null, null);
+        private final List<Participant> participants = new ArrayList<>();
+        private boolean done = false;
+        private boolean abandoned = false;
+        private HttpResponse response;
+        private byte[] body;
+        private Exception failure;
+
+        private Flight(String key) {
+            this.key = key;
+        }
+
+        /**
+         * @return the handle under which the flight's exchange is sent
+         */
+        public RequestHandle getHandle() {
+            return handle;
+        }
+
+        /**
+         * @return false if the flight was abandoned, in which case the
+         * request hasn't joined it
+         */
+        private boolean participate(RequestHandle requestHandle,
+                                    FutureCallback<HttpResponse> callback,
+                                    long deadlineMilliseconds,
+                                    Executor executor) {
+            Participant participant = new Participant(this, requestHandle.track(callback));
+            final boolean deliverNow;
+            synchronized (this) {
+                if (abandoned) {
+                    return false;
+                }
+                deliverNow = done;
+                if (!done) {
+                    participants.add(participant);
+                }
+            }
+            if (deadlineMilliseconds > 0) {
+                requestHandle.startDeadline(deadlineMilliseconds, executor);
+            }
+            requestHandle.setFuture(participant.future);
+            if (deliverNow) {
+                deliver(participant);
+            }
+            return true;
+        }
+
+        /**
+         * Stops the participant waiting, and cancels the exchange if no one
+         * else is.
+         */
+        private void leave(Participant participant) {
+            synchronized (this) {
+                if (!participants.remove(participant) || done || !participants.isEmpty()) {
+                    return;
+                }
+                done = true;
+                abandoned = true;
+            }
+            flights.remove(key, this);
+            handle.cancel();
+        }
+
+        private void deliver(Participant participant) {
+            // A participant which has already been cancelled ignores this.
+            if (failure != null) {
+                participant.future.failed(failure);
+            } else {
+                participant.future.completed(copy(response, body));
+            }
+        }
+
+        private List<Participant> finish(HttpResponse response, byte[] body, Exception failure) {
+            final List<Participant> toDeliver;
+            synchronized (this) {
+                if (done) {
+                    return null;
+                }
+                done = true;
+                this.response = response;
+                this.body = body;
+                this.failure = failure;
+                toDeliver = new ArrayList<>(participants);
+                participants.clear();
+            }
+            flights.remove(key, this);
+            return toDeliver;
+        }
+
+        private void finishAndDeliver(HttpResponse response, byte[] body, Exception failure) {
+            final List<Participant> toDeliver = finish(response, body, failure);
+            if (toDeliver != null) {
+                for (Participant participant : toDeliver) {
+                    deliver(participant);
+                }
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            final byte[] body;
+            try {
+                HttpEntity entity = response.getEntity();
+                body = entity == null ? null : EntityUtils.toByteArray(entity);
+            } catch (IOException e) {
+                failed(e);
+                return;
+            }
+            finishAndDeliver(response, body, null);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            finishAndDeliver(null, null, e);
+        }
+
+        @Override
+        public void cancelled() {
+            // Once abandoned, there is no one left to tell.
+            finishAndDeliver(null, null,
+                    new HttpClientException("The request this request was coalesced with was cancelled"));
+        }
+    }
+
+    /**
+     * A request waiting on a flight, whose future is what the request's
+     * handle cancels.
+     */
+    private static final class Participant implements FutureCallback<HttpResponse> {
+        private final Flight flight;
+        private final FutureCallback<HttpResponse> delegate;
+        private final BasicFuture<HttpResponse> future = new BasicFuture<>(this);
+
+        private Participant(Flight flight, FutureCallback<HttpResponse> delegate) {
+            this.flight = flight;
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            delegate.completed(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            delegate.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            flight.leave(this);
+            delegate.cancelled();
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.concurrent.Cancellable;
+import org.apache.http.concurrent.FutureCallback;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A handle on an in-flight request, returned by
+ * {@link JavaClient#requestWithClient}.
+ *
+ * Cancelling the handle aborts the underlying exchange: the connection it
+ * was using is discarded rather than held until the socket timeout fires, and
+ * the request's response callback is notified that it was cancelled.
+ *
+ * A handle may also be given a deadline, in which case the request is
+ * aborted in the same way if it has not finished by then.  The deadline
+ * fires on the {@link SharedTimer}, which only flags the request as expired;
+ * the abort, and with it the request's response callback, is handed off.
+ *
+ * Cancellations and expired deadlines are counted by the
+ * <code>&lt;namespace&gt;.requests.cancelled</code> and
+ * <code>.deadline-exceeded</code> meters, which are only registered once
+ * a request is first cancelled or expires.
+ */
+public class RequestHandle implements Cancellable {
+
+    private static final String CANCELLED = "cancelled";
+    private static final String DEADLINE_EXCEEDED = "deadline-exceeded";
+
+    private final MetricRegistry metricRegistry;
+    private final String metricNamespace;
+    private Future<?> future;
+    private boolean cancelled = false;
+    private boolean deadlineExceeded = false;
+    private ScheduledFuture<?> deadlineTask;
+    private AdmissionControl admissionControl;
+
+    public RequestHandle(MetricRegistry metricRegistry, String metricNamespace) {
+        this.metricRegistry = metricRegistry;
+        this.metricNamespace = metricNamespace;
+    }
+
+    void setFuture(Future<?> future) {
+        boolean cancelNow;
+        String meterName;
+        synchronized (this) {
+            this.future = future;
+            cancelNow = cancelled;
+            meterName = deadlineExceeded ? DEADLINE_EXCEEDED : CANCELLED;
+        }
+        if (cancelNow) {
+            abort(future, meterName);
+        }
+    }
+
+    /**
+     * Arranges for the request to be aborted if it has not finished within
+     * the given number of milliseconds.
+     *
+     * @param executor where the request is aborted once the deadline passes,
+     *                 see {@link SharedTimer#handOff}
+     */
+    synchronized void startDeadline(long deadlineMilliseconds, final Executor executor) {
+        deadlineTask = SharedTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                expire(executor);
+            }
+        }, deadlineMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    private void expire(Executor executor) {
+        final Future<?> toCancel;
+        synchronized (this) {
+            if (cancelled) {
+                return;
+            }
+            cancelled = true;
+            deadlineExceeded = true;
+            toCancel = future;
+        }
+        if (toCancel != null) {
+            SharedTimer.handOff(executor, new Runnable() {
+                @Override
+                public void run() {
+                    abort(toCancel, DEADLINE_EXCEEDED);
+                }
+            });
+        }
+    }
+
+    /**
+     * Counts the request as in flight until it finishes.
+     *
+     * @throws com.puppetlabs.http.client.RequestRejectedException if the
+     * client already has its maximum number of requests in flight
+     */
+    synchronized void admit(AdmissionControl admissionControl) {
+        admissionControl.admit();
+        this.admissionControl = admissionControl;
+    }
+
+    synchronized void finished() {
+        if (deadlineTask != null) {
+            deadlineTask.cancel(false);
+            deadlineTask = null;
+        }
+        if (admissionControl != null) {
+            admissionControl.finish();
+            admissionControl = null;
+        }
+    }
+
+    /**
+     * Wraps the callback given to the Apache client so that the deadline, if
+     * any, is cleared, and the request no longer counted as in flight, as
+     * soon as the exchange finishes.
+     */
+    <T> FutureCallback<T> track(final FutureCallback<T> delegate) {
+        return new FutureCallback<T>() {
+            @Override
+            public void completed(T result) {
+                finished();
+                delegate.completed(result);
+            }
+
+            @Override
+            public void failed(Exception ex) {
+                finished();
+                delegate.failed(ex);
+            }
+
+            @Override
+            public void cancelled() {
+                finished();
+                delegate.cancelled();
+            }
+        };
+    }
+
+    private boolean abort(Future<?> future, String meterName) {
+        // The Apache client's future reports false from cancel() even when it
+        // has aborted the exchange, since aborting completes the future as
+        // cancelled first; so check its state instead.
+        if (future.isDone()) {
+            return false;
+        }
+        future.cancel(true);
+        boolean aborted = future.isCancelled();
+        if (aborted && metricRegistry != null) {
+            metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, meterName)).mark();
+        }
+        return aborted;
+    }
+
+    /**
+     * Aborts the request, if it has not already completed.
+     *
+     * @return true if this call cancelled the request
+     */
+    @Override
+    public boolean cancel() {
+        Future<?> toCancel;
+        synchronized (this) {
+            if (cancelled) {
+                return false;
+            }
+            cancelled = true;
+            toCancel = future;
+        }
+        if (toCancel == null) {
+            // Cancelled before the request was handed to the client; it will
+            // be aborted as soon as it is.
+            return true;
+        }
+        return abort(toCancel, CANCELLED);
+    }
+
+    /**
+     * @return true if the request was cancelled before it finished.
+     */
+    public synchronized boolean isCancelled() {
+        return cancelled && !deadlineExceeded && (future == null || future.isCancelled());
+    }
+
+    /**
+     * @return true if the request was aborted because its deadline passed.
+     */
+    public synchronized boolean isDeadlineExceeded() {
+        return deadlineExceeded;
+    }
+
+    /**
+     * @return true if the request has finished, whether it completed, failed
+     * or was cancelled.
+     */
+    public synchronized boolean isDone() {
+        return future != null && future.isDone();
+    }
+}
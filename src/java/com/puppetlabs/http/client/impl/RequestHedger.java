@@ -0,0 +1,259 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.HedgePolicy;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.HttpResponse;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hedges each attempt at a request according to a {@link HedgePolicy}: if
+ * the attempt has no response once the hedge delay has passed, and the
+ * client's {@link HedgeBudget} allows it, the request is sent a second time.
+ * The first response to arrive is delivered, and the other exchange is
+ * cancelled, which discards its connection rather than waiting for it.
+ *
+ * The hedge is scheduled on the {@link SharedTimer}, and handed off from the
+ * timer thread to send.  The attempt only fails
+ * once every exchange it sent has failed, with the last failure.  Hedges
+ * sent are counted by the <code>&lt;namespace&gt;.requests.hedged</code>
+ * meter, and those whose response arrived first by the
+ * <code>.hedges-won</code> meter.
+ */
+public class RequestHedger implements RequestRetrier.Attempt {
+    public static final String HEDGED = "hedged";
+    public static final String HEDGES_WON = "hedges-won";
+
+    // The fewest timed requests from which the delay percentile is taken.
+    static final long MIN_PERCENTILE_SAMPLES = 20;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestHedger.class);
+
+    private final RequestRetrier.Attempt attempt;
+    private final long delayMilliseconds;
+    private final HedgeBudget budget;
+    private final String description;
+    private final Executor executor;
+    private final Meter hedged;
+    private final Meter hedgesWon;
+
+    /**
+     * @param attempt starts one exchange of the request; called again for
+     *                each hedge
+     * @param delayMilliseconds how long to wait for a response before
+     *                          hedging, see {@link #getDelayMilliseconds}
+     * @param executor where the hedge is sent once the delay has passed, see
+     *                 {@link SharedTimer#handOff}
+     */
+    public RequestHedger(RequestRetrier.Attempt attempt,
+                         long delayMilliseconds,
+                         HedgeBudget budget,
+                         String description,
+                         Executor executor,
+                         MetricRegistry metricRegistry,
+                         String metricNamespace) {
+        this.attempt = attempt;
+        this.delayMilliseconds = delayMilliseconds;
+        this.budget = budget;
+        this.description = description;
+        this.executor = executor;
+        if (metricRegistry != null) {
+            this.hedged = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, HEDGED));
+            this.hedgesWon = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, HEDGES_WON));
+        } else {
+            this.hedged = null;
+            this.hedgesWon = null;
+        }
+    }
+
+    /**
+     * @param timer the full response timer of the request's url and method,
+     *              or null if it has none
+     * @return the policy's delay percentile of the timer's durations, or its
+     * fixed delay if it has no percentile or the timer too few durations
+     */
+    public static long getDelayMilliseconds(HedgePolicy policy, Timer timer) {
+        final double percentile = policy.getDelayPercentile();
+        if (percentile > 0 && percentile <= 1 &&
+                timer != null && timer.getCount() >= MIN_PERCENTILE_SAMPLES) {
+            final double nanos = timer.getSnapshot().getValue(percentile);
+            return Math.max(1, TimeUnit.NANOSECONDS.toMillis((long) nanos));
+        }
+        return policy.getDelayMilliseconds();
+    }
+
+    /**
+     * Starts the first exchange, and schedules the hedge.
+     *
+     * @return a future which completes with the first response, and which
+     * cancels every exchange when cancelled
+     */
+    @Override
+    public Future<HttpResponse> start(FutureCallback<HttpResponse> callback) {
+        return new Exchanges(callback).start();
+    }
+
+    /**
+     * The exchanges sent for one attempt, whose result is completed by the
+     * first response, failed by the last failure, or cancelled, but only
+     * one of those.
+     */
+    private final class Exchanges implements Runnable, FutureCallback<HttpResponse> {
+        private final FutureCallback<HttpResponse> delegate;
+        private final BasicFuture<HttpResponse> result = new BasicFuture<>(this);
+        private final List<Future<HttpResponse>> futures = new ArrayList<>(2);
+        private int outstanding = 0;
+        private Exception lastFailure;
+        private volatile ScheduledFuture<?> task;
+
+        private Exchanges(FutureCallback<HttpResponse> delegate) {
+            this.delegate = delegate;
+        }
+
+        private Future<HttpResponse> start() {
+            synchronized (this) {
+                outstanding = 1;
+            }
+            // Any exception is left to the caller, as with an unhedged attempt.
+            add(attempt.start(new ExchangeCallback(false)));
+            if (!result.isDone()) {
+                task = SharedTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        SharedTimer.handOff(executor, Exchanges.this);
+                    }
+                }, delayMilliseconds, TimeUnit.MILLISECONDS);
+                if (result.isDone()) {
+                    task.cancel(false);
+                }
+            }
+            return result;
+        }
+
+        private void add(Future<HttpResponse> future) {
+            synchronized (this) {
+                futures.add(future);
+            }
+            // An exchange added after the result is in has already lost.
+            if (result.isDone()) {
+                future.cancel(true);
+            }
+        }
+
+        private void cancelExchanges() {
+            final ScheduledFuture<?> task = this.task;
+            if (task != null) {
+                task.cancel(false);
+            }
+            final List<Future<HttpResponse>> toCancel;
+            synchronized (this) {
+                toCancel = new ArrayList<>(futures);
+            }
+            for (Future<HttpResponse> future : toCancel) {
+                // The winner is already done, so this only stops the others.
+                future.cancel(true);
+            }
+        }
+
+        /**
+         * Sends the hedge, unless a response or the last failure is already
+         * in, or the budget is spent.
+         */
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (result.isDone() || outstanding == 0 || !budget.tryWithdraw()) {
+                    return;
+                }
+                outstanding++;
+            }
+            if (hedged != null) {
+                hedged.mark();
+            }
+            LOGGER.debug("Hedging {} after {} milliseconds without a response", description, delayMilliseconds);
+            try {
+                add(attempt.start(new ExchangeCallback(true)));
+            } catch (RuntimeException e) {
+                // Such as the circuit breaker having opened in the meantime;
+                // the first exchange carries on regardless.
+                LOGGER.debug("Could not hedge {}: {}", description, e.toString());
+                ended(null);
+            }
+        }
+
+        private void ended(Exception e) {
+            final Exception failure;
+            synchronized (this) {
+                if (e != null) {
+                    lastFailure = e;
+                }
+                if (--outstanding > 0) {
+                    return;
+                }
+                failure = lastFailure;
+            }
+            if (failure != null) {
+                result.failed(failure);
+            } else {
+                result.cancel();
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse response) {
+            cancelExchanges();
+            delegate.completed(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            cancelExchanges();
+            delegate.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            cancelExchanges();
+            delegate.cancelled();
+        }
+
+        private final class ExchangeCallback implements FutureCallback<HttpResponse> {
+            private final boolean hedge;
+
+            private ExchangeCallback(boolean hedge) {
+                this.hedge = hedge;
+            }
+
+            @Override
+            public void completed(HttpResponse response) {
+                if (result.completed(response) && hedge && hedgesWon != null) {
+                    hedgesWon.mark();
+                }
+            }
+
+            @Override
+            public void failed(Exception e) {
+                ended(e);
+            }
+
+            @Override
+            public void cancelled() {
+                ended(null);
+            }
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.RetryPolicy;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.Header;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.BasicFuture;
+import org.apache.http.concurrent.FutureCallback;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Makes a request, and makes it again according to a {@link RetryPolicy} if
+ * an attempt fails with an IOException or a retryable status, delivering the
+ * outcome of the last attempt to the request's callback.
+ *
+ * The waits between attempts are scheduled on the {@link SharedTimer}, so no
+ * thread is held while waiting, and each retry is then handed off from the
+ * timer thread to make.  Each attempt, and each wait, is set as the
+ * future of the request's handle, so cancelling the request or its deadline
+ * passing stops it whichever it is in.  Retries are counted by the
+ * <code>&lt;namespace&gt;.requests.retried</code> meter, and requests which
+ * still failed once out of retries by the <code>.retries-exhausted</code>
+ * meter.
+ */
+public class RequestRetrier {
+    public static final String RETRIED = "retried";
+    public static final String RETRIES_EXHAUSTED = "retries-exhausted";
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(RequestRetrier.class);
+
+    /**
+     * Starts one attempt at the request.
+     */
+    public interface Attempt {
+        Future<HttpResponse> start(FutureCallback<HttpResponse> callback);
+    }
+
+    private final RetryPolicy policy;
+    private final RequestHandle handle;
+    private final Attempt attempt;
+    private final FutureCallback<HttpResponse> delegate;
+    private final String description;
+    private final Executor executor;
+    private final Meter retried;
+    private final Meter retriesExhausted;
+    // Only touched by one attempt's callback at a time.
+    private volatile int retries = 0;
+
+    /**
+     * @param executor where retries are made once their wait is over, see
+     *                 {@link SharedTimer#handOff}
+     */
+    public RequestRetrier(RetryPolicy policy,
+                          RequestHandle handle,
+                          Attempt attempt,
+                          FutureCallback<HttpResponse> delegate,
+                          String description,
+                          Executor executor,
+                          MetricRegistry metricRegistry,
+                          String metricNamespace) {
+        this.policy = policy;
+        this.handle = handle;
+        this.attempt = attempt;
+        this.delegate = delegate;
+        this.description = description;
+        this.executor = executor;
+        if (metricRegistry != null) {
+            this.retried = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, RETRIED));
+            this.retriesExhausted = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_REQUESTS, RETRIES_EXHAUSTED));
+        } else {
+            this.retried = null;
+            this.retriesExhausted = null;
+        }
+    }
+
+    /**
+     * Makes the first attempt.  Any exception it throws is left to the
+     * caller, as when the request is made without retries.
+     */
+    public void start() {
+        handle.setFuture(attempt.start(attemptCallback));
+    }
+
+    private void retry() {
+        try {
+            handle.setFuture(attempt.start(attemptCallback));
+        } catch (RuntimeException e) {
+            // Such as the client having been closed while waiting.
+            delegate.failed(e);
+        }
+    }
+
+    private final FutureCallback<HttpResponse> attemptCallback = new FutureCallback<HttpResponse>() {
+        @Override
+        public void completed(HttpResponse response) {
+            final int statusCode = response.getStatusLine().getStatusCode();
+            if (policy.isRetryStatusCode(statusCode)) {
+                if (retries < policy.getMaxRetries()) {
+                    final long retryAfter = getRetryAfterMilliseconds(response);
+                    if (retryAfter <= policy.getMaxBackoffMilliseconds()) {
+                        scheduleRetry(Math.max(getBackoffMilliseconds(), retryAfter), "status " + statusCode);
+                        return;
+                    }
+                } else {
+                    markExhausted();
+                }
+            }
+            delegate.completed(response);
+        }
+
+        @Override
+        public void failed(Exception e) {
+            if (e instanceof IOException) {
+                if (retries < policy.getMaxRetries()) {
+                    scheduleRetry(getBackoffMilliseconds(), e.toString());
+                    return;
+                }
+                markExhausted();
+            }
+            delegate.failed(e);
+        }
+
+        @Override
+        public void cancelled() {
+            delegate.cancelled();
+        }
+    };
+
+    private void markExhausted() {
+        if (retriesExhausted != null) {
+            retriesExhausted.mark();
+        }
+    }
+
+    /**
+     * @return a wait chosen at random up to the initial backoff, doubled
+     * for each retry already made and capped at the maximum backoff
+     */
+    private long getBackoffMilliseconds() {
+        final long maxBackoff = policy.getMaxBackoffMilliseconds();
+        long ceiling = policy.getInitialBackoffMilliseconds();
+        for (int i = 0; i < retries && ceiling < maxBackoff; i++) {
+            ceiling *= 2;
+        }
+        ceiling = Math.min(ceiling, maxBackoff);
+        if (ceiling <= 0) {
+            return 0;
+        }
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+
+    /**
+     * @return the wait asked for by the response's Retry-After header, given
+     * either in seconds or as an HTTP date, or -1 if it has none
+     */
+    static long getRetryAfterMilliseconds(HttpResponse response) {
+        final Header header = response.getFirstHeader("Retry-After");
+        if (header == null || header.getValue() == null) {
+            return -1;
+        }
+        final String value = header.getValue().trim();
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value)));
+        } catch (NumberFormatException e) {
+            final Date date = DateUtils.parseDate(value);
+            if (date != null) {
+                return Math.max(0, date.getTime() - System.currentTimeMillis());
+            }
+            LOGGER.debug("Ignoring unparseable Retry-After header '{}'", value);
+            return -1;
+        }
+    }
+
+    private void scheduleRetry(long delayMilliseconds, String reason) {
+        retries++;
+        if (retried != null) {
+            retried.mark();
+        }
+        LOGGER.debug("Retrying {} in {} milliseconds after {} (retry {} of {})", description,
+                delayMilliseconds, reason, retries, policy.getMaxRetries());
+        final Backoff backoff = new Backoff();
+        // Set before scheduling, so that a retry made straight away can't be
+        // overwritten by the wait before it.
+        handle.setFuture(backoff.waiting);
+        backoff.task = SharedTimer.schedule(backoff, delayMilliseconds, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * A wait before the next attempt, which is either completed by the timer
+     * or cancelled along with the request, but not both.
+     */
+    private final class Backoff implements Runnable, FutureCallback<HttpResponse> {
+        private final BasicFuture<HttpResponse> waiting = new BasicFuture<>(this);
+        private volatile ScheduledFuture<?> task;
+
+        @Override
+        public void run() {
+            if (waiting.completed(null)) {
+                SharedTimer.handOff(executor, new Runnable() {
+                    @Override
+                    public void run() {
+                        retry();
+                    }
+                });
+            }
+        }
+
+        @Override
+        public void completed(HttpResponse result) {
+            // the next attempt is made by run()
+        }
+
+        @Override
+        public void failed(Exception e) {
+            // never failed
+        }
+
+        @Override
+        public void cancelled() {
+            final ScheduledFuture<?> task = this.task;
+            if (task != null) {
+                task.cancel(false);
+            }
+            delegate.cancelled();
+        }
+    }
+}
@@ -0,0 +1,589 @@
+package com.puppetlabs.http.client.impl;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.StatusLine;
+import org.apache.http.client.utils.DateUtils;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.message.BasicHeader;
+import org.apache.http.message.BasicHttpResponse;
+import org.apache.http.message.HeaderGroup;
+import org.apache.http.util.EntityUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A private, in-memory cache of a client's responses to GET requests,
+ * following RFC 7234, and bounded by the bytes it holds rather than by its
+ * number of entries.
+ *
+ * A response is stored if its status is cacheable by default, it isn't
+ * marked <code>no-store</code>, and it either says how long it stays fresh,
+ * with <code>Cache-Control: max-age</code> or <code>Expires</code>, or can be
+ * revalidated, having an <code>ETag</code> or <code>Last-Modified</code>
+ * header.  While a stored response is fresh, requests for its URI are
+ * answered from the cache without being sent.  Once it is stale, or if it
+ * was marked <code>no-cache</code>, the request is sent with
+ * <code>If-None-Match</code> and <code>If-Modified-Since</code> headers, and
+ * a 304 response is answered with the stored body and the updated headers;
+ * its retries and hedges are sent with the same headers.
+ * The one variant of each URI last stored is kept, and is only used for
+ * requests matching it in the headers named by its <code>Vary</code>
+ * header.  A successful POST, PUT, DELETE or PATCH request removes its URI's
+ * response.
+ *
+ * Requests which carry conditional or <code>Range</code> headers of their
+ * own, or <code>Cache-Control: no-store</code>, bypass the cache, and
+ * <code>Cache-Control: no-cache</code> or <code>max-age=0</code> on a request
+ * has its stored response revalidated.  Once the cache holds more than its
+ * maximum bytes, its least recently used responses are removed.
+ *
+ * Requests answered from the cache are counted by the
+ * <code>&lt;namespace&gt;.response-cache.hits</code> meter, those answered
+ * with a stored body after a 304 by the <code>.revalidated</code> meter, and
+ * all others by the <code>.misses</code> meter.  The
+ * <code>.bytes</code> gauge reports the size of the stored responses.
+ */
+public class ResponseCache {
+    public static final String HITS = "hits";
+    public static final String MISSES = "misses";
+    public static final String REVALIDATED = "revalidated";
+    public static final String BYTES = "bytes";
+
+    private static final Set<Integer> CACHEABLE_STATUS_CODES = new HashSet<>(Arrays.asList(
+            200, 203, 204, 300, 301, 404, 405, 410, 414, 501));
+
+    // Headers which a 304 response must not replace on the stored response.
+    private static final Set<String> UNUPDATABLE_HEADERS = new HashSet<>(Arrays.asList(
+            "content-length", "content-encoding", "transfer-encoding", "content-range"));
+
+    // The headers with which a request is made conditional on its stored
+    // response.
+    private static final String[] CONDITIONAL_HEADERS = {"If-None-Match", "If-Modified-Since"};
+
+    private static final String[] BYPASSING_REQUEST_HEADERS = {
+            "If-None-Match", "If-Modified-Since", "If-Match", "If-Unmodified-Since", "If-Range", "Range"};
+
+    private final long maxBytes;
+    // Iterated least recently used first.
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long bytes = 0;
+
+    private final MetricRegistry metricRegistry;
+    private final Meter hits;
+    private final Meter misses;
+    private final Meter revalidated;
+    private final Map<String, Metric> registered = new HashMap<>();
+
+    public ResponseCache(long maxBytes, MetricRegistry metricRegistry, String metricNamespace) {
+        this.maxBytes = maxBytes;
+        this.metricRegistry = metricRegistry;
+        if (metricRegistry != null) {
+            this.hits = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_RESPONSE_CACHE, HITS));
+            this.misses = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_RESPONSE_CACHE, MISSES));
+            this.revalidated = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_RESPONSE_CACHE, REVALIDATED));
+            register(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_RESPONSE_CACHE, BYTES),
+                    new Gauge<Long>() {
+                        @Override
+                        public Long getValue() {
+                            return getBytes();
+                        }
+                    });
+        } else {
+            this.hits = null;
+            this.misses = null;
+            this.revalidated = null;
+        }
+    }
+
+    private void register(String name, Metric metric) {
+        try {
+            metricRegistry.register(name, metric);
+            registered.put(name, metric);
+        } catch (IllegalArgumentException e) {
+            // Already registered by another client sharing this registry and
+            // namespace, whose gauge is left in place.
+        }
+    }
+
+    /**
+     * @return the size, in bytes, of the responses in the cache
+     */
+    public synchronized long getBytes() {
+        return bytes;
+    }
+
+    private static void mark(Meter meter) {
+        if (meter != null) {
+            meter.mark();
+        }
+    }
+
+    private static String key(HttpRequest request) {
+        return request.getRequestLine().getUri();
+    }
+
+    private static boolean isGet(HttpRequest request) {
+        return "GET".equals(request.getRequestLine().getMethod());
+    }
+
+    private static boolean isUnsafe(HttpRequest request) {
+        switch (request.getRequestLine().getMethod()) {
+            case "POST":
+            case "PUT":
+            case "DELETE":
+            case "PATCH":
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean bypasses(HttpRequest request) {
+        for (String name : BYPASSING_REQUEST_HEADERS) {
+            if (request.containsHeader(name)) {
+                return true;
+            }
+        }
+        return getCacheControl(request.getHeaders("Cache-Control")).containsKey("no-store");
+    }
+
+    /**
+     * @return the Cache-Control directives in the headers, mapped to their
+     * values, or to null for those without one
+     */
+    private static Map<String, String> getCacheControl(Header[] headers) {
+        Map<String, String> directives = new HashMap<>();
+        for (Header header : headers) {
+            for (HeaderElement element : header.getElements()) {
+                directives.put(element.getName().toLowerCase(), element.getValue());
+            }
+        }
+        return directives;
+    }
+
+    /**
+     * @return the directive's value in seconds, in milliseconds, or -1 if it
+     * is absent or invalid
+     */
+    private static long getSeconds(Map<String, String> directives, String directive) {
+        String value = directives.get(directive);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(value.trim())));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static long getDate(HeaderGroup response, String name) {
+        Header header = response.getFirstHeader(name);
+        if (header == null) {
+            return -1;
+        }
+        Date date = DateUtils.parseDate(header.getValue());
+        return date == null ? -1 : date.getTime();
+    }
+
+    /**
+     * @return the values, in the request, of the headers named by the
+     * response's Vary header, or null if the response varies on everything
+     */
+    private static Map<String, String> getVaryValues(HttpRequest request, HttpResponse response) {
+        Map<String, String> values = new HashMap<>();
+        for (Header vary : response.getHeaders("Vary")) {
+            for (HeaderElement element : vary.getElements()) {
+                String name = element.getName().trim().toLowerCase();
+                if (name.equals("*")) {
+                    return null;
+                }
+                values.put(name, getHeaderValues(request, name));
+            }
+        }
+        return values;
+    }
+
+    private static String getHeaderValues(HttpRequest request, String name) {
+        Header[] headers = request.getHeaders(name);
+        if (headers.length == 0) {
+            return null;
+        }
+        StringBuilder values = new StringBuilder();
+        for (Header header : headers) {
+            if (values.length() > 0) {
+                values.append(", ");
+            }
+            values.append(header.getValue());
+        }
+        return values.toString();
+    }
+
+    private synchronized Entry get(HttpRequest request) {
+        Entry entry = entries.get(key(request));
+        if (entry == null) {
+            return null;
+        }
+        for (Map.Entry<String, String> vary : entry.varyValues.entrySet()) {
+            String value = getHeaderValues(request, vary.getKey());
+            if (value == null ? vary.getValue() != null : !value.equals(vary.getValue())) {
+                return null;
+            }
+        }
+        return entry;
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        remove(key);
+        if (entry.size > maxBytes) {
+            return;
+        }
+        entries.put(key, entry);
+        bytes += entry.size;
+        Iterator<Entry> eldest = entries.values().iterator();
+        while (bytes > maxBytes && eldest.hasNext()) {
+            bytes -= eldest.next().size;
+            eldest.remove();
+        }
+    }
+
+    private synchronized void remove(String key) {
+        Entry removed = entries.remove(key);
+        if (removed != null) {
+            bytes -= removed.size;
+        }
+    }
+
+    /**
+     * @return a copy of the stored response to the request, if there is a
+     * fresh one it may be answered with, or null if it must be sent
+     */
+    public HttpResponse getFresh(HttpRequest request) {
+        if (!isGet(request) || bypasses(request)) {
+            return null;
+        }
+        Entry entry = get(request);
+        if (entry == null || !entry.isFresh(System.currentTimeMillis(), request)) {
+            return null;
+        }
+        mark(hits);
+        return entry.toResponse(System.currentTimeMillis());
+    }
+
+    /**
+     * Makes the request conditional on a stale stored response, if it has
+     * one which can be revalidated, and wraps its callback to store the
+     * response, answer a 304 with the stored response, or, for requests
+     * which change the resource, remove its stored response.
+     *
+     * @param buffered whether the response will be buffered, and so can be
+     *                 stored; unbuffered responses are passed through
+     * @return the callback with which to make the request
+     */
+    public FutureCallback<HttpResponse> intercept(final HttpRequest request,
+                                                  boolean buffered,
+                                                  final FutureCallback<HttpResponse> callback) {
+        if (isUnsafe(request)) {
+            return new FutureCallback<HttpResponse>() {
+                @Override
+                public void completed(HttpResponse response) {
+                    if (response.getStatusLine().getStatusCode() < HttpStatus.SC_BAD_REQUEST) {
+                        remove(key(request));
+                    }
+                    callback.completed(response);
+                }
+
+                @Override
+                public void failed(Exception e) {
+                    callback.failed(e);
+                }
+
+                @Override
+                public void cancelled() {
+                    callback.cancelled();
+                }
+            };
+        }
+        if (!buffered || !isGet(request) || bypasses(request)) {
+            return callback;
+        }
+        final Entry entry = get(request);
+        if (entry != null) {
+            if (entry.etag != null) {
+                request.setHeader("If-None-Match", entry.etag);
+            }
+            if (entry.lastModified != null) {
+                request.setHeader("If-Modified-Since", entry.lastModified);
+            }
+        }
+        final long requestTime = System.currentTimeMillis();
+        return new FutureCallback<HttpResponse>() {
+            @Override
+            public void completed(HttpResponse response) {
+                final long responseTime = System.currentTimeMillis();
+                if (entry != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_NOT_MODIFIED) {
+                    Entry updated = entry.update(response, requestTime, responseTime);
+                    if (updated.storable) {
+                        put(key(request), updated);
+                    } else {
+                        remove(key(request));
+                    }
+                    mark(revalidated);
+                    callback.completed(updated.toResponse(responseTime));
+                    return;
+                }
+                mark(misses);
+                HttpResponse delivered = response;
+                if (isStorable(response)) {
+                    final Map<String, String> varyValues = getVaryValues(request, response);
+                    if (varyValues != null) {
+                        try {
+                            HttpEntity entity = response.getEntity();
+                            byte[] body = entity == null ? null : EntityUtils.toByteArray(entity);
+                            Entry stored = new Entry(key(request), response.getStatusLine(),
+                                    response.getAllHeaders(), body, varyValues, requestTime, responseTime);
+                            put(key(request), stored);
+                            // The response's own body has been read, so
+                            // deliver it from what was stored.
+                            delivered = stored.copy(response.getAllHeaders());
+                        } catch (IOException e) {
+                            callback.failed(e);
+                            return;
+                        }
+                    }
+                } else if (entry != null && response.getStatusLine().getStatusCode() < HttpStatus.SC_INTERNAL_SERVER_ERROR) {
+                    // The resource has changed into something which can't
+                    // be stored.
+                    remove(key(request));
+                }
+                callback.completed(delivered);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                callback.failed(e);
+            }
+
+            @Override
+            public void cancelled() {
+                callback.cancelled();
+            }
+        };
+    }
+
+    /**
+     * Copies the conditions on which {@link #intercept} made a request onto
+     * another exchange of it, such as a retry or hedge, which was built
+     * afresh from the request's options and so lacks them.  Without them, a
+     * retried revalidation would download the whole response again.
+     */
+    public static void copyConditions(HttpRequest from, HttpRequest to) {
+        for (String name : CONDITIONAL_HEADERS) {
+            Header header = from.getFirstHeader(name);
+            if (header != null) {
+                to.setHeader(header);
+            }
+        }
+    }
+
+    private static boolean isStorable(HttpResponse response) {
+        if (!CACHEABLE_STATUS_CODES.contains(response.getStatusLine().getStatusCode())) {
+            return false;
+        }
+        return isStorable(response.getAllHeaders());
+    }
+
+    private static boolean isStorable(Header[] headers) {
+        HeaderGroup response = new HeaderGroup();
+        response.setHeaders(headers);
+        Map<String, String> cacheControl = getCacheControl(response.getHeaders("Cache-Control"));
+        if (cacheControl.containsKey("no-store")) {
+            return false;
+        }
+        return cacheControl.containsKey("max-age") ||
+                response.containsHeader("Expires") ||
+                response.containsHeader("ETag") ||
+                response.containsHeader("Last-Modified");
+    }
+
+    public synchronized void close() {
+        entries.clear();
+        bytes = 0;
+        for (Map.Entry<String, Metric> entry : registered.entrySet()) {
+            // Only remove the gauge if it is still ours.
+            if (metricRegistry.getMetrics().get(entry.getKey()) == entry.getValue()) {
+                metricRegistry.remove(entry.getKey());
+            }
+        }
+        registered.clear();
+    }
+
+    /**
+     * A stored response, and what is needed to tell how long it stays
+     * fresh.
+     */
+    private static final class Entry {
+        private final String key;
+        private final StatusLine statusLine;
+        private final Header[] headers;
+        private final byte[] body;
+        private final Map<String, String> varyValues;
+        private final long responseTime;
+        private final long initialAge;
+        private final long freshnessLifetime;
+        private final String etag;
+        private final String lastModified;
+        private final boolean storable;
+        private final long size;
+
+        private Entry(String key, StatusLine statusLine, Header[] headers, byte[] body,
+                      Map<String, String> varyValues, long requestTime, long responseTime) {
+            this.key = key;
+            this.statusLine = statusLine;
+            this.headers = headers;
+            this.body = body;
+            this.varyValues = varyValues;
+            this.responseTime = responseTime;
+
+            HeaderGroup response = new HeaderGroup();
+            response.setHeaders(headers);
+            Map<String, String> cacheControl = getCacheControl(response.getHeaders("Cache-Control"));
+            long date = getDate(response, "Date");
+            long ageValue = 0;
+            Header age = response.getFirstHeader("Age");
+            if (age != null) {
+                try {
+                    ageValue = TimeUnit.SECONDS.toMillis(Math.max(0, Long.parseLong(age.getValue().trim())));
+                } catch (NumberFormatException e) {
+                    // treated as no Age header
+                }
+            }
+            // RFC 7234 section 4.2.3.
+            long apparentAge = date < 0 ? 0 : Math.max(0, responseTime - date);
+            long correctedAgeValue = ageValue + (responseTime - requestTime);
+            this.initialAge = Math.max(apparentAge, correctedAgeValue);
+
+            long lifetime = 0;
+            if (!cacheControl.containsKey("no-cache")) {
+                long maxAge = getSeconds(cacheControl, "max-age");
+                if (maxAge >= 0) {
+                    lifetime = maxAge;
+                } else if (response.containsHeader("Expires")) {
+                    // An invalid Expires means already expired.
+                    long expires = getDate(response, "Expires");
+                    lifetime = expires < 0 ? 0 : Math.max(0, expires - (date < 0 ? responseTime : date));
+                }
+            }
+            this.freshnessLifetime = lifetime;
+
+            Header etag = response.getFirstHeader("ETag");
+            this.etag = etag == null ? null : etag.getValue();
+            Header lastModified = response.getFirstHeader("Last-Modified");
+            this.lastModified = lastModified == null ? null : lastModified.getValue();
+            this.storable = isStorable(headers);
+
+            long size = key.length() + (body == null ? 0 : body.length);
+            for (Header header : headers) {
+                size += header.getName().length() + header.getValue().length();
+            }
+            this.size = size;
+        }
+
+        private long getCurrentAge(long now) {
+            return initialAge + Math.max(0, now - responseTime);
+        }
+
+        private boolean isFresh(long now, HttpRequest request) {
+            Map<String, String> requestCacheControl = getCacheControl(request.getHeaders("Cache-Control"));
+            if (requestCacheControl.containsKey("no-cache")) {
+                return false;
+            }
+            Header pragma = request.getFirstHeader("Pragma");
+            if (pragma != null && pragma.getValue().toLowerCase().contains("no-cache") &&
+                    !request.containsHeader("Cache-Control")) {
+                return false;
+            }
+            long currentAge = getCurrentAge(now);
+            long maxAge = getSeconds(requestCacheControl, "max-age");
+            if (maxAge >= 0 && currentAge > maxAge) {
+                return false;
+            }
+            return freshnessLifetime > currentAge;
+        }
+
+        /**
+         * @return the entry with its headers updated from a 304 response,
+         * as received now
+         */
+        private Entry update(HttpResponse notModified, long requestTime, long responseTime) {
+            Set<String> replaced = new HashSet<>();
+            for (Header header : notModified.getAllHeaders()) {
+                String name = header.getName().toLowerCase();
+                if (!UNUPDATABLE_HEADERS.contains(name)) {
+                    replaced.add(name);
+                }
+            }
+            List<Header> updated = new ArrayList<>();
+            for (Header header : headers) {
+                if (!replaced.contains(header.getName().toLowerCase())) {
+                    updated.add(header);
+                }
+            }
+            for (Header header : notModified.getAllHeaders()) {
+                if (replaced.contains(header.getName().toLowerCase())) {
+                    updated.add(header);
+                }
+            }
+            return new Entry(key, statusLine, updated.toArray(new Header[0]), body, varyValues,
+                    requestTime, responseTime);
+        }
+
+        private HttpResponse copy(Header[] responseHeaders) {
+            BasicHttpResponse copy = new BasicHttpResponse(statusLine);
+            copy.setHeaders(responseHeaders);
+            if (body != null) {
+                ByteArrayEntity entity = new ByteArrayEntity(body);
+                entity.setContentType(copy.getFirstHeader("Content-Type"));
+                entity.setContentEncoding(copy.getFirstHeader("Content-Encoding"));
+                copy.setEntity(entity);
+            }
+            return copy;
+        }
+
+        /**
+         * @return a copy of the stored response, with its Age header set to
+         * its current age
+         */
+        private HttpResponse toResponse(long now) {
+            HttpResponse response = copy(headers);
+            response.setHeader(new BasicHeader("Age",
+                    Long.toString(TimeUnit.MILLISECONDS.toSeconds(getCurrentAge(now)))));
+            return response;
+        }
+    }
+}
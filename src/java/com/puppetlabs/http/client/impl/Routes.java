@@ -0,0 +1,58 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.HttpClientException;
+import org.apache.http.HttpHost;
+import org.apache.http.client.utils.URIUtils;
+import org.apache.http.conn.UnsupportedSchemeException;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.conn.DefaultSchemePortResolver;
+
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Converts the hosts named in client options into the routes the connection
+ * pool keeps their connections under.
+ */
+public class Routes {
+    /**
+     * @return the route requests to the given host, such as
+     * <code>https://localhost:8140</code>, are made over.  The port defaults
+     * to the scheme's.
+     */
+    public static HttpRoute toRoute(String host) {
+        try {
+            HttpHost target = URIUtils.extractHost(new URI(host));
+            if (target == null) {
+                throw new HttpClientException("Unable to find the host in " + host);
+            }
+            if (target.getPort() <= 0) {
+                target = new HttpHost(target.getHostName(),
+                        DefaultSchemePortResolver.INSTANCE.resolve(target),
+                        target.getSchemeName());
+            }
+            return new HttpRoute(target, null, "https".equalsIgnoreCase(target.getSchemeName()));
+        } catch (URISyntaxException | UnsupportedSchemeException e) {
+            throw new HttpClientException("Invalid host " + host, e);
+        }
+    }
+
+    /**
+     * @return the routes requests to the given host are made over.  A host
+     * given with a scheme, such as <code>https://puppetdb:8081</code>, has
+     * one route, while one given as <code>host[:port]</code> has two: one
+     * for http and one for https.
+     */
+    public static List<HttpRoute> toRoutes(String host) {
+        final List<HttpRoute> routes = new ArrayList<>(2);
+        if (host.contains("://")) {
+            routes.add(toRoute(host));
+        } else {
+            routes.add(toRoute("http://" + host));
+            routes.add(toRoute("https://" + host));
+        }
+        return routes;
+    }
+}
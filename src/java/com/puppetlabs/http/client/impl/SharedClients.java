@@ -0,0 +1,324 @@
+package com.puppetlabs.http.client.impl;
+
+import com.puppetlabs.http.client.ClientOptions;
+import org.apache.http.impl.nio.client.CloseableHttpAsyncClient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * A bounded cache of long-lived clients for the one-shot request helpers,
+ * such as <code>Sync.get</code> and the Clojure <code>sync/request</code>, so
+ * that repeated requests made with the same options reuse one client's I/O
+ * threads, SSL context and pooled connections rather than building them
+ * afresh each time.
+ *
+ * Clients are keyed by the options those helpers accept: the SSL settings,
+ * redirect settings, timeouts and connection limits.  The key includes the
+ * modification time and size of any PEM files named by the SSL settings, so
+ * that once a certificate, key or CA certificate is replaced on disk, the
+ * next request creates a client which reads it afresh; the client for the
+ * old files is then left to go idle.  A client is never
+ * closed while it is leased; one evicted to make room for another is closed
+ * when its last lease is released, and one left unleased for the idle timeout
+ * is closed by a sweep on the {@link SharedTimer}.  Their threads are daemon
+ * threads, so cached clients never keep the JVM running.
+ */
+public class SharedClients {
+    public static final int DEFAULT_MAX_CLIENTS = 8;
+    public static final long DEFAULT_IDLE_TIMEOUT_MILLISECONDS = 60000;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(SharedClients.class);
+
+    private static final ThreadFactory THREAD_FACTORY = new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "shared-http-client-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    };
+
+    private static final LongSupplier SYSTEM_CLOCK = new LongSupplier() {
+        @Override
+        public long getAsLong() {
+            return System.nanoTime();
+        }
+    };
+
+    private static final SharedClients INSTANCE =
+            new SharedClients(DEFAULT_MAX_CLIENTS, DEFAULT_IDLE_TIMEOUT_MILLISECONDS);
+
+    private final int maxClients;
+    private final long idleTimeoutMilliseconds;
+    private final LongSupplier nanoClock;
+    // In access order, so that eviction takes the least recently used client.
+    private final LinkedHashMap<Key, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean sweepScheduled = false;
+
+    public SharedClients(int maxClients, long idleTimeoutMilliseconds) {
+        this(maxClients, idleTimeoutMilliseconds, SYSTEM_CLOCK);
+    }
+
+    /**
+     * @param nanoClock the time, in nanoseconds, from which how long each
+     *                  client has been idle is measured
+     */
+    public SharedClients(int maxClients, long idleTimeoutMilliseconds, LongSupplier nanoClock) {
+        if (maxClients < 1) {
+            throw new IllegalArgumentException("maxClients must be at least 1");
+        }
+        this.maxClients = maxClients;
+        this.idleTimeoutMilliseconds = idleTimeoutMilliseconds;
+        this.nanoClock = nanoClock;
+    }
+
+    /**
+     * @return the cache used by the one-shot request helpers
+     */
+    public static SharedClients getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Leases the cached client for the given options, creating it if need be.
+     * The lease must be closed once the request made with it has completed.
+     */
+    public Lease acquire(ClientOptions clientOptions) {
+        final Key key = new Key(clientOptions);
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null) {
+                entry.leases++;
+                return new Lease(entry);
+            }
+        }
+
+        // Creating a client may mean reading PEM files, so it's done without
+        // holding the lock.
+        CloseableHttpAsyncClient client = JavaClient.createClient(clientOptions, THREAD_FACTORY);
+        final List<Entry> evicted = new ArrayList<>();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry == null) {
+                entry = new Entry(client, nanoClock.getAsLong());
+                entries.put(key, entry);
+                client = null;
+                Iterator<Entry> eldest = entries.values().iterator();
+                while (entries.size() > maxClients) {
+                    Entry evictedEntry = eldest.next();
+                    eldest.remove();
+                    evictedEntry.retired = true;
+                    if (evictedEntry.leases == 0) {
+                        evicted.add(evictedEntry);
+                    }
+                }
+                scheduleSweep();
+            }
+            entry.leases++;
+        }
+        if (client != null) {
+            // Another caller cached a client for these options first.
+            close(client);
+        }
+        for (Entry evictedEntry : evicted) {
+            close(evictedEntry.client);
+        }
+        return new Lease(entry);
+    }
+
+    /**
+     * @return the number of clients currently cached
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    private void release(Entry entry) {
+        final boolean closeClient;
+        synchronized (this) {
+            entry.leases--;
+            entry.lastReleased = nanoClock.getAsLong();
+            closeClient = entry.retired && entry.leases == 0;
+        }
+        if (closeClient) {
+            close(entry.client);
+        }
+    }
+
+    private synchronized void scheduleSweep() {
+        if (!sweepScheduled) {
+            sweepScheduled = true;
+            SharedTimer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    sweep();
+                }
+            }, idleTimeoutMilliseconds, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @return the clients which have gone unleased for the idle timeout, which
+     * are no longer cached and must be closed by the caller
+     */
+    private synchronized List<CloseableHttpAsyncClient> removeIdleClients() {
+        final List<CloseableHttpAsyncClient> expired = new ArrayList<>();
+        final long idleTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMilliseconds);
+        final long now = nanoClock.getAsLong();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.leases == 0 && now - entry.lastReleased >= idleTimeoutNanos) {
+                iterator.remove();
+                expired.add(entry.client);
+            }
+        }
+        return expired;
+    }
+
+    /**
+     * Closes the clients which have gone unleased for the idle timeout, as
+     * the periodic sweep does, but straight away.
+     *
+     * @return the number of clients closed
+     */
+    public int closeIdleClients() {
+        final List<CloseableHttpAsyncClient> expired = removeIdleClients();
+        for (CloseableHttpAsyncClient client : expired) {
+            close(client);
+        }
+        return expired.size();
+    }
+
+    private void sweep() {
+        final List<CloseableHttpAsyncClient> expired = removeIdleClients();
+        synchronized (this) {
+            sweepScheduled = false;
+            if (!entries.isEmpty()) {
+                scheduleSweep();
+            }
+        }
+        if (!expired.isEmpty()) {
+            // Closing a client waits for its I/O threads to stop, which
+            // mustn't hold up the timer thread.
+            THREAD_FACTORY.newThread(new Runnable() {
+                @Override
+                public void run() {
+                    for (CloseableHttpAsyncClient client : expired) {
+                        close(client);
+                    }
+                }
+            }).start();
+        }
+    }
+
+    private static void close(CloseableHttpAsyncClient client) {
+        try {
+            client.close();
+        } catch (IOException e) {
+            LOGGER.error("Error closing client", e);
+        }
+    }
+
+    /**
+     * A lease on a cached client, which is released by closing it.
+     */
+    public class Lease implements Closeable {
+        private final Entry entry;
+        private final AtomicBoolean released = new AtomicBoolean(false);
+
+        private Lease(Entry entry) {
+            this.entry = entry;
+        }
+
+        public CloseableHttpAsyncClient getClient() {
+            return entry.client;
+        }
+
+        @Override
+        public void close() {
+            if (released.compareAndSet(false, true)) {
+                release(entry);
+            }
+        }
+    }
+
+    private static final class Entry {
+        private final CloseableHttpAsyncClient client;
+        private int leases = 0;
+        private long lastReleased;
+        private boolean retired = false;
+
+        private Entry(CloseableHttpAsyncClient client, long created) {
+            this.client = client;
+            this.lastReleased = created;
+        }
+    }
+
+    private static final class Key {
+        private final List<Object> options;
+
+        private Key(ClientOptions clientOptions) {
+            this.options = Arrays.asList(
+                    clientOptions.getSslContext(),
+                    clientOptions.getSslCert(),
+                    stamp(clientOptions.getSslCert()),
+                    clientOptions.getSslKey(),
+                    stamp(clientOptions.getSslKey()),
+                    clientOptions.getSslCaCert(),
+                    stamp(clientOptions.getSslCaCert()),
+                    asList(clientOptions.getSslProtocols()),
+                    asList(clientOptions.getSslCipherSuites()),
+                    clientOptions.getInsecure(),
+                    clientOptions.getForceRedirects(),
+                    clientOptions.getFollowRedirects(),
+                    clientOptions.getConnectTimeoutMilliseconds(),
+                    clientOptions.getSocketTimeoutMilliseconds(),
+                    clientOptions.getMaxConnectionsPerRoute(),
+                    clientOptions.getMaxConnectionsTotal());
+        }
+
+        /**
+         * @return the modification time and size of the file at the path,
+         * which change when it is replaced, or null for no path
+         */
+        private static List<Long> stamp(String path) {
+            if (path == null) {
+                return null;
+            }
+            final File file = new File(path);
+            return Arrays.asList(file.lastModified(), file.length());
+        }
+
+        private static List<String> asList(String[] values) {
+            return values == null ? null : Arrays.asList(values);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && options.equals(((Key) o).options);
+        }
+
+        @Override
+        public int hashCode() {
+            return options.hashCode();
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package com.puppetlabs.http.client.impl;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A single daemon thread, shared by all clients, on which short
+ * housekeeping tasks such as request deadlines are scheduled.
+ *
+ * Tasks run on the timer thread itself, so they must be quick and must never
+ * block; anything more substantial should be handed off elsewhere with
+ * {@link #handOff}.  That includes anything which may complete a request,
+ * since that runs its response callback, which could do anything.
+ * Cancelled tasks are removed from the queue straight away, so scheduling a
+ * deadline for every request and cancelling it when the request completes
+ * costs no more than the two queue operations.
+ */
+public class SharedTimer {
+    private static final ScheduledThreadPoolExecutor TIMER;
+
+    // Threads are only started for work handed off from the timer while the
+    // others are busy, and stop once idle for a minute.
+    private static final ExecutorService WORKERS = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, "http-client-timer-worker-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    static {
+        TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "http-client-timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        TIMER.setRemoveOnCancelPolicy(true);
+    }
+
+    public static ScheduledFuture<?> schedule(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.schedule(task, delay, unit);
+    }
+
+    /**
+     * Runs a task started by a timer task off the timer thread: on the
+     * given executor, such as a client's callback executor, or if there is
+     * none or it rejects the task, on a thread of the timer's own.
+     */
+    public static void handOff(Executor executor, Runnable task) {
+        if (executor != null) {
+            try {
+                executor.execute(task);
+                return;
+            } catch (RejectedExecutionException e) {
+                // Such as the executor having been shut down; the task must
+                // still run, or the request it belongs to would never finish.
+            }
+        }
+        WORKERS.execute(task);
+    }
+
+    public static ScheduledFuture<?> scheduleWithFixedDelay(Runnable task, long delay, TimeUnit unit) {
+        return TIMER.scheduleWithFixedDelay(task, delay, delay, unit);
+    }
+}
@@ -3,21 +3,26 @@ package com.puppetlabs.http.client.impl;
 import org.apache.http.HttpEntity;
 import org.apache.http.HttpResponse;
 import org.apache.http.entity.BasicHttpEntity;
+import org.apache.http.entity.ContentType;
+import org.apache.http.nio.ContentDecoder;
 import org.apache.http.nio.IOControl;
-import org.apache.http.nio.client.methods.AsyncByteConsumer;
+import org.apache.http.nio.protocol.AbstractAsyncResponseConsumer;
 import org.apache.http.protocol.HttpContext;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
-import java.io.PipedInputStream;
-import java.io.PipedOutputStream;
-import java.nio.ByteBuffer;
 
-public class StreamingAsyncResponseConsumer extends AsyncByteConsumer<HttpResponse> {
+public class StreamingAsyncResponseConsumer extends AbstractAsyncResponseConsumer<HttpResponse> {
 
+    // Maximum number of bytes which will be queued up for the reader before
+    // input on the connection is suspended.  Input is resumed once the reader
+    // has drained the queue down to half of this value.
+    private static final int QUEUE_HIGH_WATERMARK = 128 * 1024;
+
+    private final BufferPool bufferPool;
     private volatile HttpResponse response;
-    private volatile PipedOutputStream pos;
+    private volatile ChunkQueueInputStream stream;
     private volatile Deliverable<HttpResponse> promise;
     private volatile Promise<IOException> ioExceptionPromise = new Promise<>();
 
@@ -27,18 +32,18 @@ public class StreamingAsyncResponseConsumer extends AsyncByteConsumer<HttpRespon
         ioExceptionPromise.deliver(ioException);
     }
 
-    public StreamingAsyncResponseConsumer(Deliverable<HttpResponse> promise) {
+    public StreamingAsyncResponseConsumer(Deliverable<HttpResponse> promise,
+                                          BufferPool bufferPool) {
         this.promise = promise;
+        this.bufferPool = bufferPool;
     }
 
     @Override
     protected void onResponseReceived(final HttpResponse response) throws IOException {
         HttpEntity entity = response.getEntity();
         if (entity != null) {
-            PipedInputStream pis = new ExceptionInsertingPipedInputStream(ioExceptionPromise);
-            pos = new PipedOutputStream();
-            pos.connect(pis);
-            ((BasicHttpEntity) entity).setContent(pis);
+            stream = new ChunkQueueInputStream(ioExceptionPromise, bufferPool, QUEUE_HIGH_WATERMARK);
+            ((BasicHttpEntity) entity).setContent(stream);
         } else {
             // this can happen if the server sends no response, like with a 204.
             LOGGER.debug("Null entity when processing response");
@@ -48,26 +53,21 @@ public class StreamingAsyncResponseConsumer extends AsyncByteConsumer<HttpRespon
     }
 
     @Override
-    protected void onByteReceived(final ByteBuffer buf, final IOControl ioctrl) throws IOException {
-        while (buf.hasRemaining()) {
-            byte[] bs = new byte[buf.remaining()];
-            buf.get(bs);
-            pos.write(bs);
-        }
+    protected void onEntityEnclosed(final HttpEntity entity, final ContentType contentType) {
+    }
+
+    @Override
+    protected void onContentReceived(final ContentDecoder decoder, final IOControl ioctrl) throws IOException {
+        stream.fill(decoder, ioctrl);
     }
 
     @Override
     protected void releaseResources() {
-        super.releaseResources();
         this.response = null;
         this.promise = null;
-        try {
-            if (pos != null) {
-                this.pos.close();
-                this.pos = null;
-            }
-        } catch (IOException e) {
-            throw new IllegalStateException(e);
+        if (stream != null) {
+            this.stream.endOfStream();
+            this.stream = null;
         }
     }
 
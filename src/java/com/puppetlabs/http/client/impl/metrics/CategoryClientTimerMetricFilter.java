@@ -7,14 +7,22 @@ import com.puppetlabs.http.client.metrics.Metrics;
 
 public class CategoryClientTimerMetricFilter implements MetricFilter {
     private final Metrics.MetricCategory category;
+    private final Metrics.MetricType metricType;
 
     public CategoryClientTimerMetricFilter(Metrics.MetricCategory category) {
+        this(category, Metrics.MetricType.FULL_RESPONSE);
+    }
+
+    public CategoryClientTimerMetricFilter(Metrics.MetricCategory category,
+                                           Metrics.MetricType metricType) {
         this.category = category;
+        this.metricType = metricType;
     }
 
     @Override
     public boolean matches(String s, Metric metric) {
         return metric instanceof ClientTimer &&
-                ((ClientTimer) metric).isCategory(category);
+                ((ClientTimer) metric).isCategory(category) &&
+                ((ClientTimer) metric).getMetricType() == metricType;
     }
 }
@@ -0,0 +1,378 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.metrics.ClientTimer;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.HttpRequest;
+
+import java.net.URISyntaxException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A per-client index of the ClientTimers its requests are timed with.
+ *
+ * The first request for a given url and method, or metric-id, resolves its
+ * timers through the MetricRegistry as {@link TimerUtils} does; later requests
+ * find them with a hash lookup, without building metric names or parsing the
+ * request URI again.
+ *
+ * URLs may be collapsed onto a smaller set of metric URLs with
+ * {@link UrlTemplates}, and the number of URLs timed may be capped; once the
+ * cap is reached, the timers of the least recently used URL are removed from
+ * the registry to make room for a new one.  Only a capped index keeps track
+ * of which URL was used least recently, which costs each request a brief
+ * hold of the index's lock.
+ *
+ * Timers for the phases of a request other than the full response (see
+ * {@link Metrics.MetricType}) are only added once a request has recorded a
+ * value for that phase, so a URL which is only ever requested over plain HTTP
+ * has no TLS handshake timers.
+ */
+public class ClientTimerIndex {
+    private final MetricRegistry metricRegistry;
+    private final String metricNamespace;
+
+    private static final int METRIC_TYPES = Metrics.MetricType.values().length;
+    private static final int FULL_RESPONSE = Metrics.MetricType.FULL_RESPONSE.ordinal();
+
+    // Timers for each MetricType, indexed by ordinal.
+    private static final class TypedTimers<T> extends AtomicReferenceArray<T> {
+        private TypedTimers() {
+            super(METRIC_TYPES);
+        }
+    }
+
+    private static final class UrlTimers {
+        private final String metricUrl;
+        private final TypedTimers<ClientTimer> urlTimers = new TypedTimers<>();
+        private final ConcurrentMap<String, TypedTimers<ClientTimer>> urlAndMethodTimers =
+                new ConcurrentHashMap<>();
+        private boolean evicted = false;
+
+        private UrlTimers(String metricUrl, ClientTimer urlTimer) {
+            this.metricUrl = metricUrl;
+            this.urlTimers.set(FULL_RESPONSE, urlTimer);
+        }
+    }
+
+    // url (without query string or fragment, and templated) -> timers
+    private final ConcurrentMap<String, UrlTimers> urlTimers = new ConcurrentHashMap<>();
+    private final ConcurrentMap<List<String>, TypedTimers<ClientTimer[]>> metricIdTimers =
+            new ConcurrentHashMap<>();
+    // metric url -> the urls timed with it, in access order, or null if the
+    // number of urls isn't capped.  Guarded by this.
+    private final LinkedHashMap<String, List<String>> urlsByMetricUrl;
+    private final UrlTemplates urlTemplates;
+    private final int maxUrlMetrics;
+    private final Meter evictions;
+    private final Reservoirs reservoirs;
+    private final boolean enablePhaseMetrics;
+
+    public ClientTimerIndex(MetricRegistry metricRegistry, String metricNamespace) {
+        this(metricRegistry, metricNamespace, null, 0, Reservoirs.DEFAULT);
+    }
+
+    public ClientTimerIndex(MetricRegistry metricRegistry,
+                            String metricNamespace,
+                            UrlTemplates urlTemplates,
+                            int maxUrlMetrics,
+                            Reservoirs reservoirs) {
+        this(metricRegistry, metricNamespace, urlTemplates, maxUrlMetrics, reservoirs, false);
+    }
+
+    /**
+     * @param urlTemplates templates to collapse URLs with, or null
+     * @param maxUrlMetrics the most URLs to keep timers for at once, or 0 for
+     *                      no limit
+     * @param reservoirs creates the Reservoir for each new timer
+     * @param enablePhaseMetrics whether requests also time their phases, see
+     *                           {@link #startPhaseTimers}
+     */
+    public ClientTimerIndex(MetricRegistry metricRegistry,
+                            String metricNamespace,
+                            UrlTemplates urlTemplates,
+                            int maxUrlMetrics,
+                            Reservoirs reservoirs,
+                            boolean enablePhaseMetrics) {
+        this.metricRegistry = metricRegistry;
+        this.metricNamespace = metricNamespace;
+        this.urlTemplates = urlTemplates;
+        this.maxUrlMetrics = maxUrlMetrics;
+        this.reservoirs = reservoirs;
+        this.enablePhaseMetrics = enablePhaseMetrics;
+        if (maxUrlMetrics > 0) {
+            this.evictions = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                    Metrics.NAMESPACE_URL_METRICS, "evicted"));
+            this.urlsByMetricUrl = new LinkedHashMap<String, List<String>>(16, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, List<String>> eldest) {
+                    if (size() > ClientTimerIndex.this.maxUrlMetrics) {
+                        evict(eldest.getValue());
+                        return true;
+                    }
+                    return false;
+                }
+            };
+        } else {
+            this.evictions = null;
+            this.urlsByMetricUrl = null;
+        }
+    }
+
+    /**
+     * @return true if this index resolves timers in the given registry and
+     * namespace, and so can stand in for {@link TimerUtils} for them.
+     */
+    public boolean isFor(MetricRegistry metricRegistry, String metricNamespace) {
+        return this.metricRegistry == metricRegistry &&
+                (this.metricNamespace == null ? metricNamespace == null :
+                        this.metricNamespace.equals(metricNamespace));
+    }
+
+    private static String stripQueryAndFragment(String uri) {
+        int end = uri.length();
+        int query = uri.indexOf('?');
+        if (query >= 0) {
+            end = query;
+        }
+        int fragment = uri.indexOf('#');
+        if (fragment >= 0 && fragment < end) {
+            end = fragment;
+        }
+        return end == uri.length() ? uri : uri.substring(0, end);
+    }
+
+    private String template(String url) {
+        return urlTemplates == null ? url : urlTemplates.apply(url);
+    }
+
+    private synchronized UrlTimers addUrlTimers(String key, String url) {
+        UrlTimers timers = urlTimers.get(key);
+        if (timers != null) {
+            return timers;
+        }
+        final String metricUrl;
+        try {
+            metricUrl = template(Metrics.urlToMetricUrl(url));
+        } catch (URISyntaxException e) {
+            TimerUtils.logUnparseableUri();
+            return null;
+        }
+        timers = new UrlTimers(metricUrl,
+                TimerUtils.getOrAddUrlTimer(metricRegistry, metricUrl, metricNamespace,
+                        Metrics.MetricType.FULL_RESPONSE, reservoirs));
+        urlTimers.put(key, timers);
+        if (urlsByMetricUrl != null) {
+            List<String> urls = urlsByMetricUrl.get(metricUrl);
+            if (urls == null) {
+                urls = new ArrayList<>(1);
+                // Evicts the least recently used metric url if this one
+                // takes the index past its cap.
+                urlsByMetricUrl.put(metricUrl, urls);
+            }
+            urls.add(key);
+        }
+        return timers;
+    }
+
+    private void keepTimer(UrlTimers timers, TypedTimers<ClientTimer> slots,
+                           Metrics.MetricType metricType, ClientTimer timer) {
+        // Only keep hold of the timer if its url has not been evicted in the
+        // meantime; otherwise nothing would ever remove it again.
+        if (!timers.evicted) {
+            slots.set(metricType.ordinal(), timer);
+        } else {
+            metricRegistry.remove(timer.getMetricName());
+        }
+    }
+
+    private synchronized ClientTimer addUrlTimer(UrlTimers timers, Metrics.MetricType metricType) {
+        ClientTimer timer = timers.urlTimers.get(metricType.ordinal());
+        if (timer == null) {
+            timer = TimerUtils.getOrAddUrlTimer(metricRegistry, timers.metricUrl,
+                    metricNamespace, metricType, reservoirs);
+            keepTimer(timers, timers.urlTimers, metricType, timer);
+        }
+        return timer;
+    }
+
+    private synchronized ClientTimer addUrlAndMethodTimer(UrlTimers timers, String method,
+                                                          Metrics.MetricType metricType) {
+        TypedTimers<ClientTimer> slots = timers.urlAndMethodTimers.get(method);
+        if (slots == null) {
+            slots = new TypedTimers<>();
+            timers.urlAndMethodTimers.put(method, slots);
+        }
+        ClientTimer timer = slots.get(metricType.ordinal());
+        if (timer == null) {
+            timer = TimerUtils.getOrAddUrlAndMethodTimer(metricRegistry, timers.metricUrl,
+                    method, metricNamespace, metricType, reservoirs);
+            keepTimer(timers, slots, metricType, timer);
+        }
+        return timer;
+    }
+
+    private ClientTimer getUrlTimer(UrlTimers timers, Metrics.MetricType metricType) {
+        ClientTimer timer = timers.urlTimers.get(metricType.ordinal());
+        return timer != null ? timer : addUrlTimer(timers, metricType);
+    }
+
+    private ClientTimer getUrlAndMethodTimer(UrlTimers timers, String method,
+                                             Metrics.MetricType metricType) {
+        TypedTimers<ClientTimer> slots = timers.urlAndMethodTimers.get(method);
+        ClientTimer timer = slots == null ? null : slots.get(metricType.ordinal());
+        return timer != null ? timer : addUrlAndMethodTimer(timers, method, metricType);
+    }
+
+    private static void removeTimers(MetricRegistry metricRegistry, TypedTimers<ClientTimer> slots) {
+        for (int i = 0; i < slots.length(); i++) {
+            ClientTimer timer = slots.get(i);
+            if (timer != null) {
+                metricRegistry.remove(timer.getMetricName());
+            }
+        }
+    }
+
+    /**
+     * Removes the timers of a metric url, given the urls which share them.
+     */
+    private void evict(List<String> urls) {
+        for (String url : urls) {
+            UrlTimers timers = urlTimers.remove(url);
+            if (timers != null) {
+                timers.evicted = true;
+                removeTimers(metricRegistry, timers.urlTimers);
+                for (TypedTimers<ClientTimer> slots : timers.urlAndMethodTimers.values()) {
+                    removeTimers(metricRegistry, slots);
+                }
+            }
+        }
+        evictions.mark();
+    }
+
+    private synchronized void markUsed(UrlTimers timers) {
+        urlsByMetricUrl.get(timers.metricUrl);
+    }
+
+    /**
+     * @return the url timers for the request, or null if its URI could not
+     * be parsed.
+     */
+    private UrlTimers getUrlTimers(HttpRequest request) {
+        final String url = stripQueryAndFragment(request.getRequestLine().getUri());
+        final String key = template(url);
+
+        UrlTimers timers = urlTimers.get(key);
+        if (timers == null) {
+            timers = addUrlTimers(key, url);
+            if (timers == null) {
+                return null;
+            }
+        }
+        if (urlsByMetricUrl != null) {
+            markUsed(timers);
+        }
+        return timers;
+    }
+
+    private ClientTimer[] getMetricIdTimers(String[] metricId, Metrics.MetricType metricType) {
+        TypedTimers<ClientTimer[]> slots = metricIdTimers.get(Arrays.asList(metricId));
+        if (slots == null) {
+            // Copy the key, since the caller still owns the array backing it.
+            TypedTimers<ClientTimer[]> added = new TypedTimers<>();
+            slots = metricIdTimers.putIfAbsent(Arrays.asList(metricId.clone()), added);
+            if (slots == null) {
+                slots = added;
+            }
+        }
+        ClientTimer[] timers = slots.get(metricType.ordinal());
+        if (timers == null) {
+            timers = TimerUtils.getOrAddMetricIdTimers(metricRegistry, metricId, metricNamespace,
+                    metricType, reservoirs);
+            slots.compareAndSet(metricType.ordinal(), null, timers);
+        }
+        return timers;
+    }
+
+    /**
+     * Equivalent to {@link TimerUtils#startFullResponseTimers} for this
+     * index's registry and namespace.
+     */
+    public ArrayList<Timer.Context> startFullResponseTimers(HttpRequest request,
+                                                            String[] metricId,
+                                                            boolean enableURLMetrics) {
+        ArrayList<Timer.Context> timerContexts = new ArrayList<>();
+        if (enableURLMetrics) {
+            UrlTimers timers = getUrlTimers(request);
+            if (timers != null) {
+                timerContexts.add(timers.urlTimers.get(FULL_RESPONSE).time());
+                timerContexts.add(getUrlAndMethodTimer(timers, request.getRequestLine().getMethod(),
+                        Metrics.MetricType.FULL_RESPONSE).time());
+            }
+        }
+        if (metricId != null) {
+            for (ClientTimer timer : getMetricIdTimers(metricId, Metrics.MetricType.FULL_RESPONSE)) {
+                timerContexts.add(timer.time());
+            }
+        }
+        return timerContexts;
+    }
+
+    /**
+     * @return the url and method timer for the request's full response, or
+     * null if no request for its url and method has been timed yet.  Unlike
+     * starting timers, this never adds a timer or marks the url as used.
+     */
+    public ClientTimer findFullResponseTimer(HttpRequest request) {
+        UrlTimers timers = urlTimers.get(template(stripQueryAndFragment(request.getRequestLine().getUri())));
+        if (timers == null) {
+            return null;
+        }
+        TypedTimers<ClientTimer> slots = timers.urlAndMethodTimers.get(request.getRequestLine().getMethod());
+        return slots == null ? null : slots.get(FULL_RESPONSE);
+    }
+
+    /**
+     * Starts timing the phases of a request, which {@link PhaseTimers}
+     * records as the request reaches them.
+     *
+     * @return the request's PhaseTimers, or null if this index was not
+     * created with phase metrics enabled or there are no timers to record to.
+     */
+    public PhaseTimers startPhaseTimers(final HttpRequest request,
+                                        final String[] metricId,
+                                        boolean enableURLMetrics) {
+        if (!enablePhaseMetrics) {
+            return null;
+        }
+        final UrlTimers timers = enableURLMetrics ? getUrlTimers(request) : null;
+        if (timers == null && metricId == null) {
+            return null;
+        }
+        final String method = request.getRequestLine().getMethod();
+        return new PhaseTimers() {
+            @Override
+            void record(Metrics.MetricType metricType, long nanos) {
+                if (timers != null) {
+                    getUrlTimer(timers, metricType).update(nanos, TimeUnit.NANOSECONDS);
+                    getUrlAndMethodTimer(timers, method, metricType).update(nanos, TimeUnit.NANOSECONDS);
+                }
+                if (metricId != null) {
+                    for (ClientTimer timer : getMetricIdTimers(metricId, metricType)) {
+                        timer.update(nanos, TimeUnit.NANOSECONDS);
+                    }
+                }
+            }
+        };
+    }
+}
@@ -0,0 +1,64 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.protocol.HttpContext;
+
+/**
+ * How long it took to open a connection, kept as an attribute of the
+ * connection's I/O session so that the first request sent over the
+ * connection can record it.
+ *
+ * The connection is stamped by {@link TimingConnectingIOReactor},
+ * {@link TimingSSLIOSessionStrategy} and {@link TimingConnectionManager} as
+ * it is opened and leased, and read by {@link PhaseTimers}.
+ */
+public class ConnectionTimings {
+    static final String ATTRIBUTE = "com.puppetlabs.http.client.connection-timings";
+
+    final long connectNanos;
+    volatile long tlsStarted;
+    volatile long tlsCompleted;
+    volatile long leased;
+    // Only used by the request the connection is leased to.
+    boolean recorded = false;
+    volatile Runnable handshakeListener;
+
+    ConnectionTimings(long connectNanos) {
+        this.connectNanos = connectNanos;
+    }
+
+    static ConnectionTimings get(IOSession session) {
+        Object timings = session.getAttribute(ATTRIBUTE);
+        return timings instanceof ConnectionTimings ? (ConnectionTimings) timings : null;
+    }
+
+    public static ConnectionTimings get(HttpContext connectionContext) {
+        Object timings = connectionContext.getAttribute(ATTRIBUTE);
+        return timings instanceof ConnectionTimings ? (ConnectionTimings) timings : null;
+    }
+
+    /**
+     * Marks the connection as opened ahead of any request, so that the first
+     * request sent over it doesn't record the time spent opening it.
+     */
+    public void markRecorded() {
+        recorded = true;
+    }
+
+    /**
+     * @param handshakeListener run, on the I/O reactor thread, once the
+     *                          connection's TLS handshake has completed, or
+     *                          its session has failed verification
+     */
+    public void setHandshakeListener(Runnable handshakeListener) {
+        this.handshakeListener = handshakeListener;
+    }
+
+    /**
+     * @return whether the connection's TLS handshake completed and its
+     * session was verified
+     */
+    public boolean isHandshakeCompleted() {
+        return tlsCompleted > 0;
+    }
+}
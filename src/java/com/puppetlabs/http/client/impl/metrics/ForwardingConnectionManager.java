@@ -0,0 +1,83 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.protocol.HttpContext;
+
+import java.io.IOException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An NHttpClientConnectionManager which forwards every call to another, for
+ * subclasses to decorate.
+ */
+public abstract class ForwardingConnectionManager implements NHttpClientConnectionManager {
+    protected final NHttpClientConnectionManager connectionManager;
+
+    protected ForwardingConnectionManager(NHttpClientConnectionManager connectionManager) {
+        this.connectionManager = connectionManager;
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route,
+                                                           Object state,
+                                                           long connectTimeout,
+                                                           long connectionRequestTimeout,
+                                                           TimeUnit timeUnit,
+                                                           FutureCallback<NHttpClientConnection> callback) {
+        return connectionManager.requestConnection(route, state, connectTimeout, connectionRequestTimeout,
+                timeUnit, callback);
+    }
+
+    @Override
+    public void releaseConnection(NHttpClientConnection conn, Object newState,
+                                  long validDuration, TimeUnit timeUnit) {
+        connectionManager.releaseConnection(conn, newState, validDuration, timeUnit);
+    }
+
+    @Override
+    public void startRoute(NHttpClientConnection conn, HttpRoute route, HttpContext context)
+            throws IOException {
+        connectionManager.startRoute(conn, route, context);
+    }
+
+    @Override
+    public void upgrade(NHttpClientConnection conn, HttpRoute route, HttpContext context)
+            throws IOException {
+        connectionManager.upgrade(conn, route, context);
+    }
+
+    @Override
+    public void routeComplete(NHttpClientConnection conn, HttpRoute route, HttpContext context) {
+        connectionManager.routeComplete(conn, route, context);
+    }
+
+    @Override
+    public boolean isRouteComplete(NHttpClientConnection conn) {
+        return connectionManager.isRouteComplete(conn);
+    }
+
+    @Override
+    public void closeIdleConnections(long idleTime, TimeUnit timeUnit) {
+        connectionManager.closeIdleConnections(idleTime, timeUnit);
+    }
+
+    @Override
+    public void closeExpiredConnections() {
+        connectionManager.closeExpiredConnections();
+    }
+
+    @Override
+    public void execute(IOEventDispatch eventDispatch) throws IOException {
+        connectionManager.execute(eventDispatch);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        connectionManager.shutdown();
+    }
+}
@@ -0,0 +1,248 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.Snapshot;
+
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * An HDR-style Reservoir which counts values into fixed log-linear buckets
+ * rather than keeping samples, so recording a value is a few atomic
+ * increments and never allocates.
+ *
+ * Each power of two is split into 32 linear buckets, so a reported
+ * percentile is within about 3% of the true value; the minimum, maximum and
+ * mean are exact.  Values are counted over a window which rotates every
+ * <code>windowSeconds</code>, and a snapshot covers the current window and
+ * the one before it, so it always reflects between one and two windows of
+ * recent values.
+ */
+public class HistogramReservoir implements Reservoir {
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    // Values of 2^43 or more (over two hours, in nanoseconds) share the last
+    // bucket.
+    private static final int MAX_EXPONENT = 42;
+    static final int BUCKETS = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private static final class Window {
+        private final long start;
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong sum = new AtomicLong();
+        private final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+        private final AtomicLong max = new AtomicLong(Long.MIN_VALUE);
+
+        private Window(long start) {
+            this.start = start;
+        }
+
+        private void record(long value) {
+            counts.incrementAndGet(bucketFor(value));
+            sum.addAndGet(value);
+            long current = max.get();
+            while (value > current && !max.compareAndSet(current, value)) {
+                current = max.get();
+            }
+            current = min.get();
+            while (value < current && !min.compareAndSet(current, value)) {
+                current = min.get();
+            }
+            // Counted last, so that a snapshot never sees more values than
+            // it has buckets for.
+            count.incrementAndGet();
+        }
+    }
+
+    private final long windowNanos;
+    private volatile Window current;
+    private volatile Window previous;
+
+    public HistogramReservoir(long windowSeconds) {
+        this.windowNanos = TimeUnit.SECONDS.toNanos(windowSeconds);
+        long now = System.nanoTime();
+        this.current = new Window(now);
+        this.previous = new Window(now - windowNanos);
+    }
+
+    static int bucketFor(long value) {
+        if (value < SUB_BUCKETS) {
+            return value < 0 ? 0 : (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKETS - 1;
+        }
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the value at the middle of the given bucket.
+     */
+    static long valueFor(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + ((1L << shift) >>> 1);
+    }
+
+    private Window currentWindow(long now) {
+        Window window = current;
+        if (now - window.start < windowNanos) {
+            return window;
+        }
+        synchronized (this) {
+            window = current;
+            if (now - window.start >= windowNanos) {
+                previous = now - window.start < 2 * windowNanos ? window : new Window(now - windowNanos);
+                window = new Window(now);
+                current = window;
+            }
+            return window;
+        }
+    }
+
+    @Override
+    public int size() {
+        return getSnapshot().size();
+    }
+
+    @Override
+    public void update(long value) {
+        currentWindow(System.nanoTime()).record(value);
+    }
+
+    @Override
+    public Snapshot getSnapshot() {
+        currentWindow(System.nanoTime());
+        Window latest;
+        Window earlier;
+        synchronized (this) {
+            latest = current;
+            earlier = previous;
+        }
+        long count = latest.count.get() + earlier.count.get();
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = latest.counts.get(i) + earlier.counts.get(i);
+        }
+        return new HistogramSnapshot(counts, count,
+                latest.sum.get() + earlier.sum.get(),
+                Math.min(latest.min.get(), earlier.min.get()),
+                Math.max(latest.max.get(), earlier.max.get()));
+    }
+
+    static class HistogramSnapshot extends Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long min;
+        private final long max;
+
+        HistogramSnapshot(long[] counts, long count, long sum, long min, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.min = count == 0 ? 0 : min;
+            this.max = count == 0 ? 0 : max;
+        }
+
+        private long clamp(long value) {
+            return Math.max(min, Math.min(max, value));
+        }
+
+        @Override
+        public double getValue(double quantile) {
+            if (quantile < 0.0 || quantile > 1.0 || Double.isNaN(quantile)) {
+                throw new IllegalArgumentException(quantile + " is not in [0..1]");
+            }
+            if (count == 0) {
+                return 0.0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(quantile * count));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return clamp(valueFor(i));
+                }
+            }
+            return max;
+        }
+
+        /**
+         * Expands the buckets into one value per recorded value, so this is
+         * only suitable for small windows; the other methods work from the
+         * buckets directly.
+         */
+        @Override
+        public long[] getValues() {
+            long[] values = new long[size()];
+            int position = 0;
+            for (int i = 0; i < counts.length && position < values.length; i++) {
+                long value = clamp(valueFor(i));
+                for (long j = 0; j < counts[i] && position < values.length; j++) {
+                    values[position++] = value;
+                }
+            }
+            return values;
+        }
+
+        @Override
+        public int size() {
+            return (int) Math.min(count, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public long getMax() {
+            return max;
+        }
+
+        @Override
+        public double getMean() {
+            return count == 0 ? 0.0 : (double) sum / count;
+        }
+
+        @Override
+        public long getMin() {
+            return min;
+        }
+
+        @Override
+        public double getStdDev() {
+            if (count <= 1) {
+                return 0.0;
+            }
+            double mean = getMean();
+            double variance = 0.0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] > 0) {
+                    double difference = clamp(valueFor(i)) - mean;
+                    variance += counts[i] * difference * difference;
+                }
+            }
+            return Math.sqrt(variance / (count - 1));
+        }
+
+        @Override
+        public void dump(OutputStream output) {
+            try (PrintWriter out = new PrintWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8))) {
+                for (int i = 0; i < counts.length; i++) {
+                    long value = clamp(valueFor(i));
+                    for (long j = 0; j < counts[i]; j++) {
+                        out.printf("%d%n", value);
+                    }
+                }
+            }
+        }
+    }
+}
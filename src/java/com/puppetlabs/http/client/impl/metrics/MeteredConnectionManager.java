@@ -0,0 +1,209 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import com.codahale.metrics.Gauge;
+import com.codahale.metrics.Meter;
+import com.codahale.metrics.Metric;
+import com.codahale.metrics.MetricRegistry;
+import com.codahale.metrics.Timer;
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.impl.nio.conn.PoolingNHttpClientConnectionManager;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reports the state of a client's connection pool in its MetricRegistry.
+ *
+ * Gauges of the number of connections leased and available, the number of
+ * requests pending (waiting for a connection, or for one to be opened), and
+ * the maximum number of connections are registered for the pool as a whole under
+ * <code>&lt;namespace&gt;.connection-pool</code>, and for each route the
+ * client has requested a connection for under
+ * <code>&lt;namespace&gt;.connection-pool.with-route.&lt;route&gt;</code>.
+ * The <code>&lt;namespace&gt;.connection-pool.lease-wait</code> timer tracks
+ * how long each request waited for a connection to be leased to it, and the
+ * <code>.reused</code> and <code>.created</code> meters count the leases
+ * which reused a pooled connection and those which opened a new one.
+ *
+ * The gauges are removed from the registry when the connection manager is
+ * shut down, which happens when the client is closed.  If another client
+ * already has gauges registered under the same names, they are left in
+ * place rather than replaced.
+ */
+public class MeteredConnectionManager extends ForwardingConnectionManager {
+    public static final String LEASED = "leased";
+    public static final String PENDING = "pending";
+    public static final String AVAILABLE = "available";
+    public static final String MAX = "max";
+    public static final String REUSED = "reused";
+    public static final String CREATED = "created";
+
+    private final PoolingNHttpClientConnectionManager pool;
+    private final MetricRegistry metricRegistry;
+    private final String metricNamespace;
+    private final Timer leaseWait;
+    private final Meter reused;
+    private final Meter created;
+    private final ConcurrentMap<HttpRoute, Boolean> routes = new ConcurrentHashMap<>();
+    private final List<Map.Entry<String, Metric>> registered = new ArrayList<>();
+
+    public MeteredConnectionManager(PoolingNHttpClientConnectionManager pool,
+                                    MetricRegistry metricRegistry,
+                                    String metricNamespace) {
+        super(pool);
+        this.pool = pool;
+        this.metricRegistry = metricRegistry;
+        this.metricNamespace = metricNamespace;
+        this.leaseWait = metricRegistry.timer(MetricRegistry.name(metricNamespace,
+                Metrics.NAMESPACE_CONNECTION_POOL, "lease-wait"));
+        this.reused = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                Metrics.NAMESPACE_CONNECTION_POOL, REUSED));
+        this.created = metricRegistry.meter(MetricRegistry.name(metricNamespace,
+                Metrics.NAMESPACE_CONNECTION_POOL, CREATED));
+        registerGauges(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_CONNECTION_POOL), null);
+    }
+
+    /**
+     * @return the name a route's gauges are registered under, which is its
+     * target host as a URI, such as <code>https://localhost:8140</code>.
+     */
+    public static String routeName(HttpRoute route) {
+        return route.getTargetHost().toURI();
+    }
+
+    private PoolStats getStats(HttpRoute route) {
+        return route == null ? pool.getTotalStats() : pool.getStats(route);
+    }
+
+    private int getPending(HttpRoute route) {
+        if (route != null) {
+            return pool.getStats(route).getPending();
+        }
+        // The pool's total only counts connections being opened, while each
+        // route's also counts the requests queued for a connection.
+        int pending = 0;
+        for (HttpRoute poolRoute : pool.getRoutes()) {
+            pending += pool.getStats(poolRoute).getPending();
+        }
+        return pending;
+    }
+
+    private void register(String name, Metric metric) {
+        try {
+            metricRegistry.register(name, metric);
+        } catch (IllegalArgumentException e) {
+            // Already registered, presumably by another client sharing this
+            // registry and namespace.
+            return;
+        }
+        synchronized (registered) {
+            registered.add(new AbstractMap.SimpleImmutableEntry<>(name, metric));
+        }
+    }
+
+    private void registerGauges(String prefix, final HttpRoute route) {
+        register(MetricRegistry.name(prefix, LEASED), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getStats(route).getLeased();
+            }
+        });
+        register(MetricRegistry.name(prefix, PENDING), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getPending(route);
+            }
+        });
+        register(MetricRegistry.name(prefix, AVAILABLE), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getStats(route).getAvailable();
+            }
+        });
+        register(MetricRegistry.name(prefix, MAX), new Gauge<Integer>() {
+            @Override
+            public Integer getValue() {
+                return getStats(route).getMax();
+            }
+        });
+    }
+
+    private void addRoute(HttpRoute route) {
+        if (routes.putIfAbsent(route, Boolean.TRUE) == null) {
+            registerGauges(MetricRegistry.name(metricNamespace, Metrics.NAMESPACE_CONNECTION_POOL,
+                    Metrics.NAMESPACE_ROUTE, routeName(route)), route);
+        }
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route,
+                                                           Object state,
+                                                           long connectTimeout,
+                                                           long connectionRequestTimeout,
+                                                           TimeUnit timeUnit,
+                                                           final FutureCallback<NHttpClientConnection> callback) {
+        if (!routes.containsKey(route)) {
+            addRoute(route);
+        }
+        final Timer.Context context = leaseWait.time();
+        return connectionManager.requestConnection(route, state, connectTimeout, connectionRequestTimeout,
+                timeUnit, new FutureCallback<NHttpClientConnection>() {
+                    @Override
+                    public void completed(NHttpClientConnection conn) {
+                        context.stop();
+                        // Only connections which have been used before have
+                        // their route established.
+                        if (pool.isRouteComplete(conn)) {
+                            reused.mark();
+                        } else {
+                            created.mark();
+                        }
+                        if (callback != null) {
+                            callback.completed(conn);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        if (callback != null) {
+                            callback.failed(e);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        if (callback != null) {
+                            callback.cancelled();
+                        }
+                    }
+                });
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        try {
+            connectionManager.shutdown();
+        } finally {
+            synchronized (registered) {
+                for (Map.Entry<String, Metric> entry : registered) {
+                    // Only remove the gauge if it is still ours.
+                    if (metricRegistry.getMetrics().get(entry.getKey()) == entry.getValue()) {
+                        metricRegistry.remove(entry.getKey());
+                    }
+                }
+                registered.clear();
+            }
+        }
+    }
+}
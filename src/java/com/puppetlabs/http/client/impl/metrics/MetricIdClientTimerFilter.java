@@ -3,19 +3,27 @@ package com.puppetlabs.http.client.impl.metrics;
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
 import com.puppetlabs.http.client.metrics.MetricIdClientTimer;
+import com.puppetlabs.http.client.metrics.Metrics;
 
 import java.util.List;
 
 public class MetricIdClientTimerFilter implements MetricFilter {
     private final List<String> metricId;
+    private final Metrics.MetricType metricType;
 
     public MetricIdClientTimerFilter(List<String> metricId) {
+        this(metricId, Metrics.MetricType.FULL_RESPONSE);
+    }
+
+    public MetricIdClientTimerFilter(List<String> metricId, Metrics.MetricType metricType) {
         this.metricId = metricId;
+        this.metricType = metricType;
     }
 
     @Override
     public boolean matches(String s, Metric metric) {
         return metric.getClass().equals(MetricIdClientTimer.class) &&
+                ((MetricIdClientTimer) metric).getMetricType() == metricType &&
                 ((MetricIdClientTimer) metric).
                         getMetricId().equals(metricId);
     }
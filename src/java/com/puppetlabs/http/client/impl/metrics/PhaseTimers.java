@@ -0,0 +1,179 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import com.puppetlabs.http.client.metrics.Metrics;
+import org.apache.http.HttpException;
+import org.apache.http.HttpHost;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.nio.ContentDecoder;
+import org.apache.http.nio.ContentEncoder;
+import org.apache.http.nio.IOControl;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.protocol.HttpAsyncRequestProducer;
+import org.apache.http.nio.protocol.HttpAsyncResponseConsumer;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.protocol.HttpCoreContext;
+
+import java.io.IOException;
+
+/**
+ * Records the phases of a single request, as started by
+ * {@link ClientTimerIndex#startPhaseTimers}.
+ *
+ * The request's producer and consumer are wrapped with
+ * {@link #timeRequest} and {@link #timeResponse}.  Once the request has been
+ * sent, the time it waited to lease a connection is recorded, along with the
+ * time taken to connect if the connection was new; the TLS handshake and the
+ * time to first byte are recorded when the head of the response arrives.
+ *
+ * The request is handed to a new TLS connection before its handshake has
+ * finished, so the time to first byte is counted from whichever of the
+ * request being sent and the handshake finishing came last.
+ */
+public abstract class PhaseTimers {
+    private final long started = System.nanoTime();
+    // Only used from the I/O reactor thread handling the request.
+    private boolean queueWaitRecorded = false;
+    private volatile long requestSent = 0;
+    // The new connection this request opened, until its TLS handshake (if
+    // any) has been recorded.
+    private volatile ConnectionTimings newConnection = null;
+
+    abstract void record(Metrics.MetricType metricType, long nanos);
+
+    private void requestCompleted(HttpContext context) {
+        final long now = System.nanoTime();
+        final Object conn = context.getAttribute(HttpCoreContext.HTTP_CONNECTION);
+        if (conn instanceof NHttpClientConnection) {
+            final ConnectionTimings timings = ConnectionTimings.get(((NHttpClientConnection) conn).getContext());
+            if (timings != null) {
+                // A redirect or retry may lease another connection; only the
+                // wait for the first one is counted.
+                if (!queueWaitRecorded && timings.leased != 0) {
+                    queueWaitRecorded = true;
+                    record(Metrics.MetricType.QUEUE_WAIT, Math.max(0, timings.leased - started));
+                }
+                if (!timings.recorded) {
+                    timings.recorded = true;
+                    record(Metrics.MetricType.CONNECT, timings.connectNanos);
+                    newConnection = timings;
+                }
+            }
+        }
+        requestSent = now;
+    }
+
+    private void responseReceived() {
+        final long now = System.nanoTime();
+        long sent = requestSent;
+        final ConnectionTimings timings = newConnection;
+        if (timings != null) {
+            newConnection = null;
+            final long tlsCompleted = timings.tlsCompleted;
+            if (timings.tlsStarted != 0 && tlsCompleted != 0) {
+                record(Metrics.MetricType.TLS_HANDSHAKE, tlsCompleted - timings.tlsStarted);
+                if (tlsCompleted - sent > 0) {
+                    sent = tlsCompleted;
+                }
+            }
+        }
+        if (sent != 0) {
+            record(Metrics.MetricType.TIME_TO_FIRST_BYTE, now - sent);
+        }
+    }
+
+    public HttpAsyncRequestProducer timeRequest(final HttpAsyncRequestProducer producer) {
+        return new HttpAsyncRequestProducer() {
+            @Override
+            public HttpHost getTarget() {
+                return producer.getTarget();
+            }
+
+            @Override
+            public HttpRequest generateRequest() throws IOException, HttpException {
+                return producer.generateRequest();
+            }
+
+            @Override
+            public void produceContent(ContentEncoder encoder, IOControl ioControl) throws IOException {
+                producer.produceContent(encoder, ioControl);
+            }
+
+            @Override
+            public void requestCompleted(HttpContext context) {
+                PhaseTimers.this.requestCompleted(context);
+                producer.requestCompleted(context);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                producer.failed(e);
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return producer.isRepeatable();
+            }
+
+            @Override
+            public void resetRequest() throws IOException {
+                producer.resetRequest();
+            }
+
+            @Override
+            public void close() throws IOException {
+                producer.close();
+            }
+        };
+    }
+
+    public <T> HttpAsyncResponseConsumer<T> timeResponse(final HttpAsyncResponseConsumer<T> consumer) {
+        return new HttpAsyncResponseConsumer<T>() {
+            @Override
+            public void responseReceived(HttpResponse response) throws IOException, HttpException {
+                PhaseTimers.this.responseReceived();
+                consumer.responseReceived(response);
+            }
+
+            @Override
+            public void consumeContent(ContentDecoder decoder, IOControl ioControl) throws IOException {
+                consumer.consumeContent(decoder, ioControl);
+            }
+
+            @Override
+            public void responseCompleted(HttpContext context) {
+                consumer.responseCompleted(context);
+            }
+
+            @Override
+            public void failed(Exception e) {
+                consumer.failed(e);
+            }
+
+            @Override
+            public Exception getException() {
+                return consumer.getException();
+            }
+
+            @Override
+            public T getResult() {
+                return consumer.getResult();
+            }
+
+            @Override
+            public boolean isDone() {
+                return consumer.isDone();
+            }
+
+            @Override
+            public boolean cancel() {
+                return consumer.cancel();
+            }
+
+            @Override
+            public void close() throws IOException {
+                consumer.close();
+            }
+        };
+    }
+}
@@ -0,0 +1,41 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import com.codahale.metrics.ExponentiallyDecayingReservoir;
+import com.codahale.metrics.Reservoir;
+import com.codahale.metrics.SlidingTimeWindowReservoir;
+import com.puppetlabs.http.client.metrics.Metrics;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creates the Reservoir for each new ClientTimer, as configured by
+ * ClientOptions.
+ */
+public class Reservoirs {
+    public static final int DEFAULT_WINDOW_SECONDS = 60;
+    public static final Reservoirs DEFAULT =
+            new Reservoirs(Metrics.ReservoirType.EXPONENTIALLY_DECAYING, DEFAULT_WINDOW_SECONDS);
+
+    private final Metrics.ReservoirType reservoirType;
+    private final int windowSeconds;
+
+    public Reservoirs(Metrics.ReservoirType reservoirType, int windowSeconds) {
+        if (windowSeconds <= 0) {
+            throw new IllegalArgumentException("Metric reservoir window must be positive: " + windowSeconds);
+        }
+        this.reservoirType = reservoirType;
+        this.windowSeconds = windowSeconds;
+    }
+
+    public Reservoir newReservoir() {
+        switch (reservoirType) {
+            case SLIDING_TIME_WINDOW:
+                return new SlidingTimeWindowReservoir(windowSeconds, TimeUnit.SECONDS);
+            case HISTOGRAM:
+                return new HistogramReservoir(windowSeconds);
+            case EXPONENTIALLY_DECAYING:
+            default:
+                return new ExponentiallyDecayingReservoir();
+        }
+    }
+}
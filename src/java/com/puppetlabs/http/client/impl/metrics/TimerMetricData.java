@@ -1,21 +1,33 @@
 package com.puppetlabs.http.client.impl.metrics;
 
+import com.codahale.metrics.Snapshot;
 import com.puppetlabs.http.client.metrics.ClientTimer;
 
 import java.util.concurrent.TimeUnit;
 
 public class TimerMetricData {
 
+    private static Long toMillis(double nanos) {
+        return TimeUnit.NANOSECONDS.toMillis((long) nanos);
+    }
+
     public static TimerMetricData fromTimer(ClientTimer timer) {
-        Double mean = timer.getSnapshot().getMean();
+        // Take a single snapshot, so that the mean and percentiles are all
+        // computed from the same set of values.
+        Snapshot snapshot = timer.getSnapshot();
         Long count = timer.getCount();
-        Long meanMillis = TimeUnit.NANOSECONDS.toMillis(mean.longValue());
+        Long meanMillis = toMillis(snapshot.getMean());
 
         return new TimerMetricData(
                 timer.getMetricName(),
                 meanMillis,
                 count,
-                count * meanMillis);
+                count * meanMillis,
+                toMillis(snapshot.getMedian()),
+                toMillis(snapshot.get95thPercentile()),
+                toMillis(snapshot.get99thPercentile()),
+                toMillis(snapshot.get999thPercentile()),
+                toMillis(snapshot.getMax()));
     }
 
 
@@ -23,13 +35,30 @@ public class TimerMetricData {
     private final Long meanMillis;
     private final Long count;
     private final Long aggregate;
+    private final Long p50Millis;
+    private final Long p95Millis;
+    private final Long p99Millis;
+    private final Long p999Millis;
+    private final Long maxMillis;
 
     public TimerMetricData(String metricName, Long meanMillis,
                            Long count, Long aggregate) {
+        this(metricName, meanMillis, count, aggregate, 0L, 0L, 0L, 0L, 0L);
+    }
+
+    public TimerMetricData(String metricName, Long meanMillis,
+                           Long count, Long aggregate,
+                           Long p50Millis, Long p95Millis, Long p99Millis,
+                           Long p999Millis, Long maxMillis) {
         this.metricName = metricName;
         this.meanMillis = meanMillis;
         this.count = count;
         this.aggregate = aggregate;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
     }
 
     public String getMetricName() {
@@ -47,4 +76,24 @@ public class TimerMetricData {
     public Long getAggregate() {
         return aggregate;
     }
+
+    public Long getP50Millis() {
+        return p50Millis;
+    }
+
+    public Long getP95Millis() {
+        return p95Millis;
+    }
+
+    public Long getP99Millis() {
+        return p99Millis;
+    }
+
+    public Long getP999Millis() {
+        return p999Millis;
+    }
+
+    public Long getMaxMillis() {
+        return maxMillis;
+    }
 }
@@ -20,9 +20,21 @@ import java.util.Map;
 public class TimerUtils {
     private static final Logger LOGGER = LoggerFactory.getLogger(TimerUtils.class);
 
-    private static ClientTimer getOrAddTimer(MetricRegistry metricRegistry,
-                                             String name,
-                                             ClientTimer newTimer) {
+    /**
+     * @return the ClientTimer registered under the name, or null if there is
+     * none yet.
+     */
+    private static ClientTimer getTimer(MetricRegistry metricRegistry, String name) {
+        final Metric metric = metricRegistry.getMetrics().get(name);
+        if ( metric == null || metric instanceof ClientTimer ) {
+            return (ClientTimer) metric;
+        }
+        throw new IllegalArgumentException(name +" is already used for a different type of metric");
+    }
+
+    private static ClientTimer addTimer(MetricRegistry metricRegistry,
+                                        String name,
+                                        ClientTimer newTimer) {
         final Map<String, Metric> metrics = metricRegistry.getMetrics();
         final Metric metric = metrics.get(name);
         if ( metric instanceof ClientTimer ) {
@@ -40,10 +52,12 @@ public class TimerUtils {
         throw new IllegalArgumentException(name +" is already used for a different type of metric");
     }
 
-    private static ArrayList<Timer.Context> startFullResponseMetricIdTimers(MetricRegistry registry,
-                                                                            String[] metricId,
-                                                                            String metricPrefix) {
-        ArrayList<Timer.Context> timerContexts = new ArrayList<>();
+    static ClientTimer[] getOrAddMetricIdTimers(MetricRegistry registry,
+                                                String[] metricId,
+                                                String metricPrefix,
+                                                Metrics.MetricType metricType,
+                                                Reservoirs reservoirs) {
+        ClientTimer[] timers = new ClientTimer[metricId.length];
         for (int i = 0; i < metricId.length; i++) {
             ArrayList<String> currentId = new ArrayList<>();
             for (int j = 0; j <= i; j++) {
@@ -52,12 +66,87 @@ public class TimerUtils {
             ArrayList<String> currentIdWithNamespace = new ArrayList<>();
             currentIdWithNamespace.add(Metrics.NAMESPACE_METRIC_ID);
             currentIdWithNamespace.addAll(currentId);
-            currentIdWithNamespace.add(Metrics.NAMESPACE_FULL_RESPONSE);
+            currentIdWithNamespace.add(metricType.getNamespace());
             String metric_name = MetricRegistry.name(metricPrefix,
                     currentIdWithNamespace.toArray(new String[currentIdWithNamespace.size()]));
 
-            ClientTimer timer = new MetricIdClientTimer(metric_name, currentId, Metrics.MetricType.FULL_RESPONSE);
-            timerContexts.add(getOrAddTimer(registry, metric_name, timer).time());
+            ClientTimer timer = getTimer(registry, metric_name);
+            if (timer == null) {
+                timer = addTimer(registry, metric_name, new MetricIdClientTimer(metric_name, currentId,
+                        metricType, reservoirs.newReservoir()));
+            }
+            timers[i] = timer;
+        }
+        return timers;
+    }
+
+    static ClientTimer getOrAddUrlTimer(MetricRegistry registry,
+                                        String metricUrl,
+                                        String metricPrefix,
+                                        Metrics.MetricType metricType,
+                                        Reservoirs reservoirs) {
+        final String urlName = MetricRegistry.name(metricPrefix, Metrics.NAMESPACE_URL,
+                metricUrl, metricType.getNamespace());
+        ClientTimer urlTimer = getTimer(registry, urlName);
+        if (urlTimer != null) {
+            return urlTimer;
+        }
+        return addTimer(registry, urlName, new UrlClientTimer(urlName, metricUrl,
+                metricType, reservoirs.newReservoir()));
+    }
+
+    static ClientTimer getOrAddUrlAndMethodTimer(MetricRegistry registry,
+                                                 String metricUrl,
+                                                 String method,
+                                                 String metricPrefix,
+                                                 Metrics.MetricType metricType,
+                                                 Reservoirs reservoirs) {
+        final String urlAndMethodName = MetricRegistry.name(metricPrefix, Metrics.NAMESPACE_URL_AND_METHOD,
+                metricUrl, method, metricType.getNamespace());
+        ClientTimer urlMethodTimer = getTimer(registry, urlAndMethodName);
+        if (urlMethodTimer != null) {
+            return urlMethodTimer;
+        }
+        return addTimer(registry, urlAndMethodName, new UrlAndMethodClientTimer(urlAndMethodName, metricUrl,
+                method, metricType, reservoirs.newReservoir()));
+    }
+
+    static void logUnparseableUri() {
+        // this shouldn't be possible
+        LOGGER.warn("Could not build URI out of the request URI. Will not create URI timers. " +
+                "We recommend you read http://www.stilldrinking.com/programming-sucks. " +
+                "'now all your snowflakes are urine and you can't even find the cat.'");
+    }
+
+    /**
+     * @return the url and url-and-method timers for the request, or null if
+     * the request URI could not be parsed.
+     */
+    static ClientTimer[] getOrAddUrlTimers(MetricRegistry registry,
+                                           HttpRequest request,
+                                           String metricPrefix) {
+        try {
+            final RequestLine requestLine = request.getRequestLine();
+            final String strippedUrl = Metrics.urlToMetricUrl(requestLine.getUri());
+            final String method = requestLine.getMethod();
+            return new ClientTimer[] {
+                    getOrAddUrlTimer(registry, strippedUrl, metricPrefix,
+                            Metrics.MetricType.FULL_RESPONSE, Reservoirs.DEFAULT),
+                    getOrAddUrlAndMethodTimer(registry, strippedUrl, method, metricPrefix,
+                            Metrics.MetricType.FULL_RESPONSE, Reservoirs.DEFAULT)};
+        } catch (URISyntaxException e) {
+            logUnparseableUri();
+            return null;
+        }
+    }
+
+    private static ArrayList<Timer.Context> startFullResponseMetricIdTimers(MetricRegistry registry,
+                                                                            String[] metricId,
+                                                                            String metricPrefix) {
+        ArrayList<Timer.Context> timerContexts = new ArrayList<>();
+        for (ClientTimer timer : getOrAddMetricIdTimers(registry, metricId, metricPrefix,
+                Metrics.MetricType.FULL_RESPONSE, Reservoirs.DEFAULT)) {
+            timerContexts.add(timer.time());
         }
         return timerContexts;
     }
@@ -68,27 +157,11 @@ public class TimerUtils {
                                                                        boolean enableURLMetrics) {
         ArrayList<Timer.Context> timerContexts = new ArrayList<>();
         if (enableURLMetrics) {
-            try {
-                final RequestLine requestLine = request.getRequestLine();
-                final String strippedUrl = Metrics.urlToMetricUrl(requestLine.getUri());
-                final String method = requestLine.getMethod();
-
-                final String urlName = MetricRegistry.name(metricPrefix, Metrics.NAMESPACE_URL,
-                        strippedUrl, Metrics.NAMESPACE_FULL_RESPONSE);
-                final String urlAndMethodName = MetricRegistry.name(metricPrefix, Metrics.NAMESPACE_URL_AND_METHOD,
-                        strippedUrl, method, Metrics.NAMESPACE_FULL_RESPONSE);
-
-                ClientTimer urlTimer = new UrlClientTimer(urlName, strippedUrl, Metrics.MetricType.FULL_RESPONSE);
-                timerContexts.add(getOrAddTimer(registry, urlName, urlTimer).time());
-
-                ClientTimer urlMethodTimer = new UrlAndMethodClientTimer(urlAndMethodName, strippedUrl,
-                        method, Metrics.MetricType.FULL_RESPONSE);
-                timerContexts.add(getOrAddTimer(registry, urlAndMethodName, urlMethodTimer).time());
-            } catch (URISyntaxException e) {
-                // this shouldn't be possible
-                LOGGER.warn("Could not build URI out of the request URI. Will not create URI timers. " +
-                        "We recommend you read http://www.stilldrinking.com/programming-sucks. " +
-                        "'now all your snowflakes are urine and you can't even find the cat.'");
+            ClientTimer[] timers = getOrAddUrlTimers(registry, request, metricPrefix);
+            if (timers != null) {
+                for (ClientTimer timer : timers) {
+                    timerContexts.add(timer.time());
+                }
             }
         }
         return timerContexts;
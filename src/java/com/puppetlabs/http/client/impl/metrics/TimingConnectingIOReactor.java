@@ -0,0 +1,85 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import org.apache.http.nio.reactor.ConnectingIOReactor;
+import org.apache.http.nio.reactor.IOEventDispatch;
+import org.apache.http.nio.reactor.IOReactorStatus;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.SessionRequest;
+import org.apache.http.nio.reactor.SessionRequestCallback;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+
+/**
+ * A ConnectingIOReactor which records how long each connection took to
+ * establish as its {@link ConnectionTimings}.
+ */
+public class TimingConnectingIOReactor implements ConnectingIOReactor {
+    private final ConnectingIOReactor ioReactor;
+
+    public TimingConnectingIOReactor(ConnectingIOReactor ioReactor) {
+        this.ioReactor = ioReactor;
+    }
+
+    @Override
+    public SessionRequest connect(SocketAddress remoteAddress,
+                                  SocketAddress localAddress,
+                                  Object attachment,
+                                  final SessionRequestCallback callback) {
+        final long started = System.nanoTime();
+        return ioReactor.connect(remoteAddress, localAddress, attachment, new SessionRequestCallback() {
+            @Override
+            public void completed(SessionRequest request) {
+                IOSession session = request.getSession();
+                if (session != null) {
+                    session.setAttribute(ConnectionTimings.ATTRIBUTE,
+                            new ConnectionTimings(System.nanoTime() - started));
+                }
+                if (callback != null) {
+                    callback.completed(request);
+                }
+            }
+
+            @Override
+            public void failed(SessionRequest request) {
+                if (callback != null) {
+                    callback.failed(request);
+                }
+            }
+
+            @Override
+            public void timeout(SessionRequest request) {
+                if (callback != null) {
+                    callback.timeout(request);
+                }
+            }
+
+            @Override
+            public void cancelled(SessionRequest request) {
+                if (callback != null) {
+                    callback.cancelled(request);
+                }
+            }
+        });
+    }
+
+    @Override
+    public IOReactorStatus getStatus() {
+        return ioReactor.getStatus();
+    }
+
+    @Override
+    public void execute(IOEventDispatch eventDispatch) throws IOException {
+        ioReactor.execute(eventDispatch);
+    }
+
+    @Override
+    public void shutdown(long waitMs) throws IOException {
+        ioReactor.shutdown(waitMs);
+    }
+
+    @Override
+    public void shutdown() throws IOException {
+        ioReactor.shutdown();
+    }
+}
@@ -0,0 +1,57 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import org.apache.http.concurrent.FutureCallback;
+import org.apache.http.conn.routing.HttpRoute;
+import org.apache.http.nio.NHttpClientConnection;
+import org.apache.http.nio.conn.NHttpClientConnectionManager;
+
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An NHttpClientConnectionManager which stamps each connection with the time
+ * it was leased, so that the request it was leased to can record how long it
+ * waited for it.
+ */
+public class TimingConnectionManager extends ForwardingConnectionManager {
+
+    public TimingConnectionManager(NHttpClientConnectionManager connectionManager) {
+        super(connectionManager);
+    }
+
+    @Override
+    public Future<NHttpClientConnection> requestConnection(HttpRoute route,
+                                                           Object state,
+                                                           long connectTimeout,
+                                                           long connectionRequestTimeout,
+                                                           TimeUnit timeUnit,
+                                                           final FutureCallback<NHttpClientConnection> callback) {
+        return connectionManager.requestConnection(route, state, connectTimeout, connectionRequestTimeout,
+                timeUnit, new FutureCallback<NHttpClientConnection>() {
+                    @Override
+                    public void completed(NHttpClientConnection conn) {
+                        ConnectionTimings timings = ConnectionTimings.get(conn.getContext());
+                        if (timings != null) {
+                            timings.leased = System.nanoTime();
+                        }
+                        if (callback != null) {
+                            callback.completed(conn);
+                        }
+                    }
+
+                    @Override
+                    public void failed(Exception e) {
+                        if (callback != null) {
+                            callback.failed(e);
+                        }
+                    }
+
+                    @Override
+                    public void cancelled() {
+                        if (callback != null) {
+                            callback.cancelled();
+                        }
+                    }
+                });
+    }
+}
@@ -0,0 +1,55 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+import org.apache.http.HttpHost;
+import org.apache.http.nio.conn.ssl.SSLIOSessionStrategy;
+import org.apache.http.nio.reactor.IOSession;
+import org.apache.http.nio.reactor.ssl.SSLIOSession;
+
+import javax.net.ssl.HostnameVerifier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.IOException;
+
+/**
+ * An SSLIOSessionStrategy which records how long the TLS handshake of each
+ * connection took as part of its {@link ConnectionTimings}, and notifies any
+ * listener waiting for the handshake to complete.
+ */
+public class TimingSSLIOSessionStrategy extends SSLIOSessionStrategy {
+
+    public TimingSSLIOSessionStrategy(SSLContext sslContext,
+                                      String[] supportedProtocols,
+                                      String[] supportedCipherSuites,
+                                      HostnameVerifier hostnameVerifier) {
+        super(sslContext, supportedProtocols, supportedCipherSuites, hostnameVerifier);
+    }
+
+    @Override
+    public SSLIOSession upgrade(HttpHost host, IOSession ioSession) throws IOException {
+        ConnectionTimings timings = ConnectionTimings.get(ioSession);
+        if (timings != null) {
+            timings.tlsStarted = System.nanoTime();
+        }
+        return super.upgrade(host, ioSession);
+    }
+
+    @Override
+    protected void verifySession(HttpHost host, IOSession ioSession, SSLSession sslSession)
+            throws SSLException {
+        ConnectionTimings timings = ConnectionTimings.get(ioSession);
+        try {
+            super.verifySession(host, ioSession, sslSession);
+            if (timings != null) {
+                timings.tlsCompleted = System.nanoTime();
+            }
+        } finally {
+            // The listener is told of sessions which fail verification too,
+            // which it can tell apart by tlsCompleted being unset.
+            Runnable listener = timings == null ? null : timings.handshakeListener;
+            if (listener != null) {
+                listener.run();
+            }
+        }
+    }
+}
@@ -1,13 +1,18 @@
 package com.puppetlabs.http.client.impl.metrics;
 
 import com.codahale.metrics.Metric;
+import com.puppetlabs.http.client.metrics.Metrics;
 import com.puppetlabs.http.client.metrics.UrlAndMethodClientTimer;
 
 public class UrlAndMethodClientTimerFilter extends UrlClientTimerFilter {
     private final String method;
 
     public UrlAndMethodClientTimerFilter(String url, String method) {
-        super(url);
+        this(url, method, Metrics.MetricType.FULL_RESPONSE);
+    }
+
+    public UrlAndMethodClientTimerFilter(String url, String method, Metrics.MetricType metricType) {
+        super(url, metricType);
         this.method = method;
     }
 
@@ -15,7 +20,8 @@ public class UrlAndMethodClientTimerFilter extends UrlClientTimerFilter {
     public boolean matches(String s, Metric metric) {
         if (metric.getClass().equals(UrlAndMethodClientTimer.class)) {
             UrlAndMethodClientTimer timer = (UrlAndMethodClientTimer) metric;
-            return timer.getMethod().equals(this.method) &&
+            return timer.getMetricType() == this.getMetricType() &&
+                    timer.getMethod().equals(this.method) &&
                     timer.getUrl().equals(this.getUrl());
         }
         return false;
@@ -2,22 +2,34 @@ package com.puppetlabs.http.client.impl.metrics;
 
 import com.codahale.metrics.Metric;
 import com.codahale.metrics.MetricFilter;
+import com.puppetlabs.http.client.metrics.Metrics;
 import com.puppetlabs.http.client.metrics.UrlClientTimer;
 
 public class UrlClientTimerFilter implements MetricFilter {
     private final String url;
+    private final Metrics.MetricType metricType;
 
     public UrlClientTimerFilter(String url) {
+        this(url, Metrics.MetricType.FULL_RESPONSE);
+    }
+
+    public UrlClientTimerFilter(String url, Metrics.MetricType metricType) {
         this.url = url;
+        this.metricType = metricType;
     }
 
     protected String getUrl() {
         return url;
     }
 
+    protected Metrics.MetricType getMetricType() {
+        return metricType;
+    }
+
     @Override
     public boolean matches(String s, Metric metric) {
         return metric.getClass().equals(UrlClientTimer.class) &&
+                ((UrlClientTimer) metric).getMetricType() == metricType &&
                 ((UrlClientTimer) metric).
                         getUrl().equals(url);
     }
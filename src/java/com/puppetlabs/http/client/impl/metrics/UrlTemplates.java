@@ -0,0 +1,74 @@
+package com.puppetlabs.http.client.impl.metrics;
+
+/**
+ * A list of path templates, such as <code>/puppet/v3/catalog/{node}</code>,
+ * used to collapse request URLs which differ only in some path segments onto
+ * a single URL metric.
+ *
+ * A template matches a URL whose path has the same number of segments, with
+ * every literal segment equal and any <code>{...}</code> segment matching
+ * anything.  The first matching template wins.
+ */
+public class UrlTemplates {
+    private final String[] templates;
+    private final String[][] templateSegments;
+
+    public UrlTemplates(String[] templates) {
+        this.templates = templates.clone();
+        this.templateSegments = new String[templates.length][];
+        for (int i = 0; i < templates.length; i++) {
+            String template = templates[i];
+            if (template == null || !template.startsWith("/")) {
+                throw new IllegalArgumentException("URL metric template must be a path beginning with '/': " +
+                        template);
+            }
+            templateSegments[i] = template.substring(1).split("/", -1);
+        }
+    }
+
+    private static boolean isWildcard(String segment) {
+        return segment.length() >= 2 && segment.charAt(0) == '{' &&
+                segment.charAt(segment.length() - 1) == '}';
+    }
+
+    private static boolean matches(String[] segments, String url, int pathStart) {
+        int position = pathStart + 1;
+        for (int i = 0; i < segments.length; i++) {
+            if (position > url.length()) {
+                return false;
+            }
+            int end = url.indexOf('/', position);
+            if (end < 0) {
+                end = url.length();
+            }
+            String segment = segments[i];
+            if (!isWildcard(segment) &&
+                    !(segment.length() == end - position &&
+                            url.regionMatches(position, segment, 0, segment.length()))) {
+                return false;
+            }
+            position = end + 1;
+        }
+        // Every segment of the path must have been consumed.
+        return position == url.length() + 1;
+    }
+
+    /**
+     * @param url an absolute URL with no query string or fragment
+     * @return the URL with its path replaced by the first matching template,
+     * or the URL unchanged if no template matches.
+     */
+    public String apply(String url) {
+        int scheme = url.indexOf("://");
+        int pathStart = url.indexOf('/', scheme < 0 ? 0 : scheme + 3);
+        if (pathStart < 0) {
+            return url;
+        }
+        for (int i = 0; i < templates.length; i++) {
+            if (matches(templateSegments[i], url, pathStart)) {
+                return url.substring(0, pathStart) + templates[i];
+            }
+        }
+        return url;
+    }
+}
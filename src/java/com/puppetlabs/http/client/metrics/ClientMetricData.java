@@ -24,5 +24,25 @@ public abstract class ClientMetricData {
     public Long getAggregate() {
         return timerMetricData.getAggregate();
     }
+
+    public Long getP50() {
+        return timerMetricData.getP50Millis();
+    }
+
+    public Long getP95() {
+        return timerMetricData.getP95Millis();
+    }
+
+    public Long getP99() {
+        return timerMetricData.getP99Millis();
+    }
+
+    public Long getP999() {
+        return timerMetricData.getP999Millis();
+    }
+
+    public Long getMax() {
+        return timerMetricData.getMaxMillis();
+    }
 }
 
@@ -1,5 +1,6 @@
 package com.puppetlabs.http.client.metrics;
 
+import com.codahale.metrics.Reservoir;
 import com.codahale.metrics.Timer;
 
 public abstract class ClientTimer  extends Timer {
@@ -13,6 +14,12 @@ public abstract class ClientTimer  extends Timer {
         this.metricType = metricType;
     }
 
+    ClientTimer(String metricName, Metrics.MetricType metricType, Reservoir reservoir) {
+        super(reservoir);
+        this.metricName = metricName;
+        this.metricType = metricType;
+    }
+
     public String getMetricName() {
         return metricName;
     }
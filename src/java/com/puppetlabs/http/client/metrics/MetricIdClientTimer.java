@@ -1,5 +1,7 @@
 package com.puppetlabs.http.client.metrics;
 
+import com.codahale.metrics.Reservoir;
+
 import java.util.List;
 
 public class MetricIdClientTimer extends ClientTimer {
@@ -12,6 +14,12 @@ public class MetricIdClientTimer extends ClientTimer {
         this.metricId = metricId;
     }
 
+    public MetricIdClientTimer(String metricName, List<String> metricId,
+                               Metrics.MetricType metricType, Reservoir reservoir) {
+        super(metricName, metricType, reservoir);
+        this.metricId = metricId;
+    }
+
     public List<String> getMetricId() {
         return metricId;
     }
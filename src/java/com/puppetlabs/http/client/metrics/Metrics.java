@@ -27,6 +27,18 @@ public class Metrics {
     public static final String NAMESPACE_URL_AND_METHOD = "with-url-and-method";
     public static final String NAMESPACE_METRIC_ID = "with-metric-id";
     public static final String NAMESPACE_FULL_RESPONSE = "full-response";
+    public static final String NAMESPACE_QUEUE_WAIT = "queue-wait";
+    public static final String NAMESPACE_CONNECT = "connect";
+    public static final String NAMESPACE_TLS_HANDSHAKE = "tls-handshake";
+    public static final String NAMESPACE_TIME_TO_FIRST_BYTE = "time-to-first-byte";
+    public static final String NAMESPACE_BUFFER_POOL = "buffer-pool";
+    public static final String NAMESPACE_CALLBACK_EXECUTOR = "callback-executor";
+    public static final String NAMESPACE_REQUESTS = "requests";
+    public static final String NAMESPACE_URL_METRICS = "url-metrics";
+    public static final String NAMESPACE_CONNECTION_POOL = "connection-pool";
+    public static final String NAMESPACE_CIRCUIT_BREAKER = "circuit-breaker";
+    public static final String NAMESPACE_RESPONSE_CACHE = "response-cache";
+    public static final String NAMESPACE_ROUTE = "with-route";
     private static final Logger LOGGER = LoggerFactory.getLogger(Metrics.class);
 
     public static String buildMetricNamespace(String metricPrefix, String serverId) {
@@ -44,9 +56,57 @@ public class Metrics {
         }
     }
 
-    public enum MetricType { FULL_RESPONSE }
+    /**
+     * The part of a request a ClientTimer times.
+     * <ul>
+     * <li><code>FULL_RESPONSE</code>: the whole request, from being issued
+     * until the response has been fully received.</li>
+     * <li><code>QUEUE_WAIT</code>: from being issued until a connection was
+     * leased from the pool, including opening it if the pool had to.</li>
+     * <li><code>CONNECT</code>: establishing the TCP connection, for requests
+     * which opened a new one.</li>
+     * <li><code>TLS_HANDSHAKE</code>: the TLS handshake, for requests which
+     * opened a new TLS connection.</li>
+     * <li><code>TIME_TO_FIRST_BYTE</code>: from the request having been sent
+     * until the head of the response arrived.</li>
+     * </ul>
+     * Only <code>FULL_RESPONSE</code> timers are recorded unless the client
+     * was created with phase metrics enabled.
+     */
+    public enum MetricType {
+        FULL_RESPONSE(NAMESPACE_FULL_RESPONSE),
+        QUEUE_WAIT(NAMESPACE_QUEUE_WAIT),
+        CONNECT(NAMESPACE_CONNECT),
+        TLS_HANDSHAKE(NAMESPACE_TLS_HANDSHAKE),
+        TIME_TO_FIRST_BYTE(NAMESPACE_TIME_TO_FIRST_BYTE);
+
+        private final String namespace;
+
+        MetricType(String namespace) {
+            this.namespace = namespace;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+    }
     public enum MetricCategory { URL, URL_AND_METHOD, METRIC_ID }
 
+    /**
+     * The Reservoirs a client's timers can sample their durations into.
+     * <ul>
+     * <li><code>EXPONENTIALLY_DECAYING</code>: the Dropwizard default, a
+     * sample of 1028 values biased towards the last five minutes.</li>
+     * <li><code>SLIDING_TIME_WINDOW</code>: every value recorded in the
+     * window, giving exact percentiles at the cost of memory proportional to
+     * the request rate.</li>
+     * <li><code>HISTOGRAM</code>: an HDR-style bucketed histogram over the
+     * window, with fixed memory, percentiles to within about 3%, and no
+     * allocation when a value is recorded.</li>
+     * </ul>
+     */
+    public enum ReservoirType { EXPONENTIALLY_DECAYING, SLIDING_TIME_WINDOW, HISTOGRAM }
+
     public static String urlToMetricUrl(String uriString) throws URISyntaxException {
         final URI uri = new URI(uriString);
         final URI convertedUri = new URI(uri.getScheme(), null, uri.getHost(),
@@ -85,14 +145,19 @@ public class Metrics {
     }
 
     public static ClientTimerContainer getClientMetrics(MetricRegistry metricRegistry){
+        return getClientMetrics(metricRegistry, MetricType.FULL_RESPONSE);
+    }
+
+    public static ClientTimerContainer getClientMetrics(MetricRegistry metricRegistry,
+                                                        MetricType metricType){
         if (metricRegistry != null) {
             return new ClientTimerContainer(
                     getUrlClientTimerArray(metricRegistry,
-                            new CategoryClientTimerMetricFilter(MetricCategory.URL)),
+                            new CategoryClientTimerMetricFilter(MetricCategory.URL, metricType)),
                     getUrlAndMethodClientTimerArray(metricRegistry,
-                            new CategoryClientTimerMetricFilter(MetricCategory.URL_AND_METHOD)),
+                            new CategoryClientTimerMetricFilter(MetricCategory.URL_AND_METHOD, metricType)),
                     getMetricIdClientTimerArray(metricRegistry,
-                            new CategoryClientTimerMetricFilter(MetricCategory.METRIC_ID)));
+                            new CategoryClientTimerMetricFilter(MetricCategory.METRIC_ID, metricType)));
         } else {
             throw new IllegalArgumentException("Metric registry must not be null");
         }
@@ -100,9 +165,15 @@ public class Metrics {
 
     public static List<UrlClientTimer> getClientMetricsByUrl(MetricRegistry metricRegistry,
                                                                final String url){
+        return getClientMetricsByUrl(metricRegistry, url, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<UrlClientTimer> getClientMetricsByUrl(MetricRegistry metricRegistry,
+                                                             final String url,
+                                                             final MetricType metricType){
         if (metricRegistry != null) {
             return getUrlClientTimerArray(metricRegistry,
-                    new UrlClientTimerFilter(url));
+                    new UrlClientTimerFilter(url, metricType));
         } else {
             throw new IllegalArgumentException("Metric registry must not be null");
         }
@@ -111,9 +182,16 @@ public class Metrics {
     public static List<UrlAndMethodClientTimer> getClientMetricsByUrlAndMethod(MetricRegistry metricRegistry,
                                                                         final String url,
                                                                         final String method){
+        return getClientMetricsByUrlAndMethod(metricRegistry, url, method, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<UrlAndMethodClientTimer> getClientMetricsByUrlAndMethod(MetricRegistry metricRegistry,
+                                                                               final String url,
+                                                                               final String method,
+                                                                               final MetricType metricType){
         if (metricRegistry != null) {
             return getUrlAndMethodClientTimerArray(metricRegistry,
-                    new UrlAndMethodClientTimerFilter(url, method));
+                    new UrlAndMethodClientTimerFilter(url, method, metricType));
         } else {
             throw new IllegalArgumentException("Metric registry must not be null");
         }
@@ -121,13 +199,20 @@ public class Metrics {
 
     public static List<MetricIdClientTimer> getClientMetricsByMetricId(MetricRegistry metricRegistry,
                                                                     final String[] metricId){
+        return getClientMetricsByMetricId(metricRegistry, metricId, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<MetricIdClientTimer> getClientMetricsByMetricId(MetricRegistry metricRegistry,
+                                                                       final String[] metricId,
+                                                                       final MetricType metricType){
         if (metricRegistry != null) {
             if (metricId.length == 0) {
                 return getMetricIdClientTimerArray(metricRegistry,
-                        new CategoryClientTimerMetricFilter(MetricCategory.METRIC_ID));
+                        new CategoryClientTimerMetricFilter(MetricCategory.METRIC_ID, metricType));
             } else {
                 return getMetricIdClientTimerArray(metricRegistry,
-                        new MetricIdClientTimerFilter(new ArrayList<String>(Arrays.asList(metricId))));
+                        new MetricIdClientTimerFilter(new ArrayList<String>(Arrays.asList(metricId)),
+                                metricType));
             }
         } else {
             throw new IllegalArgumentException("Metric registry must not be null");
@@ -181,8 +266,13 @@ public class Metrics {
     }
 
     public static ClientMetricDataContainer getClientMetricsData(MetricRegistry metricRegistry){
+        return getClientMetricsData(metricRegistry, MetricType.FULL_RESPONSE);
+    }
+
+    public static ClientMetricDataContainer getClientMetricsData(MetricRegistry metricRegistry,
+                                                                 MetricType metricType){
         if ( metricRegistry != null ) {
-            ClientTimerContainer timers = getClientMetrics(metricRegistry);
+            ClientTimerContainer timers = getClientMetrics(metricRegistry, metricType);
             return new ClientMetricDataContainer(computeUrlClientMetricsData(timers.getUrlTimers()), computeUrlAndMethodClientMetricsData(timers.getUrlAndMethodTimers()), computeMetricIdClientMetricsData(timers.getMetricIdTimers())
             );
         } else {
@@ -192,20 +282,40 @@ public class Metrics {
 
     public static List<UrlClientMetricData> getClientMetricsDataByUrl(MetricRegistry metricRegistry,
                                                                         String url){
-        List<UrlClientTimer> timers = getClientMetricsByUrl(metricRegistry, url);
+        return getClientMetricsDataByUrl(metricRegistry, url, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<UrlClientMetricData> getClientMetricsDataByUrl(MetricRegistry metricRegistry,
+                                                                      String url,
+                                                                      MetricType metricType){
+        List<UrlClientTimer> timers = getClientMetricsByUrl(metricRegistry, url, metricType);
         return computeUrlClientMetricsData(timers);
     }
 
     public static List<UrlAndMethodClientMetricData> getClientMetricsDataByUrlAndMethod(MetricRegistry metricRegistry,
                                                                                  String url,
                                                                                  String method){
-        List<UrlAndMethodClientTimer> timers = getClientMetricsByUrlAndMethod(metricRegistry, url, method);
+        return getClientMetricsDataByUrlAndMethod(metricRegistry, url, method, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<UrlAndMethodClientMetricData> getClientMetricsDataByUrlAndMethod(MetricRegistry metricRegistry,
+                                                                                        String url,
+                                                                                        String method,
+                                                                                        MetricType metricType){
+        List<UrlAndMethodClientTimer> timers = getClientMetricsByUrlAndMethod(metricRegistry, url, method,
+                metricType);
         return computeUrlAndMethodClientMetricsData(timers);
     }
 
     public static List<MetricIdClientMetricData> getClientMetricsDataByMetricId(MetricRegistry metricRegistry,
                                                                                 String[] metricId){
-        List<MetricIdClientTimer> timers = getClientMetricsByMetricId(metricRegistry, metricId);
+        return getClientMetricsDataByMetricId(metricRegistry, metricId, MetricType.FULL_RESPONSE);
+    }
+
+    public static List<MetricIdClientMetricData> getClientMetricsDataByMetricId(MetricRegistry metricRegistry,
+                                                                                String[] metricId,
+                                                                                MetricType metricType){
+        List<MetricIdClientTimer> timers = getClientMetricsByMetricId(metricRegistry, metricId, metricType);
         return computeMetricIdClientMetricsData(timers);
     }
 }
@@ -1,5 +1,7 @@
 package com.puppetlabs.http.client.metrics;
 
+import com.codahale.metrics.Reservoir;
+
 public class UrlAndMethodClientTimer extends UrlClientTimer {
     private final String method;
 
@@ -9,6 +11,12 @@ public class UrlAndMethodClientTimer extends UrlClientTimer {
         this.method = method;
     }
 
+    public UrlAndMethodClientTimer(String metricName, String url, String method,
+                                   Metrics.MetricType metricType, Reservoir reservoir) {
+        super(metricName, url, metricType, reservoir);
+        this.method = method;
+    }
+
     public String getMethod() {
         return method;
     }
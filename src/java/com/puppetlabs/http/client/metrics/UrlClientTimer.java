@@ -1,5 +1,7 @@
 package com.puppetlabs.http.client.metrics;
 
+import com.codahale.metrics.Reservoir;
+
 public class UrlClientTimer extends ClientTimer {
     private final String url;
 
@@ -8,6 +10,12 @@ public class UrlClientTimer extends ClientTimer {
         this.url = url;
     }
 
+    public UrlClientTimer(String metricName, String url, Metrics.MetricType metricType,
+                          Reservoir reservoir) {
+        super(metricName, metricType, reservoir);
+        this.url = url;
+    }
+
     public String getUrl() {
         return url;
     }
@@ -1,10 +1,25 @@
 (ns com.puppetlabs.http.client.impl.java-client-test
-  (:import (com.puppetlabs.http.client.impl JavaClient)
+  (:import (com.codahale.metrics MetricRegistry Timer)
+           (com.puppetlabs.http.client.impl AdmissionControl BufferPool ChunkQueueInputStream
+                                            CompletableResponse HedgeBudget JavaClient Promise RequestHedger
+                                            SharedClients)
            (org.apache.commons.io IOUtils)
-           (com.puppetlabs.http.client ResponseBodyType RequestOptions)
+           (com.puppetlabs.http.client AsyncHttpClient ClientOptions HedgePolicy
+                                       RequestRejectedException Response ResponseBodyType
+                                       RequestOptions SyncHttpClient)
+           (org.apache.http HttpHost)
+           (org.apache.http.conn.routing HttpRoute)
            (org.apache.http.entity ContentType)
-           (java.io ByteArrayInputStream))
-  (:require [clojure.test :refer :all]))
+           (org.apache.http.pool ConnPoolControl PoolStats)
+           (org.apache.http.nio ContentDecoder IOControl)
+           (java.io ByteArrayInputStream File IOException)
+           (java.nio ByteBuffer)
+           (java.nio.file Files)
+           (java.nio.file.attribute FileAttribute)
+           (java.util.concurrent ExecutionException TimeUnit)
+           (java.util.function LongSupplier))
+  (:require [clojure.java.io :as io]
+            [clojure.test :refer :all]))
 
 ;; NOTE: there are more comprehensive, end-to-end tests for
 ;; the Java client functionality lumped in with the clojure
@@ -58,3 +73,257 @@
   (testing "a null response body is coerced into a string by JavaClient.coerceBodyType"
     (let [body nil]
       (is (= "" (JavaClient/coerceBodyType body ResponseBodyType/TEXT nil))))))
+
+(deftest shared-clients-test
+  (let [options #(-> (ClientOptions.) (.setConnectTimeoutMilliseconds %))]
+    (testing "leases for the same options share a client"
+      (let [cache (SharedClients. 2 60000)]
+        (with-open [a (.acquire cache (options 100))
+                    b (.acquire cache (options 100))
+                    c (.acquire cache (options 200))]
+          (is (identical? (.getClient a) (.getClient b)))
+          (is (not (identical? (.getClient a) (.getClient c))))
+          (is (= 2 (.size cache))))))
+    (testing "evicted clients are closed once their leases are released"
+      (let [cache (SharedClients. 1 60000)
+            a (.acquire cache (options 100))
+            b (.acquire cache (options 200))]
+        (is (= 1 (.size cache)))
+        (is (.isRunning (.getClient a)))
+        (.close a)
+        (is (not (.isRunning (.getClient a))))
+        (is (.isRunning (.getClient b)))
+        (.close b)))
+    (testing "idle clients are closed"
+      (let [now (atom 0)
+            cache (SharedClients. 2 100 (reify LongSupplier
+                                          (getAsLong [_] @now)))
+            lease (.acquire cache (options 100))
+            client (.getClient lease)]
+        (swap! now + (.toNanos TimeUnit/MILLISECONDS 200))
+        (testing "but not while they are leased"
+          (is (= 0 (.closeIdleClients cache)))
+          (is (.isRunning client)))
+        (.close lease)
+        (swap! now + (.toNanos TimeUnit/MILLISECONDS 99))
+        (is (= 0 (.closeIdleClients cache)))
+        (swap! now + (.toNanos TimeUnit/MILLISECONDS 1))
+        (is (= 1 (.closeIdleClients cache)))
+        (is (= 0 (.size cache)))
+        (is (not (.isRunning client)))))
+    (testing "replacing a PEM file leads to a new client"
+      (let [dir (.toFile (Files/createTempDirectory "shared-clients" (make-array FileAttribute 0)))
+            pem (fn [name]
+                  (let [file (File. dir name)]
+                    (io/copy (io/file "dev-resources/ssl" name) file)
+                    file))
+            cert (pem "cert.pem")
+            key (pem "key.pem")
+            ca-cert (pem "ca.pem")
+            ;; Fresh each time, since creating a client sets the options' SSL context
+            ssl-options #(doto (options 100)
+                           (.setSslCert (str cert))
+                           (.setSslKey (str key))
+                           (.setSslCaCert (str ca-cert)))
+            cache (SharedClients. 2 60000)]
+        (with-open [a (.acquire cache (ssl-options))
+                    b (.acquire cache (ssl-options))]
+          (is (identical? (.getClient a) (.getClient b)))
+          (.setLastModified cert (- (.lastModified cert) 60000))
+          (with-open [c (.acquire cache (ssl-options))]
+            (is (not (identical? (.getClient a) (.getClient c))))
+            (is (= 2 (.size cache)))))
+        (doseq [file (.listFiles dir)]
+          (.delete file))
+        (.delete dir)))
+    (testing "cached clients run on daemon threads"
+      (with-open [_lease (.acquire (SharedClients. 1 60000) (options 100))]
+        (let [threads (filter #(.startsWith (.getName ^Thread %) "shared-http-client")
+                              (keys (Thread/getAllStackTraces)))]
+          (is (seq threads))
+          (is (every? #(.isDaemon ^Thread %) threads)))))))
+
+(defn content-decoder
+  "A decoder which has `size` bytes of content, and which then either
+  completes or, given a failure, throws it."
+  ([size] (content-decoder size nil))
+  ([size failure]
+   (let [remaining (atom size)]
+     (reify ContentDecoder
+       (read [_ buffer]
+         (let [n (min @remaining (.remaining buffer))]
+           (when (and (zero? n) failure)
+             (throw failure))
+           (.put buffer (byte-array n))
+           (swap! remaining - n)
+           n))
+       (isCompleted [_]
+         (zero? @remaining))))))
+
+(def io-control
+  (reify IOControl
+    (requestInput [_])
+    (suspendInput [_])
+    (requestOutput [_])
+    (suspendOutput [_])
+    (shutdown [_])))
+
+(deftest buffer-pool-test
+  (let [slab-size 8192
+        metric-registry (MetricRegistry.)
+        pool (BufferPool. slab-size 16 metric-registry "test")
+        meter-count #(.getCount (.meter metric-registry (str "test.buffer-pool." %)))
+        ;; Takes `n` slabs from the pool, and gives them back, returning how
+        ;; many of them the pool had to allocate.
+        allocated-by-acquiring (fn [n]
+                                 (let [misses (meter-count "misses")
+                                       slabs (doall (repeatedly n #(.acquire pool)))]
+                                   (doseq [slab slabs]
+                                     (.release pool slab))
+                                   (- (meter-count "misses") misses)))
+        stream (fn [promise]
+                 (ChunkQueueInputStream. promise pool (* 16 slab-size)))]
+    (testing "slabs are allocated once, and then reused"
+      (is (= 2 (allocated-by-acquiring 2)))
+      (is (= 0 (allocated-by-acquiring 2)))
+      (is (= 2 (meter-count "hits"))))
+    (testing "slabs are returned to the pool as a stream is read"
+      (let [final-result (doto (Promise.) (.deliver nil))
+            in (stream final-result)]
+        (.fill in (content-decoder (* 3 slab-size)) io-control)
+        (.endOfStream in)
+        (is (= (* 3 slab-size) (count (IOUtils/toByteArray in))))
+        (is (= 0 (allocated-by-acquiring 3)))))
+    (testing "slabs are returned to the pool when filling the stream fails"
+      (let [failure (IOException. "connection reset")
+            final-result (Promise.)
+            in (stream final-result)]
+        (is (thrown? IOException
+                     (.fill in (content-decoder (+ slab-size 100) failure) io-control)))
+        (.endOfStream in)
+        (.deliver final-result failure)
+        (is (thrown-with-msg? IOException #"connection reset"
+                              (IOUtils/toByteArray in)))
+        (is (= 0 (allocated-by-acquiring 3)))))
+    (testing "slabs are returned to the pool when the stream is closed early"
+      (let [final-result (doto (Promise.) (.deliver nil))
+            in (stream final-result)]
+        (.fill in (content-decoder (* 3 slab-size)) io-control)
+        (is (= 100 (.read in (byte-array 100))))
+        (.close in)
+        (is (= 0 (allocated-by-acquiring 3)))))
+    (testing "slabs of another size are not pooled"
+      (let [pool (BufferPool. slab-size 16 nil nil)]
+        (.release pool (ByteBuffer/allocate 16))
+        (is (= slab-size (.capacity (.acquire pool))))))))
+
+(defn fixed-pool
+  "A pool whose routes each have `max` connections, `leased` of them in use,
+  and whose total is the same."
+  [max leased]
+  (let [stats #(PoolStats. leased 0 (- max leased) max)]
+    (reify ConnPoolControl
+      (getTotalStats [_] (stats))
+      (getStats [_ _route] (stats)))))
+
+(deftest admission-control-test
+  (let [route-a (HttpRoute. (HttpHost. "a.example.com" 80))
+        route-b (HttpRoute. (HttpHost. "b.example.com" 80))
+        registry (MetricRegistry.)
+        rejected #(.getCount (.meter registry "puppetlabs.requests.rejected"))]
+    (testing "requests for a route with a free connection aren't queued"
+      (let [admission (AdmissionControl. 0 1 1 (fixed-pool 2 1) registry "puppetlabs")]
+        (.enqueue admission route-a)
+        (is (= 0 (.getQueued admission)))
+        (.dequeue admission route-a)))
+    (testing "a route's queue is limited"
+      (let [admission (AdmissionControl. 0 0 1 (fixed-pool 1 1) nil nil)]
+        (.enqueue admission route-a)
+        (is (= 1 (.getQueued admission)))
+        (is (thrown? RequestRejectedException (.enqueue admission route-a)))
+        (testing "apart from other routes'"
+          (.enqueue admission route-b)
+          (is (= 2 (.getQueued admission))))
+        (testing "and dequeuing frees its place"
+          (.dequeue admission route-a)
+          (.dequeue admission route-b)
+          (is (= 0 (.getQueued admission)))
+          (.enqueue admission route-a)
+          (is (= 1 (.getQueued admission))))))
+    (testing "the client's queue is limited"
+      (let [admission (AdmissionControl. 0 1 0 (fixed-pool 1 1) registry "puppetlabs")]
+        (.enqueue admission route-a)
+        (is (thrown? RequestRejectedException (.enqueue admission route-b)))
+        (is (= 1 (rejected)))
+        (is (= 1 (.getQueued admission)))))))
+
+(deftest hedge-budget-test
+  (let [withdrawals (fn [budget] (count (take-while true? (repeatedly #(.tryWithdraw budget)))))]
+    (testing "a new budget has nothing to spend until requests have paid for a hedge"
+      (let [budget (HedgeBudget.)]
+        (dotimes [_ 9] (.deposit budget 10))
+        (is (= 0 (withdrawals budget)))
+        (.deposit budget 10)
+        (is (= 1 (withdrawals budget)))))
+    (testing "hedges are limited to the percentage of requests"
+      (let [budget (HedgeBudget.)]
+        (dotimes [_ 50] (.deposit budget 10))
+        (is (= 5 (withdrawals budget)))))
+    (testing "at most ten hedges can be saved up"
+      (let [budget (HedgeBudget.)]
+        (dotimes [_ 1000] (.deposit budget 50))
+        (is (= 10 (withdrawals budget)))))
+    (testing "no hedges are paid for at 0%"
+      (let [budget (HedgeBudget.)]
+        (dotimes [_ 1000] (.deposit budget 0))
+        (is (= 0 (withdrawals budget)))))))
+
+(deftest hedge-delay-test
+  (let [timer-with (fn [n milliseconds]
+                     (let [timer (Timer.)]
+                       (dotimes [_ n] (.update timer milliseconds TimeUnit/MILLISECONDS))
+                       timer))
+        policy (doto (HedgePolicy.)
+                 (.setDelayMilliseconds 100)
+                 (.setDelayPercentile 0.9))]
+    (testing "the delay is the percentile of the url's recorded durations"
+      (is (= 40 (RequestHedger/getDelayMilliseconds policy (timer-with 20 40)))))
+    (testing "the fixed delay is used until enough durations are recorded"
+      (is (= 100 (RequestHedger/getDelayMilliseconds policy (timer-with 19 40)))))
+    (testing "the fixed delay is used without a timer"
+      (is (= 100 (RequestHedger/getDelayMilliseconds policy nil))))
+    (testing "the fixed delay is used without a percentile"
+      (is (= 100 (RequestHedger/getDelayMilliseconds (HedgePolicy.) (timer-with 20 40)))))
+    (testing "the delay is at least a millisecond"
+      (is (= 1 (RequestHedger/getDelayMilliseconds policy (timer-with 20 0)))))))
+
+(deftest default-client-methods-test
+  (let [promises (atom [])
+        client (reify AsyncHttpClient
+                 (^Promise get [_ ^RequestOptions options]
+                   (let [promise (Promise.)]
+                     (swap! promises conj [options promise])
+                     promise)))
+        options (RequestOptions. "http://localhost/")
+        deliver! (fn [response]
+                   (let [[[requested promise]] @promises]
+                     (reset! promises [])
+                     (.deliver promise (response requested))))]
+    (testing "the Async methods adapt the Promise methods by default"
+      (let [stage (.toCompletableFuture (.getAsync client options))]
+        (is (not (.isDone stage)))
+        (deliver! #(Response. % nil))
+        (is (= options (.getOptions (.get stage 1 TimeUnit/SECONDS))))))
+    (testing "completing exceptionally if the request fails"
+      (let [stage (.toCompletableFuture (.getAsync client options))
+            error (IOException. "failed")]
+        (deliver! #(Response. % error))
+        (is (= error (try (.get stage 1 TimeUnit/SECONDS)
+                          (catch ExecutionException e (.getCause e)))))))
+    (testing "even once the promise has been delivered"
+      (let [promise (doto (Promise.) (.deliver (Response. options nil)))
+            stage (.toCompletableFuture (CompletableResponse/of promise))]
+        (is (.isDone stage))))
+    (testing "warming up does nothing by default"
+      (is (.isDone (.toCompletableFuture (.warmUp client))))
+      (is (.isDone (.toCompletableFuture (.warmUp (reify SyncHttpClient))))))))
@@ -3,11 +3,13 @@
             [puppetlabs.http.client.metrics :as metrics]
             [schema.test :as schema-test])
   (:import (com.codahale.metrics MetricRegistry)
-           (com.puppetlabs.http.client.metrics Metrics)
+           (com.puppetlabs.http.client.metrics Metrics Metrics$ReservoirType)
            (org.apache.http.message BasicHttpRequest)
            (clojure.lang ExceptionInfo)
-           (com.puppetlabs.http.client.impl.metrics TimerUtils)
-           (java.net URISyntaxException)))
+           (com.puppetlabs.http.client.impl.metrics ClientTimerIndex HistogramReservoir Reservoirs
+                                                   TimerUtils UrlTemplates)
+           (java.net URISyntaxException)
+           (java.util.concurrent TimeUnit)))
 
 (use-fixtures :once schema-test/validate-schemas)
 
@@ -277,3 +279,89 @@
                          (Metrics/getClientMetricsDataByMetricId registry (into-array String []))))
                (set (map :metric-name
                          (metrics/get-client-metrics-data-by-metric-id registry [])))))))))
+
+
+(deftest url-templates-test
+  (let [templates (UrlTemplates. (into-array ["/catalog/{node}" "/{env}/files/x"]))]
+    (testing "a matching url has its path replaced by the template"
+      (is (= "http://test.com:8140/catalog/{node}"
+             (.apply templates "http://test.com:8140/catalog/foo.example.com")))
+      (is (= "http://test.com/{env}/files/x"
+             (.apply templates "http://test.com/production/files/x"))))
+    (testing "a url with a different number of segments is left alone"
+      (is (= "http://test.com/catalog"
+             (.apply templates "http://test.com/catalog")))
+      (is (= "http://test.com/catalog/foo/bar"
+             (.apply templates "http://test.com/catalog/foo/bar"))))
+    (testing "a url whose literal segments differ is left alone"
+      (is (= "http://test.com/production/files/y"
+             (.apply templates "http://test.com/production/files/y")))))
+  (testing "a template must be a path"
+    (is (thrown? IllegalArgumentException
+                 (UrlTemplates. (into-array ["catalog/{node}"]))))))
+
+(deftest client-timer-index-url-metrics-test
+  (let [url-id #(add-metric-ns (str "with-url.http://test.com/" % ".full-response"))
+        start-and-stop! (fn [index url]
+                          (doseq [context (.startFullResponseTimers
+                                           index (BasicHttpRequest. "GET" url) nil true)]
+                            (.stop context)))]
+    (testing "urls matching a template share its timers"
+      (let [registry (MetricRegistry.)
+            index (ClientTimerIndex. registry Metrics/DEFAULT_NAMESPACE_PREFIX
+                                     (UrlTemplates. (into-array ["/catalog/{node}"])) 0
+                                     Reservoirs/DEFAULT)]
+        (start-and-stop! index "http://test.com/catalog/one")
+        (start-and-stop! index "http://test.com/catalog/two?env=production")
+        (is (= #{(url-id "catalog/{node}")}
+               (set (map #(.getMetricName %)
+                         (Metrics/getClientMetricsDataByUrl registry "http://test.com/catalog/{node}")))))
+        (is (= 2 (.getCount (get (.getTimers registry) (url-id "catalog/{node}")))))))
+    (testing "the least recently used url is evicted once the cap is reached"
+      (let [registry (MetricRegistry.)
+            index (ClientTimerIndex. registry Metrics/DEFAULT_NAMESPACE_PREFIX nil 2
+                                     Reservoirs/DEFAULT)]
+        (start-and-stop! index "http://test.com/one")
+        (start-and-stop! index "http://test.com/two")
+        (start-and-stop! index "http://test.com/one")
+        (start-and-stop! index "http://test.com/three")
+        (is (= #{(url-id "one") (url-id "three")}
+               (set (filter #(.contains % "with-url.") (keys (.getTimers registry))))))
+        (is (= 2 (count (filter #(.contains % "with-url-and-method.")
+                                (keys (.getTimers registry))))))
+        (is (= 1 (.getCount (.meter registry (add-metric-ns "url-metrics.evicted")))))))))
+
+(deftest histogram-reservoir-test
+  (let [reservoir (HistogramReservoir. 60)
+        ms #(.toNanos TimeUnit/MILLISECONDS %)
+        within? (fn [expected actual]
+                  (<= (Math/abs (- expected actual)) (* 0.03 expected)))]
+    (doseq [i (range 1 1001)]
+      (.update reservoir (ms i)))
+    (let [snapshot (.getSnapshot reservoir)]
+      (testing "percentiles are within the bucket precision"
+        (is (within? (ms 500) (.getMedian snapshot)))
+        (is (within? (ms 990) (.get99thPercentile snapshot)))
+        (is (within? (ms 999) (.get999thPercentile snapshot))))
+      (testing "count, min, max and mean are exact"
+        (is (= 1000 (.size snapshot)))
+        (is (= (ms 1) (.getMin snapshot)))
+        (is (= (ms 1000) (.getMax snapshot)))
+        (is (= 5.005E8 (.getMean snapshot)))))))
+
+(deftest metric-data-percentiles-test
+  (testing "metric data reports percentiles from the configured reservoir"
+    (let [registry (MetricRegistry.)
+          index (ClientTimerIndex. registry Metrics/DEFAULT_NAMESPACE_PREFIX nil 0
+                                   (Reservoirs. Metrics$ReservoirType/HISTOGRAM 60))
+          [url-timer] (.startFullResponseTimers
+                       index (BasicHttpRequest. "GET" "http://test.com/one") nil true)]
+      (.stop url-timer)
+      (let [timer (get (.getTimers registry)
+                       (add-metric-ns "with-url.http://test.com/one.full-response"))]
+        (doseq [i (range 1 101)]
+          (.update timer i TimeUnit/MILLISECONDS))
+        (let [[data] (metrics/get-client-metrics-data-by-url registry "http://test.com/one")]
+          (is (= 101 (:count data)))
+          (is (<= 97 (:p99 data) 100))
+          (is (= 100 (:max data))))))))
@@ -12,10 +12,16 @@
             [puppetlabs.trapperkeeper.testutils.webserver :as testwebserver]
             [ring.middleware.cookies :refer [wrap-cookies]]
             [schema.test :as schema-test])
-  (:import (com.puppetlabs.http.client Async ClientOptions RequestOptions ResponseBodyType)
-           (java.net ServerSocket SocketTimeoutException URI URL)
-           (java.util Locale)
-           (java.util.concurrent CountDownLatch TimeUnit)
+  (:import (com.puppetlabs.http.client Async CircuitOpenException ClientOptions HttpClientException
+                                       RequestOptions RequestRejectedException ResponseBodyType Sync)
+           (com.puppetlabs.http.client.impl JavaClient)
+           (com.codahale.metrics MetricRegistry)
+           (java.io BufferedReader InputStreamReader)
+           (java.net ConnectException ServerSocket SocketTimeoutException URI URL)
+           (java.util Date Locale)
+           (java.util.concurrent CompletionException CountDownLatch ExecutionException Executors
+                                 ThreadFactory TimeUnit TimeoutException)
+           (org.apache.http.client.utils DateUtils)
            (org.apache.http.impl.nio.client HttpAsyncClients)))
 
 (use-fixtures :once schema-test/validate-schemas)
@@ -212,6 +218,158 @@
             (is (= "Hello, World!" (slurp (:body @response))))))
         (.close client)))))
 
+(deftest callback-executor-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver app port
+     (let [callback-threads (atom [])
+           executor (Executors/newFixedThreadPool
+                     4 (reify ThreadFactory
+                         (newThread [_ runnable]
+                           (Thread. runnable "test-callback"))))
+           client (JavaClient/createClient (doto (ClientOptions.)
+                                             (.setCallbackExecutor executor)))
+           callback (fn [response]
+                      (swap! callback-threads conj (.getName (Thread/currentThread)))
+                      response)
+           opts {:method :get :url (str "http://localhost:" port "/hello")}]
+       (try
+         (testing "callbacks run on the configured executor, not an I/O dispatcher thread"
+           (let [response @(async/request-with-client (assoc opts :as :text) callback client)]
+             (is (= "Hello, World!" (:body response)))
+             (is (= ["test-callback"] @callback-threads))))
+         (testing "an unbuffered stream delivers only its first outcome"
+           (reset! callback-threads [])
+           (let [response @(async/request-with-client (assoc opts :as :unbuffered-stream)
+                                                      callback client)]
+             (is (= "Hello, World!" (slurp (:body response))))
+             ;; The body having been consumed, the exchange completes again;
+             ;; wait for anything that might have been handed to the executor.
+             (.shutdown executor)
+             (is (.awaitTermination executor 5 TimeUnit/SECONDS))
+             (is (= ["test-callback"] @callback-threads))))
+         (finally
+           (.close client)
+           (.shutdownNow executor)))))))
+
+(defn- sleepy-app
+  "Returns an app which takes two seconds to respond to /slow."
+  [{:keys [uri]}]
+  (when (= "/slow" uri)
+    (Thread/sleep 2000))
+  {:status 200
+   :body "Hello, World!"})
+
+(deftest completion-stage-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver sleepy-app port
+     (let [metric-registry (MetricRegistry.)
+           url (fn [path] (str "http://localhost:" port path))]
+       (with-open [client (Async/createClient (doto (ClientOptions.)
+                                                (.setMetricRegistry metric-registry)
+                                                (.setMaxConnectionsPerRoute 1)
+                                                (.setConnectTimeoutMilliseconds 100)))]
+         (testing "an Async method's stage completes with the response"
+           (let [response (-> client
+                              (.getAsync (doto (RequestOptions. (url "/hello"))
+                                           (.setAs ResponseBodyType/TEXT)))
+                              (.toCompletableFuture)
+                              (.get 5 TimeUnit/SECONDS))]
+             (is (= 200 (.getStatus response)))
+             (is (= "Hello, World!" (.getBody response)))))
+         (testing "an Async method's stage completes exceptionally when the request fails"
+           (let [future (.toCompletableFuture (.getAsync client "http://localhost:12345/bad"))]
+             (is (thrown? ExecutionException (.get future 5 TimeUnit/SECONDS)))
+             (is (.isCompletedExceptionally future))
+             (is (instance? ConnectException
+                            (try
+                              (.join future)
+                              (catch CompletionException e
+                                (.getCause e)))))))
+         (testing "cancelling an Async method's future aborts the exchange"
+           (let [future (.toCompletableFuture (.getAsync client (url "/slow")))]
+             (Thread/sleep 200)
+             (is (.cancel future true))
+             (is (= 1 (.getCount (.meter metric-registry
+                                         "puppetlabs.http-client.experimental.requests.cancelled"))))
+             (testing "releasing the only connection to the host straight away"
+               (let [response (-> client
+                                  (.getAsync (url "/hello"))
+                                  (.toCompletableFuture)
+                                  (.get 1 TimeUnit/SECONDS))]
+                 (is (= 200 (.getStatus response))))))))))))
+
+(deftest promise-timeout-and-cancel-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver sleepy-app port
+     (let [url (fn [path] (str "http://localhost:" port path))]
+       (testing "java promises"
+         (with-open [client (Async/createClient (doto (ClientOptions.)
+                                                  (.setMaxConnectionsPerRoute 1)))]
+           (testing "a timed deref of an unfinished request times out"
+             (let [promise (.get client (url "/slow"))]
+               (is (thrown? TimeoutException (.deref promise 100 TimeUnit/MILLISECONDS)))
+               (testing "and cancelling it fails the promise"
+                 (is (.cancel promise))
+                 (let [response (.deref promise 1 TimeUnit/SECONDS)]
+                   (is (instance? HttpClientException (.getError response)))
+                   (is (= "Request cancelled" (.getMessage (.getError response))))))
+               (testing "and releases the only connection to the host straight away"
+                 (let [response (.deref (.get client (url "/hello")) 1 TimeUnit/SECONDS)]
+                   (is (= 200 (.getStatus response)))))))))
+       (testing "clojure promises"
+         (with-open [client (async/create-client {:max-connections-per-route 1})]
+           (testing "a timed deref of an unfinished request returns the timeout value"
+             (let [response (common/get client (url "/slow"))]
+               (is (= ::timed-out (deref response 100 ::timed-out)))
+               (testing "and cancelling it fails the promise"
+                 (is (future-cancel response))
+                 (is (future-cancelled? response))
+                 (is (instance? HttpClientException (:error (deref response 1000 nil)))))
+               (testing "and releases the only connection to the host straight away"
+                 (is (= 200 (:status (deref (common/get client (url "/hello")) 1000 nil)))))))))))))
+
+(deftest deadline-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver sleepy-app port
+     (let [metric-registry (MetricRegistry.)
+           deadline-name "puppetlabs.http-client.experimental.requests.deadline-exceeded"
+           leased #(-> (.getGauges metric-registry)
+                       (get "puppetlabs.http-client.experimental.connection-pool.leased")
+                       (.getValue))
+           url (fn [path] (str "http://localhost:" port path))]
+       (with-open [client (async/create-client {:max-connections-per-route 1
+                                                :metric-registry metric-registry})]
+         (testing "the requests meters aren't registered until they are marked"
+           (is (= 200 (:status @(common/get client (url "/hello")))))
+           (is (nil? (get (.getMeters metric-registry) deadline-name))))
+         (testing "a request to a slow server fails once its deadline passes"
+           (let [response (deref (common/get client (url "/slow") {:deadline-milliseconds 200})
+                                 1000 nil)]
+             (is (instance? TimeoutException (:error response)))
+             (is (= 1 (.getCount (get (.getMeters metric-registry) deadline-name))))
+             (testing "and returns its connection to the pool"
+               (is (= 0 (leased)))
+               (is (= 200 (:status (deref (common/get client (url "/hello")) 1000 nil)))))))
+         (testing "a callback blocking after its deadline doesn't hold up other clients' deadlines"
+           (let [blocked (CountDownLatch. 1)
+                 released (CountDownLatch. 1)]
+             (with-open [other-client (async/create-client {})]
+               (try
+                 (async/request-with-client {:method :get
+                                             :url (url "/slow")
+                                             :deadline-milliseconds 100}
+                                            (fn [response]
+                                              (.countDown blocked)
+                                              (.await released)
+                                              response)
+                                            other-client)
+                 (is (.await blocked 1 TimeUnit/SECONDS))
+                 (let [response (deref (common/get client (url "/slow") {:deadline-milliseconds 200})
+                                       1000 nil)]
+                   (is (instance? TimeoutException (:error response))))
+                 (finally
+                   (.countDown released)))))))))))
+
 (deftest query-params-test-async
   (testlogging/with-test-logging
     (testutils/with-app-with-config app
@@ -741,6 +899,72 @@
                (is (= true (.await countdown 5 TimeUnit/SECONDS)))
                (is (= 10 @actual-count)))))))))
 
+  (testing "client limits requests to routes given their own limit"
+    (let [actual-count (atom 0)
+          countdown (CountDownLatch. 6)
+          fake-app (fn [_]
+                     (swap! actual-count inc)
+                     (.countDown countdown)
+                     (.await countdown)
+                     {:status 200
+                      :body "Hello, World!"})]
+      (testlogging/with-test-logging
+       (testwebserver/with-test-webserver fake-app port
+         (let [url (str "http://localhost:" port "/hello")]
+           (testing "clojure persistent async client"
+             (with-open [client (async/create-client {:max-connections-per-route 2
+                                                      :max-connections-by-route
+                                                      {(str "localhost:" port) 5
+                                                       "https://localhost:9999" 1}})]
+               (dotimes [_n 10] (future (common/get client url {:as :text})))
+               (is (= false (.await countdown 1 TimeUnit/SECONDS)))
+               (is (= 5 @actual-count))
+               ;; Clear the latch so the webserver can shutdown
+               (clear-latch countdown))))))))
+
+  (testing "requests queued beyond the route's limit are rejected"
+    (let [actual-count (atom 0)
+          countdown (CountDownLatch. 3)
+          fake-app (fn [_]
+                     (swap! actual-count inc)
+                     (.countDown countdown)
+                     (.await countdown)
+                     {:status 200
+                      :body "Hello, World!"})]
+      (testlogging/with-test-logging
+       (testwebserver/with-test-webserver fake-app port
+         (let [url (str "http://localhost:" port "/hello")]
+           (testing "clojure persistent async client"
+             (with-open [client (async/create-client {:max-connections-per-route 2
+                                                      :max-queued-requests-per-route 1})]
+               (let [responses (doall (repeatedly 5 #(common/get client url {:as :text})))]
+                 (is (= false (.await countdown 1 TimeUnit/SECONDS)))
+                 (is (= 2 @actual-count))
+                 (testing "without waiting for a connection"
+                   (is (= 2 (count (filter #(instance? RequestRejectedException (:error (deref % 0 nil)))
+                                           responses))))))
+               ;; Clear the latch so the webserver can shutdown
+               (clear-latch countdown))))))))
+
+  (testing "requests beyond the in-flight limit are rejected"
+    (let [countdown (CountDownLatch. 4)
+          fake-app (fn [_]
+                     (.countDown countdown)
+                     (.await countdown)
+                     {:status 200
+                      :body "Hello, World!"})]
+      (testlogging/with-test-logging
+       (testwebserver/with-test-webserver fake-app port
+         (let [url (str "http://localhost:" port "/hello")]
+           (testing "clojure persistent async client"
+             (with-open [client (async/create-client {:max-connections-per-route 10
+                                                      :max-requests-in-flight 3})]
+               (let [responses (doall (repeatedly 5 #(common/get client url {:as :text})))]
+                 (is (= 2 (count (filter #(instance? RequestRejectedException (:error (deref % 1000 nil)))
+                                         (drop 3 responses))))))
+               ;; Clear the latch so the webserver can shutdown
+               (clear-latch countdown))))))))
+
   (testing "overall limit applies"
     (let [actual-count (atom 0)
           countdown (CountDownLatch. 4)
@@ -761,3 +985,430 @@
                (is (= 3 @actual-count))
                ;; Clear the latch so the webserver can shutdown
                (clear-latch countdown)))))))))
+
+(defn- io-dispatcher-count
+  []
+  (count (filter #(.startsWith (.getName ^Thread %) "I/O dispatcher")
+                 (keys (Thread/getAllStackTraces)))))
+
+(deftest io-reactor-options-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver app port
+     (let [url (str "http://localhost:" port "/hello")
+           before (io-dispatcher-count)]
+       (testing "clojure persistent async client"
+         (with-open [client (async/create-client
+                             {:io-thread-count 1
+                              :io-select-interval-milliseconds 200
+                              :socket-send-buffer-size 65536
+                              :socket-receive-buffer-size 65536
+                              :tcp-no-delay? false
+                              :socket-keep-alive? true})]
+           (let [response @(common/get client url {:as :text})]
+             (is (= 200 (:status response)))
+             (is (= "Hello, World!" (:body response))))
+           (is (= 1 (- (io-dispatcher-count) before)))))
+       (testing "java async client"
+         (with-open [client (Async/createClient (-> (ClientOptions.)
+                                                    (.setIoThreadCount 1)
+                                                    (.setTcpNoDelay false)))]
+           (let [response (-> client (.get (RequestOptions. url)) .deref)]
+             (is (= 200 (.getStatus response))))
+           (is (= 1 (- (io-dispatcher-count) before)))))))))
+
+(deftest client-group-test
+  (testlogging/with-test-logging
+   (testwebserver/with-test-webserver app port
+     (let [url (str "http://localhost:" port "/hello")
+           before (io-dispatcher-count)]
+       (with-open [group (async/create-client-group {:io-thread-count 1})]
+         (let [client-a (async/create-client {:client-group group})
+               client-b (async/create-client {:client-group group})]
+           (testing "clients in a group share its I/O threads"
+             (is (= 200 (:status @(common/get client-a url))))
+             (is (= 200 (:status @(common/get client-b url))))
+             (is (= 1 (- (io-dispatcher-count) before))))
+           (testing "java clients can join the group"
+             (with-open [client (Async/createClient (-> (ClientOptions.)
+                                                        (.setClientGroup group)))]
+               (is (= 200 (-> client (.get (RequestOptions. url)) .deref .getStatus)))))
+           (testing "closing a client leaves the rest of the group working"
+             (common/close client-a)
+             (is (= 200 (:status @(common/get client-b url)))))
+           (testing "closing the group stops its clients"
+             (.close group)
+             (is (some? (:error @(common/get client-b url))))
+             (common/close client-b))))))))
+
+(defn- flaky-app
+  "Returns an app which responds with a 503 to the first `failures` requests to
+  each path, and counts the requests it receives in `hits`."
+  [hits failures]
+  (fn [{:keys [uri]}]
+    (if (<= (get (swap! hits update uri (fnil inc 0)) uri) failures)
+      {:status 503
+       :headers {"Retry-After" "0"}
+       :body "Service Unavailable"}
+      {:status 200
+       :body "Hello, World!"})))
+
+(deftest retry-policy-test
+  (testlogging/with-test-logging
+   (let [hits (atom {})]
+     (testwebserver/with-test-webserver (flaky-app hits 2) port
+       (let [url (fn [path] (str "http://localhost:" port path))
+             metric-registry (MetricRegistry.)]
+         (with-open [client (async/create-client
+                             {:metric-registry metric-registry
+                              :retry-policy {:max-retries 3
+                                             :initial-backoff-milliseconds 10}})]
+           (testing "idempotent requests are retried until they succeed"
+             (let [response @(common/get client (url "/get") {:as :text})]
+               (is (= 200 (:status response)))
+               (is (= "Hello, World!" (:body response)))
+               (is (= 3 (get @hits "/get")))))
+           (testing "request bodies are replayed"
+             (let [response @(common/put client (url "/put") {:body "body"})]
+               (is (= 200 (:status response)))
+               (is (= 3 (get @hits "/put")))))
+           (testing "non-idempotent requests are not retried"
+             (let [response @(common/post client (url "/post") {:body "body"})]
+               (is (= 503 (:status response)))
+               (is (= 1 (get @hits "/post")))))
+           (testing "a request's retry policy overrides the client's"
+             (let [response @(common/get client (url "/off") {:retry-policy {:max-retries 0}})]
+               (is (= 503 (:status response)))
+               (is (= 1 (get @hits "/off"))))
+             (let [response @(common/get client (url "/once") {:retry-policy {:max-retries 1
+                                                                               :initial-backoff-milliseconds 10}})]
+               (is (= 503 (:status response)))
+               (is (= 2 (get @hits "/once")))))
+           (testing "retries are counted in metrics"
+             (let [meters (.getMeters metric-registry)]
+               (is (= 5 (.getCount (get meters "puppetlabs.http-client.experimental.requests.retried"))))
+               (is (= 1 (.getCount (get meters "puppetlabs.http-client.experimental.requests.retries-exhausted")))))))))
+     (testing "requests failing with an IOException are retried"
+       (with-open [server (ServerSocket. 0)]
+         (let [port (.getLocalPort server)
+               ;; Accept and drop the first connection, then answer the
+               ;; request sent on the second.
+               responder (future
+                           (.close (.accept server))
+                           (with-open [socket (.accept server)]
+                             (let [reader (BufferedReader. (InputStreamReader. (.getInputStream socket)))]
+                               (while (not (empty? (.readLine reader))))
+                               (doto (.getOutputStream socket)
+                                 (.write (.getBytes "HTTP/1.1 200 OK\r\nContent-Length: 2\r\nConnection: close\r\n\r\nok"))
+                                 (.flush)))))]
+           (with-open [client (async/create-client {:retry-policy {:initial-backoff-milliseconds 10}})]
+             (let [response @(common/get client (str "http://localhost:" port "/") {:as :text})]
+               @responder
+               (is (= 200 (:status response)))
+               (is (= "ok" (:body response)))))))))))
+
+(deftest circuit-breaker-test
+  (testlogging/with-test-logging
+   (let [hits (atom {})]
+     (testwebserver/with-test-webserver (flaky-app hits 4) port
+       (let [url (str "http://localhost:" port "/down")
+             metric-registry (MetricRegistry.)
+             state-gauge (str "puppetlabs.http-client.experimental.circuit-breaker.with-route.http://localhost:"
+                              port ".state")
+             state #(.getValue (get (.getGauges metric-registry) state-gauge))]
+         (with-open [client (async/create-client
+                             {:metric-registry metric-registry
+                              :circuit-breaker {:sliding-window-size 4
+                                                :minimum-requests 4
+                                                :open-duration-milliseconds 200}})]
+           (testing "failures are let through until the failure rate is reached"
+             (dotimes [_ 4]
+               (is (= 503 (:status @(common/get client url)))))
+             (is (= 2 (state))))
+           (testing "an open breaker rejects requests without sending them"
+             (let [response @(common/get client url)]
+               (is (instance? CircuitOpenException (:error response)))
+               (is (= 4 (get @hits "/down")))
+               (is (= 1 (.getCount (.meter metric-registry "puppetlabs.http-client.experimental.circuit-breaker.rejected"))))))
+           (testing "a successful trial request closes the breaker"
+             (Thread/sleep 250)
+             (is (= 200 (:status @(common/get client url))))
+             (is (= 0 (state)))
+             (is (= 200 (:status @(common/get client url))))))
+         (testing "the breaker's gauge is removed when the client is closed"
+           (is (nil? (get (.getGauges metric-registry) state-gauge)))))))))
+
+(defn- slow-first-app
+  "Returns an app which takes half a second to respond to the first request to
+  each path, and counts the requests it receives in `hits`."
+  [hits]
+  (fn [{:keys [uri]}]
+    (if (= 1 (get (swap! hits update uri (fnil inc 0)) uri))
+      (do (Thread/sleep 500)
+          {:status 200
+           :body "slow"})
+      {:status 200
+       :body "fast"})))
+
+(deftest hedge-policy-test
+  (testlogging/with-test-logging
+   (let [hits (atom {})]
+     (testwebserver/with-test-webserver (slow-first-app hits) port
+       (let [url (fn [path] (str "http://localhost:" port path))
+             metric-registry (MetricRegistry.)
+             hedge-policy {:delay-milliseconds 50
+                           :max-hedge-percent 100}]
+         (with-open [client (async/create-client {:metric-registry metric-registry})]
+           (testing "a slow request is answered by its hedge"
+             (let [response @(common/get client (url "/get") {:as :text
+                                                               :hedge-policy hedge-policy})]
+               (is (= 200 (:status response)))
+               (is (= "fast" (:body response)))
+               (is (= 2 (get @hits "/get")))))
+           (testing "non-idempotent requests are not hedged"
+             (let [response @(common/post client (url "/post") {:as :text
+                                                                 :body "body"
+                                                                 :hedge-policy hedge-policy})]
+               (is (= "slow" (:body response)))
+               (is (= 1 (get @hits "/post")))))
+           (testing "requests with a body are not hedged, even with idempotent methods"
+             (let [response @(common/put client (url "/put") {:as :text
+                                                               :body "body"
+                                                               :hedge-policy hedge-policy})]
+               (is (= 200 (:status response)))
+               (is (= "slow" (:body response)))
+               (is (= 1 (get @hits "/put")))))
+           (testing "requests without a hedge policy are not hedged"
+             (let [response @(common/get client (url "/plain") {:as :text})]
+               (is (= "slow" (:body response)))
+               (is (= 1 (get @hits "/plain")))))
+           (testing "hedges are counted in metrics"
+             (let [meters (.getMeters metric-registry)]
+               (is (= 1 (.getCount (get meters "puppetlabs.http-client.experimental.requests.hedged"))))
+               (is (= 1 (.getCount (get meters "puppetlabs.http-client.experimental.requests.hedges-won")))))))
+         (testing "hedges are limited to the policy's percentage of requests"
+           (let [budget-registry (MetricRegistry.)
+                 paths (map #(str "/budget-" %) (range 30))]
+             (with-open [client (async/create-client {:metric-registry budget-registry
+                                                      :max-connections-total 100
+                                                      :max-connections-per-route 100})]
+               ;; Thirty slow requests at 10% pay for three hedges.
+               (let [responses (doall (for [path paths]
+                                        (common/get client (url path) {:as :text
+                                                                       :hedge-policy {:delay-milliseconds 50
+                                                                                      :max-hedge-percent 10}})))
+                     statuses (mapv #(:status (deref %)) responses)
+                     hedged (-> (.getMeters budget-registry)
+                                (get "puppetlabs.http-client.experimental.requests.hedged")
+                                (.getCount))]
+                 (is (every? #{200} statuses))
+                 (is (<= 1 hedged 3))
+                 (is (= (+ 30 hedged) (reduce + (map #(get @hits %) paths)))))))))))))
+
+(deftest coalesce-requests-test
+  (testlogging/with-test-logging
+   (let [hits (atom {})]
+     (testwebserver/with-test-webserver (slow-first-app hits) port
+       (let [url (fn [path] (str "http://localhost:" port path))
+             metric-registry (MetricRegistry.)]
+         (with-open [client (async/create-client {:metric-registry metric-registry
+                                                  :coalesce-requests? true})]
+           (testing "identical requests in flight share one response"
+             (let [responses (doall (for [as [:text :stream :text :stream :text]]
+                                      (common/get client (url "/get") {:as as})))]
+               (is (= ["slow" "slow" "slow" "slow" "slow"]
+                      (map #(let [body (:body (deref %))]
+                              (if (string? body) body (slurp body)))
+                           responses)))
+               (is (= 1 (get @hits "/get")))))
+           (testing "requests with other headers are sent separately"
+             (let [first-response (common/get client (url "/headers") {:as :text})
+                   second-response (common/get client (url "/headers") {:as :text
+                                                                          :headers {"x-test" "1"}})]
+               (is (= "slow" (:body @first-response)))
+               (is (= "fast" (:body @second-response)))
+               (is (= 2 (get @hits "/headers")))))
+           (testing "non-idempotent requests are not coalesced"
+             (let [first-response (common/post client (url "/post") {:as :text :body "body"})
+                   second-response (common/post client (url "/post") {:as :text :body "body"})]
+               (is (= #{"slow" "fast"} (set [(:body @first-response) (:body @second-response)])))
+               (is (= 2 (get @hits "/post")))))
+           (testing "coalesced requests are counted in metrics"
+             (let [meters (.getMeters metric-registry)]
+               (is (= 4 (.getCount (get meters "puppetlabs.http-client.experimental.requests.coalesce-hits"))))
+               (is (= 3 (.getCount (get meters "puppetlabs.http-client.experimental.requests.coalesce-misses"))))))
+           (testing "leader cancelled or past its deadline, joiner still gets the response"
+             (let [leader (common/get client (url "/cancelled") {:as :text})
+                   joiner (common/get client (url "/cancelled") {:as :text})]
+               (future-cancel leader)
+               (is (= "slow" (:body @joiner)))
+               (is (= 1 (get @hits "/cancelled"))))
+             (let [leader (common/get client (url "/deadline") {:as :text
+                                                                 :deadline-milliseconds 100})
+                   joiner (common/get client (url "/deadline") {:as :text})]
+               (is (instance? TimeoutException (:error @leader)))
+               (is (= "slow" (:body @joiner)))
+               (is (= 1 (get @hits "/deadline")))))
+           (testing "the exchange is cancelled once every request in the flight is"
+             (let [misses #(.getCount (.meter metric-registry "puppetlabs.http-client.experimental.requests.coalesce-misses"))
+                   misses-before (misses)
+                   abandoned (doall (repeatedly 2 #(common/get client (url "/abandoned") {:as :text})))]
+               (run! future-cancel abandoned)
+               (testing "and the next identical request is sent rather than joining it"
+                 (is (= 200 (:status @(common/get client (url "/abandoned") {:as :text}))))
+                 (is (= (+ misses-before 2) (misses))))))))))))
+
+(def ^:private last-modified "Mon, 01 Jan 2024 00:00:00 GMT")
+
+(defn- caching-app
+  "Returns an app serving cacheable responses, and records the requests it
+  receives in `requests`, with their If-None-Match or If-Modified-Since
+  header:
+
+  * /fresh stays fresh for a minute, by its max-age
+  * /expires stays fresh for a minute, by its Expires header
+  * /etag must be revalidated, by its ETag
+  * /modified must be revalidated, by its Last-Modified date
+  * /retried-etag is /etag, but fails the first revalidation with a 503
+  * /vary stays fresh for a minute, and echoes the request's Accept-Language
+  * /resource stays fresh for a minute, and accepts POST requests
+  * /big/... stay fresh for a minute, with a 1000 byte body"
+  [requests]
+  (fn [{:keys [uri request-method headers]}]
+    (let [condition (or (get headers "if-none-match") (get headers "if-modified-since"))
+          recorded (swap! requests conj [uri condition])
+          times (fn [request] (count (filter #{request} recorded)))]
+      (cond
+        (= "/fresh" uri) {:status 200
+                          :headers {"Cache-Control" "max-age=60"}
+                          :body "fresh"}
+        (= "/expires" uri) {:status 200
+                            :headers {"Expires" (DateUtils/formatDate
+                                                 (Date. (+ (System/currentTimeMillis) 60000)))}
+                            :body "expires"}
+        (= "/etag" uri) (if (= "\"e1\"" condition)
+                          {:status 304
+                           :headers {"ETag" "\"e1\""}}
+                          {:status 200
+                           :headers {"Cache-Control" "no-cache"
+                                     "ETag" "\"e1\""}
+                           :body "tagged"})
+        (= "/modified" uri) (if (= last-modified condition)
+                              {:status 304}
+                              {:status 200
+                               :headers {"Cache-Control" "no-cache"
+                                         "Last-Modified" last-modified}
+                               :body "modified"})
+        (= "/retried-etag" uri) (cond
+                                  (nil? condition) {:status 200
+                                                    :headers {"Cache-Control" "no-cache"
+                                                              "ETag" "\"r1\""}
+                                                    :body "tagged"}
+                                  (= 1 (times [uri condition])) {:status 503
+                                                                 :headers {"Retry-After" "0"}}
+                                  :else {:status 304
+                                         :headers {"ETag" "\"r1\""}})
+        (= "/vary" uri) {:status 200
+                         :headers {"Cache-Control" "max-age=60"
+                                   "Vary" "Accept-Language"}
+                         :body (str (get headers "accept-language"))}
+        (= "/resource" uri) (if (= :get request-method)
+                              {:status 200
+                               :headers {"Cache-Control" "max-age=60"}
+                               :body "resource"}
+                              {:status 204})
+        (.startsWith uri "/big/") {:status 200
+                                   :headers {"Cache-Control" "max-age=60"}
+                                   :body (apply str (repeat 1000 "x"))}))))
+
+(deftest response-cache-test
+  (testlogging/with-test-logging
+   (let [requests (atom [])]
+     (testwebserver/with-test-webserver (caching-app requests) port
+       (let [url (fn [path] (str "http://localhost:" port path))
+             metric-registry (MetricRegistry.)
+             metric (fn [name] (str "puppetlabs.http-client.experimental.response-cache." name))
+             get-text (fn [client path & [opts]]
+                        (:body @(common/get client (url path) (merge {:as :text} opts))))]
+         (with-open [client (async/create-client {:metric-registry metric-registry
+                                                  :response-cache-max-bytes 65536})]
+           (testing "fresh responses are answered from the cache"
+             (is (= "fresh" (:body @(common/get client (url "/fresh") {:as :text}))))
+             (is (= "fresh" (:body @(common/get client (url "/fresh") {:as :text}))))
+             (is (= [["/fresh" nil]] @requests)))
+           (testing "stale responses are revalidated, and a 304 answered from the cache"
+             (reset! requests [])
+             (is (= "tagged" (:body @(common/get client (url "/etag") {:as :text}))))
+             (let [response @(common/get client (url "/etag") {:as :text})]
+               (is (= 200 (:status response)))
+               (is (= "tagged" (:body response))))
+             (is (= [["/etag" nil] ["/etag" "\"e1\""]] @requests)))
+           (testing "the cache is reported in metrics"
+             (let [meters (.getMeters metric-registry)]
+               (is (= 1 (.getCount (get meters (metric "hits")))))
+               (is (= 1 (.getCount (get meters (metric "revalidated")))))
+               (is (= 2 (.getCount (get meters (metric "misses")))))
+               (is (pos? (.getValue (get (.getGauges metric-registry) (metric "bytes")))))))
+           (testing "responses are fresh until their Expires date"
+             (reset! requests [])
+             (is (= "expires" (get-text client "/expires")))
+             (is (= "expires" (get-text client "/expires")))
+             (is (= [["/expires" nil]] @requests)))
+           (testing "responses are revalidated by their Last-Modified date"
+             (reset! requests [])
+             (is (= "modified" (get-text client "/modified")))
+             (is (= "modified" (get-text client "/modified")))
+             (is (= [["/modified" nil] ["/modified" last-modified]] @requests)))
+           (testing "retried revalidations are still conditional"
+             (reset! requests [])
+             (let [revalidated #(.getCount (get (.getMeters metric-registry) (metric "revalidated")))
+                   before (revalidated)
+                   retry-policy {:max-retries 1 :initial-backoff-milliseconds 10}]
+               (is (= "tagged" (get-text client "/retried-etag" {:retry-policy retry-policy})))
+               (is (= "tagged" (get-text client "/retried-etag" {:retry-policy retry-policy})))
+               (is (= [["/retried-etag" nil] ["/retried-etag" "\"r1\""] ["/retried-etag" "\"r1\""]]
+                      @requests))
+               (is (= 1 (- (revalidated) before)))))
+           (testing "stored responses are only used for requests matching their Vary headers"
+             (reset! requests [])
+             (is (= "fr" (get-text client "/vary" {:headers {"accept-language" "fr"}})))
+             (is (= "fr" (get-text client "/vary" {:headers {"accept-language" "fr"}})))
+             (is (= "de" (get-text client "/vary" {:headers {"accept-language" "de"}})))
+             (is (= [["/vary" nil] ["/vary" nil]] @requests)))
+           (testing "unsafe requests remove their URI's stored response"
+             (reset! requests [])
+             (is (= "resource" (get-text client "/resource")))
+             (is (= "resource" (get-text client "/resource")))
+             (is (= 204 (:status @(common/post client (url "/resource") {:body "body"}))))
+             (is (= "resource" (get-text client "/resource")))
+             ;; The first GET, the POST, and the GET after it.
+             (is (= 3 (count @requests)))))
+         (testing "the least recently used responses are removed once the cache is full"
+           (let [registry (MetricRegistry.)
+                 cached-bytes #(.getValue (get (.getGauges registry) (metric "bytes")))]
+             (with-open [client (async/create-client {:metric-registry registry
+                                                      :response-cache-max-bytes 4000})]
+               (doseq [path ["/big/1" "/big/2" "/big/3"]]
+                 (get-text client path))
+               (let [full (cached-bytes)]
+                 (is (< 3000 full 4000))
+                 (get-text client "/big/1")
+                 (reset! requests [])
+                 (get-text client "/big/4")
+                 (testing "and the size of the cache shrinks by what they held"
+                   (is (= full (cached-bytes))))
+                 (get-text client "/big/1")
+                 (get-text client "/big/2")
+                 (is (= [["/big/4" nil] ["/big/2" nil]] @requests))))))
+         (testing "the Java sync client caches responses too"
+           (reset! requests [])
+           (with-open [client (Sync/createClient (doto (ClientOptions.)
+                                                   (.setResponseCacheMaxBytes 65536)))]
+             (let [get-text #(-> client
+                                 (.get (doto (RequestOptions. (url %))
+                                         (.setAs ResponseBodyType/TEXT)))
+                                 (.getBody))]
+               (is (= "fresh" (get-text "/fresh")))
+               (is (= "fresh" (get-text "/fresh")))
+               (is (= "tagged" (get-text "/etag")))
+               (is (= "tagged" (get-text "/etag")))
+               (is (= [["/fresh" nil] ["/etag" nil] ["/etag" "\"e1\""]] @requests))))))))))
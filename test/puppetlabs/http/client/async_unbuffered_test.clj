@@ -5,11 +5,14 @@
             [puppetlabs.trapperkeeper.testutils.logging :as testlogging]
             [puppetlabs.trapperkeeper.testutils.webserver :as testwebserver]
             [schema.test :as schema-test])
-  (:import (com.puppetlabs.http.client Async ClientOptions RequestOptions ResponseBodyType)
+  (:import (com.codahale.metrics MetricRegistry)
+           (com.puppetlabs.http.client Async ClientOptions RequestOptions ResponseBodyType)
+           (com.puppetlabs.http.client.impl BufferPool ChunkQueueInputStream Promise)
            (java.io PipedInputStream PipedOutputStream)
            (java.net ConnectException SocketTimeoutException)
            (java.util UUID)
-           (java.util.concurrent TimeoutException)))
+           (java.util.concurrent TimeUnit TimeoutException)
+           (org.apache.http.nio ContentDecoder IOControl)))
 
 (use-fixtures :once schema-test/validate-schemas)
 
@@ -334,3 +337,87 @@
                                                                                          :as :unbuffered-stream})]
           (is (= 204 (:status response))))))))
 
+
+(deftest unbuffered-stream-backpressure-test
+  (testing "a slow reader suspends input at the high watermark and resumes it at half of it"
+    (let [high-watermark (* 64 1024)
+          events (atom [])
+          final-result (doto (Promise.) (.deliver nil))
+          in (ChunkQueueInputStream. final-result (BufferPool. 8192 16 nil nil) high-watermark)
+          io-control (reify IOControl
+                       (suspendInput [_]
+                         (swap! events conj [:suspend (.available in)]))
+                       (requestInput [_]
+                         (swap! events conj [:resume (.available in)]))
+                       (requestOutput [_])
+                       (suspendOutput [_])
+                       (shutdown [_]))
+          ;; A connection with far more content available than the watermark
+          decoder (reify ContentDecoder
+                    (read [_ buffer]
+                      (let [n (.remaining buffer)]
+                        (.put buffer (byte-array n))
+                        n))
+                    (isCompleted [_] false))
+          buf (byte-array 1000)]
+      (.fill in decoder io-control)
+      (is (= [[:suspend high-watermark]] @events))
+      (testing "and input stays suspended while the reader is above half of it"
+        (while (> (- (.available in) (count buf)) (/ high-watermark 2))
+          (.read in buf))
+        (is (= 1 (count @events))))
+      (.read in buf)
+      (let [[event queued] (second @events)]
+        (is (= :resume event))
+        (is (<= queued (/ high-watermark 2))))
+      (.close in))))
+
+(defn- big-and-small-app
+  "Serves `data` at /big, and a short body everywhere else."
+  [data]
+  (fn [{:keys [uri] :as request}]
+    (if (= "/big" uri)
+      ((streaming-handler data nil) request)
+      {:status 200
+       :body "small"})))
+
+(deftest unbuffered-stream-reactor-sharing-test
+  (testlogging/with-test-logging
+   (let [data (generate-data (* 4 1024 1024))]
+     (testwebserver/with-test-webserver-and-config
+      (big-and-small-app data) port {:shutdown-timeout-seconds 1}
+      (let [url (fn [path] (str "http://localhost:" port path))]
+        (testing "other connections on the same reactor keep making progress while a reader is slow"
+          (with-open [client (async/create-client {:io-thread-count 1
+                                                   :socket-timeout-milliseconds 20000})]
+            (let [{:keys [body]} @(common/get client (url "/big") {:as :unbuffered-stream
+                                                                   :decompress-body false})
+                  buf (make-array Byte/TYPE 4)]
+              (is (= 4 (.read body buf)))
+              ;; The big response is now suspended, rather than blocking the
+              ;; only I/O dispatcher thread.
+              (dotimes [_ 5]
+                (let [response (deref (common/get client (url "/small") {:as :text}) 5000 nil)]
+                  (is (= "small" (:body response)))))
+              (is (= (str data "yyyy") (str "xxxx" (slurp body)))))))
+        (testing "closing the stream early releases the connection"
+          (let [metric-registry (MetricRegistry.)
+                leased #(-> (.getGauges metric-registry)
+                            (get "puppetlabs.http-client.experimental.connection-pool.leased")
+                            (.getValue))]
+            (with-open [client (async/create-client {:max-connections-per-route 1
+                                                     :metric-registry metric-registry
+                                                     :socket-timeout-milliseconds 20000})]
+              (let [{:keys [body]} @(common/get client (url "/big") {:as :unbuffered-stream
+                                                                     :decompress-body false})]
+                (is (= 4 (.read body (make-array Byte/TYPE 4))))
+                (is (= 1 (leased)))
+                (try
+                  (.close body)
+                  (catch java.io.IOException _e
+                    ;; The exchange is aborted, which the stream may report
+                    nil)))
+              (testing "to a request which needs the only connection to the host"
+                (let [response (deref (common/get client (url "/small") {:as :text}) 5000 nil)]
+                  (is (= "small" (:body response)))))
+              (is (= 0 (leased)))))))))))
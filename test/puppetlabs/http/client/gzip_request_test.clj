@@ -3,9 +3,13 @@
                                        SimpleRequestOptions
                                        ResponseBodyType
                                        CompressType)
-           (java.io ByteArrayInputStream FilterInputStream)
+           (com.puppetlabs.http.client.impl GzipAsyncEntity)
+           (java.io ByteArrayInputStream ByteArrayOutputStream FilterInputStream)
            (java.net URI)
-           (java.util.zip GZIPInputStream))
+           (java.util Random)
+           (java.util.zip GZIPInputStream)
+           (org.apache.commons.io IOUtils)
+           (org.apache.http.nio ContentEncoder IOControl))
   (:require [clojure.test :refer :all]
             [cheshire.core :as cheshire]
             [schema.test :as schema-test]
@@ -136,3 +140,56 @@
                               :compress-request-body :gzip
                               :as :text})))
       (is @is-closed "input stream was not closed after request"))))
+
+(defn- produce
+  "Produces the entity's content the way the I/O reactor does, through an
+  encoder which takes at most `chunk-size` bytes per write, as a connection
+  whose send buffer keeps filling up would. Returns the decompressed content."
+  [entity chunk-size]
+  (let [out (ByteArrayOutputStream.)
+        completed (atom false)
+        encoder (reify ContentEncoder
+                  (write [_ src]
+                    (let [n (min chunk-size (.remaining src))
+                          chunk (byte-array n)]
+                      (.get src chunk)
+                      (.write out chunk)
+                      n))
+                  (complete [_] (reset! completed true))
+                  (isCompleted [_] @completed))
+        io-control (reify IOControl
+                     (requestInput [_])
+                     (suspendInput [_])
+                     (requestOutput [_])
+                     (suspendOutput [_])
+                     (shutdown [_]))]
+    (loop [calls 0]
+      (when (and (not @completed) (< calls 100000))
+        (.produceContent entity encoder io-control)
+        (recur (inc calls))))
+    (is @completed "the entity never completed the encoder")
+    (IOUtils/toByteArray (GZIPInputStream. (ByteArrayInputStream. (.toByteArray out))))))
+
+(deftest gzip-async-entity-test
+  ;; Random bytes barely compress, so this is many deflate buffers' worth.
+  (let [source (let [bytes (byte-array (* 100 1024))]
+                 (.nextBytes (Random. 42) bytes)
+                 bytes)]
+    (testing "a body larger than one deflate buffer is compressed whole"
+      (with-open [entity (GzipAsyncEntity. source)]
+        (is (= (seq source) (seq (produce entity 1000))))))
+    (testing "an InputStream source is compressed whole, and closed"
+      (let [is-closed (atom false)
+            entity (GzipAsyncEntity. (proxy [FilterInputStream] [(ByteArrayInputStream. source)]
+                                       (close []
+                                         (reset! is-closed true)
+                                         (proxy-super close))))]
+        (is (= (seq source) (seq (produce entity 1000))))
+        (.close entity)
+        (is @is-closed "input stream was not closed")))
+    (testing "a byte array source can be produced again after the entity is closed"
+      (let [entity (GzipAsyncEntity. source)]
+        (is (= (seq source) (seq (produce entity 5000))))
+        (.close entity)
+        (is (= (seq source) (seq (produce entity 700))))
+        (.close entity)))))
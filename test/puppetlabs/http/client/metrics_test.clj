@@ -14,9 +14,12 @@
   (:import (com.codahale.metrics MetricRegistry)
            (com.puppetlabs.http.client Async ClientOptions
                                        RequestOptions ResponseBodyType Sync)
-           (com.puppetlabs.http.client.metrics ClientMetricData ClientTimer Metrics)
+           (com.puppetlabs.http.client.metrics ClientMetricData ClientTimer Metrics
+                                               Metrics$MetricType)
+           (com.puppetlabs.http.client.impl ClientResources JavaClient)
            (java.net SocketTimeoutException)
-           (java.util.concurrent TimeoutException)))
+           (java.util.concurrent TimeUnit TimeoutException)
+           (org.apache.http.message BasicHttpRequest)))
 
 (use-fixtures :once schema-test/validate-schemas)
 
@@ -98,7 +101,10 @@
               (testing ".getMetricRegistry returns the associated MetricRegistry"
                 (is (instance? MetricRegistry client-metric-registry)))
               (testing "Metrics/getClientMetrics returns only http client metrics"
-                (is (= 11 (count all-metrics)))
+                ;; the client timers and "fake", the buffer pool's hits and misses meters,
+                ;; and the connection pool's lease-wait timer, reused and created meters,
+                ;; and its gauges, in total and for the route
+                (is (= 24 (count all-metrics)))
                 (is (= 10 (+ (count url-metrics)
                              (count url-and-method-metrics)
                              (count metric-id-metrics))))
@@ -191,7 +197,10 @@
               (testing "get-client-metric-registry returns the associated MetricRegistry"
                 (is (instance? MetricRegistry client-metric-registry)))
               (testing "get-client-metrics and get-client-metrics data return only http client metrics"
-                (is (= 11 (count all-metrics)))
+                ;; the client timers and "fake", the buffer pool's hits and misses meters,
+                ;; and the connection pool's lease-wait timer, reused and created meters,
+                ;; and its gauges, in total and for the route
+                (is (= 24 (count all-metrics)))
                 (is (= 10 (+ (count url-metrics)
                              (count url-and-method-metrics)
                              (count metric-id-metrics))))
@@ -284,7 +293,10 @@
               (testing ".getMetricRegistry returns the associated MetricRegistry"
                 (is (instance? MetricRegistry client-metric-registry)))
               (testing "Metrics/getClientMetrics returns only http client metrics"
-                (is (= 11 (count all-metrics)))
+                ;; the client timers and "fake", the buffer pool's hits and misses meters,
+                ;; and the connection pool's lease-wait timer, reused and created meters,
+                ;; and its gauges, in total and for the route
+                (is (= 24 (count all-metrics)))
                 (is (= 10 (+ (count url-metrics)
                              (count url-and-method-metrics)
                              (count metric-id-metrics))))
@@ -376,7 +388,10 @@
               (testing "get-client-metric-registry returns the associated MetricRegistry"
                 (is (instance? MetricRegistry client-metric-registry)))
               (testing "get-client-metrics and get-client-metrics data return only http client metrics"
-                (is (= 11 (count all-metrics)))
+                ;; the client timers and "fake", the buffer pool's hits and misses meters,
+                ;; and the connection pool's lease-wait timer, reused and created meters,
+                ;; and its gauges, in total and for the route
+                (is (= 24 (count all-metrics)))
                 (is (= 10 (+ (count url-metrics)
                              (count url-and-method-metrics)
                              (count metric-id-metrics))))
@@ -800,3 +815,227 @@
              (is (.isEmpty (.getUrlTimers client-metrics)))
              (is (.isEmpty (.getUrlAndMethodTimers client-metrics)))
              (is (= #{long-foo-name long-foo-bar-name} metric-names)))))))))
+
+(deftest phase-metrics-test
+  (testlogging/with-test-logging
+    (testutils/with-app-with-config
+     app
+     [jetty9/jetty9-service test-metric-web-service]
+     {:webserver {:port 10000}}
+     (testing "phase metrics are not recorded unless enabled"
+       (with-open [client (async/create-client {:metric-registry (MetricRegistry.)})]
+         @(common/get client hello-url {:metric-id ["foo"]})
+         (let [metric-registry (common/get-client-metric-registry client)]
+           (is (= 3 (count (filter #(instance? ClientTimer %)
+                                   (.values (.getTimers metric-registry))))))
+           (is (empty? (metrics/get-client-metrics-data-by-url
+                        metric-registry hello-url :queue-wait))))))
+     (testing "phase metrics are recorded for each url, url and method, and metric-id"
+       (with-open [client (async/create-client {:metric-registry (MetricRegistry.)
+                                                :enable-phase-metrics? true})]
+         (dotimes [_ 2]
+           (is (= 200 (:status @(common/get client hello-url {:metric-id ["foo"]})))))
+         (let [metric-registry (common/get-client-metric-registry client)
+               count-of (fn [metric-type]
+                          (let [data (metrics/get-client-metrics-data
+                                      metric-registry metric-type)]
+                            (map (comp :count first) ((juxt :url :url-and-method :metric-id) data))))]
+           (is (= [2 2 2] (count-of :full-response)))
+           (is (= [2 2 2] (count-of :queue-wait)))
+           (is (= [2 2 2] (count-of :time-to-first-byte)))
+           (testing "the connect time is only recorded by the request which opened the connection"
+             (is (= [1 1 1] (count-of :connect))))
+           (testing "no tls handshake is recorded for plain http"
+             (is (empty? (metrics/get-client-metrics-by-url
+                          metric-registry hello-url :tls-handshake))))
+           (is (= (format "%s.with-url.%s.time-to-first-byte" metric-namespace hello-url)
+                  (:metric-name (first (metrics/get-client-metrics-data-by-url
+                                        metric-registry hello-url :time-to-first-byte))))))))
+     (testing "phase metrics can be queried from java"
+       (with-open [client (Async/createClient (doto (ClientOptions.)
+                                                (.setMetricRegistry (MetricRegistry.))
+                                                (.setEnablePhaseMetrics true)))]
+         (-> client (.get (RequestOptions. hello-url)) (.deref))
+         (let [metric-registry (.getMetricRegistry client)]
+           (is (= 1 (count (Metrics/getClientMetricsByUrlAndMethod
+                            metric-registry hello-url "GET" Metrics$MetricType/QUEUE_WAIT))))
+           (is (= 1 (count (Metrics/getClientMetricsByUrl metric-registry hello-url))))))))))
+
+(deftest client-timer-index-test
+  (let [request (BasicHttpRequest. "GET" short-url)
+        other-namespace "other-prefix.http-client.experimental"
+        create-client #(JavaClient/createClient
+                        (doto (ClientOptions.)
+                          (.setMetricRegistry %1)
+                          (.setMetricPrefix %2)))
+        get-short! (fn [client metric-registry namespace]
+                     @(async/request-with-client {:method :get :url short-url} nil
+                                                 client metric-registry namespace))
+        timer (fn [metric-registry name] (get (.getTimers metric-registry) name))
+        timer-index #(.getTimerIndex (ClientResources/of %))]
+    (testlogging/with-test-logging
+     (testutils/with-app-with-config
+      app
+      [jetty9/jetty9-service test-metric-web-service]
+      {:webserver {:port 10000}}
+      (testing "a client's timers are resolved through its own index"
+        (let [metric-registry (MetricRegistry.)]
+          (with-open [client (create-client metric-registry nil)]
+            (is (nil? (.findFullResponseTimer (timer-index client) request)))
+            (get-short! client metric-registry metric-namespace)
+            (is (identical? (timer metric-registry short-name-with-get)
+                            (.findFullResponseTimer (timer-index client) request)))
+            (is (= 1 (.getCount (timer metric-registry short-name-with-get))))
+            (testing "but not for another registry"
+              (let [other-registry (MetricRegistry.)]
+                (get-short! client other-registry metric-namespace)
+                (is (= 1 (.getCount (timer other-registry short-name-with-get))))
+                (is (identical? (timer metric-registry short-name-with-get)
+                                (.findFullResponseTimer (timer-index client) request)))
+                (is (= 1 (.getCount (timer metric-registry short-name-with-get)))))))))
+      (testing "two clients sharing a registry"
+        (testing "in the same namespace share its timers"
+          (let [metric-registry (MetricRegistry.)]
+            (with-open [client-a (create-client metric-registry nil)
+                        client-b (create-client metric-registry nil)]
+              (get-short! client-a metric-registry metric-namespace)
+              (get-short! client-b metric-registry metric-namespace)
+              (let [shared (timer metric-registry short-name-with-get)]
+                (is (= 2 (.getCount shared)))
+                (is (identical? shared (.findFullResponseTimer (timer-index client-a) request)))
+                (is (identical? shared (.findFullResponseTimer (timer-index client-b) request)))))))
+        (testing "in different namespaces keep timers of their own"
+          (let [metric-registry (MetricRegistry.)
+                other-name (str other-namespace ".with-url-and-method." short-url ".GET.full-response")]
+            (with-open [client-a (create-client metric-registry nil)
+                        client-b (create-client metric-registry "other-prefix")]
+              (get-short! client-a metric-registry metric-namespace)
+              (get-short! client-b metric-registry other-namespace)
+              (is (= 1 (.getCount (timer metric-registry short-name-with-get))))
+              (is (= 1 (.getCount (timer metric-registry other-name))))
+              (is (identical? (timer metric-registry short-name-with-get)
+                              (.findFullResponseTimer (timer-index client-a) request)))
+              (is (identical? (timer metric-registry other-name)
+                              (.findFullResponseTimer (timer-index client-b) request)))))))))))
+
+(deftest connection-pool-metrics-test
+  (testlogging/with-test-logging
+    (testutils/with-app-with-config
+     app
+     [jetty9/jetty9-service test-metric-web-service]
+     {:webserver {:port 10000}}
+     (let [metric-registry (MetricRegistry.)
+           pool-name (partial format "%s.connection-pool.%s" metric-namespace)
+           route-name (partial format "%s.connection-pool.with-route.http://localhost:10000.%s"
+                               metric-namespace)
+           gauge-value (fn [name] (some-> (.getGauges metric-registry) (get name) (.getValue)))]
+       (with-open [client (async/create-client {:metric-registry metric-registry})]
+         (dotimes [_ 2]
+           (is (= 200 (:status @(common/get client hello-url)))))
+         (testing "pool gauges are registered for the pool and each route"
+           (is (= 0 (gauge-value (pool-name "leased"))))
+           (is (= 0 (gauge-value (pool-name "pending"))))
+           (is (= 1 (gauge-value (pool-name "available"))))
+           (is (= 20 (gauge-value (pool-name "max"))))
+           (is (= 0 (gauge-value (route-name "leased"))))
+           (is (= 0 (gauge-value (route-name "pending"))))
+           (is (= 1 (gauge-value (route-name "available"))))
+           (is (= 2 (gauge-value (route-name "max")))))
+         (testing "each lease is timed"
+           (is (= 2 (.getCount (get (.getTimers metric-registry) (pool-name "lease-wait"))))))
+         (testing "leases are counted as reusing or creating a connection"
+           (is (= 1 (.getCount (get (.getMeters metric-registry) (pool-name "created")))))
+           (is (= 1 (.getCount (get (.getMeters metric-registry) (pool-name "reused")))))))
+       (testing "pool gauges are removed when the client is closed"
+         (is (empty? (.getGauges metric-registry))))))))
+
+(deftest connection-pool-warm-up-test
+  (testlogging/with-test-logging
+    (testutils/with-app-with-config
+     app
+     [jetty9/jetty9-service test-metric-web-service]
+     {:webserver {:port 10000}}
+     (let [metric-registry (MetricRegistry.)
+           pool-name (partial format "%s.connection-pool.%s" metric-namespace)
+           gauge-value (fn [name] (some-> (.getGauges metric-registry) (get name) (.getValue)))]
+       (with-open [client (Async/createClient (doto (ClientOptions.)
+                                                (.setMetricRegistry metric-registry)
+                                                (.setEnablePhaseMetrics true)
+                                                (.setWarmUpHosts (into-array String ["http://localhost:10000"
+                                                                                     "http://localhost:1"]))
+                                                (.setWarmUpConnections 2)))]
+         (-> client (.warmUp) (.toCompletableFuture) (.get 10 TimeUnit/SECONDS))
+         (testing "the pool holds the warmed up connections, and none for unreachable hosts"
+           (is (= 2 (gauge-value (pool-name "available"))))
+           (is (= 0 (gauge-value (pool-name "leased")))))
+         (testing "warm-ups are timed"
+           (is (pos? (.getCount (get (.getTimers metric-registry) (pool-name "warm-up"))))))
+         (testing "requests reuse the warmed up connections without recording a connect time"
+           (-> client (.get (RequestOptions. hello-url)) (.deref))
+           (is (= 2 (gauge-value (pool-name "available"))))
+           (is (empty? (metrics/get-client-metrics-by-url
+                        metric-registry hello-url :connect))))))
+     (testing "clojure clients warm up their pool when created"
+       (let [metric-registry (MetricRegistry.)]
+         (with-open [_ (async/create-client {:metric-registry metric-registry
+                                             :warm-up-hosts ["http://localhost:10000"]
+                                             :warm-up-connections 2})]
+           (let [warm-up-timer #(get (.getTimers metric-registry)
+                                     (format "%s.connection-pool.warm-up" metric-namespace))]
+             (loop [attempts 0]
+               (when (and (< attempts 100) (zero? (.getCount (warm-up-timer))))
+                 (Thread/sleep 50)
+                 (recur (inc attempts))))
+             (is (= 1 (.getCount (warm-up-timer))))
+             (is (= 2 (-> (.getGauges metric-registry)
+                          (get (format "%s.connection-pool.available" metric-namespace))
+                          (.getValue)))))))))))
+
+(deftest connection-eviction-test
+  (testlogging/with-test-logging
+    (testutils/with-app-with-config
+     app
+     [jetty9/jetty9-service test-metric-web-service]
+     {:webserver {:port 10000}}
+     (let [metric-registry (MetricRegistry.)
+           pool-name (partial format "%s.connection-pool.%s" metric-namespace)
+           gauge-value (fn [name] (some-> (.getGauges metric-registry) (get name) (.getValue)))
+           meter-count (fn [name] (.getCount (get (.getMeters metric-registry) name)))]
+       (with-open [client (async/create-client {:metric-registry metric-registry
+                                                :idle-connection-timeout-milliseconds 200
+                                                :connection-eviction-interval-milliseconds 50})]
+         (is (= 200 (:status @(common/get client hello-url))))
+         (is (= 1 (gauge-value (pool-name "available"))))
+         (testing "idle connections are closed by the sweep"
+           (Thread/sleep 500)
+           (is (= 0 (gauge-value (pool-name "available"))))
+           (is (= 1 (meter-count (pool-name "evicted")))))
+         (testing "the next request opens a new connection"
+           (is (= 200 (:status @(common/get client hello-url))))
+           (is (= 2 (meter-count (pool-name "created"))))))))))
+
+(deftest connection-reuse-order-test
+  (testlogging/with-test-logging
+    (testutils/with-app-with-config
+     app
+     [jetty9/jetty9-service test-metric-web-service]
+     {:webserver {:port 10000}}
+     (let [metric-registry (MetricRegistry.)
+           pool-name (partial format "%s.connection-pool.%s" metric-namespace)
+           gauge-value (fn [name] (some-> (.getGauges metric-registry) (get name) (.getValue)))
+           meter-count (fn [name] (.getCount (get (.getMeters metric-registry) name)))]
+       (with-open [client (async/create-client {:metric-registry metric-registry
+                                                :max-connections-per-route 5
+                                                :idle-connection-timeout-milliseconds 300
+                                                :connection-eviction-interval-milliseconds 50})]
+         (doseq [response (doall (repeatedly 5 #(common/get client long-url)))]
+           (is (= 200 (:status @response))))
+         (is (= 5 (gauge-value (pool-name "available"))))
+         (testing "requests after a burst keep to the most recently used connection"
+           (dotimes [_ 12]
+             (is (= 200 (:status @(common/get client hello-url))))
+             (Thread/sleep 50))
+           (is (= 5 (meter-count (pool-name "created"))))
+           (testing "so the other connections are left idle and evicted"
+             (is (= 1 (gauge-value (pool-name "available"))))
+             (is (= 4 (meter-count (pool-name "evicted")))))))))))